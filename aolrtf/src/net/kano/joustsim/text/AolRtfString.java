@@ -43,19 +43,10 @@ import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.html.HTML;
 import javax.swing.text.html.HTML.Tag;
-import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.StyleSheet;
-import javax.swing.text.html.parser.ParserDelegator;
 import java.awt.Color;
-import java.io.IOException;
-import java.io.StringReader;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 public class AolRtfString {
-  private static final Logger logger
-      = Logger.getLogger(AolRtfString.class.getName());
-
   private static final char[] CHARS_HR = " \n-----\n".toCharArray();
   private static final char[] CHARS_NEWLINE = new char[]{'\n'};
 
@@ -68,14 +59,7 @@ public class AolRtfString {
     DefensiveTools.checkNull(text, "text");
 
     LineReader reader = new LineReader(context);
-    ParserDelegator realParser = new ParserDelegator();
-    HTMLEditorKit.Parser parser = new AolRtfFilterParser(realParser);
-    try {
-      parser.parse(new StringReader(text), reader, false);
-    } catch (IOException e) {
-      logger.log(Level.WARNING, "Couldn't decode AOLRTF string: " + text, e);
-      return null;
-    }
+    AolRtfTokenizer.parse(text, reader);
     return new AolRtfString(text, reader.getElements(),
         reader.getBackgroundColor());
   }
@@ -0,0 +1,383 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions 
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution. 
+ *  - Neither the name of the Joust Project nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, 
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN 
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joustsim.text;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.HtmlEntities;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLEditorKit;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small single-pass tokenizer for the subset of HTML which AIM clients send,
+ * which feeds a {@link HTMLEditorKit.ParserCallback} the same events as
+ * running Swing's {@link javax.swing.text.html.parser.ParserDelegator} through
+ * an {@link AolRtfFilterParser}, without loading the HTML DTD. Whitespace is
+ * kept as it was sent, and line breaks become implied <code>BR</code> tags.
+ * <br>
+ * <br>
+ * Where the two differ, it's on text which isn't really HTML: a
+ * <code>&lt;</code> which doesn't start a tag is kept as text rather than
+ * dropped, and spacing around tags is never rearranged. Like Swing's parser,
+ * an end tag closes any tags opened after its start tag, except that a
+ * misplaced <code>&lt;/FONT&gt;</code> is ignored.
+ */
+final class AolRtfTokenizer {
+    /** The value Swing's parser gives attributes which have no value. */
+    private static final String VALUE_DEFAULT = "#DEFAULT";
+
+    /**
+     * Feeds the given callback the tags and text in the given string, ending
+     * with a call to <code>flush</code>.
+     *
+     * @param text a line of AOL-formatted text
+     * @param callback the callback to feed
+     */
+    public static void parse(String text,
+            HTMLEditorKit.ParserCallback callback) {
+        DefensiveTools.checkNull(text, "text");
+        DefensiveTools.checkNull(callback, "callback");
+
+        new AolRtfTokenizer(text, callback).parse();
+    }
+
+    private final String text;
+    private final int length;
+    private final HTMLEditorKit.ParserCallback callback;
+
+    /** The text read since the last tag, with entities already decoded. */
+    private final StringBuilder textBuf = new StringBuilder(64);
+    /** Where in the string the text in {@link #textBuf} started. */
+    private int textStart = 0;
+
+    /** The tags which have been started but not ended, innermost last. */
+    private final List<HTML.Tag> openTags = new ArrayList<HTML.Tag>();
+    /**
+     * Whether any content has been seen yet, after which a
+     * <code>BODY</code> tag no longer counts.
+     */
+    private boolean inBody = false;
+
+    private AolRtfTokenizer(String text,
+            HTMLEditorKit.ParserCallback callback) {
+        this.text = text;
+        this.length = text.length();
+        this.callback = callback;
+    }
+
+    private void parse() {
+        int pos = 0;
+        while (pos < length) {
+            char ch = text.charAt(pos);
+            if (ch == '<') {
+                int end = parseMarkup(pos);
+                if (end == -1) {
+                    appendText(pos, ch);
+                    pos++;
+                } else {
+                    pos = end;
+                }
+
+            } else if (ch == '&') {
+                pos = parseEntity(pos);
+
+            } else if (ch == '\n') {
+                flushText();
+                inBody = true;
+                SimpleAttributeSet attrs = new SimpleAttributeSet();
+                attrs.addAttribute(HTMLEditorKit.ParserCallback.IMPLIED,
+                        Boolean.TRUE);
+                callback.handleSimpleTag(HTML.Tag.BR, attrs, pos);
+                pos++;
+
+            } else {
+                appendText(pos, ch);
+                pos++;
+            }
+        }
+        flushText();
+        for (int i = openTags.size() - 1; i >= 0; i--) {
+            callback.handleEndTag(openTags.remove(i), length);
+        }
+        try {
+            callback.flush();
+        } catch (BadLocationException e) {
+            // our positions are always within the string
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private void appendText(int pos, char ch) {
+        if (textBuf.length() == 0) textStart = pos;
+        textBuf.append(ch);
+    }
+
+    private void flushText() {
+        int len = textBuf.length();
+        if (len == 0) return;
+
+        inBody = true;
+        char[] chars = new char[len];
+        textBuf.getChars(0, len, chars, 0);
+        textBuf.setLength(0);
+        callback.handleText(chars, textStart);
+    }
+
+    /**
+     * Reads the tag, comment, or declaration starting at the given
+     * <code>&lt;</code>.
+     *
+     * @param start the index of the <code>&lt;</code>
+     * @return the index just past the markup, or <code>-1</code> if the
+     *         <code>&lt;</code> doesn't start any markup
+     */
+    private int parseMarkup(int start) {
+        int pos = start + 1;
+        if (pos >= length) return -1;
+
+        char ch = text.charAt(pos);
+        if (text.startsWith("!--", pos)) {
+            int end = text.indexOf("-->", pos + 3);
+            return end == -1 ? length : end + 3;
+
+        } else if (ch == '!' || ch == '?') {
+            int end = text.indexOf('>', pos);
+            return end == -1 ? length : end + 1;
+        }
+
+        boolean endTag = ch == '/';
+        if (endTag) {
+            pos++;
+            if (pos >= length) return -1;
+        }
+        if (!isLetter(text.charAt(pos))) return -1;
+
+        int nameStart = pos;
+        while (pos < length && isNameChar(text.charAt(pos))) pos++;
+        String name = text.substring(nameStart, pos).toLowerCase();
+
+        // attribute values are decoded into the text buffer, so it has to be
+        // empty first
+        flushText();
+        SimpleAttributeSet attrs = new SimpleAttributeSet();
+        boolean selfClosing = false;
+        while (true) {
+            pos = skipSpaces(pos);
+            // an unfinished tag at the end of the line is dropped
+            if (pos >= length) return length;
+
+            ch = text.charAt(pos);
+            if (ch == '>') {
+                pos++;
+                break;
+            }
+            if (ch == '/') {
+                selfClosing = true;
+                pos++;
+                continue;
+            }
+            selfClosing = false;
+            pos = parseAttribute(pos, attrs);
+        }
+
+        HTML.Tag tag = HTML.getTag(name);
+        if (tag != null) {
+            if (endTag) handleEndTag(tag, start);
+            else handleStartTag(tag, attrs, selfClosing, start);
+        }
+        return pos;
+    }
+
+    /**
+     * Reads an attribute starting at the given index, which must not be
+     * whitespace, <code>/</code>, or <code>&gt;</code>.
+     *
+     * @return the index just past the attribute
+     */
+    private int parseAttribute(int pos, MutableAttributeSet attrs) {
+        int nameStart = pos;
+        while (pos < length) {
+            char ch = text.charAt(pos);
+            if (ch == '=' || ch == '>' || isSpace(ch)) break;
+            pos++;
+        }
+        String name = text.substring(nameStart, pos).toLowerCase();
+
+        String value = VALUE_DEFAULT;
+        int afterName = skipSpaces(pos);
+        if (afterName < length && text.charAt(afterName) == '=') {
+            pos = skipSpaces(afterName + 1);
+            int valueStart;
+            int valueEnd;
+            char quote = pos < length ? text.charAt(pos) : 0;
+            if (quote == '"' || quote == '\'') {
+                valueStart = pos + 1;
+                valueEnd = text.indexOf(quote, valueStart);
+                if (valueEnd == -1) valueEnd = length;
+                pos = Math.min(valueEnd + 1, length);
+            } else {
+                valueStart = pos;
+                while (pos < length && text.charAt(pos) != '>'
+                        && !isSpace(text.charAt(pos))) {
+                    pos++;
+                }
+                valueEnd = pos;
+            }
+            value = decodeEntities(valueStart, valueEnd);
+        }
+
+        Object key = HTML.getAttributeKey(name);
+        if (key == null) key = name;
+        if (!attrs.isDefined(key)) attrs.addAttribute(key, value);
+        return pos;
+    }
+
+    private void handleStartTag(HTML.Tag tag, MutableAttributeSet attrs,
+            boolean selfClosing, int pos) {
+        if (tag == HTML.Tag.HTML || tag == HTML.Tag.HEAD) return;
+
+        if (tag == HTML.Tag.BODY) {
+            // like Swing's parser, we only look at a BODY tag which comes
+            // before any content
+            if (!inBody) {
+                inBody = true;
+                callback.handleStartTag(tag, attrs, pos);
+            }
+
+        } else if (selfClosing || isEmpty(tag)) {
+            inBody = true;
+            callback.handleSimpleTag(tag, attrs, pos);
+
+        } else {
+            inBody = true;
+            openTags.add(tag);
+            callback.handleStartTag(tag, attrs, pos);
+        }
+    }
+
+    private void handleEndTag(HTML.Tag tag, int pos) {
+        int index = openTags.lastIndexOf(tag);
+        if (index == -1) return;
+
+        int last = openTags.size() - 1;
+        // people put </FONT> in the strangest places, so Swing's parser
+        // ignores one which would close other tags, and so do we
+        if (index != last && tag == HTML.Tag.FONT) return;
+
+        for (int i = last; i >= index; i--) {
+            callback.handleEndTag(openTags.remove(i), pos);
+        }
+    }
+
+    /**
+     * Decodes the entity starting at the given <code>&amp;</code> into the
+     * text buffer.
+     *
+     * @return the index just past the entity
+     */
+    private int parseEntity(int start) {
+        if (textBuf.length() == 0) textStart = start;
+        int end = decodeEntity(start, length);
+        if (end == -1) {
+            appendText(start, '&');
+            return start + 1;
+        }
+        return end;
+    }
+
+    private String decodeEntities(int start, int end) {
+        int amp = text.indexOf('&', start);
+        if (amp == -1 || amp >= end) return text.substring(start, end);
+
+        // decode into the text buffer, which is empty while reading a tag
+        int pos = start;
+        while (pos < end) {
+            char ch = text.charAt(pos);
+            int next = ch == '&' ? decodeEntity(pos, end) : -1;
+            if (next == -1) {
+                textBuf.append(ch);
+                pos++;
+            } else {
+                pos = next;
+            }
+        }
+        String value = textBuf.toString();
+        textBuf.setLength(0);
+        return value;
+    }
+
+    /**
+     * Appends the character for the entity starting at the given
+     * <code>&amp;</code> to the text buffer.
+     *
+     * @return the index just past the entity, or <code>-1</code> if there is
+     *         no entity there
+     */
+    private int decodeEntity(int start, int end) {
+        try {
+            return HtmlEntities.decode(text, start, end, textBuf);
+        } catch (IOException impossible) {
+            return -1;
+        }
+    }
+
+    private int skipSpaces(int pos) {
+        while (pos < length && isSpace(text.charAt(pos))) pos++;
+        return pos;
+    }
+
+    private static boolean isEmpty(HTML.Tag tag) {
+        return tag == HTML.Tag.BR || tag == HTML.Tag.HR
+                || tag == HTML.Tag.IMG || tag == HTML.Tag.META;
+    }
+
+    private static boolean isSpace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r'
+                || ch == '\f';
+    }
+
+    private static boolean isLetter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+    private static boolean isNameChar(char ch) {
+        return isLetter(ch) || (ch >= '0' && ch <= '9');
+    }
+}
@@ -40,6 +40,7 @@ import net.kano.joustsim.text.AolRtfString;
 import net.kano.joscar.DefensiveTools;
 
 import javax.swing.Icon;
+import javax.swing.SwingUtilities;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
@@ -61,12 +62,26 @@ import java.util.Map;
 public class ConversationDocument extends HTMLDocument {
     public static final String ATTR_SPLIT_WORDS = "SPLIT_WORDS";
 
+    /** The number of lines kept by default. */
+    public static final int DEFAULT_MAX_LINES = 5000;
+
     private static final String ATTR_ICON_IDS = "ICON_IDS";
     private static final char[] SPACE_CHARS = new char[] { ' ' };
 
     private HTMLDocument.BlockElement rootTable;
     private Map<IconID,Icon[]> iconMap = new HashMap<IconID, Icon[]>();
 
+    private volatile int maxLines = DEFAULT_MAX_LINES;
+
+    private final List<ConversationLine> queuedLines
+            = new ArrayList<ConversationLine>();
+    private boolean flushScheduled = false;
+    private final Runnable flusher = new Runnable() {
+        public void run() {
+            flushQueuedLines();
+        }
+    };
+
     public ConversationDocument() {
         setupStyles();
     }
@@ -104,6 +119,33 @@ public class ConversationDocument extends HTMLDocument {
         listenerList.remove(ConversationDocumentListener.class, l);
     }
 
+    public int getMaxLines() { return maxLines; }
+
+    /**
+     * Sets the most lines, including info and status messages, which this
+     * document keeps. When a new line would go over the limit, the oldest
+     * lines are removed in a block of a tenth of the limit, so a full
+     * document isn't edited at both ends for every line. Zero means lines
+     * are never removed.
+     */
+    public void setMaxLines(int maxLines) {
+        DefensiveTools.checkRange(maxLines, "maxLines", 0);
+
+        this.maxLines = maxLines;
+        makeRoomForLines(0);
+    }
+
+    /** Returns the number of lines and messages in this document. */
+    public int getLineCount() {
+        readLock();
+        try {
+            // the last row holds the document's final newline
+            return rootTable.getElementCount() - 1;
+        } finally {
+            readUnlock();
+        }
+    }
+
     protected AbstractElement createDefaultRoot() {
         writeLock();
 
@@ -156,6 +198,58 @@ public class ConversationDocument extends HTMLDocument {
     }
 
     public void addConversationLine(ConversationLine line) {
+        addConversationLines(new ConversationLine[] { line });
+    }
+
+    /**
+     * Adds the given lines to the end of this document in a single edit, which
+     * is much faster to lay out than adding them one at a time.
+     */
+    public void addConversationLines(ConversationLine[] lines) {
+        DefensiveTools.checkNullElements(lines, "lines");
+
+        if (lines.length == 0) return;
+
+        int max = maxLines;
+        int first = 0;
+        if (max != 0 && lines.length > max) first = lines.length - max;
+
+        ElementSpec[][] specss = new ElementSpec[lines.length - first][];
+        for (int i = first; i < lines.length; i++) {
+            specss[i - first] = getLineSpecs(lines[i]);
+        }
+        insertAtEnd(concatenateSpecs(specss), specss.length);
+    }
+
+    /**
+     * Adds the given line to the end of this document on the event dispatch
+     * thread, along with any other lines queued before it gets there. This
+     * method can be called from any thread, and a burst of lines from a busy
+     * chat room is added as one edit.
+     */
+    public void queueConversationLine(ConversationLine line) {
+        DefensiveTools.checkNull(line, "line");
+
+        boolean schedule;
+        synchronized(queuedLines) {
+            queuedLines.add(line);
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (schedule) SwingUtilities.invokeLater(flusher);
+    }
+
+    private void flushQueuedLines() {
+        ConversationLine[] lines;
+        synchronized(queuedLines) {
+            lines = queuedLines.toArray(new ConversationLine[queuedLines.size()]);
+            queuedLines.clear();
+            flushScheduled = false;
+        }
+        addConversationLines(lines);
+    }
+
+    private ElementSpec[] getLineSpecs(ConversationLine line) {
         StyleSheet sheet = getStyleSheet();
 
         Screenname sn = line.getSender();
@@ -204,10 +298,9 @@ public class ConversationDocument extends HTMLDocument {
         ElementSpec[] newlinespecs = new ElementSpec[] {
             getStringSpec(" "),
         };
-        ElementSpec[] finspecs = concatenateSpecs(new ElementSpec[][] {
+        return concatenateSpecs(new ElementSpec[][] {
             specs, iconSpecs, specs2, textSpecs, newlinespecs
         });
-        insertAtEnd(finspecs);
     }
 
     private Map<Screenname,Integer> snids = new HashMap<Screenname, Integer>();
@@ -349,10 +442,35 @@ public class ConversationDocument extends HTMLDocument {
         ElementSpec[] bigspecs = concatenateSpecs(new ElementSpec[][] {
             specs, str.generateDocumentElements(), newlinespecs,
         });
-        insertAtEnd(bigspecs);
+        insertAtEnd(bigspecs, 1);
     }
 
-    private void insertAtEnd(ElementSpec[] bigspecs) {
+    /**
+     * Removes the oldest lines if adding the given number of lines would go
+     * over the limit.
+     */
+    private void makeRoomForLines(int adding) {
+        int max = maxLines;
+        if (max == 0) return;
+
+        int lines = getLineCount();
+        if (lines + adding <= max) return;
+
+        int block = Math.max(1, max / 10);
+        int removing = Math.min(lines, lines + adding - max + block);
+        if (removing == 0) return;
+
+        // each line is a row of the table, so removing the text of whole
+        // rows removes them cleanly
+        int end = rootTable.getElement(removing).getStartOffset();
+        try {
+            remove(0, end);
+        } catch (BadLocationException ignored) { }
+    }
+
+    private void insertAtEnd(ElementSpec[] bigspecs, int lines) {
+        makeRoomForLines(lines);
+
         int length = getLength();
         Element currentp = getParagraphElement(length);
 
@@ -0,0 +1,211 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions 
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution. 
+ *  - Neither the name of the Joust Project nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, 
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN 
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joustsim.text;
+
+import junit.framework.TestCase;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.html.CSS;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.StyleSheet;
+import javax.swing.text.html.parser.ParserDelegator;
+import java.awt.Color;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Checks that {@link AolRtfTokenizer} reads messages the same way as the Swing
+ * parser did. The Swing parser sometimes splits a run of text in two, so
+ * neighboring runs with the same attributes are joined before comparing.
+ * Swing's parser drops everything after text made only of spaces, like the
+ * space in <code>&lt;B&gt;a&lt;/B&gt; &lt;I&gt;b&lt;/I&gt;</code>, so that
+ * case is tested on its own.
+ */
+public class AolRtfTokenizerTest extends TestCase {
+    private static final String[] MESSAGES = {
+        "hello",
+        "<b>test</b>",
+        "z<s>a</s><hr>bb<em>c",
+        "<HTML><BODY BGCOLOR=\"#ffffff\"><FONT FACE=\"Arial\" SIZE=2 "
+                + "COLOR=\"#000000\">hi there</FONT></BODY></HTML>",
+        "<HTML><BODY ic=\"0\" BGCOLOR=\"#FFFFFF\"><FONT LANG=\"0\" "
+                + "FACE=\"Times New Roman\" SIZE=3 BACK=\"#ffff00\">"
+                + "<B>bold</B><I>it</I> and <U>under</U></FONT></BODY></HTML>",
+        "<html><body bgcolor=red><b>x</b></body></html>",
+        "a<br>b<BR>c",
+        "<br/>x<br />y",
+        "a\nb",
+        "\na",
+        "x <b>a</b>  c <i>b</i> d",
+        "a & b &lt; c &amp; d &gt; e &quot; &#65; &foo;",
+        "&euro; &hellip; &trade; &eacute; &EACUTE; &Eacute; &copy; &Nbsp;",
+        "&nbsp x &amp y &#65 z AT&T a&b; &; &lt3 &amp;amp;",
+        "&#160;|&#8364;|&#X41;|&#65x",
+        "a&nbsp;&nbsp;b",
+        "<a href=\"http://x.com/\">link</a> after",
+        "<A HREF=\"aim:goim?screenname=joe&amp;message=hi\">im</A>",
+        "<a   href = \"a b\" >x</a>",
+        "<a href=x>a</a><a href=y>b</a>",
+        "<a href=foo target=_blank>x</a>",
+        "<font color=red back=blue>x</font>",
+        "<font BACK=blue COLOR=red>x</font>",
+        "<FONT FACE='Times New Roman' Color=Red>x</FONT>",
+        "<font foo>x</font>",
+        "<font size=+1>big</font><font size=\"7\">huge</font>",
+        "<font size=3>a</font><font size=1>b</font><font size=-1>c</font>"
+                + "<font size=12pt>d</font>",
+        "<font size=2>a<font color=blue>b</font>c</font>",
+        "<font color=red><b>x</font>y</b>",
+        "<b><i>bi</i></b>",
+        "<b>a<b>b</b>c</b>",
+        "<b>x<i>y</b>z</i>w",
+        "<b>x</i>y</b>z",
+        "<u>u<s>s</s></u>",
+        "<strong>s</strong><em>e</em><strike>k</strike>",
+        "<i>unclosed",
+        "</b>stray",
+        "</br>x",
+        "<img src=foo.gif>x",
+        "<!-- comment -->text",
+        "<p>para</p>after",
+        "a <unknown>b</unknown> c",
+        "text <b>",
+        "<b",
+    };
+
+    public void testSameAsSwingParser() throws IOException {
+        for (String message : MESSAGES) {
+            StyleSheet sheet = new StyleSheet();
+            LineReader expected = new LineReader(sheet);
+            new AolRtfFilterParser(new ParserDelegator()).parse(
+                    new StringReader(message), expected, false);
+            LineReader actual = new LineReader(sheet);
+            AolRtfTokenizer.parse(message, actual);
+
+            assertEquals(message, expected.getBackgroundColor(),
+                    actual.getBackgroundColor());
+            assertElementsEqual(message, merge(expected.getElements()),
+                    merge(actual.getElements()));
+        }
+    }
+
+    public void testSpaceBetweenTags() {
+        LineElement[] elements = AolRtfString.readLine(
+                "<B>bold</B> <I>it</I>").getElements();
+        assertEquals(3, elements.length);
+        assertEquals("bold", ((TextElement) elements[0]).getString());
+        assertEquals(" ", ((TextElement) elements[1]).getString());
+        TextElement it = (TextElement) elements[2];
+        assertEquals("it", it.getString());
+        assertEquals("italic",
+                it.getAttrs().getAttribute(CSS.Attribute.FONT_STYLE).toString());
+    }
+
+    public void testStrayLessThanIsText() {
+        LineElement[] elements = AolRtfString.readLine("1 < 2 <3").getElements();
+        assertEquals(1, elements.length);
+        assertEquals("1 < 2 <3", ((TextElement) elements[0]).getString());
+    }
+
+    public void testAttributesAreDecoded() {
+        AolRtfString line = AolRtfString.readLine("<body bgcolor=#00ff00>"
+                + "<a href=\"a?b=1&amp;c=&quot;2&quot;\">x</a>");
+        assertEquals(Color.GREEN, line.getBackgroundColor());
+        TextElement x = (TextElement) line.getElements()[0];
+        AttributeSet a = (AttributeSet) x.getAttrs().getAttribute(HTML.Tag.A);
+        assertEquals("a?b=1&c=\"2\"", a.getAttribute(HTML.Attribute.HREF));
+        assertNull(x.getAttrs().getAttribute(CSS.Attribute.FONT_WEIGHT));
+    }
+
+    private static List<LineElement> merge(LineElement[] elements) {
+        List<LineElement> merged = new ArrayList<LineElement>();
+        for (LineElement element : elements) {
+            int last = merged.size() - 1;
+            if (element instanceof TextElement && last >= 0
+                    && merged.get(last) instanceof TextElement) {
+                TextElement prev = (TextElement) merged.get(last);
+                TextElement next = (TextElement) element;
+                if (describe(prev.getAttrs()).equals(
+                        describe(next.getAttrs()))) {
+                    merged.set(last, new TextElement(
+                            prev.getString() + next.getString(),
+                            prev.getAttrs()));
+                    continue;
+                }
+            }
+            merged.add(element);
+        }
+        return merged;
+    }
+
+    private static void assertElementsEqual(String message,
+            List<LineElement> expected, List<LineElement> actual) {
+        assertEquals(message + ": " + actual, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LineElement exp = expected.get(i);
+            LineElement act = actual.get(i);
+            assertSame(message, exp.getClass(), act.getClass());
+            if (exp instanceof TextElement) {
+                TextElement expText = (TextElement) exp;
+                TextElement actText = (TextElement) act;
+                assertEquals(message, expText.getString(), actText.getString());
+                assertEquals(message, describe(expText.getAttrs()),
+                        describe(actText.getAttrs()));
+            }
+        }
+    }
+
+    /**
+     * Returns the attributes in the given set as sorted strings, since CSS
+     * values can't be compared with <code>equals</code>.
+     */
+    private static String describe(AttributeSet attrs) {
+        List<String> strings = new ArrayList<String>();
+        for (Enumeration<?> it = attrs.getAttributeNames();
+                it.hasMoreElements();) {
+            Object name = it.nextElement();
+            Object value = attrs.getAttribute(name);
+            if (value instanceof AttributeSet) {
+                value = describe((AttributeSet) value);
+            }
+            strings.add(name + "=" + value);
+        }
+        Collections.sort(strings);
+        return strings.toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions 
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright 
+ *    notice, this list of conditions and the following disclaimer. 
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in 
+ *    the documentation and/or other materials provided with the 
+ *    distribution. 
+ *  - Neither the name of the Joust Project nor the names of its 
+ *    contributors may be used to endorse or promote products derived 
+ *    from this software without specific prior written permission. 
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS 
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE 
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, 
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER 
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT 
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN 
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE 
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joustsim.text.convbox;
+
+import junit.framework.TestCase;
+import net.kano.joustsim.Screenname;
+import net.kano.joustsim.text.AolRtfString;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+
+public class ConversationDocumentTest extends TestCase {
+    private final Screenname sn = new Screenname("joe");
+    private ConversationDocument doc;
+
+    protected void setUp() throws Exception {
+        doc = new ConversationDocument();
+    }
+
+    private ConversationLine line(String text) {
+        return new ConversationLine(sn, AolRtfString.readLine(text), null,
+                new IconID[0]);
+    }
+
+    private String getText() throws BadLocationException {
+        return doc.getText(0, doc.getLength());
+    }
+
+    public void testOldLinesRemovedInBlocks() throws BadLocationException {
+        doc.setMaxLines(20);
+        for (int i = 0; i < 20; i++) doc.addConversationLine(line("m" + i));
+        assertEquals(20, doc.getLineCount());
+
+        // a block of two lines goes, to make room for this one
+        doc.addInfoMessage(AolRtfString.readLine("info"));
+        assertEquals(18, doc.getLineCount());
+        String text = getText();
+        assertTrue(text, text.startsWith(" joe: m3 "));
+        assertTrue(text, text.endsWith(" joe: m19 info "));
+
+        doc.setMaxLines(0);
+        for (int i = 0; i < 30; i++) doc.addConversationLine(line("x"));
+        assertEquals(48, doc.getLineCount());
+    }
+
+    public void testBatchKeepsNewestLines() throws BadLocationException {
+        doc.setMaxLines(5);
+        doc.addConversationLine(line("old"));
+
+        ConversationLine[] lines = new ConversationLine[8];
+        for (int i = 0; i < lines.length; i++) lines[i] = line("b" + i);
+        doc.addConversationLines(lines);
+
+        assertEquals(5, doc.getLineCount());
+        assertEquals(" joe: b3  joe: b4  joe: b5  joe: b6  joe: b7 ",
+                getText());
+    }
+
+    public void testQueuedLinesAddedTogether() throws Exception {
+        final int[] events = new int[1];
+        doc.addConversationDocumentListener(new ConversationDocumentListener() {
+            public void handleEvent(ConversationDocumentEvent event) {
+                events[0]++;
+            }
+        });
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 3; i++) doc.queueConversationLine(line("q"));
+            }
+        });
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() { }
+        });
+
+        assertEquals(3, doc.getLineCount());
+        assertEquals(1, events[0]);
+    }
+}
@@ -39,4 +39,16 @@ import net.kano.joustsim.Screenname;
 
 public interface AppSession {
     AimSession openAimSession(Screenname sn);
+
+    /**
+     * Returns the buddy icon cache shared by every connection in this
+     * application session.
+     */
+    BuddyIconCache getBuddyIconCache();
+
+    /**
+     * Returns the buddy certificate information cache shared by every
+     * connection in this application session.
+     */
+    BuddyCertificateInfoCache getBuddyCertificateInfoCache();
 }
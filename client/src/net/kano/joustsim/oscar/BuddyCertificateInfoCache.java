@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+import net.kano.joustsim.Screenname;
+import net.kano.joustsim.oscar.oscar.service.info.BuddyHashHolder;
+import net.kano.joustsim.trust.BuddyCertificateInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of buddies' certificate information, keyed by buddy and certificate
+ * information hash, which can be shared by all of the connections in an
+ * {@link AppSession}. A limited number of recently used entries are kept in
+ * memory; if a {@link BuddyCertificateInfoStore} is given, every up-to-date
+ * entry is also written to disk, so a buddy whose certificates were seen in an
+ * earlier session can be sent secure messages as soon as their
+ * certificate information hash is seen.
+ */
+public class BuddyCertificateInfoCache {
+  /** The default number of entries kept in memory. */
+  public static final int MAX_ENTRIES_DEFAULT = 500;
+
+  private final BuddyCertificateInfoStore store;
+  private final Map<BuddyHashHolder, BuddyCertificateInfo> memCache
+      = new LinkedHashMap<BuddyHashHolder, BuddyCertificateInfo>(16, 0.75f,
+      true);
+  private int maxEntries;
+
+  public BuddyCertificateInfoCache() {
+    this(MAX_ENTRIES_DEFAULT, null);
+  }
+
+  public BuddyCertificateInfoCache(int maxEntries,
+      @Nullable BuddyCertificateInfoStore store) {
+    DefensiveTools.checkRange(maxEntries, "maxEntries", 0);
+
+    this.maxEntries = maxEntries;
+    this.store = store;
+  }
+
+  public @Nullable BuddyCertificateInfoStore getStore() { return store; }
+
+  public synchronized int getMaxEntries() { return maxEntries; }
+
+  public synchronized void setMaxEntries(int maxEntries) {
+    DefensiveTools.checkRange(maxEntries, "maxEntries", 0);
+
+    this.maxEntries = maxEntries;
+    trimMemory();
+  }
+
+  /** Returns the number of entries currently held in memory. */
+  public synchronized int getMemoryEntryCount() { return memCache.size(); }
+
+  /**
+   * Returns the cached certificate information for the given buddy and hash,
+   * from memory or from the disk store, or {@code null} if none is cached.
+   */
+  public @Nullable BuddyCertificateInfo getCertificateInfo(Screenname buddy,
+      ByteBlock hash) {
+    DefensiveTools.checkNull(buddy, "buddy");
+
+    if (hash == null || hash.getLength() == 0) return null;
+
+    BuddyHashHolder key = new BuddyHashHolder(buddy, hash);
+    synchronized (this) {
+      BuddyCertificateInfo info = memCache.get(key);
+      if (info != null) return info;
+    }
+    if (store == null) return null;
+
+    BuddyCertificateInfo info = store.load(buddy, copyOf(hash));
+    if (info != null) putInMemory(info);
+    return info;
+  }
+
+  /**
+   * Caches the given certificate information, unless its hash is empty. Up to
+   * date certificate information is also written to the disk store, if any.
+   */
+  public void putCertificateInfo(BuddyCertificateInfo certInfo) {
+    DefensiveTools.checkNull(certInfo, "certInfo");
+
+    ByteBlock hash = certInfo.getCertificateInfoHash();
+    if (hash.getLength() == 0) return;
+
+    synchronized (this) {
+      BuddyHashHolder key = new BuddyHashHolder(certInfo.getBuddy(), hash);
+      BuddyCertificateInfo existing = memCache.get(key);
+      if (existing != null && (existing.isUpToDate()
+          || !certInfo.isUpToDate())) {
+        return;
+      }
+    }
+    putInMemory(certInfo);
+    if (store != null) store.store(certInfo);
+  }
+
+  /** Removes every entry from memory. Entries in the disk store are kept. */
+  public synchronized void clearMemory() {
+    memCache.clear();
+  }
+
+  private synchronized void putInMemory(BuddyCertificateInfo certInfo) {
+    // the hash may be a view into a much larger packet
+    ByteBlock hash = copyOf(certInfo.getCertificateInfoHash());
+    memCache.put(new BuddyHashHolder(certInfo.getBuddy(), hash), certInfo);
+    trimMemory();
+  }
+
+  private synchronized void trimMemory() {
+    Iterator<BuddyCertificateInfo> it = memCache.values().iterator();
+    while (memCache.size() > maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private static ByteBlock copyOf(ByteBlock block) {
+    return ByteBlock.wrap(block.toByteArray());
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import net.kano.joscar.BinaryTools;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.snaccmd.CertificateInfo;
+import net.kano.joustsim.Screenname;
+import net.kano.joustsim.trust.BuddyCertificateInfo;
+import net.kano.joustsim.trust.TrustTools;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk store of buddies' certificates, addressed by screenname and
+ * certificate information hash. Each buddy's encryption and signing
+ * certificates are stored DER-encoded in a single file, named after the
+ * buddy's normalized screenname and the hash. As with {@link BuddyIconStore},
+ * files are written under a temporary name and then renamed.
+ * <br />
+ * The certificate information hash covers the certificates themselves, so
+ * the store rebuilds the certificate information block the buddy would have
+ * sent and checks its hash, both before storing and after loading. Stored
+ * files whose certificates do not match their name's hash are deleted.
+ * Certificate information which cannot be rebuilt this way, such as a block
+ * with non-default MD5 hashes, is not stored.
+ */
+public class BuddyCertificateInfoStore {
+  private static final Logger LOGGER = Logger
+      .getLogger(BuddyCertificateInfoStore.class.getName());
+
+  private static final String SUFFIX = ".certs";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  /** The largest certificate we'll read back, to guard against junk files. */
+  private static final int MAX_CERT_LENGTH = 64 * 1024;
+
+  private final File dir;
+
+  public BuddyCertificateInfoStore(File dir) throws IllegalArgumentException {
+    DefensiveTools.checkNull(dir, "dir");
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalArgumentException(dir.getPath()
+          + " is not a directory and cannot be created");
+    }
+    this.dir = dir;
+  }
+
+  public @NotNull File getDirectory() { return dir; }
+
+  /**
+   * Returns the stored certificates for the given buddy and hash, or
+   * {@code null} if none are stored or they could not be read.
+   */
+  public @Nullable BuddyCertificateInfo load(Screenname buddy, ByteBlock hash) {
+    File file = getFile(buddy, hash);
+    if (!file.isFile()) return null;
+
+    X509Certificate encCert;
+    X509Certificate signingCert;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(file)));
+      try {
+        encCert = readCertificate(in);
+        signingCert = readCertificate(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't read cached certificates " + file, e);
+      return null;
+    } catch (GeneralSecurityException e) {
+      LOGGER.log(Level.WARNING, "Invalid cached certificates in " + file
+          + ", removing", e);
+      file.delete();
+      return null;
+    }
+    if (!matchesHash(hash, encCert, signingCert)) {
+      LOGGER.warning("Cached certificates in " + file + " do not match "
+          + "their hash, removing");
+      file.delete();
+      return null;
+    }
+    return new BuddyCertificateInfo(buddy, hash, encCert, signingCert);
+  }
+
+  /**
+   * Stores the certificates in the given certificate information, unless
+   * certificates for that buddy and hash are already stored. Certificate
+   * information which is not up to date is not stored.
+   */
+  public void store(BuddyCertificateInfo certInfo) {
+    DefensiveTools.checkNull(certInfo, "certInfo");
+
+    if (!certInfo.isUpToDate()) return;
+    ByteBlock hash = certInfo.getCertificateInfoHash();
+    File file = getFile(certInfo.getBuddy(), hash);
+    if (file.isFile()) return;
+    if (!matchesHash(hash, certInfo.getEncryptionCertificate(),
+        certInfo.getSigningCertificate())) {
+      LOGGER.fine("Not storing certificates for " + certInfo.getBuddy()
+          + " which don't match their hash");
+      return;
+    }
+
+    File tmp = null;
+    try {
+      tmp = File.createTempFile("certs", ".tmp", dir);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        writeCertificate(out, certInfo.getEncryptionCertificate());
+        writeCertificate(out, certInfo.getSigningCertificate());
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file) && !file.isFile()) {
+        LOGGER.warning("Couldn't move cached certificates into place at "
+            + file);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't write cached certificates " + file,
+          e);
+    } catch (GeneralSecurityException e) {
+      LOGGER.log(Level.WARNING, "Couldn't encode certificates for "
+          + certInfo.getBuddy(), e);
+    } finally {
+      if (tmp != null && tmp.exists()) tmp.delete();
+    }
+  }
+
+  public boolean contains(Screenname buddy, ByteBlock hash) {
+    return getFile(buddy, hash).isFile();
+  }
+
+  /**
+   * Returns whether the given certificates, sent either as one common
+   * certificate or as separate encryption and signing certificates with the
+   * default MD5 hashes, have the given certificate information hash.
+   */
+  static boolean matchesHash(ByteBlock hash, @Nullable X509Certificate encCert,
+      @Nullable X509Certificate signingCert) {
+    if (encCert == null || signingCert == null) return false;
+
+    ByteBlock encData;
+    ByteBlock signingData;
+    try {
+      encData = ByteBlock.wrap(encCert.getEncoded());
+      signingData = ByteBlock.wrap(signingCert.getEncoded());
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+    byte[] expected = hash.toByteArray();
+    if (encData.equals(signingData) && Arrays.equals(expected,
+        CertificateInfo.getCertInfoHash(new CertificateInfo(encData)))) {
+      return true;
+    }
+    return Arrays.equals(expected, CertificateInfo.getCertInfoHash(
+        new CertificateInfo(encData, signingData)));
+  }
+
+  private static @Nullable X509Certificate readCertificate(DataInputStream in)
+      throws IOException, GeneralSecurityException {
+    int len = in.readInt();
+    if (len == 0) return null;
+    if (len < 0 || len > MAX_CERT_LENGTH) {
+      throw new IOException("invalid certificate length " + len);
+    }
+    byte[] data = new byte[len];
+    in.readFully(data);
+    return TrustTools.decodeCertificate(ByteBlock.wrap(data));
+  }
+
+  private static void writeCertificate(DataOutputStream out,
+      @Nullable X509Certificate cert)
+      throws IOException, GeneralSecurityException {
+    if (cert == null) {
+      out.writeInt(0);
+    } else {
+      byte[] data = cert.getEncoded();
+      out.writeInt(data.length);
+      out.write(data);
+    }
+  }
+
+  private File getFile(Screenname buddy, ByteBlock hash) {
+    DefensiveTools.checkNull(buddy, "buddy");
+    DefensiveTools.checkNull(hash, "hash");
+
+    if (hash.getLength() == 0) {
+      throw new IllegalArgumentException("hash must not be empty");
+    }
+    // screennames may hold characters which aren't safe in file names
+    StringBuilder name = new StringBuilder();
+    appendHex(name,
+        ByteBlock.wrap(BinaryTools.getUtf8Bytes(buddy.getNormal())));
+    name.append('-');
+    appendHex(name, hash);
+    name.append(SUFFIX);
+    return new File(dir, name.toString());
+  }
+
+  private static void appendHex(StringBuilder sb, ByteBlock block) {
+    for (int i = 0, len = block.getLength(); i < len; i++) {
+      int b = block.get(i) & 0xff;
+      sb.append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0x0f]);
+    }
+  }
+}
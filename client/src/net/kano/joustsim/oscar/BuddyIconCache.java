@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.snaccmd.ExtraInfoData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A cache of buddy icon data, keyed by icon hash, which can be shared by all
+ * of the connections in an {@link AppSession}. Recently used icons are kept
+ * in memory, up to a limit on their total size in bytes; if a
+ * {@link BuddyIconStore} is given, every icon is also written to disk, so
+ * icons seen in earlier sessions never need to be downloaded again.
+ * <br />
+ * Disk reads and writes run on a single background thread, so
+ * {@link #loadIconData} and {@link #putIconData} never block the calling
+ * thread on file I/O.
+ */
+public class BuddyIconCache {
+  /** The default memory budget, in bytes. */
+  public static final long MAX_MEMORY_DEFAULT = 2 * 1024 * 1024;
+
+  private final BuddyIconStore store;
+  private final Executor diskExecutor;
+  private final Map<ByteBlock, ByteBlock> memCache
+      = new LinkedHashMap<ByteBlock, ByteBlock>(16, 0.75f, true);
+  private long maxMemory;
+  private long memoryUsed = 0;
+
+  public BuddyIconCache() {
+    this(MAX_MEMORY_DEFAULT, null);
+  }
+
+  public BuddyIconCache(long maxMemory, @Nullable BuddyIconStore store) {
+    this(maxMemory, store, store == null ? null : createDiskExecutor());
+  }
+
+  BuddyIconCache(long maxMemory, @Nullable BuddyIconStore store,
+      @Nullable Executor diskExecutor) {
+    DefensiveTools.checkRange(maxMemory, "maxMemory", 0);
+    if (store != null) DefensiveTools.checkNull(diskExecutor, "diskExecutor");
+
+    this.maxMemory = maxMemory;
+    this.store = store;
+    this.diskExecutor = diskExecutor;
+  }
+
+  private static Executor createDiskExecutor() {
+    return Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Buddy icon store");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public @Nullable BuddyIconStore getStore() { return store; }
+
+  public synchronized long getMaxMemory() { return maxMemory; }
+
+  public synchronized void setMaxMemory(long maxMemory) {
+    DefensiveTools.checkRange(maxMemory, "maxMemory", 0);
+
+    this.maxMemory = maxMemory;
+    trimMemory();
+  }
+
+  /** Returns the total size of the icons currently held in memory. */
+  public synchronized long getMemoryUsed() { return memoryUsed; }
+
+  /**
+   * Returns the icon data for the given hash, from memory or from the disk
+   * store, or {@code null} if the icon has not been cached. This may read
+   * from disk on the calling thread; use {@link #loadIconData} on threads
+   * which must not block.
+   */
+  public @Nullable ByteBlock getIconData(ExtraInfoData hash) {
+    ByteBlock data = getMemoryCachedIconData(hash);
+    if (data != null || store == null) return data;
+
+    return loadFromStore(getKey(hash));
+  }
+
+  /**
+   * Returns the icon data for the given hash if it is held in memory, or
+   * {@code null} otherwise. This never touches the disk store.
+   */
+  public synchronized @Nullable ByteBlock getMemoryCachedIconData(
+      ExtraInfoData hash) {
+    ByteBlock key = getKey(hash);
+    if (key == null) return null;
+
+    return memCache.get(key);
+  }
+
+  /**
+   * Looks up the icon data for the given hash and passes it to the given
+   * listener. If the icon is held in memory, or there is no disk store, the
+   * listener is called before this method returns; otherwise it is called
+   * on the cache's disk thread once the store has been read.
+   */
+  public void loadIconData(final ExtraInfoData hash,
+      final BuddyIconLoadListener listener) {
+    DefensiveTools.checkNull(listener, "listener");
+
+    ByteBlock data = getMemoryCachedIconData(hash);
+    final ByteBlock key = getKey(hash);
+    if (data != null || store == null || key == null) {
+      listener.iconLoaded(hash, data);
+      return;
+    }
+    diskExecutor.execute(new Runnable() {
+      public void run() {
+        listener.iconLoaded(hash, loadFromStore(key));
+      }
+    });
+  }
+
+  private @Nullable ByteBlock loadFromStore(@Nullable ByteBlock key) {
+    if (key == null) return null;
+
+    ByteBlock data = store.load(key);
+    if (data != null) putInMemory(key, data);
+    return data;
+  }
+
+  /**
+   * Caches the given icon data under the given hash, and returns the cached
+   * copy of the data. If the hash holds no hash data, nothing is cached and
+   * {@code iconData} is returned. Otherwise, the returned block does not
+   * share its backing array with {@code iconData}, so it can be kept without
+   * holding on to the packet it came from.
+   */
+  public @NotNull ByteBlock putIconData(ExtraInfoData hash,
+      ByteBlock iconData) {
+    DefensiveTools.checkNull(iconData, "iconData");
+
+    ByteBlock key = getKey(hash);
+    if (key == null) return iconData;
+
+    synchronized (this) {
+      ByteBlock existing = memCache.get(key);
+      if (existing != null && existing.equals(iconData)) return existing;
+    }
+    final ByteBlock copy = ByteBlock.wrap(iconData.toByteArray());
+    final ByteBlock storedKey = putInMemory(key, copy);
+    if (store != null) {
+      diskExecutor.execute(new Runnable() {
+        public void run() {
+          store.store(storedKey, copy);
+        }
+      });
+    }
+    return copy;
+  }
+
+  /** Removes every icon from memory. Icons in the disk store are kept. */
+  public synchronized void clearMemory() {
+    memCache.clear();
+    memoryUsed = 0;
+  }
+
+  /**
+   * Returns the copy of {@code key} which was stored in the memory cache.
+   */
+  private synchronized ByteBlock putInMemory(ByteBlock key, ByteBlock data) {
+    // the hash may be a view into a much larger packet
+    ByteBlock copy = ByteBlock.wrap(key.toByteArray());
+    ByteBlock old = memCache.put(copy, data);
+    if (old != null) memoryUsed -= old.getLength();
+    memoryUsed += data.getLength();
+    trimMemory();
+    return copy;
+  }
+
+  private synchronized void trimMemory() {
+    Iterator<ByteBlock> it = memCache.values().iterator();
+    while (memoryUsed > maxMemory && it.hasNext()) {
+      memoryUsed -= it.next().getLength();
+      it.remove();
+    }
+  }
+
+  private static ByteBlock getKey(ExtraInfoData hash) {
+    DefensiveTools.checkNull(hash, "hash");
+
+    ByteBlock data = hash.getData();
+    if (data == null || data.getLength() == 0) return null;
+    return data;
+  }
+}
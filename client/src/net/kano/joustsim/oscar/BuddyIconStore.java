@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk store of buddy icon data, addressed by icon hash. Each icon is
+ * stored in its own file, named after the hex form of its hash, so the same
+ * directory can safely be used by several connections (or processes) at once.
+ * Files are written under a temporary name and then renamed, so a reader never
+ * sees a partially written icon.
+ * <br />
+ * Only icons whose hash is the MD5 hash of their data are stored, and each
+ * icon is checked against its hash again when it is loaded, so a corrupt or
+ * truncated file is never returned.
+ */
+public class BuddyIconStore {
+  private static final Logger LOGGER = Logger
+      .getLogger(BuddyIconStore.class.getName());
+
+  private static final String SUFFIX = ".icon";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final File dir;
+
+  public BuddyIconStore(File dir) throws IllegalArgumentException {
+    DefensiveTools.checkNull(dir, "dir");
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalArgumentException(dir.getPath()
+          + " is not a directory and cannot be created");
+    }
+    this.dir = dir;
+  }
+
+  public @NotNull File getDirectory() { return dir; }
+
+  /**
+   * Returns the stored icon with the given hash, or {@code null} if no such
+   * icon is stored or it could not be read. A stored file whose contents do
+   * not match its hash is deleted.
+   */
+  public @Nullable ByteBlock load(ByteBlock hash) {
+    File file = getFile(hash);
+    if (!file.isFile()) return null;
+
+    byte[] data;
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        long size = channel.size();
+        if (size == 0 || size > Integer.MAX_VALUE) return null;
+
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while (buf.hasRemaining()) {
+          if (channel.read(buf) == -1) return null;
+        }
+        data = buf.array();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't read cached icon " + file, e);
+      return null;
+    }
+    if (!matchesHash(hash, data)) {
+      LOGGER.warning("Cached icon " + file + " does not match its hash; "
+          + "deleting it");
+      file.delete();
+      return null;
+    }
+    return ByteBlock.wrap(data);
+  }
+
+  /**
+   * Stores the given icon data under the given hash, unless an icon with that
+   * hash is already stored.
+   */
+  public void store(ByteBlock hash, ByteBlock iconData) {
+    DefensiveTools.checkNull(iconData, "iconData");
+
+    File file = getFile(hash);
+    if (file.isFile()) return;
+    if (!matchesHash(hash, iconData.toByteArray())) {
+      LOGGER.fine("Not storing icon whose hash is not its MD5 hash: " + hash);
+      return;
+    }
+
+    File tmp = null;
+    try {
+      tmp = File.createTempFile("icon", ".tmp", dir);
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+        iconData.write(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file) && !file.isFile()) {
+        LOGGER.warning("Couldn't move cached icon into place at " + file);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't write cached icon " + file, e);
+    } finally {
+      if (tmp != null && tmp.exists()) tmp.delete();
+    }
+  }
+
+  public boolean contains(ByteBlock hash) {
+    return getFile(hash).isFile();
+  }
+
+  private static boolean matchesHash(ByteBlock hash, byte[] data) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      LOGGER.log(Level.WARNING, "No MD5 implementation available", e);
+      return false;
+    }
+    return Arrays.equals(hash.toByteArray(), digest.digest(data));
+  }
+
+  private File getFile(ByteBlock hash) {
+    DefensiveTools.checkNull(hash, "hash");
+
+    int len = hash.getLength();
+    if (len == 0) {
+      throw new IllegalArgumentException("hash must not be empty");
+    }
+    StringBuilder name = new StringBuilder(len * 2 + SUFFIX.length());
+    for (int i = 0; i < len; i++) {
+      int b = hash.get(i) & 0xff;
+      name.append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0x0f]);
+    }
+    name.append(SUFFIX);
+    return new File(dir, name.toString());
+  }
+}
@@ -64,8 +64,7 @@ public class BuddyIconTracker {
   private final AimConnection conn;
   private final Map<BuddyIconRequest, Long> pendingRequests
       = new HashMap<BuddyIconRequest, Long>();
-  private final Map<ExtraInfoData, ByteBlock> iconCache
-      = new HashMap<ExtraInfoData, ByteBlock>();
+  private final BuddyIconCache iconCache;
 
   private final IconRequestListener iconRequestListener
       = new MyIconRequestListener();
@@ -75,6 +74,7 @@ public class BuddyIconTracker {
 
   public BuddyIconTracker(AimConnection aconn) {
     this.conn = aconn;
+    this.iconCache = conn.getAppSession().getBuddyIconCache();
     BuddyInfoManager mgr = conn.getBuddyInfoManager();
     mgr.addGlobalBuddyInfoListener(new MyGlobalBuddyInfoListener());
 	
@@ -101,9 +101,10 @@ public class BuddyIconTracker {
 
   public synchronized void setEnabled(boolean enabled) {
     this.enabled = enabled;
-    if (!enabled) iconCache.clear();
   }
 
+  public @NotNull BuddyIconCache getIconCache() { return iconCache; }
+
   private synchronized void clearRequest(BuddyIconRequest iconRequest) {
 	pendingRequests.remove(iconRequest);
 
@@ -127,9 +128,8 @@ public class BuddyIconTracker {
     return time == null ? 0 : time;
   }
 
-  public @Nullable synchronized ByteBlock getIconDataForHash(
-      ExtraInfoData hash) {
-    return iconCache.get(hash);
+  public @Nullable ByteBlock getIconDataForHash(ExtraInfoData hash) {
+    return iconCache.getIconData(hash);
   }
 
   public @Nullable ByteBlock getBuddyIconData(Screenname screenname) {
@@ -150,11 +150,11 @@ public class BuddyIconTracker {
     return iconInfo;
   }
 
-  private synchronized void storeInCache(ExtraInfoData hash, Screenname buddy,
+  private ByteBlock storeInCache(ExtraInfoData hash, Screenname buddy,
       @NotNull ByteBlock iconData) {
     LOGGER.fine("Cached icon data for " + hash);
 	clearRequest(new BuddyIconRequest(buddy, hash));
-    iconCache.put(hash, ByteBlock.wrap(iconData.toByteArray()));
+    return iconCache.putIconData(hash, iconData);
   }
 
   private static ByteBlock computeIconHash(ByteBlock iconData) {
@@ -240,7 +240,8 @@ public class BuddyIconTracker {
 	}
   }
 
-  private class MyGlobalBuddyInfoListener implements GlobalBuddyInfoListener {
+  private class MyGlobalBuddyInfoListener
+      implements GlobalBuddyInfoDeltaListener {
     public void newBuddyInfo(BuddyInfoManager manager, Screenname buddy,
         BuddyInfo info) {
       if (!isEnabled()) return;
@@ -258,7 +259,18 @@ public class BuddyIconTracker {
       }
     }
 
-    private void handleNewIconHashForBuddy(Screenname buddy,
+    public void buddyInfoUpdated(BuddyInfoManager manager, Screenname buddy,
+        BuddyInfo info, BuddyInfoDelta delta) {
+      if (!isEnabled()) return;
+
+      PropertyChangeEvent event = delta.getChange(BuddyInfo.PROP_ICON_HASH);
+      if (event != null) {
+        ExtraInfoData newHash = (ExtraInfoData) event.getNewValue();
+        handleNewIconHashForBuddy(buddy, newHash);
+      }
+    }
+
+    private void handleNewIconHashForBuddy(final Screenname buddy,
         ExtraInfoData newHash) {
       LOGGER.fine("Got new icon hash for " + buddy + ": " + newHash);
 
@@ -266,15 +278,19 @@ public class BuddyIconTracker {
         storeBuddyIconData(buddy, newHash, null);
 
       } else {
-        ByteBlock iconData = getIconDataForHash(newHash);
-        if (iconData == null) {
-		  requestIcon(new BuddyIconRequest(buddy, newHash));
-
-        } else {
-          LOGGER.finer("Icon data was already cached for " + buddy);
-          storeBuddyIconData(buddy, newHash, iconData);
-        }
-
+        // this is called on the SNAC thread, so any disk lookup is done on
+        // the cache's own thread
+        iconCache.loadIconData(newHash, new BuddyIconLoadListener() {
+          public void iconLoaded(ExtraInfoData hash, ByteBlock iconData) {
+            if (iconData == null) {
+              requestIcon(new BuddyIconRequest(buddy, hash));
+
+            } else {
+              LOGGER.finer("Icon data was already cached for " + buddy);
+              storeBuddyIconData(buddy, hash, iconData);
+            }
+          }
+        });
       }
     }
 
@@ -316,10 +332,10 @@ public class BuddyIconTracker {
         ExtraInfoData hash, ByteBlock iconData) {
       if (!isEnabled()) return;
 
-      storeInCache(hash, buddy, iconData);
+      ByteBlock cached = storeInCache(hash, buddy, iconData);
       BuddyInfo buddyInfo = conn.getBuddyInfoManager().getBuddyInfo(buddy);
       LOGGER.fine("Storing buddy icon for " + buddy);
-      if (!buddyInfo.setIconDataIfHashMatches(hash, iconData)) {
+      if (!buddyInfo.setIconDataIfHashMatches(hash, cached)) {
         LOGGER.info("Buddy icon data for " + buddy + " set too "
             + "late - hash " + hash + " no longer matches");
       }
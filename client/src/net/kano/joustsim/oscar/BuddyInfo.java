@@ -51,7 +51,9 @@ import java.beans.PropertyChangeSupport;
 import java.beans.PropertyChangeEvent;
 import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class BuddyInfo {
   public static final String PROP_CERTIFICATE_INFO = "certificateInfo";
@@ -111,6 +113,8 @@ public final class BuddyInfo {
   private boolean wantsOurIcon = false;
 
   private PropertyChangeSupport pcs = new PropertyChangeSupport(this);
+  /** Changes recorded during a batch update, or null if none is running. */
+  private Map<String, PropertyChangeEvent> batchedChanges = null;
   private CopyOnWriteArrayList<BuddyInfoChangeListener> listeners
       = new CopyOnWriteArrayList<BuddyInfoChangeListener>();
 
@@ -119,10 +123,14 @@ public final class BuddyInfo {
 
     this.screenname = screenname;
 
-    listeners.add(new BuddyInfoChangeListener() {
+    listeners.add(new BuddyInfoDeltaListener() {
       public void receivedBuddyStatusUpdate(BuddyInfo info) {
       }
 
+      public void buddyInfoUpdated(BuddyInfo info, BuddyInfoDelta delta) {
+        // endBatchUpdate has already set the last updated date
+      }
+
       public void propertyChange(PropertyChangeEvent evt) {
         if (!evt.getPropertyName().equals(PROP_LAST_UPDATED)) {
           setLastUpdated(new Date());
@@ -149,7 +157,24 @@ public final class BuddyInfo {
       old = this.certificateInfo;
       this.certificateInfo = certificateInfo;
     }
-    fireObjectChange(PROP_CERTIFICATE_INFO, old, certificateInfo);
+    firePropertyChange(PROP_CERTIFICATE_INFO, old, certificateInfo);
+  }
+
+  /**
+   * Sets the certificate information to the given value if it is currently
+   * {@code expected}. Listeners are called after this object's lock has been
+   * released.
+   *
+   * @return whether the certificate information was changed
+   */
+  boolean setCertificateInfoIfCurrent(BuddyCertificateInfo expected,
+      BuddyCertificateInfo certificateInfo) {
+    synchronized (this) {
+      if (this.certificateInfo != expected) return false;
+      this.certificateInfo = certificateInfo;
+    }
+    firePropertyChange(PROP_CERTIFICATE_INFO, expected, certificateInfo);
+    return true;
   }
 
   public synchronized @Nullable BuddyCertificateInfo getCertificateInfo() {
@@ -170,7 +195,7 @@ public final class BuddyInfo {
       old = this.online;
       this.online = online;
     }
-    pcs.firePropertyChange(PROP_ONLINE, old, online);
+    firePropertyChange(PROP_ONLINE, old, online);
 	
 	if (!online)
 		this.clearOnlineInfo();
@@ -184,7 +209,7 @@ public final class BuddyInfo {
       old = this.onBuddyList;
       this.onBuddyList = onBuddyList;
     }
-    pcs.firePropertyChange(PROP_ON_BUDDY_LIST, old, onBuddyList);
+    firePropertyChange(PROP_ON_BUDDY_LIST, old, onBuddyList);
   }
 
   public synchronized boolean isOnBuddyList() { return onBuddyList; }
@@ -195,7 +220,7 @@ public final class BuddyInfo {
       old = this.lastUpdated;
       this.lastUpdated = lastUpdated;
     }
-    fireObjectChange(PROP_LAST_UPDATED, old, lastUpdated);
+    firePropertyChange(PROP_LAST_UPDATED, old, lastUpdated);
   }
 
   public synchronized @Nullable Date getLastUpdated() { return lastUpdated; }
@@ -206,7 +231,7 @@ public final class BuddyInfo {
       old = this.directoryInfo;
       this.directoryInfo = directoryInfo;
     }
-    fireObjectChange(PROP_DIRECTORY_INFO, old, directoryInfo);
+    firePropertyChange(PROP_DIRECTORY_INFO, old, directoryInfo);
   }
 
   public synchronized @Nullable DirInfo getDirectoryInfo() {
@@ -219,7 +244,7 @@ public final class BuddyInfo {
       old = this.onlineSince;
       this.onlineSince = onlineSince;
     }
-    fireObjectChange(PROP_ONLINE_SINCE, old, onlineSince);
+    firePropertyChange(PROP_ONLINE_SINCE, old, onlineSince);
   }
 
   public synchronized @Nullable Date getOnlineSince() { return onlineSince; }
@@ -230,7 +255,7 @@ public final class BuddyInfo {
       old = this.away;
       this.away = away;
     }
-    pcs.firePropertyChange(PROP_AWAY, old, away);
+    firePropertyChange(PROP_AWAY, old, away);
   }
 
   public synchronized boolean isAway() { return away; }
@@ -243,7 +268,7 @@ public final class BuddyInfo {
       old = this.capabilities;
       this.capabilities = cloned;
     }
-    pcs.firePropertyChange(PROP_CAPABILITIES, old, capabilities);
+    firePropertyChange(PROP_CAPABILITIES, old, capabilities);
   }
 
   @SuppressWarnings({"ReturnOfCollectionOrArrayField"})
@@ -257,7 +282,7 @@ public final class BuddyInfo {
       old = this.idleSince;
       this.idleSince = idleSince;
     }
-    fireObjectChange(PROP_IDLE_SINCE, old, idleSince);
+    firePropertyChange(PROP_IDLE_SINCE, old, idleSince);
   }
 
   void setIconHash(ExtraInfoData iconHash) {
@@ -266,7 +291,7 @@ public final class BuddyInfo {
       old = this.iconHash;
       this.iconHash = iconHash;
     }
-    fireObjectChange(PROP_ICON_HASH, old, iconHash);
+    firePropertyChange(PROP_ICON_HASH, old, iconHash);
   }
 
   public synchronized @Nullable ExtraInfoData getIconHash() {
@@ -279,7 +304,7 @@ public final class BuddyInfo {
       old = this.iconData;
       this.iconData = iconData;
     }
-    fireObjectChange(PROP_ICON_DATA, old, iconData);
+    firePropertyChange(PROP_ICON_DATA, old, iconData);
   }
 
   public synchronized @Nullable ByteBlock getIconData() {
@@ -294,7 +319,7 @@ public final class BuddyInfo {
       old = this.warningLevel;
       this.warningLevel = warningLevel;
     }
-    pcs.firePropertyChange(PROP_WARNING_LEVEL, old, warningLevel);
+    firePropertyChange(PROP_WARNING_LEVEL, old, warningLevel);
   }
 
   public synchronized int getWarningLevel() { return warningLevel; }
@@ -305,7 +330,7 @@ public final class BuddyInfo {
       old = this.awayMessage;
       this.awayMessage = awayMessage;
     }
-    fireObjectChange(PROP_AWAY_MESSAGE, old, awayMessage);
+    firePropertyChange(PROP_AWAY_MESSAGE, old, awayMessage);
   }
 
   public synchronized @Nullable String getAwayMessage() { return awayMessage; }
@@ -316,7 +341,7 @@ public final class BuddyInfo {
       old = this.statusMessage;
       this.statusMessage = statusMessage;
     }
-    fireObjectChange(PROP_STATUS_MESSAGE, old, statusMessage);
+    firePropertyChange(PROP_STATUS_MESSAGE, old, statusMessage);
   }
 
   public synchronized @Nullable String getStatusMessage() {
@@ -329,7 +354,7 @@ public final class BuddyInfo {
       old = this.icqStatus;
       this.icqStatus = icqStatus;
     }
-    fireObjectChange(PROP_ICQ_STATUS, old, icqStatus);
+    firePropertyChange(PROP_ICQ_STATUS, old, icqStatus);
   }
 
   public synchronized @Nullable long getIcqStatus() {
@@ -342,7 +367,7 @@ public final class BuddyInfo {
       old = this.itunesUrl;
       this.itunesUrl = itunesUrl;
     }
-    fireObjectChange(PROP_ITUNES_URL, old, itunesUrl);
+    firePropertyChange(PROP_ITUNES_URL, old, itunesUrl);
   }
 
   public synchronized @Nullable String getItunesUrl() { return itunesUrl; }
@@ -353,7 +378,7 @@ public final class BuddyInfo {
       old = this.userProfile;
       this.userProfile = userProfile;
     }
-    fireObjectChange(PROP_USER_PROFILE, old, userProfile);
+    firePropertyChange(PROP_USER_PROFILE, old, userProfile);
   }
 
   public synchronized @Nullable String getUserProfile() { return userProfile; }
@@ -364,7 +389,7 @@ public final class BuddyInfo {
       old = this.oldIconInfo;
       this.oldIconInfo = oldIconInfo;
     }
-    fireObjectChange(PROP_OLD_ICON_INFO, old, oldIconInfo);
+    firePropertyChange(PROP_OLD_ICON_INFO, old, oldIconInfo);
   }
 
   public synchronized @Nullable OldIconHashInfo getOldIconInfo() {
@@ -377,7 +402,7 @@ public final class BuddyInfo {
       old = this.lastAimExpression;
       this.lastAimExpression = lastAimExpression;
     }
-    fireObjectChange(PROP_LAST_AIM_EXPRESSION, old, lastAimExpression);
+    firePropertyChange(PROP_LAST_AIM_EXPRESSION, old, lastAimExpression);
   }
 
   public synchronized @Nullable String getLastAimExpression() {
@@ -390,7 +415,7 @@ public final class BuddyInfo {
       old = this.supportsTypingNotifications;
       this.supportsTypingNotifications = supportsTypingNotifications;
     }
-    pcs.firePropertyChange(PROP_SUPPORTS_TYPING_NOTIFICATIONS, old,
+    firePropertyChange(PROP_SUPPORTS_TYPING_NOTIFICATIONS, old,
         supportsTypingNotifications);
   }
 
@@ -404,7 +429,7 @@ public final class BuddyInfo {
       old = this.wantsOurIcon;
       this.wantsOurIcon = wantsOurIcon;
     }
-    pcs.firePropertyChange(PROP_WANTS_OUR_ICON, old, wantsOurIcon);
+    firePropertyChange(PROP_WANTS_OUR_ICON, old, wantsOurIcon);
   }
 
   public synchronized boolean wantsOurIcon() { return wantsOurIcon; }
@@ -415,7 +440,7 @@ public final class BuddyInfo {
       old = this.mobile;
       this.mobile = mobile;
     }
-    pcs.firePropertyChange(PROP_MOBILE, old, mobile);
+    firePropertyChange(PROP_MOBILE, old, mobile);
   }
 
   public synchronized boolean isMobile() { return mobile; }
@@ -426,7 +451,7 @@ public final class BuddyInfo {
       old = this.robot;
       this.robot = robot;
     }
-    pcs.firePropertyChange(PROP_ROBOT, old, robot);
+    firePropertyChange(PROP_ROBOT, old, robot);
   }
 
   public synchronized boolean isRobot() { return robot; }
@@ -437,7 +462,7 @@ public final class BuddyInfo {
       old = this.aolUser;
       this.aolUser = aolUser;
     }
-    pcs.firePropertyChange(PROP_AOL_USER, old, aolUser);
+    firePropertyChange(PROP_AOL_USER, old, aolUser);
   }
 
   public synchronized boolean isAolUser() { return aolUser; }
@@ -455,9 +480,80 @@ public final class BuddyInfo {
     return certInfo == null || certInfo.isUpToDate();
   }
 
-  private void fireObjectChange(String property,
+  private void firePropertyChange(String property,
       Object oldval, Object newval) {
-    if (oldval != newval) pcs.firePropertyChange(property, oldval, newval);
+    if (oldval == newval) return;
+    if (oldval != null && newval != null && oldval.equals(newval)) return;
+
+    PropertyChangeEvent event
+        = new PropertyChangeEvent(this, property, oldval, newval);
+    if (Thread.holdsLock(this) && batchedChanges != null) {
+      // the batch owner holds our lock for the whole update, so this change
+      // belongs to the batch
+      PropertyChangeEvent first = batchedChanges.remove(property);
+      if (first != null) {
+        // keep the value from before the batch started
+        Object orig = first.getOldValue();
+        if (orig == newval || (orig != null && orig.equals(newval))) return;
+        event = new PropertyChangeEvent(this, property, orig, newval);
+      }
+      batchedChanges.put(property, event);
+    } else {
+      pcs.firePropertyChange(event);
+    }
+  }
+
+  /**
+   * Starts recording property changes instead of firing them. The caller must
+   * hold this object's lock until it calls {@link #endBatchUpdate}, so that
+   * the whole update is applied atomically.
+   */
+  void beginBatchUpdate() {
+    assert Thread.holdsLock(this);
+    assert batchedChanges == null;
+
+    batchedChanges = new LinkedHashMap<String, PropertyChangeEvent>();
+  }
+
+  /**
+   * Stops recording property changes and returns the changes recorded since
+   * {@link #beginBatchUpdate}. None of them have been fired yet; call
+   * {@link #fireBatchUpdate} once this object's lock has been released.
+   */
+  BuddyInfoDelta endBatchUpdate() {
+    assert Thread.holdsLock(this);
+
+    Map<String, PropertyChangeEvent> changes = batchedChanges;
+    batchedChanges = null;
+    if (!changes.isEmpty()) {
+      Date old = lastUpdated;
+      lastUpdated = new Date();
+      changes.put(PROP_LAST_UPDATED, new PropertyChangeEvent(this,
+          PROP_LAST_UPDATED, old, lastUpdated));
+    }
+    return new BuddyInfoDelta(this, changes.values());
+  }
+
+  /**
+   * Delivers the changes from a batch update to this object's listeners.
+   * Listeners which implement {@link BuddyInfoDeltaListener} get the delta
+   * itself, and other listeners get one property change event per changed
+   * property.
+   */
+  void fireBatchUpdate(BuddyInfoDelta delta) {
+    assert !Thread.holdsLock(this);
+
+    if (delta.isEmpty()) return;
+
+    for (BuddyInfoChangeListener listener : listeners) {
+      if (listener instanceof BuddyInfoDeltaListener) {
+        ((BuddyInfoDeltaListener) listener).buddyInfoUpdated(this, delta);
+      } else {
+        for (PropertyChangeEvent event : delta.getChanges()) {
+          listener.propertyChange(event);
+        }
+      }
+    }
   }
 
   boolean setIconDataIfHashMatches(ExtraInfoData hash, ByteBlock iconData) {
@@ -470,7 +566,7 @@ public final class BuddyInfo {
       old = this.iconData;
       this.iconData = iconData;
     }
-    pcs.firePropertyChange(PROP_ICON_DATA, old, iconData);
+    firePropertyChange(PROP_ICON_DATA, old, iconData);
     return true;
   }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joustsim.Screenname;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.beans.PropertyChangeEvent;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of changes which were applied to a {@link BuddyInfo} together, such as
+ * all of the changes caused by a single buddy status update. Each changed
+ * property appears at most once, with the value it had before the update and
+ * the value it has after it.
+ */
+public final class BuddyInfoDelta {
+  private final BuddyInfo buddyInfo;
+  private final Map<String, PropertyChangeEvent> changes;
+
+  BuddyInfoDelta(BuddyInfo buddyInfo,
+      Collection<PropertyChangeEvent> changes) {
+    DefensiveTools.checkNull(buddyInfo, "buddyInfo");
+    DefensiveTools.checkNull(changes, "changes");
+
+    Map<String, PropertyChangeEvent> map
+        = new LinkedHashMap<String, PropertyChangeEvent>();
+    for (PropertyChangeEvent change : changes) {
+      map.put(change.getPropertyName(), change);
+    }
+    this.buddyInfo = buddyInfo;
+    this.changes = Collections.unmodifiableMap(map);
+  }
+
+  public @NotNull BuddyInfo getBuddyInfo() { return buddyInfo; }
+
+  public @NotNull Screenname getScreenname() {
+    return buddyInfo.getScreenname();
+  }
+
+  public boolean isEmpty() { return changes.isEmpty(); }
+
+  /**
+   * Returns the names of the properties which changed, in the order in which
+   * they first changed.
+   */
+  public @NotNull Set<String> getChangedProperties() {
+    return changes.keySet();
+  }
+
+  public boolean isChanged(String property) {
+    return changes.containsKey(property);
+  }
+
+  /**
+   * Returns an event describing the change of the given property, or
+   * {@code null} if that property did not change.
+   */
+  public @Nullable PropertyChangeEvent getChange(String property) {
+    return changes.get(property);
+  }
+
+  public @NotNull List<PropertyChangeEvent> getChanges() {
+    return DefensiveTools.getUnmodifiableCopy(changes.values());
+  }
+
+  public String toString() {
+    return "BuddyInfoDelta for " + getScreenname() + ": "
+        + getChangedProperties();
+  }
+}
@@ -61,7 +61,6 @@ import net.kano.joustsim.oscar.oscar.service.bos.MainBosServiceListener;
 import net.kano.joustsim.oscar.oscar.service.bos.MainBosService;
 import net.kano.joustsim.oscar.oscar.service.buddy.BuddyServiceListener;
 import net.kano.joustsim.oscar.oscar.service.buddy.BuddyService;
-import net.kano.joustsim.oscar.oscar.service.info.BuddyHashHolder;
 import net.kano.joustsim.oscar.oscar.service.info.InfoServiceListener;
 import net.kano.joustsim.oscar.oscar.service.info.InfoService;
 import net.kano.joustsim.trust.BuddyCertificateInfo;
@@ -84,8 +83,7 @@ public class BuddyInfoManager {
   private final AimConnection conn;
   private Map<Screenname, BuddyInfo> buddyInfos
       = new HashMap<Screenname, BuddyInfo>();
-  private Map<BuddyHashHolder, BuddyCertificateInfo> cachedCertInfos
-      = new HashMap<BuddyHashHolder, BuddyCertificateInfo>();
+  private final BuddyCertificateInfoCache certInfoCache;
 
   private boolean initedBuddyService = false;
   private boolean initedInfoService = false;
@@ -94,7 +92,7 @@ public class BuddyInfoManager {
   private final CopyOnWriteArrayList<GlobalBuddyInfoListener> listeners
       = new CopyOnWriteArrayList<GlobalBuddyInfoListener>();
 
-  private BuddyInfoChangeListener pcl = new BuddyInfoChangeListener() {
+  private BuddyInfoChangeListener pcl = new BuddyInfoDeltaListener() {
     public void propertyChange(PropertyChangeEvent evt) {
       fireGlobalPropertyChangeEvent(evt);
     }
@@ -102,12 +100,17 @@ public class BuddyInfoManager {
     public void receivedBuddyStatusUpdate(BuddyInfo info) {
       fireReceivedStatusEvent(info);
     }
+
+    public void buddyInfoUpdated(BuddyInfo info, BuddyInfoDelta delta) {
+      fireGlobalDeltaEvent(delta);
+    }
   };
 
   public BuddyInfoManager(AimConnection conn) {
     DefensiveTools.checkNull(conn, "conn");
 
     this.conn = conn;
+    this.certInfoCache = conn.getAppSession().getBuddyCertificateInfoCache();
     conn.addOpenedServiceListener(new OpenedServiceListener() {
       public void openedServices(AimConnection conn,
           Collection<? extends Service> services) {
@@ -127,14 +130,10 @@ public class BuddyInfoManager {
 
   public AimConnection getAimConnection() { return conn; }
 
-  private synchronized void cacheCertInfo(BuddyCertificateInfo certInfo) {
+  private void cacheCertInfo(BuddyCertificateInfo certInfo) {
     DefensiveTools.checkNull(certInfo, "certInfo");
 
-    Screenname buddy = certInfo.getBuddy();
-    ByteBlock hash = certInfo.getCertificateInfoHash();
-    BuddyHashHolder holder = new BuddyHashHolder(buddy, hash);
-    if (cachedCertInfos.containsKey(holder)) return;
-    cachedCertInfos.put(holder, certInfo);
+    certInfoCache.putCertificateInfo(certInfo);
   }
 
   private void initBuddyService() {
@@ -221,7 +220,8 @@ public class BuddyInfoManager {
 
       public void handleYourExtraInfo(List<ExtraInfoBlock> extraInfos) {
         if (extraInfos != null) {
-          handleExtraInfoBlocks(conn.getScreenname(), extraInfos);
+          handleExtraInfoBlocks(getBuddyInfoInstance(conn.getScreenname()),
+              extraInfos);
         }
       }
     });
@@ -276,6 +276,32 @@ public class BuddyInfoManager {
   private void handleBuddyStatusUpdate(Screenname buddy, FullUserInfo info) {
     BuddyInfo buddyInfo = getBuddyInfoInstance(buddy);
 
+    // look this up before locking the buddy info, so we never lock this
+    // object while holding that one's lock
+    ByteBlock certHash = info.getCertInfoHash();
+    BuddyCertificateInfo certInfo = null;
+    if (certHash != null) {
+      if (certHash.getLength() == 0) certHash = null;
+      certInfo = getAppropriateCertificateInfo(buddy, certHash);
+    }
+
+    BuddyInfoDelta delta;
+    synchronized (buddyInfo) {
+      buddyInfo.beginBatchUpdate();
+      try {
+        applyBuddyStatus(buddyInfo, info, certHash != null, certInfo);
+      } finally {
+        delta = buddyInfo.endBatchUpdate();
+      }
+    }
+    buddyInfo.fireBatchUpdate(delta);
+    buddyInfo.receivedBuddyStatusUpdate();
+  }
+
+  private void applyBuddyStatus(BuddyInfo buddyInfo, FullUserInfo info,
+      boolean hasCertHash, BuddyCertificateInfo certInfo) {
+    assert Thread.holdsLock(buddyInfo);
+
     buddyInfo.setOnline(true);
     Date onSince = info.getOnSince();
     if (onSince != null) buddyInfo.setOnlineSince(onSince);
@@ -309,12 +335,7 @@ public class BuddyInfoManager {
       buddyInfo.setCapabilities(blocks);
     }
 
-    ByteBlock certHash = info.getCertInfoHash();
-    if (certHash != null) {
-      if (certHash.getLength() == 0) certHash = null;
-      buddyInfo.setCertificateInfo(
-          getAppropriateCertificateInfo(buddy, certHash));
-    }
+    if (hasCertHash) buddyInfo.setCertificateInfo(certInfo);
 
     int idleMins = info.getIdleMins();
     Date idleSince;
@@ -336,7 +357,7 @@ public class BuddyInfoManager {
 
     List<ExtraInfoBlock> extraBlocks = info.getExtraInfoBlocks();
     if (extraBlocks != null) {
-      handleExtraInfoBlocks(buddy, extraBlocks);
+      handleExtraInfoBlocks(buddyInfo, extraBlocks);
     }
 
     int flags = info.getFlags();
@@ -344,14 +365,10 @@ public class BuddyInfoManager {
     buddyInfo.setMobile(mobile);
     buddyInfo.setRobot((flags & FullUserInfo.MASK_AB) != 0);
     buddyInfo.setAolUser((flags & FullUserInfo.MASK_AOL) != 0);
-
-    buddyInfo.receivedBuddyStatusUpdate();
   }
 
-  private void handleExtraInfoBlocks(Screenname buddy,
+  private void handleExtraInfoBlocks(BuddyInfo buddyInfo,
       List<ExtraInfoBlock> extraBlocks) {
-    BuddyInfo buddyInfo = getBuddyInfo(buddy);
-    
     // reset away message
     buddyInfo.setAwayMessage(null);
     
@@ -372,7 +389,7 @@ public class BuddyInfoManager {
     }
   }
 
-  private synchronized BuddyCertificateInfo getAppropriateCertificateInfo(
+  private BuddyCertificateInfo getAppropriateCertificateInfo(
       Screenname buddy, ByteBlock certHash) {
     BuddyCertificateInfo cached = getCachedCertificateInfo(buddy, certHash);
     if (cached != null) return cached;
@@ -381,14 +398,35 @@ public class BuddyInfoManager {
     return new BuddyCertificateInfo(buddy, certHash);
   }
 
-  public synchronized BuddyCertificateInfo getCachedCertificateInfo(
+  public BuddyCertificateInfo getCachedCertificateInfo(
       Screenname buddy, ByteBlock hash) {
     DefensiveTools.checkNull(buddy, "buddy");
 
-    if (hash == null) return null;
+    return certInfoCache.getCertificateInfo(buddy, hash);
+  }
 
-    BuddyHashHolder holder = new BuddyHashHolder(buddy, hash);
-    return cachedCertInfos.get(holder);
+  /**
+   * Replaces the given buddy's certificate information with a cached, up to
+   * date copy, if the buddy's current certificate information is not up to
+   * date and certificate information with the same hash has been cached
+   * (possibly by another connection, or in an earlier session).
+   *
+   * @return the buddy's certificate information after any replacement
+   */
+  public BuddyCertificateInfo useCachedCertificateInfo(Screenname buddy) {
+    BuddyInfo buddyInfo = getBuddyInfo(buddy);
+    BuddyCertificateInfo current = buddyInfo.getCertificateInfo();
+    if (current == null || current.isUpToDate()) return current;
+
+    BuddyCertificateInfo cached = getCachedCertificateInfo(buddy,
+        current.getCertificateInfoHash());
+    if (cached == null || !cached.isUpToDate()) return current;
+
+    // the hash may have changed while we were looking
+    if (!buddyInfo.setCertificateInfoIfCurrent(current, cached)) {
+      return buddyInfo.getCertificateInfo();
+    }
+    return cached;
   }
 
   private synchronized @NotNull BuddyInfo getBuddyInfoInstance(
@@ -417,6 +455,24 @@ public class BuddyInfoManager {
     }
   }
 
+  private void fireGlobalDeltaEvent(BuddyInfoDelta delta) {
+    assert !Thread.holdsLock(this);
+
+    BuddyInfo info = delta.getBuddyInfo();
+    Screenname sn = info.getScreenname();
+
+    for (GlobalBuddyInfoListener l : listeners) {
+      if (l instanceof GlobalBuddyInfoDeltaListener) {
+        ((GlobalBuddyInfoDeltaListener) l).buddyInfoUpdated(this, sn, info,
+            delta);
+      } else {
+        for (PropertyChangeEvent event : delta.getChanges()) {
+          l.buddyInfoChanged(this, sn, info, event);
+        }
+      }
+    }
+  }
+
   private void fireReceivedStatusEvent(BuddyInfo info) {
     assert !Thread.holdsLock(this);
 
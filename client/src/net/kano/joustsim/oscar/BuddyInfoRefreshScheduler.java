@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs periodic buddy info refreshes for any number of connections on a single
+ * thread. Each {@link Task} has its own deadline, kept in a priority queue, and
+ * decides when it should next run each time it runs. The thread is started
+ * when a task is scheduled and stops once no tasks have been scheduled for a
+ * while.
+ */
+public final class BuddyInfoRefreshScheduler {
+  private static final Logger LOGGER = Logger
+      .getLogger(BuddyInfoRefreshScheduler.class.getName());
+
+  private static final long IDLE_TIMEOUT = 60 * 1000;
+
+  private static final BuddyInfoRefreshScheduler DEFAULT_INSTANCE
+      = new BuddyInfoRefreshScheduler();
+
+  /** Returns the scheduler shared by every connection in this process. */
+  public static BuddyInfoRefreshScheduler getDefaultInstance() {
+    return DEFAULT_INSTANCE;
+  }
+
+  private final Object lock = new Object();
+  private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+  private long nextSequence = 0;
+  private SchedulerThread thread = null;
+
+  /**
+   * Schedules the given task to run at the given time, replacing any time it
+   * was previously scheduled for.
+   */
+  public void schedule(Task task, long when) {
+    DefensiveTools.checkNull(task, "task");
+
+    synchronized (lock) {
+      task.cancelled = false;
+      enqueue(task, when);
+    }
+  }
+
+  /**
+   * Unschedules the given task. If the task is running, it will not be
+   * rescheduled when it finishes.
+   */
+  public void cancel(Task task) {
+    DefensiveTools.checkNull(task, "task");
+
+    synchronized (lock) {
+      task.cancelled = true;
+      if (task.queued) {
+        queue.remove(task);
+        task.queued = false;
+      }
+    }
+  }
+
+  /** Returns the number of tasks waiting to run. */
+  public int getScheduledCount() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  private void enqueue(Task task, long when) {
+    assert Thread.holdsLock(lock);
+
+    if (task.queued) queue.remove(task);
+    task.deadline = when;
+    task.sequence = nextSequence++;
+    task.queued = true;
+    queue.add(task);
+
+    if (thread == null) {
+      thread = new SchedulerThread();
+      thread.start();
+    }
+    lock.notifyAll();
+  }
+
+  private void reschedule(Task task, long when) {
+    synchronized (lock) {
+      if (task.cancelled || task.queued) return;
+      enqueue(task, when);
+    }
+  }
+
+  /**
+   * A refresh which can be run by a {@link BuddyInfoRefreshScheduler}. Each
+   * task may only be used with one scheduler.
+   */
+  public abstract static class Task implements Comparable<Task> {
+    private long deadline;
+    private long sequence;
+    private boolean queued = false;
+    private boolean cancelled = false;
+
+    /**
+     * Performs the refresh, and returns the time at which this task should
+     * next run, or {@code -1} if it should not run again until it is
+     * rescheduled.
+     */
+    protected abstract long run(long now);
+
+    public int compareTo(Task o) {
+      if (deadline != o.deadline) return deadline < o.deadline ? -1 : 1;
+      if (sequence != o.sequence) return sequence < o.sequence ? -1 : 1;
+      return 0;
+    }
+  }
+
+  private class SchedulerThread extends Thread {
+    public SchedulerThread() {
+      super("Buddy info refresh scheduler");
+      setDaemon(true);
+    }
+
+    public void run() {
+      for (;;) {
+        Task task = nextTask();
+        if (task == null) break;
+
+        long next;
+        try {
+          next = task.run(System.currentTimeMillis());
+        } catch (Exception e) {
+          LOGGER.log(Level.WARNING, "Error running buddy info refresh", e);
+          next = -1;
+        }
+        if (next != -1) reschedule(task, next);
+      }
+    }
+
+    /**
+     * Waits for the next task to become due and removes it from the queue,
+     * or returns {@code null} if this thread should stop.
+     */
+    private Task nextTask() {
+      synchronized (lock) {
+        long idleSince = System.currentTimeMillis();
+        for (;;) {
+          long now = System.currentTimeMillis();
+          Task task = queue.peek();
+          long wait;
+          if (task == null) {
+            wait = idleSince + IDLE_TIMEOUT - now;
+            if (wait <= 0) {
+              thread = null;
+              return null;
+            }
+          } else if (task.deadline <= now) {
+            queue.poll();
+            task.queued = false;
+            return task;
+          } else {
+            wait = task.deadline - now;
+            idleSince = now;
+          }
+          try {
+            lock.wait(wait);
+          } catch (InterruptedException ignored) {
+            // we'll just check the queue again
+          }
+        }
+      }
+    }
+  }
+}
@@ -44,6 +44,8 @@ import static net.kano.joscar.snaccmd.loc.LocCommand.FAMILY_LOC;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.oscar.OscarConnection;
 import net.kano.joustsim.oscar.oscar.service.Service;
+import net.kano.joustsim.oscar.oscar.service.info.InfoResponseAdapter;
+import net.kano.joustsim.oscar.oscar.service.info.InfoResponseListener;
 import net.kano.joustsim.oscar.oscar.service.info.InfoService;
 import net.kano.joustsim.oscar.oscar.service.ssi.Buddy;
 import net.kano.joustsim.oscar.oscar.service.ssi.BuddyList;
@@ -55,14 +57,11 @@ import net.kano.joustsim.trust.BuddyCertificateInfo;
 import java.beans.PropertyChangeEvent;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class BuddyInfoTracker {
@@ -70,6 +69,15 @@ public class BuddyInfoTracker {
       .getLogger(BuddyInfoTracker.class.getName());
 
   public static final long DEFAULT_MINIMUM_TRACK_INTERVAL = 30 * 1000;
+  public static final long DEFAULT_MAXIMUM_TRACK_INTERVAL = 10 * 60 * 1000;
+
+  /**
+   * How many times longer to wait between refreshes for buddies who are away
+   * or idle, since their status is less likely to change soon.
+   */
+  private static final int AWAY_BACKOFF_FACTOR = 4;
+  /** The shortest time to wait before retrying when the info rate is low. */
+  private static final long MIN_RATE_RETRY_WAIT = 1000;
 
   private final AimConnection conn;
   private final BuddyInfoManager buddyInfoMgr;
@@ -79,21 +87,20 @@ public class BuddyInfoTracker {
   private boolean initializedSsi = false;
   private Set<Screenname> buddies = new HashSet<Screenname>();
   private long minimumTrackInterval = DEFAULT_MINIMUM_TRACK_INTERVAL;
-  private final Thread thread;
-  private Comparator<TrackedBuddyInfo> lastCheckedComparator
-      = new Comparator<TrackedBuddyInfo>() {
-    public int compare(TrackedBuddyInfo o1,
-        TrackedBuddyInfo o2) {
-      if (o1.lastChecked < o2.lastChecked) return 1;
-      if (o1.lastChecked > o2.lastChecked) return -1;
-      return 0;
-    }
-  };
+  private long maximumTrackInterval = DEFAULT_MAXIMUM_TRACK_INTERVAL;
+  private final BuddyInfoRefreshScheduler scheduler;
 
   public BuddyInfoTracker(AimConnection connection) {
+    this(connection, BuddyInfoRefreshScheduler.getDefaultInstance());
+  }
+
+  public BuddyInfoTracker(AimConnection connection,
+      BuddyInfoRefreshScheduler scheduler) {
     DefensiveTools.checkNull(connection, "connection");
+    DefensiveTools.checkNull(scheduler, "scheduler");
 
     this.conn = connection;
+    this.scheduler = scheduler;
     BuddyInfoManager buddyInfoMgr = connection.getBuddyInfoManager();
     this.buddyInfoMgr = buddyInfoMgr;
     connection.addOpenedServiceListener(new OpenedServiceListener() {
@@ -143,7 +150,7 @@ public class BuddyInfoTracker {
           Collection<? extends Service> services) {
       }
     });
-    buddyInfoMgr.addGlobalBuddyInfoListener(new GlobalBuddyInfoListener() {
+    buddyInfoMgr.addGlobalBuddyInfoListener(new GlobalBuddyInfoDeltaListener() {
       public void newBuddyInfo(BuddyInfoManager manager, Screenname buddy,
           BuddyInfo info) {
       }
@@ -155,13 +162,27 @@ public class BuddyInfoTracker {
 
         String prop = event.getPropertyName();
         if (prop.equals(BuddyInfo.PROP_CERTIFICATE_INFO)) {
-          BuddyCertificateInfo certInfo
-              = (BuddyCertificateInfo) event.getNewValue();
-          if (certInfo != null && !certInfo.isUpToDate()) {
-            InfoService infoService = getInfoService();
-            if (infoService != null) {
-              infoService.requestCertificateInfo(buddy);
-            }
+          handleCertificateInfoChange(buddy, event);
+        }
+      }
+
+      public void buddyInfoUpdated(BuddyInfoManager manager,
+          Screenname buddy, BuddyInfo info, BuddyInfoDelta delta) {
+        if (!isTracked(buddy)) return;
+
+        PropertyChangeEvent event
+            = delta.getChange(BuddyInfo.PROP_CERTIFICATE_INFO);
+        if (event != null) handleCertificateInfoChange(buddy, event);
+      }
+
+      private void handleCertificateInfoChange(Screenname buddy,
+          PropertyChangeEvent event) {
+        BuddyCertificateInfo certInfo
+            = (BuddyCertificateInfo) event.getNewValue();
+        if (certInfo != null && !certInfo.isUpToDate()) {
+          InfoService infoService = getInfoService();
+          if (infoService != null) {
+            infoService.requestCertificateInfo(buddy);
           }
         }
       }
@@ -173,24 +194,90 @@ public class BuddyInfoTracker {
         if (info.isAway()) {
           InfoService infoService = getInfoService();
           if (infoService != null) {
-            infoService.requestAwayMessage(buddy);
+            // the away message may have changed without the away flag
+            // changing, so a cached one may be out of date
+            infoService.requestAwayMessage(buddy, true);
           }
         }
       }
     });
-    thread = new Thread(new TrackingThread(), "Buddy info tracker");
-    thread.setDaemon(true);
-    thread.start();
+    connection.addStateListener(new StateListener() {
+      public void handleStateChange(StateEvent event) {
+        if (event.getNewState().isFinished()) cancelAllRefreshes();
+      }
+    });
   }
 
-  private class TrackedBuddyInfo {
+  private class TrackedBuddyInfo extends BuddyInfoRefreshScheduler.Task {
     private final Screenname screenname;
-    public volatile long lastChecked = 0;
     public final Set<BuddyInfoTrackerListener> trackers
         = new HashSet<BuddyInfoTrackerListener>();
+    /** The time to wait between refreshes, if the buddy isn't away. */
+    private long interval;
+    /** The status hash seen after the last refresh, or null. */
+    private Integer lastStatusHash = null;
+    private final InfoResponseListener responseListener
+        = new InfoResponseAdapter() {
+      public void handleAwayMessage(InfoService service, Screenname buddy,
+          String awayMessage) {
+        handleRefreshed();
+      }
+    };
 
     public TrackedBuddyInfo(Screenname screenname) {
       this.screenname = screenname;
+      this.interval = getMinimumTrackInterval();
+    }
+
+    protected long run(long now) {
+      InfoService infoService = getInfoService();
+      if (infoService == null) return now + getMinimumTrackInterval();
+
+      // buddies on our buddy list send us status updates on their own
+      if (buddyInfoMgr.getBuddyInfo(screenname).isOnBuddyList()) {
+        return now + getMinimumTrackInterval();
+      }
+
+      RateQueue infoQueue = getInfoRateQueue(infoService);
+      if (infoQueue != null && (infoQueue.hasRequests()
+          || infoQueue.getRateClassMonitor().getPossibleCmdCount() <= 1)) {
+        // don't add to a backlog, and leave room for requests the user makes
+        return now + Math.max(MIN_RATE_RETRY_WAIT,
+            infoQueue.getOptimalWaitTime());
+      }
+
+      LOGGER.fine("Requesting tracked buddy " + screenname + "'s awaymsg");
+      // buddies who aren't on our buddy list send no status updates, so
+      // nothing would invalidate a cached response
+      infoService.requestAwayMessage(screenname, responseListener, true);
+
+      // if no response arrives, we'll try again after the current interval
+      return now + getEffectiveInterval();
+    }
+
+    private void handleRefreshed() {
+      BuddyInfo info = buddyInfoMgr.getBuddyInfo(screenname);
+      int hash = computeStatusHash(info);
+      synchronized (BuddyInfoTracker.this) {
+        // we may have stopped tracking this buddy since the request was sent
+        if (BuddyInfoTracker.this.trackers.get(screenname) != this) return;
+
+        boolean changed = lastStatusHash == null || lastStatusHash != hash;
+        interval = getNextInterval(interval, changed, minimumTrackInterval,
+            maximumTrackInterval);
+        lastStatusHash = hash;
+      }
+      scheduler.schedule(this,
+          System.currentTimeMillis() + getEffectiveInterval());
+    }
+
+    private long getEffectiveInterval() {
+      BuddyInfo info = buddyInfoMgr.getBuddyInfo(screenname);
+      boolean away = info.isAway() || info.getIdleSince() != null;
+      synchronized (BuddyInfoTracker.this) {
+        return BuddyInfoTracker.getEffectiveInterval(interval, away,
+            maximumTrackInterval);
+      }
     }
 
     public boolean addListener(BuddyInfoTrackerListener listener) {
@@ -239,8 +326,9 @@ public class BuddyInfoTracker {
 
     boolean startTracking = false;
     boolean added;
+    TrackedBuddyInfo btrackers;
     synchronized (this) {
-      TrackedBuddyInfo btrackers = trackers.get(buddy);
+      btrackers = trackers.get(buddy);
       if (btrackers == null) {
         btrackers = new TrackedBuddyInfo(buddy);
         trackers.put(buddy, btrackers);
@@ -252,8 +340,11 @@ public class BuddyInfoTracker {
     //noinspection SimplifiableConditionalExpression
     assert startTracking ? added : true;
 
-    if (startTracking) startTracking(buddy);
-    thread.interrupt();
+    if (startTracking) {
+      startTracking(buddy);
+      scheduler.schedule(btrackers,
+          System.currentTimeMillis() + getMinimumTrackInterval());
+    }
 
     return added;
   }
@@ -264,8 +355,9 @@ public class BuddyInfoTracker {
     DefensiveTools.checkNull(listener, "listener");
 
     boolean stopTracking;
+    TrackedBuddyInfo btrackers;
     synchronized (this) {
-      TrackedBuddyInfo btrackers = trackers.get(buddy);
+      btrackers = trackers.get(buddy);
       if (btrackers == null) return false;
 
       boolean removed = btrackers.removeListener(listener);
@@ -276,7 +368,10 @@ public class BuddyInfoTracker {
       stopTracking = btrackers.hasListeners();
       if (stopTracking) trackers.remove(buddy);
     }
-    if (stopTracking) stopTracking(buddy);
+    if (stopTracking) {
+      scheduler.cancel(btrackers);
+      stopTracking(buddy);
+    }
     return true;
   }
 
@@ -324,63 +419,70 @@ public class BuddyInfoTracker {
     this.minimumTrackInterval = minimumTrackInterval;
   }
 
-  private class TrackingThread implements Runnable {
-    public void run() {
-      while (conn.getState() != State.FAILED
-          && conn.getState() != State.DISCONNECTED) {
-        try {
-          becool();
-        } catch (Exception e) {
-          LOGGER.log(Level.WARNING, "Error running buddy tracker", e);
-        }
-        try {
-          Thread.sleep(10000);
-        } catch (InterruptedException ignored) {
-        }
-      }
-      LOGGER.fine("Shutting down buddy tracker thread for " + conn);
+  public synchronized long getMaximumTrackInterval() {
+    return maximumTrackInterval;
+  }
+
+  /**
+   * Sets the longest time to wait between refreshes of a tracked buddy whose
+   * status has not been changing.
+   */
+  public synchronized void setMaximumTrackInterval(long maximumTrackInterval) {
+    this.maximumTrackInterval = maximumTrackInterval;
+  }
+
+  private void cancelAllRefreshes() {
+    List<TrackedBuddyInfo> infos;
+    synchronized (this) {
+      infos = new ArrayList<TrackedBuddyInfo>(trackers.values());
     }
+    for (TrackedBuddyInfo info : infos) scheduler.cancel(info);
+    LOGGER.fine("Stopped refreshing tracked buddies for " + conn);
+  }
 
-    private void becool() {
-      InfoService infoService = conn.getInfoService();
-      if (infoService == null) return;
+  private static RateQueue getInfoRateQueue(InfoService infoService) {
+    OscarConnection oscar = infoService.getOscarConnection();
+    ConnectionQueueMgrImpl queueMgr = oscar.getRateManager()
+        .getQueueMgr(oscar.getSnacProcessor());
+    if (queueMgr == null) return null;
+    return queueMgr.getRateQueue(new CmdType(FAMILY_LOC, CMD_NEW_GET_INFO));
+  }
 
-      OscarConnection oscar = infoService.getOscarConnection();
-      ConnectionQueueMgrImpl queueMgr = oscar.getRateManager()
-          .getQueueMgr(oscar.getSnacProcessor());
-      RateQueue infoQueue = queueMgr
-          .getRateQueue(new CmdType(FAMILY_LOC, CMD_NEW_GET_INFO));
-      if (infoQueue == null) return;
+  /**
+   * Returns the interval to wait after a refresh: the minimum if the refresh
+   * changed the buddy's status, and otherwise twice the current interval, up
+   * to the maximum.
+   */
+  static long getNextInterval(long interval, boolean changed, long min,
+      long max) {
+    if (changed) return min;
+    return Math.min(interval * 2, max);
+  }
 
-      long now = System.currentTimeMillis();
-      List<Screenname> request;
-      synchronized (BuddyInfoTracker.this) {
-        Set<TrackedBuddyInfo> want = new TreeSet<TrackedBuddyInfo>(
-            lastCheckedComparator);
-        for (TrackedBuddyInfo info : trackers.values()) {
-          if (!buddyInfoMgr.getBuddyInfo(info.screenname).isOnBuddyList()) {
-            if (now - info.lastChecked > minimumTrackInterval) {
-              want.add(info);
-            }
-          }
-        }
-        request = new ArrayList<Screenname>();
-        int possible = infoQueue.getRateClassMonitor().getPossibleCmdCount() - 1;
-        int i = 0;
-        for (TrackedBuddyInfo info : want) {
-          if (i >= possible) break;
-          LOGGER.fine("Requesting tracked buddy " + info.screenname
-              + "'s awaymsg after " + (now - info.lastChecked / 1000)
-              + "sec");
-
-          info.lastChecked = now;
-          request.add(info.screenname);
-          i++;
-        }
-      }
-      for (Screenname screenname : request) {
-        infoService.requestAwayMessage(screenname);
-      }
-    }
+  /**
+   * Returns how long to actually wait before the next refresh, given the
+   * current interval and whether the buddy is away or idle.
+   */
+  static long getEffectiveInterval(long interval, boolean away, long max) {
+    if (!away) return interval;
+    return Math.min(interval * AWAY_BACKOFF_FACTOR, max);
+  }
+
+  /**
+   * Returns a hash of the parts of the given buddy's status which a refresh
+   * can change. If the hash is the same after a refresh as it was after the
+   * previous one, the buddy's status probably isn't changing quickly.
+   */
+  private static int computeStatusHash(BuddyInfo info) {
+    int hash = info.isOnline() ? 1 : 0;
+    hash = 31 * hash + (info.isAway() ? 1 : 0);
+    hash = 31 * hash + (info.getIdleSince() == null ? 0 : 1);
+    hash = 31 * hash + hashOf(info.getAwayMessage());
+    hash = 31 * hash + hashOf(info.getStatusMessage());
+    return hash;
+  }
+
+  private static int hashOf(Object o) {
+    return o == null ? 0 : o.hashCode();
   }
 }
@@ -35,10 +35,37 @@
 
 package net.kano.joustsim.oscar;
 
+import net.kano.joscar.DefensiveTools;
 import net.kano.joustsim.Screenname;
 
 public class DefaultAppSession implements AppSession {
+    private final BuddyIconCache buddyIconCache;
+    private final BuddyCertificateInfoCache certInfoCache;
+
+    public DefaultAppSession() {
+        this(new BuddyIconCache());
+    }
+
+    public DefaultAppSession(BuddyIconCache buddyIconCache) {
+        this(buddyIconCache, new BuddyCertificateInfoCache());
+    }
+
+    public DefaultAppSession(BuddyIconCache buddyIconCache,
+            BuddyCertificateInfoCache certInfoCache) {
+        DefensiveTools.checkNull(buddyIconCache, "buddyIconCache");
+        DefensiveTools.checkNull(certInfoCache, "certInfoCache");
+
+        this.buddyIconCache = buddyIconCache;
+        this.certInfoCache = certInfoCache;
+    }
+
     public AimSession openAimSession(Screenname sn) {
         return new DefaultAimSession(this, sn);
     }
+
+    public BuddyIconCache getBuddyIconCache() { return buddyIconCache; }
+
+    public BuddyCertificateInfoCache getBuddyCertificateInfoCache() {
+        return certInfoCache;
+    }
 }
@@ -39,7 +39,7 @@ import net.kano.joustsim.Screenname;
 
 import java.beans.PropertyChangeEvent;
 
-public class GlobalBuddyInfoAdapter implements GlobalBuddyInfoListener {
+public class GlobalBuddyInfoAdapter implements GlobalBuddyInfoDeltaListener {
     public void newBuddyInfo(BuddyInfoManager manager, Screenname buddy,
             BuddyInfo info) {
     }
@@ -48,6 +48,17 @@ public class GlobalBuddyInfoAdapter implements GlobalBuddyInfoListener {
             BuddyInfo info, PropertyChangeEvent event) {
     }
 
+    /**
+     * Passes each change in the given delta to {@link #buddyInfoChanged}, so
+     * subclasses which only override that method see every change.
+     */
+    public void buddyInfoUpdated(BuddyInfoManager manager, Screenname buddy,
+            BuddyInfo info, BuddyInfoDelta delta) {
+        for (PropertyChangeEvent event : delta.getChanges()) {
+            buddyInfoChanged(manager, buddy, info, event);
+        }
+    }
+
     public void receivedStatusUpdate(BuddyInfoManager manager,
             Screenname buddy, BuddyInfo info) {
     }
@@ -89,4 +89,13 @@ public class DirectMessage implements Message {
 
   @SuppressWarnings({"ReturnOfCollectionOrArrayField"})
   public Set<Attachment> getAttachments() { return attachments; }
+
+  /**
+   * Releases all of this message's attachments. This should be called once
+   * the attachments have been read or saved elsewhere, so incoming attachments
+   * give back their share of memory and delete their temporary files.
+   */
+  public void release() {
+    for (Attachment attachment : attachments) attachment.release();
+  }
 }
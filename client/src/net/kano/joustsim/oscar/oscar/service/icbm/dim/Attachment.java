@@ -70,6 +70,12 @@ public abstract class Attachment {
 
   public abstract @Nullable SelectableChannel getSelectableForWriting();
 
+  /**
+   * Frees anything held for this attachment's data, like memory or a
+   * temporary file. Attachments which hold nothing do nothing here.
+   */
+  public void release() { }
+
   public String getId() { return id; }
 
   public long getLength() { return length; }
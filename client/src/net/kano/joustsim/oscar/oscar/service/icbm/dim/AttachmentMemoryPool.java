@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import net.kano.joscar.DefensiveTools;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out the memory which incoming attachments are kept in, up to a fixed
+ * total. Chunks of the standard size are kept for reuse when they're freed.
+ * One pool is normally shared by every Direct IM session in the process, so
+ * the total caps the heap used by attachments no matter how many sessions are
+ * receiving at once.
+ */
+public class AttachmentMemoryPool {
+  public static final long BUDGET_DEFAULT = 16 * 1024 * 1024;
+  public static final int CHUNK_SIZE_DEFAULT = 64 * 1024;
+
+  /** The most freed chunks we hold onto for reuse. */
+  private static final int MAX_IDLE_CHUNKS = 16;
+
+  private static final AttachmentMemoryPool DEFAULT_POOL
+      = new AttachmentMemoryPool(BUDGET_DEFAULT, CHUNK_SIZE_DEFAULT);
+
+  public static AttachmentMemoryPool getDefaultPool() { return DEFAULT_POOL; }
+
+  private final long budget;
+  private final int chunkSize;
+
+  private long used = 0;
+  private final List<byte[]> idleChunks = new ArrayList<byte[]>();
+
+  public AttachmentMemoryPool(long budget, int chunkSize) {
+    DefensiveTools.checkRange(budget, "budget", 0);
+    DefensiveTools.checkRange(chunkSize, "chunkSize", 1);
+    this.budget = budget;
+    this.chunkSize = chunkSize;
+  }
+
+  public long getBudget() { return budget; }
+
+  public int getChunkSize() { return chunkSize; }
+
+  /** Returns the number of bytes currently handed out. */
+  public synchronized long getUsed() { return used; }
+
+  /**
+   * Returns an array of the given size, or {@code null} if that would take
+   * the pool over its budget. The array must be returned with {@link #free}
+   * when it's no longer needed.
+   */
+  public synchronized @Nullable byte[] allocate(int size) {
+    DefensiveTools.checkRange(size, "size", 1, chunkSize);
+    if (used + size > budget) return null;
+
+    used += size;
+    if (size == chunkSize && !idleChunks.isEmpty()) {
+      return idleChunks.remove(idleChunks.size() - 1);
+    }
+    return new byte[size];
+  }
+
+  public synchronized void free(byte[] chunk) {
+    used -= chunk.length;
+    assert used >= 0 : used;
+    if (chunk.length == chunkSize && idleChunks.size() < MAX_IDLE_CHUNKS) {
+      idleChunks.add(chunk);
+    }
+  }
+}
@@ -40,11 +40,27 @@ import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
 
+/**
+ * Writes an attachment's data to a Direct IM stream. Data in memory is
+ * written straight from the attachment's buffer, and files are handed to
+ * {@link FileChannel#transferTo}, so only other kinds of attachments are
+ * copied through a buffer of our own.
+ */
 class AttachmentSender extends AbstractTransferrer {
+  private static final int CHUNK_SIZE_DEFAULT = 64 * 1024;
+
+  /**
+   * A progress event is fired when this many bytes have been sent since the
+   * last one, or when {@link #EVENT_INTERVAL_MILLIS} have passed.
+   */
+  private static final long EVENT_INTERVAL_BYTES = 64 * 1024;
+  private static final long EVENT_INTERVAL_MILLIS = 250;
+
   private final Attachment data;
   private final EventPost post;
   private final String id;
@@ -52,8 +68,17 @@ class AttachmentSender extends AbstractTransferrer {
   private final int numattachments;
   private Cancellable cancellable;
 
-  private ByteBuffer buf;
-  private ReadableByteChannel inchan;
+  private int chunkSize = CHUNK_SIZE_DEFAULT;
+
+  private ByteBuffer memoryData = null;
+  private ReadableByteChannel inchan = null;
+  private FileChannel fileChannel = null;
+  private long filePosition;
+  private ByteBuffer buf = null;
+  private ByteBuffer nulls = null;
+
+  private long lastEventPosition = 0;
+  private long lastEventTime = 0;
 
   public AttachmentSender(StreamInfo stream, Attachment data,
       EventPost post, String id, int attachno, int numattachments,
@@ -64,14 +89,31 @@ class AttachmentSender extends AbstractTransferrer {
     this.id = id;
     this.attachno = attachno;
     this.numattachments = numattachments;
-    resizeBuffer(1024);
-    inchan = data.openForReading();
+    Attachment source = data;
+    if (source instanceof StoredAttachment) {
+      // send straight from the shared copy, so the paths below can see what
+      // kind of attachment it really is
+      source = ((StoredAttachment) source).getStorage();
+    }
+    if (source instanceof MemoryAttachment) {
+      memoryData = ((MemoryAttachment) source).getBuffer().toByteBuffer();
+    } else {
+      inchan = source.openForReading();
+      if (inchan instanceof FileChannel) {
+        fileChannel = (FileChannel) inchan;
+        filePosition = fileChannel.position();
+      }
+    }
     this.cancellable = cancellable;
   }
 
+  /**
+   * Sets the most bytes which will be written at once.
+   */
   public void resizeBuffer(int size) {
-    buf = ByteBuffer.allocate(size);
-    buf.limit(0);
+    chunkSize = size;
+    buf = null;
+    nulls = null;
   }
 
   protected int getSelectionKey() {
@@ -89,29 +131,77 @@ class AttachmentSender extends AbstractTransferrer {
   protected long transferChunk(ReadableByteChannel readable,
       WritableByteChannel writable, long transferred, long remaining)
       throws IOException {
-    assert buf.position() == 0 : buf.position();
-    int leftoverBytes = buf.limit();
-    buf.position(leftoverBytes);
-    buf.limit(Math.max(0, (int) Math.min(buf.capacity(),
-        remaining - leftoverBytes)));
-    int read = inchan.read(buf);
-    if (read == -1 && leftoverBytes == 0) {
+    int max = (int) Math.min(chunkSize, remaining);
+    if (!hasMoreData(max)) {
       // it looks like we need to fill the rest of the stream with nulls,
-      // because the attachment stream didn't give us as many bytes as we were
-      // told to transfer
-      buf.position(0);
-      buf.limit((int) Math.min(buf.capacity(), remaining));
+      // because the attachment didn't give us as many bytes as we were told
+      // to transfer
+      if (nulls == null) nulls = ByteBuffer.allocate(chunkSize);
+      nulls.clear();
+      nulls.limit(max);
       post.fireEvent(new SendingAttachmentNullPaddingEvent(id, transferred,
           data.getLength(), attachno, numattachments));
+      return writable.write(nulls);
+    }
+
+    fireProgress(transferred);
+    if (memoryData != null) {
+      int origLimit = memoryData.limit();
+      memoryData.limit(Math.min(origLimit, memoryData.position() + max));
+      try {
+        return writable.write(memoryData);
+      } finally {
+        memoryData.limit(origLimit);
+      }
+
+    } else if (fileChannel != null) {
+      long wrote = fileChannel.transferTo(filePosition, max, writable);
+      filePosition += wrote;
+      return wrote;
 
     } else {
-      post.fireEvent(new SendingAttachmentDataEvent(id, transferred,
-          data.getLength(), attachno, numattachments));
+      int wrote = writable.write(buf);
+      buf.compact();
       buf.flip();
+      return wrote;
+    }
+  }
+
+  /**
+   * Returns whether the attachment has any data left to send. For attachments
+   * which we copy, this reads the next chunk into the buffer if it's empty.
+   */
+  private boolean hasMoreData(int max) throws IOException {
+    if (memoryData != null) return memoryData.hasRemaining();
+    if (fileChannel != null) return filePosition < fileChannel.size();
+
+    if (buf == null) {
+      buf = ByteBuffer.allocate(chunkSize);
+      buf.limit(0);
     }
-    int wrote = writable.write(buf);
-    buf.compact();
+    // anything left over from the last write goes before we read any more
+    if (buf.hasRemaining()) return true;
+    buf.clear();
+    buf.limit(max);
+    int read = inchan.read(buf);
     buf.flip();
-    return wrote;
+    return read != -1;
+  }
+
+  private void fireProgress(long transferred) {
+    long now = System.currentTimeMillis();
+    if (lastEventTime != 0
+        && transferred - lastEventPosition < EVENT_INTERVAL_BYTES
+        && now - lastEventTime < EVENT_INTERVAL_MILLIS) {
+      return;
+    }
+    lastEventPosition = transferred;
+    lastEventTime = now;
+    post.fireEvent(new SendingAttachmentDataEvent(id, transferred,
+        data.getLength(), attachno, numattachments));
+  }
+
+  protected void cleanUp() throws IOException {
+    if (inchan != null) inchan.close();
   }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the stored data of attachments with the same contents. Each stored
+ * attachment is counted every time it's {@linkplain #share shared}, and is
+ * released once every {@linkplain #unshare user} is done with it. One store
+ * can be used by any number of {@link DedupingAttachmentSaver}s.
+ * <br><br>
+ * The store only holds its users weakly, so a user which is thrown away
+ * without being released doesn't keep its attachment stored forever. Its
+ * share is given up once it has been garbage collected, the next time the
+ * store is used.
+ */
+public class AttachmentStore {
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  private final ReferenceQueue<Object> collected
+      = new ReferenceQueue<Object>();
+
+  /**
+   * Returns the attachment holding the given contents, and counts the given
+   * user as using it. If the store already has one, the given attachment is
+   * released and the stored one is returned; otherwise the given one is
+   * stored and returned.
+   */
+  public synchronized Attachment share(String hash, Attachment stored,
+      Object user) {
+    DefensiveTools.checkNull(hash, "hash");
+    DefensiveTools.checkNull(stored, "stored");
+    DefensiveTools.checkNull(user, "user");
+
+    removeCollectedUsers();
+    Entry entry = entries.get(hash);
+    if (entry == null) {
+      entry = new Entry(stored);
+      entries.put(hash, entry);
+    } else if (entry.attachment != stored) {
+      stored.release();
+    }
+    entry.users.add(new UserReference(user, hash, collected));
+    return entry.attachment;
+  }
+
+  /**
+   * Tells the store that the given user of the attachment with the given
+   * contents is done with it. The attachment is released when no one is
+   * using it.
+   */
+  public synchronized void unshare(String hash, Object user) {
+    removeCollectedUsers();
+    Entry entry = entries.get(hash);
+    if (entry == null) return;
+
+    for (Iterator<UserReference> it = entry.users.iterator(); it.hasNext();) {
+      UserReference ref = it.next();
+      if (ref.get() == user) {
+        // it mustn't be counted again once it's collected
+        ref.clear();
+        it.remove();
+        break;
+      }
+    }
+    releaseIfUnused(hash, entry);
+  }
+
+  /** Returns the number of distinct attachments in the store. */
+  public synchronized int getStoredCount() {
+    removeCollectedUsers();
+    return entries.size();
+  }
+
+  private void removeCollectedUsers() {
+    for (Reference<?> ref = collected.poll(); ref != null;
+        ref = collected.poll()) {
+      String hash = ((UserReference) ref).hash;
+      Entry entry = entries.get(hash);
+      if (entry != null && entry.users.remove(ref)) {
+        releaseIfUnused(hash, entry);
+      }
+    }
+  }
+
+  private void releaseIfUnused(String hash, Entry entry) {
+    if (entry.users.isEmpty()) {
+      entries.remove(hash);
+      entry.attachment.release();
+    }
+  }
+
+  private static class Entry {
+    public final Attachment attachment;
+    public final List<UserReference> users = new ArrayList<UserReference>(2);
+
+    public Entry(Attachment attachment) {
+      this.attachment = attachment;
+    }
+  }
+
+  private static class UserReference extends WeakReference<Object> {
+    public final String hash;
+
+    public UserReference(Object user, String hash,
+        ReferenceQueue<Object> queue) {
+      super(user, queue);
+      this.hash = hash;
+    }
+  }
+}
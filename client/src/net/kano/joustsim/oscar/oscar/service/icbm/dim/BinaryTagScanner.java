@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import net.kano.joscar.BinaryTools;
+import net.kano.joscar.ByteBlock;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the {@code <BINARY>} tag which ends the text of a Direct IM message,
+ * and the {@code <DATA ID=... SIZE=...>} tags inside it, as the message's
+ * bytes arrive. A tag may be split between any number of reads; the scanner
+ * remembers how far it got, so the caller never needs to hold bytes back or
+ * search the same bytes twice, and the buffer it reads into can be any size.
+ * Nothing is allocated while scanning except the ID string of each attachment
+ * tag.
+ */
+class BinaryTagScanner {
+  private static final byte[] BINARY_TAG = { '<', 'B', 'I', 'N', 'A', 'R', 'Y',
+      '>' };
+  private static final byte[] ID_ATTR = { 'I', 'D', '=' };
+  private static final byte[] SIZE_ATTR = { 'S', 'I', 'Z', 'E', '=' };
+
+  /**
+   * Only the start of a longer tag is kept, which is plenty for the attributes
+   * we look for; the rest is skipped until the closing bracket.
+   */
+  private static final int MAX_TAG_LENGTH = 1024;
+
+  /** How many bytes of {@code <BINARY>} matched at the end of the last read. */
+  private int binaryMatched = 0;
+
+  private final byte[] tag = new byte[MAX_TAG_LENGTH];
+  private int tagLength = 0;
+
+  private String id = null;
+  private Long size = null;
+
+  /**
+   * Appends the message text in the given buffer to the given message, up to
+   * and not including a {@code <BINARY>} tag. Returns {@code true} if the tag
+   * was found, in which case the buffer is positioned just after it; otherwise
+   * the whole buffer is consumed, and the beginning of a tag at the end of it
+   * is held back until the next call.
+   */
+  public boolean scanMessage(ByteBuffer buffer, MessageAssembler message) {
+    byte[] bytes = buffer.array();
+    int offset = buffer.arrayOffset();
+    int start = buffer.position() + offset;
+    int end = buffer.limit() + offset;
+    // the end of the bytes in this buffer which we know are message text
+    int textEnd = start;
+    int heldBack = binaryMatched;
+    for (int pos = start; pos < end;) {
+      byte b = bytes[pos++];
+      if (b == BINARY_TAG[binaryMatched]) {
+        binaryMatched++;
+        if (binaryMatched == BINARY_TAG.length) {
+          binaryMatched = 0;
+          message.append(bytes, start, textEnd - start);
+          buffer.position(pos - offset);
+          return true;
+        }
+      } else {
+        // the bytes we thought might be a tag are really text. since '<' only
+        // appears at the start of the tag, the only place another tag could
+        // start is at this byte.
+        if (heldBack > 0) {
+          message.append(BINARY_TAG, 0, heldBack);
+          heldBack = 0;
+        }
+        if (b == '<') {
+          binaryMatched = 1;
+          textEnd = pos - 1;
+        } else {
+          binaryMatched = 0;
+          textEnd = pos;
+        }
+      }
+    }
+    message.append(bytes, start, textEnd - start);
+    buffer.position(buffer.limit());
+    return false;
+  }
+
+  /**
+   * Appends anything held back by {@link #scanMessage} to the given message.
+   * This should be called when there is no more message data.
+   */
+  public void finishMessage(MessageAssembler message) {
+    message.append(BINARY_TAG, 0, binaryMatched);
+    binaryMatched = 0;
+  }
+
+  /**
+   * Reads the given buffer up to the end of the next tag. Returns
+   * {@code true} if a tag ended, in which case the buffer is positioned just
+   * after it, and {@link #getId} and {@link #getSize} return the attributes of
+   * that tag; otherwise the whole buffer is consumed.
+   */
+  public boolean scanTag(ByteBuffer buffer) {
+    byte[] bytes = buffer.array();
+    int offset = buffer.arrayOffset();
+    int end = buffer.limit() + offset;
+    for (int pos = buffer.position() + offset; pos < end;) {
+      byte b = bytes[pos++];
+      if (tagLength < tag.length) tag[tagLength++] = b;
+      if (b == '>') {
+        parseTag();
+        tagLength = 0;
+        buffer.position(pos - offset);
+        return true;
+      }
+    }
+    buffer.position(buffer.limit());
+    return false;
+  }
+
+  /**
+   * Returns the ID attribute of the last tag, or {@code null} if it had none.
+   */
+  public String getId() { return id; }
+
+  /**
+   * Returns the SIZE attribute of the last tag, or {@code null} if it had none
+   * or it was not a number.
+   */
+  public Long getSize() { return size; }
+
+  private void parseTag() {
+    id = null;
+    size = null;
+    int idStart = findValue(ID_ATTR);
+    if (idStart != -1) {
+      id = BinaryTools.getAsciiString(ByteBlock.wrap(tag, idStart,
+          valueEnd(idStart) - idStart));
+    }
+    int sizeStart = findValue(SIZE_ATTR);
+    if (sizeStart != -1) {
+      size = parseSize(sizeStart, valueEnd(sizeStart));
+    }
+  }
+
+  /**
+   * Returns the start of the value of the first given attribute in the tag
+   * which has one. Attribute names are matched case-insensitively, and the
+   * value may be surrounded by any combination of single and double quotes.
+   */
+  private int findValue(byte[] attr) {
+    for (int i = 0; i + attr.length <= tagLength; i++) {
+      if (!attributeAt(i, attr)) continue;
+      int start = i + attr.length;
+      while (start < tagLength && (tag[start] == '"' || tag[start] == '\'')) {
+        start++;
+      }
+      if (valueEnd(start) > start) return start;
+    }
+    return -1;
+  }
+
+  private boolean attributeAt(int pos, byte[] attr) {
+    for (int i = 0; i < attr.length; i++) {
+      byte b = tag[pos + i];
+      if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+      if (b != attr[i]) return false;
+    }
+    return true;
+  }
+
+  private int valueEnd(int start) {
+    int end = start;
+    while (end < tagLength && isWordChar(tag[end])) end++;
+    return end;
+  }
+
+  private Long parseSize(int start, int end) {
+    // a long can't have more than 18 digits without risking overflow
+    if (end - start > 18) return null;
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      byte b = tag[i];
+      if (b < '0' || b > '9') return null;
+      value = value * 10 + (b - '0');
+    }
+    return value;
+  }
+
+  private static boolean isWordChar(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+        || (b >= '0' && b <= '9') || b == '_';
+  }
+}
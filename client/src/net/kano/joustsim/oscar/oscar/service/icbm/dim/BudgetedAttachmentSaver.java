@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Saves incoming attachments in memory from an {@link AttachmentMemoryPool},
+ * moving each one to a file in a temporary directory once it uses more than
+ * its share of the pool or the pool runs out. Attachments known to be bigger
+ * than their share go straight to disk.
+ * <br />
+ * Memory and files are only given back when the attachments are released,
+ * normally through {@code DirectMessage.release()}.
+ * If that never happens, the pool eventually fills and every attachment is
+ * saved to disk, and the files are deleted when the VM exits. For that reason
+ * this isn't the default; only {@linkplain
+ * DirectimConnection#setAttachmentSaver use it} for connections whose
+ * messages are released once they've been handled.
+ */
+public class BudgetedAttachmentSaver implements AttachmentSaver {
+  private final AttachmentMemoryPool pool;
+  private final File tempDir;
+  private final long maxMemoryPerAttachment;
+
+  /**
+   * Creates a saver using the shared memory pool, in which each attachment
+   * may use up to a quarter of the pool, and a {@code joustsim-dim} directory
+   * in the system's temporary directory.
+   */
+  public BudgetedAttachmentSaver() {
+    this(AttachmentMemoryPool.getDefaultPool(),
+        new File(System.getProperty("java.io.tmpdir"), "joustsim-dim"),
+        AttachmentMemoryPool.getDefaultPool().getBudget() / 4);
+  }
+
+  public BudgetedAttachmentSaver(AttachmentMemoryPool pool, File tempDir,
+      long maxMemoryPerAttachment) {
+    DefensiveTools.checkNull(pool, "pool");
+    DefensiveTools.checkNull(tempDir, "tempDir");
+    DefensiveTools.checkRange(maxMemoryPerAttachment, "maxMemoryPerAttachment",
+        0);
+
+    this.pool = pool;
+    this.tempDir = tempDir;
+    this.maxMemoryPerAttachment = maxMemoryPerAttachment;
+  }
+
+  public AttachmentMemoryPool getPool() { return pool; }
+
+  public File getTempDir() { return tempDir; }
+
+  public long getMaxMemoryPerAttachment() { return maxMemoryPerAttachment; }
+
+  public Attachment createChannel(String id, long length)
+      throws IOException {
+    if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+      throw new IOException("Couldn't create attachment directory " + tempDir);
+    }
+    long maxMemory = length > maxMemoryPerAttachment
+        ? 0 : maxMemoryPerAttachment;
+    return new SpillingAttachment(id, length, pool, tempDir, maxMemory);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.IOException;
+
+/**
+ * Saves attachments with another saver, but shares the saved data between
+ * attachments with the same contents through an {@link AttachmentStore}.
+ * This helps when the same smileys and icons arrive over and over, like in
+ * a process which logs every conversation. Each attachment is hashed while
+ * it's received, and once it's complete, a copy which is already stored
+ * takes its place.
+ * <br><br>
+ * Stored data is only freed once every attachment sharing it has been
+ * released, normally through {@code DirectMessage.release()}, so messages
+ * should be released once they've been handled. Attachments which are
+ * dropped without being released give up their share once they're garbage
+ * collected, but until then their data stays stored.
+ */
+public class DedupingAttachmentSaver implements AttachmentSaver {
+  private final AttachmentSaver saver;
+  private final AttachmentStore store;
+
+  public DedupingAttachmentSaver(AttachmentSaver saver) {
+    this(saver, new AttachmentStore());
+  }
+
+  public DedupingAttachmentSaver(AttachmentSaver saver, AttachmentStore store) {
+    DefensiveTools.checkNull(saver, "saver");
+    DefensiveTools.checkNull(store, "store");
+
+    this.saver = saver;
+    this.store = store;
+  }
+
+  public AttachmentSaver getSaver() { return saver; }
+
+  public AttachmentStore getStore() { return store; }
+
+  public Attachment createChannel(String id, long length)
+      throws IOException {
+    return new StoredAttachment(id, length, saver.createChannel(id, length),
+        store);
+  }
+}
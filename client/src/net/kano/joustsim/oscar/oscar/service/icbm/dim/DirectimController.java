@@ -48,6 +48,7 @@ import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.PauseHelperImpl
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.AbstractStateController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.TimeoutableController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ConnectedController;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.SharedSelector;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.StateController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ConnectedEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ConnectionTimedOutEvent;
@@ -59,9 +60,11 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Iterator;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,16 +76,57 @@ public class DirectimController extends AbstractStateController
 
   private DirectimConnection connection;
   private StreamInfo stream;
-  private Thread recvThread;
-  private Thread sendThread;
+  private InputStream in;
   private volatile boolean cancelled = false;
   private PauseHelper pauseHelper = new PauseHelperImpl();
 
-  private final List<Object> queue = new ArrayList<Object>();
+  private final Object receiveLock = new Object();
+  /**
+   * The thread reading a packet right now, if any. This is only set and
+   * cleared while holding {@link #receiveLock}, which {@link #stop} holds
+   * while interrupting it, so the interrupt can't reach a pool thread which
+   * has moved on to another task.
+   */
+  private Thread receivingThread = null;
+  private final Runnable receiveTask = new Runnable() {
+    public void run() {
+      Thread current = Thread.currentThread();
+      synchronized (receiveLock) {
+        if (cancelled) return;
+        receivingThread = current;
+      }
+      try {
+        if (receivePacket()) waitForPacket();
+
+      } catch (Exception e) {
+        fireFailed(e);
+      } finally {
+        synchronized (receiveLock) {
+          // the next packet may already be being read on another thread
+          if (receivingThread == current) receivingThread = null;
+          // don't let an interrupt meant for us hit the pool's next task
+          Thread.interrupted();
+        }
+      }
+    }
+  };
+
+  private final SerialExecutor sendQueue
+      = new SerialExecutor(SerialExecutor.getSharedPool());
   private DirectimQueueProcessor queueProcessor = null;
+  private boolean sendFailed = false;
+
+  private final Object sendLock = new Object();
+  /**
+   * The typing state task at the end of the send queue, which later typing
+   * states replace the state of, rather than being queued themselves.
+   */
+  private TypingTask queuedTypingTask = null;
 
   private final Object icbmIdLock = new Object();
   private boolean icbmIdConfirmed = false;
+  /** Tasks to send once the buddy has confirmed the ICBM ID. */
+  private final List<Runnable> unconfirmedTasks = new ArrayList<Runnable>();
 
   public void start(RvConnection conn, StateController last) {
     this.connection = (DirectimConnection) conn;
@@ -93,24 +137,27 @@ public class DirectimController extends AbstractStateController
     stream = (StreamInfo) last.getEndStateInfo();
     connection.getTimeoutHandler().startTimeout(this);
 
-    queueProcessor = new DirectimQueueProcessor(this, connection, stream);
+    queueProcessor = createQueueProcessor(connection, stream);
+    // this puts the channel into non-blocking mode, which waitForPacket needs
+    in = stream.getInputStream();
 
-    recvThread = new Thread(new Runnable() {
+    SerialExecutor.getSharedPool().execute(new Runnable() {
       public void run() {
-        try {
-          receiveInThread();
-        } catch (Exception e) {
-          fireFailed(e);
-        }
+        LOGGER.fine("Starting DIM receiver for " + DirectimController.this);
+        connection.getEventPost().fireEvent(new ConnectedEvent());
+        waitForPacket();
       }
-    }, "Direct IM reader");
-    recvThread.setDaemon(true);
-    recvThread.start();
-
-    queue.add(DirectimQueueProcessor.INIT);
-    sendThread = new Thread(new DimQueue(), "Direct IM queue");
-    sendThread.setDaemon(true);
-    sendThread.start();
+    });
+
+    enqueue(new SendTask(DirectimQueueProcessor.INIT));
+  }
+
+  /**
+   * Creates the processor which sends queued messages and typing states.
+   */
+  protected DirectimQueueProcessor createQueueProcessor(
+      DirectimConnection connection, StreamInfo stream) {
+    return new DirectimQueueProcessor(this, connection, stream);
   }
 
   @Nullable public ConnectionType getTimeoutType() {
@@ -139,65 +186,82 @@ public class DirectimController extends AbstractStateController
     pauseHelper.setPaused(false);
   }
 
-  private void receiveInThread() throws IOException {
-    LOGGER.fine("Starting DIM receiver for " + DirectimController.this);
-    connection.getEventPost().fireEvent(new ConnectedEvent());
-
-    InputStream is = stream.getInputStream();
-    while (true) {
-      DirectImHeader header = DirectImHeader.readDirectIMHeader(is);
-      if (header == null) {
-        LOGGER.info("Could not read header in " + this);
-        fireFailed(new UnknownErrorEvent());
-        break;
+  /**
+   * Runs the receive task once the next packet starts to arrive. Between
+   * packets, no thread is spent on this connection.
+   */
+  private void waitForPacket() {
+    SelectableChannel selectable = stream.getSelectableChannel();
+    Executor pool = SerialExecutor.getSharedPool();
+    if (selectable == null) {
+      pool.execute(receiveTask);
+    } else {
+      try {
+        SharedSelector.getInstance().whenReady(selectable,
+            SelectionKey.OP_READ, pool, receiveTask);
+      } catch (IOException e) {
+        fireFailed(e);
       }
+    }
+  }
 
-      long datalen = header.getDataLength();
-      long flags = header.getFlags();
-      EventPost eventPost = connection.getEventPost();
-      if ((flags & DirectImHeader.FLAG_TYPINGPACKET) != 0) {
-        eventPost.fireEvent(new BuddyTypingEvent(getTypingState(flags)));
-      }
-      RvSessionConnectionInfo rvinfo = connection.getRvSessionInfo();
-      if (!isIcbmIdConfirmed() && rvinfo.getInitiator() == Initiator.ME) {
-        long realid = rvinfo.getRvSession().getRvSessionId();
-        boolean confirmation = (flags & DirectImHeader.FLAG_CONFIRMATION) != 0;
-        if (confirmation && header.getMessageId() == realid) {
-          setIcbmIdConfirmed();
+  /**
+   * Reads one packet, and returns whether the connection is still good for
+   * reading more.
+   */
+  private boolean receivePacket() throws IOException {
+    DirectImHeader header = DirectImHeader.readDirectIMHeader(in);
+    if (header == null) {
+      LOGGER.info("Could not read header in " + this);
+      fireFailed(new UnknownErrorEvent());
+      return false;
+    }
 
+    long datalen = header.getDataLength();
+    long flags = header.getFlags();
+    EventPost eventPost = connection.getEventPost();
+    if ((flags & DirectImHeader.FLAG_TYPINGPACKET) != 0) {
+      eventPost.fireEvent(new BuddyTypingEvent(getTypingState(flags)));
+    }
+    RvSessionConnectionInfo rvinfo = connection.getRvSessionInfo();
+    if (!isIcbmIdConfirmed() && rvinfo.getInitiator() == Initiator.ME) {
+      long realid = rvinfo.getRvSession().getRvSessionId();
+      boolean confirmation = (flags & DirectImHeader.FLAG_CONFIRMATION) != 0;
+      if (confirmation && header.getMessageId() == realid) {
+        setIcbmIdConfirmed();
+
+      } else {
+        if (confirmation) {
+          LOGGER.warning("Buddy sent wrong confirmation ICBM ID: "
+              + header.getMessageId() + " should be " + realid);
         } else {
-          if (confirmation) {
-            LOGGER.warning("Buddy sent wrong confirmation ICBM ID: "
-                + header.getMessageId() + " should be " + realid);
-          } else {
-            LOGGER.warning("Buddy didn't send confirmation ICBM ID (should be "
-                + realid + ")");
-          }
-          fireFailed(new UnknownErrorEvent());
-          break;
+          LOGGER.warning("Buddy didn't send confirmation ICBM ID (should be "
+              + realid + ")");
         }
+        fireFailed(new UnknownErrorEvent());
+        return false;
       }
-      if (datalen > 0) {
-        LOGGER.fine("Read header; reading packet of " + datalen + " bytes");
-        String charset = header.getEncoding().toCharsetName();
-        if (charset == null) charset = "ISO-8859-1";
-
-        DirectimReceiver receiver = new DirectimReceiver(stream, eventPost,
-            getPauseHelper(), connection.getAttachmentSaver(), this, charset,
-            datalen, isAutoResponse(header));
-        long transferred = receiver.transfer();
-
-        if (transferred != datalen) {
-          LOGGER.info("Position at end was " + transferred + ", expected "
-              + datalen);
-          fireFailed(new UnknownErrorEvent());
-          break;
-        }
-
-        eventPost.fireEvent(new DoneReceivingEvent());
+    }
+    if (datalen > 0) {
+      LOGGER.fine("Read header; reading packet of " + datalen + " bytes");
+      String charset = header.getEncoding().toCharsetName();
+      if (charset == null) charset = "ISO-8859-1";
+
+      DirectimReceiver receiver = new DirectimReceiver(stream, eventPost,
+          getPauseHelper(), connection.getAttachmentSaver(), this, charset,
+          datalen, isAutoResponse(header));
+      long transferred = receiver.transfer();
+
+      if (transferred != datalen) {
+        LOGGER.info("Position at end was " + transferred + ", expected "
+            + datalen);
+        fireFailed(new UnknownErrorEvent());
+        return false;
       }
+
+      eventPost.fireEvent(new DoneReceivingEvent());
     }
-    LOGGER.fine("Done with DIM receiver for " + this);
+    return true;
   }
 
   private void setIcbmIdConfirmed() {
@@ -205,7 +269,8 @@ public class DirectimController extends AbstractStateController
       if (icbmIdConfirmed) return;
 
       icbmIdConfirmed = true;
-      icbmIdLock.notifyAll();
+      for (Runnable task : unconfirmedTasks) sendQueue.execute(task);
+      unconfirmedTasks.clear();
     }
   }
 
@@ -215,19 +280,6 @@ public class DirectimController extends AbstractStateController
     }
   }
 
-  private boolean waitForIcbmIdConfirmation() {
-    synchronized(icbmIdLock) {
-      while (!icbmIdConfirmed) {
-        try {
-          icbmIdLock.wait();
-        } catch (InterruptedException e) {
-          return false;
-        }
-      }
-      return icbmIdConfirmed;
-    }
-  }
-
   private static TypingState getTypingState(long flags) {
     TypingState state;
     if ((flags & DirectImHeader.FLAG_TYPED) != 0) {
@@ -240,15 +292,34 @@ public class DirectimController extends AbstractStateController
     return state;
   }
 
+  /**
+   * Queues the given typing state to be sent. If the last thing queued is a
+   * typing state which hasn't been sent yet, it's replaced with this one, so
+   * only the latest state goes out.
+   */
   public void setTypingState(TypingState state) {
-    enqueue(state);
+    synchronized (sendLock) {
+      if (queuedTypingTask != null) {
+        queuedTypingTask.state = state;
+      } else {
+        queuedTypingTask = new TypingTask(state);
+        enqueue(queuedTypingTask);
+      }
+    }
   }
 
-  private void enqueue(Object o) {
-    synchronized(queue) {
-      queue.add(o);
-      queue.notifyAll();
+  /**
+   * Queues the given task to be run in order with the others, as soon as the
+   * buddy has confirmed the ICBM ID.
+   */
+  private void enqueue(Runnable task) {
+    synchronized (icbmIdLock) {
+      if (!icbmIdConfirmed) {
+        unconfirmedTasks.add(task);
+        return;
+      }
     }
+    sendQueue.execute(task);
   }
 
   public void sendMessage(Message message) {
@@ -261,14 +332,25 @@ public class DirectimController extends AbstractStateController
         }
       }
     }
-    enqueue(message);
+    synchronized (sendLock) {
+      // a typing state queued before this message must go out before it
+      queuedTypingTask = null;
+      enqueue(new SendTask(message));
+    }
   }
 
   public void stop() {
     LOGGER.info("Stopping directim controller");
-    cancelled = true;
-    if (recvThread != null) recvThread.interrupt();
-    if (sendThread != null) sendThread.interrupt();
+    synchronized (receiveLock) {
+      cancelled = true;
+      if (receivingThread != null) receivingThread.interrupt();
+    }
+    List<Runnable> unsent;
+    synchronized (icbmIdLock) {
+      unsent = new ArrayList<Runnable>(unconfirmedTasks);
+      unconfirmedTasks.clear();
+    }
+    for (Runnable task : unsent) task.run();
     if (didConnect()) {
       fireSucceeded(new DirectimEndedInfo());
     } else {
@@ -288,57 +370,61 @@ public class DirectimController extends AbstractStateController
     return (header.getFlags() & DirectImHeader.FLAG_AUTORESPONSE) != 0;
   }
 
-  private class DimQueue implements Runnable {
-    public void run() {
-      LOGGER.fine("Starting DIM queue thread for " + DirectimController.this);
-      while (true) {
-        if (!waitForIcbmIdConfirmation()) {
-          return;
-        }
-        List<Object> newItems;
-        synchronized(queue) {
-          if (queue.isEmpty()) {
-            try {
-              queue.wait();
-            } catch (InterruptedException e) {
-              break;
-            }
-          }
-          newItems = new ArrayList<Object>(queue);
-          queue.clear();
-        }
-        for (Iterator<Object> it = newItems.iterator(); it.hasNext();) {
-          Object item = it.next();
-          try {
-            queueProcessor.processItem(item);
-            it.remove();
-
-          } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Error while processing DIM queue", e);
-            fireItemsFailed(newItems);
-            fireFailed(e);
-          }
-        }
-      }
-      synchronized(queue) {
-        fireItemsFailed(queue);
-      }
-      LOGGER.fine("Done with DIM queue for " + DirectimController.this);
+  /**
+   * Sends the given item, unless the controller has been stopped or an
+   * earlier item failed, in which case messages are reported as failed.
+   */
+  private void processItem(Object item) {
+    if (cancelled || sendFailed) {
+      fireItemFailed(item);
+      return;
     }
+    try {
+      queueProcessor.processItem(item);
 
-    private void fireItemsFailed(List<Object> newItems) {
-      for (Object failed : newItems) {
-        if (failed instanceof Message) {
-          Message message = (Message) failed;
-          connection.getEventPost().fireEvent(
-              new SendingMessageFailedEvent(message));
-        }
-      }
+    } catch (Exception e) {
+      LOGGER.log(Level.SEVERE, "Error while processing DIM queue", e);
+      sendFailed = true;
+      fireItemFailed(item);
+      fireFailed(e);
     }
+  }
 
-    protected void processItem(Object item) throws IOException {
-      queueProcessor.processItem(item);
+  private void fireItemFailed(Object failed) {
+    if (failed instanceof Message) {
+      Message message = (Message) failed;
+      connection.getEventPost().fireEvent(
+          new SendingMessageFailedEvent(message));
+    }
+  }
+
+  private class SendTask implements Runnable {
+    private final Object item;
+
+    public SendTask(Object item) {
+      this.item = item;
+    }
+
+    public void run() {
+      processItem(item);
     }
   }
 
+  private class TypingTask implements Runnable {
+    /** The state to send, which may change until this task starts. */
+    private TypingState state;
+
+    public TypingTask(TypingState state) {
+      this.state = state;
+    }
+
+    public void run() {
+      TypingState latest;
+      synchronized (sendLock) {
+        if (queuedTypingTask == this) queuedTypingTask = null;
+        latest = state;
+      }
+      processItem(latest);
+    }
+  }
 }
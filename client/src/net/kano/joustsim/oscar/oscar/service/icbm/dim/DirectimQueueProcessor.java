@@ -52,6 +52,7 @@ import net.kano.joustsim.oscar.oscar.service.icbm.TypingState;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.Initiator;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnection;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvSessionConnectionInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.SharedSelector;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.EventPost;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
 import org.jetbrains.annotations.Nullable;
@@ -61,7 +62,6 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
@@ -80,6 +80,8 @@ public class DirectimQueueProcessor {
       = ByteBlock.wrap(BinaryTools.getAsciiBytes("</DATA>"));
   public static final Object INIT = new Object();
 
+  private static final long READY_TIMEOUT = 1000;
+
   private final Cancellable cancellable;
   private final RvConnection connection;
   private final StreamInfo stream;
@@ -153,25 +155,23 @@ public class DirectimQueueProcessor {
     ByteBuffer msgData = ByteBuffer.wrap(str.getBytes());
     SelectableChannel chan = stream.getSelectableChannel();
     WritableByteChannel writable = stream.getWritableChannel();
-    @Nullable Selector selector;
+    @Nullable SharedSelector selector;
     if (chan == null) {
       selector = null;
     } else {
-      selector = Selector.open();
-      chan.register(selector, SelectionKey.OP_WRITE);
+      selector = SharedSelector.getInstance();
     }
     EventPost post = connection.getEventPost();
     int length = msgData.limit();
-    while (msgData.hasRemaining() && (selector == null || selector.isOpen())
-        && writable.isOpen()) {
-      if (selector != null) {
-        selector.select(50);
-      }
+    while (msgData.hasRemaining() && writable.isOpen()) {
       post.fireEvent(new SendingMessageEvent(msgData.position(), length));
       int i = writable.write(msgData);
       if (i == -1) {
         throw new IOException("Failed to write to channel");
       }
+      if (i == 0 && selector != null) {
+        selector.waitUntilReady(chan, SelectionKey.OP_WRITE, READY_TIMEOUT);
+      }
     }
     post.fireEvent(new SentMessageTextEvent(message, length));
     if (!attachmentInfos.isEmpty()) {
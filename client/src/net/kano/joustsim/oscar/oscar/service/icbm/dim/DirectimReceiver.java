@@ -34,43 +34,29 @@
 
 package net.kano.joustsim.oscar.oscar.service.icbm.dim;
 
-import net.kano.joscar.ByteBlock;
-import net.kano.joscar.DynAsciiCharSequence;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.AbstractTransferrer;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.PauseHelper;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.SharedSelector;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.EventPost;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.WritableByteChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class DirectimReceiver extends AbstractTransferrer {
   private static final Logger LOGGER = Logger
       .getLogger(DirectimReceiver.class.getName());
 
-  /**
-   * Matches ID=abc123 case-insensitively with any combination of single or
-   * double quotes around the value. I've made a learning computer.
-   */
-  private static final Pattern PATTERN_ID
-      = Pattern.compile("ID=['\"]*(\\w+)[\"']*", Pattern.CASE_INSENSITIVE);
-  /**
-   * Matches SIZE=abc123 case-insensitively with any combination of single or
-   * double quotes around the value.
-   */
-  private static final Pattern PATTERN_SIZE
-      = Pattern.compile("SIZE=['\"]*(\\w+)[\"']*", Pattern.CASE_INSENSITIVE);
+  private static final int BUFFER_SIZE_INITIAL = 8 * 1024;
+  private static final int BUFFER_SIZE_MAX = 64 * 1024;
 
   private boolean autoResponse;
 
@@ -80,21 +66,29 @@ public class DirectimReceiver extends AbstractTransferrer {
   private final @Nullable PauseHelper pauseHelper;
   private final @Nullable Cancellable cancellable;
 
-  private ByteBuffer buffer;
-  private DynAsciiCharSequence chars;
+  /**
+   * Holds the bytes which have been read but not processed yet, between its
+   * position and its limit.
+   */
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE_INITIAL);
   {
-    resizeBuffer(1024);
+    buffer.flip();
   }
+  /**
+   * Whether the buffer should grow when reads fill it. This is turned off
+   * when the size is set explicitly.
+   */
+  private boolean growBuffer = true;
+  private final BinaryTagScanner scanner = new BinaryTagScanner();
 
-  private ByteArrayOutputStream msgBuffer = new ByteArrayOutputStream();
+  private MessageAssembler message = null;
 
-  private @Nullable Selector selector;
+  private @Nullable SelectableChannel destinationSel;
   private Mode mode = Mode.MESSAGE;
   private String lastid = null;
   private Attachment last = null;
   private long lastAttachmentReceived = 0;
   private Long lastAttachmentSize = null;
-  private boolean checkbuffer = false;
   private WritableByteChannel destchannel = null;
 
   public DirectimReceiver(StreamInfo stream,
@@ -127,9 +121,15 @@ public class DirectimReceiver extends AbstractTransferrer {
     this.autoResponse = autoResponse;
   }
 
+  /**
+   * Sets the size of the read buffer, which otherwise grows from 8KB to 64KB
+   * as large messages arrive. Tags and characters may be split between reads,
+   * so any size works, however small.
+   */
   public void resizeBuffer(int size) {
     buffer = ByteBuffer.allocate(size);
-    chars = new DynAsciiCharSequence(ByteBlock.wrap(buffer.array()));
+    buffer.flip();
+    growBuffer = false;
   }
 
   protected boolean isCancelled() {
@@ -141,16 +141,14 @@ public class DirectimReceiver extends AbstractTransferrer {
   }
 
   protected void waitUntilReady() throws IOException {
-    // Sometimes extra data is left in the buffer, and transfer() should be
-    // called again immediately, to continue processing the buffer.
-    if (checkbuffer) return;
-
-    if (mode == Mode.DATA && selector != null) {
-      selector.select(50);
-    }
-    if (buffer.position() == 0) {
-      // we only want to call the super waitUntilReady if the buffer is empty
-      // and we read some data last time
+    if (buffer.hasRemaining()) {
+      // we stopped processing the buffer because the attachment couldn't take
+      // any more data, so we wait for it rather than for the socket
+      if (mode == Mode.DATA && destinationSel != null) {
+        SharedSelector.getInstance().waitUntilReady(destinationSel,
+            SelectionKey.OP_WRITE, 50);
+      }
+    } else {
       super.waitUntilReady();
     }
   }
@@ -158,187 +156,119 @@ public class DirectimReceiver extends AbstractTransferrer {
   protected long transferChunk(ReadableByteChannel readable,
       WritableByteChannel writable, long transferred, long remaining)
       throws IOException {
-    int origpos = buffer.position();
-    if (!checkbuffer && ((mode == Mode.MESSAGE || mode == Mode.TAG) && buffer.remaining() == 0)) {
-      LOGGER.warning("DIM buffer full; entering drain mode from " + mode);
-      eventPost.fireEvent(new EnteringDrainModeEvent(remaining));
-      mode = Mode.DRAIN;
-      checkbuffer = false;
-      buffer.rewind();
-      buffer.limit(buffer.capacity());
-      return origpos;
-    }
-    buffer.limit((int) Math.min(buffer.capacity(), buffer.position()
-        + remaining));
-    int read = readable.read(buffer);
-    int actuallyRead = Math.max(read, 0);
-    if (!checkbuffer && (read == -1 || mode == Mode.DRAIN)) {
-      int skipped = buffer.position();
-      buffer.rewind();
-      buffer.limit(buffer.capacity());
-      long progress = transferred + actuallyRead;
-      long total = transferred + remaining;
-      eventPost.fireEvent(new DrainingEvent(progress, total));
-      checkbuffer = false;
-      return skipped;
+    if (!buffer.hasRemaining()) {
+      if (growBuffer && buffer.limit() == buffer.capacity()
+          && buffer.capacity() < BUFFER_SIZE_MAX) {
+        // the last read filled the buffer, so there's probably more waiting
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+      }
+      buffer.clear();
+      // we never read past the end of this packet, so everything in the
+      // buffer belongs to it
+      buffer.limit((int) Math.min(buffer.capacity(), remaining));
+      int read = readable.read(buffer);
+      buffer.flip();
+      if (read == -1) return -1;
     }
-    checkbuffer = (read > 0);
-    chars.setLength(buffer.position());
-    if (mode == Mode.MESSAGE || mode == Mode.TAG || mode == Mode.DRAIN) {
-      if (mode == Mode.MESSAGE) {
-        int binaryPos = chars.indexOf("<BINARY>");
-        if (binaryPos != -1) {
-          int firstDataTag = binaryPos + "<BINARY>".length();
-          // write the last part of the message to the msg buffer
-          msgBuffer.write(buffer.array(), 0, binaryPos);
-          buffer.position(firstDataTag);
-          buffer.compact();
-          String message = new String(msgBuffer.toByteArray(), charset);
 
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      if (mode == Mode.MESSAGE) {
+        MessageAssembler assembler = getMessageAssembler();
+        int oldCount = assembler.getByteCount();
+        if (scanner.scanMessage(buffer, assembler)) {
           mode = Mode.TAG;
-          checkbuffer = true;
-          msgBuffer = null;
-
-          eventPost.fireEvent(new ReceivedMessageEvent(message,
+          message = null;
+          eventPost.fireEvent(new ReceivedMessageEvent(assembler.finish(),
               autoResponse));
-          return firstDataTag;
-
-        } else {
-          int writelen;
-          if (remaining - actuallyRead <= 7) {
-            writelen = buffer.position();
-          } else {
-            writelen = Math.max(0, buffer.position() - 7);
-          }
-          if (writelen > 0) {
-            msgBuffer.write(buffer.array(), 0, writelen);
-            String message = new String(msgBuffer.toByteArray(), charset);
-            eventPost.fireEvent(new ReceivingMessageEvent(msgBuffer.size(),
-                transferred + remaining, message));
-          }
-          int endpos = buffer.position();
-          buffer.position(writelen);
-          buffer.limit(endpos);
-          buffer.compact();
-          return writelen;
+        } else if (assembler.getByteCount() != oldCount) {
+          eventPost.fireEvent(new ReceivingMessageEvent(
+              assembler.getByteCount(), transferred + remaining, assembler));
         }
 
       } else if (mode == Mode.TAG) {
-        int closeBracket = chars.indexOf(">");
-        if (closeBracket != -1) {
-          // the data starts after the ">"
-          CharSequence tag = chars.subSequence(0, closeBracket + 1);
-          Matcher sizem = PATTERN_SIZE.matcher(tag);
-          if (sizem.find()) {
-            try {
-              lastAttachmentSize = Long.parseLong(sizem.group(1));
-            } catch (NumberFormatException e) {
-              // who cares, we'll look for it later
-            }
-          }
-          Matcher idm = PATTERN_ID.matcher(tag);
-          if (idm.find()) {
-            lastid = idm.group(1);
-          }
+        if (scanner.scanTag(buffer)) {
+          // an ID or size from an earlier tag counts if this tag is missing it
+          if (scanner.getId() != null) lastid = scanner.getId();
+          if (scanner.getSize() != null) lastAttachmentSize = scanner.getSize();
           if (lastAttachmentSize != null && lastid != null) {
             mode = Mode.DATA;
 
             last = saver.createChannel(lastid, lastAttachmentSize);
             destchannel = last.openForWriting();
-            SelectableChannel destinationSel = last.getSelectableForWriting();
-            if (destinationSel != null) {
-              selector = Selector.open();
-              destinationSel.register(selector, SelectionKey.OP_WRITE);
-            } else {
-              selector = null;
-            }
-            checkbuffer = true;
+            destinationSel = last.getSelectableForWriting();
+            if (lastAttachmentSize == 0) finishAttachment();
           }
-          buffer.limit(buffer.position());
-          buffer.position(closeBracket + 1);
-          buffer.compact();
-        }/*
-        if (buffer.position() >= remaining) {
-          // we're at the end of the stream, there aren't any tags left, let's
-          // bail out
-          return remaining;
-        }*/
-      }
-      // if we're at the end of the packet, and we couldn't read a tag just now,
-      // we want to quit
-      if (!checkbuffer && actuallyRead == 0 && origpos >= remaining) {
-        return remaining;
-      }
-      // if we read some data from the socket, but we buffered it and it's in
-      // the compacted part of the buffer, it hasn't been processed yet
-      return actuallyRead + origpos - buffer.position();
+        }
 
-    } else if (mode == Mode.DATA) {
-      buffer.flip();
-      int origLimit = buffer.limit();
-      if (lastAttachmentReceived + buffer.remaining() > lastAttachmentSize) {
-        buffer.limit((int) (lastAttachmentSize - lastAttachmentReceived));
-      }
-      int wrote = destchannel.write(buffer);
-      if (wrote == -1) {
-        return -1;
-      }
-      lastAttachmentReceived += wrote;
-      eventPost.fireEvent(new ReceivingAttachmentEvent(transferred + wrote,
-          transferred + remaining, lastAttachmentReceived, last));
-      if (lastAttachmentReceived >= lastAttachmentSize) {
-        eventPost.fireEvent(new ReceivedAttachmentEvent(lastid,
-            lastAttachmentSize, last));
-        mode = Mode.TAG;
-        lastid = null;
-        lastAttachmentReceived = 0;
-        lastAttachmentSize = null;
-        last = null;
+      } else if (mode == Mode.DATA) {
+        int origLimit = buffer.limit();
+        int len = (int) Math.min(buffer.remaining(),
+            lastAttachmentSize - lastAttachmentReceived);
+        buffer.limit(buffer.position() + len);
+        int wrote;
         try {
-          destchannel.close();
-        } catch (IOException e) {
-          LOGGER.log(Level.WARNING, "Error closing attachment saver", e);
+          wrote = destchannel.write(buffer);
+        } finally {
+          buffer.limit(origLimit);
         }
-        destchannel = null;
-        if (selector != null) {
-          try {
-            selector.close();
-          } catch (IOException e) {
-            LOGGER.log(Level.SEVERE,
-                "Error closing attachment NIO selector", e);
-          }
+        if (wrote == -1) return -1;
+
+        lastAttachmentReceived += wrote;
+        eventPost.fireEvent(new ReceivingAttachmentEvent(
+            transferred + buffer.position() - start, transferred + remaining,
+            lastAttachmentReceived, last));
+        if (lastAttachmentReceived >= lastAttachmentSize) {
+          finishAttachment();
+        } else if (wrote < len) {
+          // the attachment can't take any more right now
+          break;
         }
-        checkbuffer = true;
+
+      } else {
+        throw new IllegalStateException("Unknown mode " + mode);
       }
-      if (wrote != read) checkbuffer = true;
-      buffer.limit(origLimit);
-      buffer.compact();
-      return wrote;
+    }
+    return buffer.position() - start;
+  }
 
-    } else {
-      throw new IllegalStateException("Unknown mode " + mode);
+  private void finishAttachment() {
+    eventPost.fireEvent(new ReceivedAttachmentEvent(lastid,
+        lastAttachmentSize, last));
+    mode = Mode.TAG;
+    lastid = null;
+    lastAttachmentReceived = 0;
+    lastAttachmentSize = null;
+    last = null;
+    try {
+      destchannel.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Error closing attachment saver", e);
     }
+    destchannel = null;
+    destinationSel = null;
   }
 
   protected void cleanUp() throws IOException {
     if (mode == Mode.MESSAGE) {
       // we must have never hit a <BINARY> part, and so never fired a
       // message event
-      msgBuffer.write(buffer.array(), 0, buffer.position());
-      String msg = new String(msgBuffer.toByteArray(), charset);
-      eventPost.fireEvent(new ReceivedMessageEvent(msg,
+      MessageAssembler assembler = getMessageAssembler();
+      scanner.finishMessage(assembler);
+      eventPost.fireEvent(new ReceivedMessageEvent(assembler.finish(),
           autoResponse));
-    } else if (mode == Mode.DATA) {
-
-    }
-    if (selector != null) {
-      selector.close();
     }
   }
 
+  private MessageAssembler getMessageAssembler()
+      throws UnsupportedEncodingException {
+    if (message == null) message = new MessageAssembler(charset);
+    return message;
+  }
+
   protected int getSelectionKey() {
     return SelectionKey.OP_READ;
   }
 
-  private static enum Mode { MESSAGE, TAG, DATA, DRAIN }
+  private static enum Mode { MESSAGE, TAG, DATA }
 }
@@ -36,6 +36,11 @@ package net.kano.joustsim.oscar.oscar.service.icbm.dim;
 
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.RvConnectionEvent;
 
+/**
+ * @deprecated {@link DirectimReceiver} handles tags split between reads and
+ *             no longer drains packets, so this event is never fired
+ */
+@Deprecated
 public class DrainingEvent extends RvConnectionEvent {
   private final long progress;
   private final long total;
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the text of a message as its bytes arrive. Only the new bytes are
+ * decoded each time some are added, and a character which is split between
+ * two pieces is decoded once the rest of it arrives, so assembling a message
+ * takes time proportional to its length no matter how many pieces it arrives
+ * in. Text is only ever added to the end, so the text returned by
+ * {@link #getText(int)} for a given length never changes.
+ */
+class MessageAssembler {
+  private final CharsetDecoder decoder;
+  private final StringBuilder text = new StringBuilder();
+  private final CharBuffer decoded = CharBuffer.allocate(1024);
+  /** The start of a character whose last bytes haven't arrived yet. */
+  private byte[] partial = new byte[0];
+  private int byteCount = 0;
+
+  public MessageAssembler(String charset)
+      throws UnsupportedEncodingException {
+    Charset cs;
+    try {
+      cs = Charset.forName(charset);
+    } catch (IllegalArgumentException e) {
+      // this is what new String(bytes, charset) would have thrown
+      throw new UnsupportedEncodingException(charset);
+    }
+    // new String(bytes, charset) replaces bad input, so we do too
+    decoder = cs.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  public synchronized void append(byte[] bytes, int offset, int len) {
+    if (len == 0) return;
+
+    ByteBuffer in;
+    if (partial.length == 0) {
+      in = ByteBuffer.wrap(bytes, offset, len);
+    } else {
+      in = ByteBuffer.allocate(partial.length + len);
+      in.put(partial).put(bytes, offset, len).flip();
+    }
+    byteCount += len;
+    decode(in, false);
+    partial = new byte[in.remaining()];
+    in.get(partial);
+  }
+
+  /** Returns the number of bytes passed to {@link #append} so far. */
+  public synchronized int getByteCount() { return byteCount; }
+
+  /** Returns the number of characters decoded so far. */
+  public synchronized int length() { return text.length(); }
+
+  /**
+   * Returns the first {@code length} characters of the message.
+   */
+  public synchronized String getText(int length) {
+    return text.substring(0, length);
+  }
+
+  /**
+   * Decodes whatever is left of a split character, and returns the whole
+   * message. Nothing should be appended after calling this method.
+   */
+  public synchronized String finish() {
+    decode(ByteBuffer.wrap(partial), true);
+    partial = new byte[0];
+    while (decoder.flush(decoded).isOverflow()) drainDecoded();
+    drainDecoded();
+    return text.toString();
+  }
+
+  private void decode(ByteBuffer in, boolean endOfInput) {
+    while (true) {
+      CoderResult result = decoder.decode(in, decoded, endOfInput);
+      drainDecoded();
+      if (!result.isOverflow()) break;
+    }
+  }
+
+  private void drainDecoded() {
+    decoded.flip();
+    text.append(decoded);
+    decoded.clear();
+  }
+}
@@ -36,13 +36,38 @@ package net.kano.joustsim.oscar.oscar.service.icbm.dim;
 
 public class ReceivingMessageEvent extends TransferringMessageEvent {
   private String message;
+  private final MessageAssembler assembler;
+  private final int messageLength;
 
   public ReceivingMessageEvent(int position, long length, String message) {
     super(position, length);
     this.message = message;
+    this.assembler = null;
+    this.messageLength = message.length();
   }
 
-  public String getMessage() {
+  /**
+   * Creates an event whose message is the text the given assembler has
+   * decoded so far. The text is only copied out of the assembler if someone
+   * asks for it.
+   */
+  ReceivingMessageEvent(int position, long length,
+      MessageAssembler assembler) {
+    super(position, length);
+    this.assembler = assembler;
+    this.messageLength = assembler.length();
+  }
+
+  /**
+   * Returns the number of characters of the message received so far. This is
+   * the length of {@link #getMessage()}, but is cheaper to call.
+   */
+  public int getMessageLength() {
+    return messageLength;
+  }
+
+  public synchronized String getMessage() {
+    if (message == null) message = assembler.getText(messageLength);
     return message;
   }
 }
@@ -34,9 +34,10 @@
 
 package net.kano.joustsim.oscar.oscar.service.icbm.dim;
 
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.SharedSelector;
+
 import java.io.InputStream;
 import java.io.IOException;
-import java.nio.channels.Selector;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.Channel;
@@ -44,7 +45,9 @@ import java.nio.channels.SelectionKey;
 import java.nio.ByteBuffer;
 
 public class SelectorInputStream extends InputStream {
-  private final Selector selector;
+  private static final long READY_TIMEOUT = 1000;
+
+  private final SharedSelector selector;
   private final ReadableByteChannel readable;
   private final SelectableChannel selectable;
 
@@ -54,11 +57,10 @@ public class SelectorInputStream extends InputStream {
 
   public SelectorInputStream(ReadableByteChannel readable,
       SelectableChannel selectable) throws IOException {
-    selector = Selector.open();
+    selector = SharedSelector.getInstance();
     this.readable = readable;
     this.selectable = selectable;
     this.selectable.configureBlocking(false);
-    this.selectable.register(selector, SelectionKey.OP_READ);
   }
 
   public static <C extends SelectableChannel & ReadableByteChannel>
@@ -75,9 +77,7 @@ public class SelectorInputStream extends InputStream {
 
     ByteBuffer buf = ByteBuffer.wrap(b, off, len);
     assert buf.position() == off;
-    while (buf.hasRemaining() && selector.isOpen() && readable.isOpen()) {
-      selector.select(50);
-
+    while (buf.hasRemaining() && readable.isOpen()) {
       int ct = readable.read(buf);
       if (ct == -1) {
         if (buf.position() == off) {
@@ -89,6 +89,7 @@ public class SelectorInputStream extends InputStream {
         // we either failed or read something; either way we should return
         break;
       }
+      waitUntilReadable();
     }
     return buf.position() - off;
   }
@@ -96,11 +97,14 @@ public class SelectorInputStream extends InputStream {
   public int read() throws IOException {
     ByteBuffer buf = ByteBuffer.allocate(1);
     while (true) {
-      selector.select(50);
-
       int ct = readable.read(buf);
       if (ct == -1) return -1;
       if (ct > 0) return buf.get(0);
+      waitUntilReadable();
     }
   }
+
+  private void waitUntilReadable() throws IOException {
+    selector.waitUntilReady(selectable, SelectionKey.OP_READ, READY_TIMEOUT);
+  }
 }
@@ -35,6 +35,7 @@
 package net.kano.joustsim.oscar.oscar.service.icbm.dim;
 
 import net.kano.joscar.BinaryTools;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.SharedSelector;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
@@ -43,11 +44,13 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.WritableByteChannel;
 
 public class SelectorOutputStream extends OutputStream {
-  private final @Nullable Selector selector;
+  private static final long READY_TIMEOUT = 1000;
+
+  private final @Nullable SharedSelector selector;
+  private final @Nullable SelectableChannel selectable;
   private final WritableByteChannel writable;
   private volatile int total = 0;
 
@@ -58,10 +61,10 @@ public class SelectorOutputStream extends OutputStream {
   public SelectorOutputStream(WritableByteChannel writable,
       SelectableChannel selectable) throws IOException {
     this.writable = writable;
+    this.selectable = selectable;
     if (selectable != null) {
-      selector = Selector.open();
+      selector = SharedSelector.getInstance();
       selectable.configureBlocking(false);
-      selectable.register(selector, SelectionKey.OP_WRITE);
     } else {
       selector = null;
     }
@@ -73,13 +76,13 @@ public class SelectorOutputStream extends OutputStream {
 
   public void write(byte[] b, int off, int len) throws IOException {
     ByteBuffer buf = ByteBuffer.wrap(b, off, len);
-    while (buf.hasRemaining() && writable.isOpen()
-        && (selector == null || selector.isOpen())) {
-      if (selector != null) {
-        selector.select(50);
+    while (buf.hasRemaining() && writable.isOpen()) {
+      int wrote = writable.write(buf);
+      total += wrote;
+      if (wrote == 0 && selector != null) {
+        selector.waitUntilReady(selectable, SelectionKey.OP_WRITE,
+            READY_TIMEOUT);
       }
-
-      total += writable.write(buf);
     }
   }
 
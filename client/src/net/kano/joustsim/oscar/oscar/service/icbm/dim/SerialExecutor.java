@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on threads
+ * borrowed from a pool. Each Direct IM conversation has its own, and they all
+ * share {@linkplain #getSharedPool one pool}, so a conversation with nothing
+ * to do holds no thread.
+ */
+class SerialExecutor implements Executor {
+  private static final Logger LOGGER = Logger
+      .getLogger(SerialExecutor.class.getName());
+
+  private static final ExecutorService SHARED_POOL
+      = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r,
+              "Direct IM worker " + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /** Returns the pool shared by all Direct IM conversations. */
+  public static Executor getSharedPool() { return SHARED_POOL; }
+
+  private final Executor pool;
+  private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+  private boolean running = false;
+
+  private final Runnable runner = new Runnable() {
+    public void run() {
+      while (true) {
+        Runnable task;
+        synchronized (SerialExecutor.this) {
+          task = tasks.poll();
+          if (task == null) {
+            running = false;
+            return;
+          }
+        }
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "Error in Direct IM task " + task, e);
+        }
+      }
+    }
+  };
+
+  public SerialExecutor(Executor pool) {
+    DefensiveTools.checkNull(pool, "pool");
+    this.pool = pool;
+  }
+
+  public synchronized void execute(Runnable task) {
+    DefensiveTools.checkNull(task, "task");
+
+    tasks.add(task);
+    if (!running) {
+      running = true;
+      pool.execute(runner);
+    }
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An incoming attachment which is kept in memory from an
+ * {@link AttachmentMemoryPool} until it outgrows its share of the pool, and
+ * is then moved to a temporary file. The memory and the file are given back
+ * when the attachment is {@linkplain #release released}.
+ */
+public class SpillingAttachment extends Attachment {
+  private static final Logger LOGGER = Logger
+      .getLogger(SpillingAttachment.class.getName());
+
+  private final AttachmentMemoryPool pool;
+  private final File tempDir;
+  private final long maxMemory;
+
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+  /** The number of bytes in {@link #chunks}. */
+  private long memoryLength = 0;
+  private long memoryHeld = 0;
+  private @Nullable File file = null;
+  private @Nullable FileChannel fileOut = null;
+  private boolean released = false;
+  /**
+   * Counts the times {@link #chunks} were given back to the pool, so readers
+   * can tell that the chunks they were reading may now belong to someone
+   * else.
+   */
+  private int freedCount = 0;
+
+  SpillingAttachment(String id, long length, AttachmentMemoryPool pool,
+      File tempDir, long maxMemory) {
+    super(id, length);
+    this.pool = pool;
+    this.tempDir = tempDir;
+    this.maxMemory = maxMemory;
+  }
+
+  /**
+   * Returns the temporary file this attachment was moved to, or {@code null}
+   * if it's still in memory.
+   */
+  public synchronized @Nullable File getFile() { return file; }
+
+  public synchronized boolean isInMemory() { return file == null; }
+
+  public WritableByteChannel openForWriting() throws IOException {
+    checkNotReleased();
+    return new WritableByteChannel() {
+      private boolean open = true;
+
+      public int write(ByteBuffer src) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        return writeData(src);
+      }
+
+      public boolean isOpen() {
+        return open;
+      }
+
+      public void close() throws IOException {
+        open = false;
+        closeFile();
+      }
+    };
+  }
+
+  public @Nullable SelectableChannel getSelectableForWriting() {
+    return null;
+  }
+
+  public synchronized ReadableByteChannel openForReading() throws IOException {
+    checkNotReleased();
+    if (file != null) return new FileInputStream(file).getChannel();
+
+    final List<byte[]> chunks = new ArrayList<byte[]>(this.chunks);
+    final long length = memoryLength;
+    final int chunkSize = pool.getChunkSize();
+    final int freedAtOpen = freedCount;
+    return new ReadableByteChannel() {
+      private boolean open = true;
+      private long pos = 0;
+
+      public int read(ByteBuffer dst) throws IOException {
+        if (!open) throw new ClosedChannelException();
+        // the chunks are only ours while they haven't been freed, so we hold
+        // the attachment's lock while copying out of them
+        synchronized (SpillingAttachment.this) {
+          if (freedCount != freedAtOpen) {
+            throw new IOException("Attachment " + getId() + " was "
+                + (released ? "released" : "moved to disk")
+                + " while being read");
+          }
+          if (pos == length) return -1;
+
+          int read = 0;
+          while (dst.hasRemaining() && pos < length) {
+            // chunks are all full except the last one
+            byte[] chunk = chunks.get((int) (pos / chunkSize));
+            int off = (int) (pos % chunkSize);
+            int len = (int) Math.min(dst.remaining(),
+                Math.min(chunk.length - off, length - pos));
+            dst.put(chunk, off, len);
+            pos += len;
+            read += len;
+          }
+          return read;
+        }
+      }
+
+      public boolean isOpen() {
+        return open;
+      }
+
+      public void close() {
+        open = false;
+      }
+    };
+  }
+
+  /**
+   * Gives this attachment's memory back to the pool and deletes its temporary
+   * file, if it has one. The attachment can't be read after this, and
+   * channels already reading it from memory throw an {@code IOException}.
+   */
+  public synchronized void release() {
+    if (released) return;
+    released = true;
+
+    freeChunks();
+    try {
+      closeFile();
+    } catch (IOException e) {
+      LOGGER.warning("Couldn't close attachment file: " + e.getMessage());
+    }
+    if (file != null && !file.delete()) {
+      LOGGER.warning("Couldn't delete attachment file " + file);
+    }
+  }
+
+  private synchronized int writeData(ByteBuffer src) throws IOException {
+    checkNotReleased();
+    int wrote = 0;
+    while (src.hasRemaining()) {
+      if (fileOut != null) return wrote + fileOut.write(src);
+
+      if (memoryLength == memoryHeld && !addChunk()) {
+        spill();
+        continue;
+      }
+      byte[] chunk = chunks.get(chunks.size() - 1);
+      int off = (int) (chunk.length - (memoryHeld - memoryLength));
+      int len = Math.min(src.remaining(), chunk.length - off);
+      src.get(chunk, off, len);
+      memoryLength += len;
+      wrote += len;
+    }
+    return wrote;
+  }
+
+  private boolean addChunk() {
+    // only the last chunk is allowed to be smaller than the pool's chunk size
+    long left = getLength() - memoryLength;
+    int size = pool.getChunkSize();
+    if (left > 0 && left < size) size = (int) left;
+    if (memoryHeld + size > maxMemory) return false;
+
+    byte[] chunk = pool.allocate(size);
+    if (chunk == null) return false;
+    chunks.add(chunk);
+    memoryHeld += size;
+    return true;
+  }
+
+  private void spill() throws IOException {
+    File tempFile = File.createTempFile("dim", ".tmp", tempDir);
+    tempFile.deleteOnExit();
+    LOGGER.fine("Moving attachment " + getId() + " to " + tempFile + " after "
+        + memoryLength + " bytes");
+    FileChannel out = new FileOutputStream(tempFile).getChannel();
+    long left = memoryLength;
+    for (byte[] chunk : chunks) {
+      ByteBuffer buf = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length,
+          left));
+      left -= buf.remaining();
+      while (buf.hasRemaining()) out.write(buf);
+    }
+    freeChunks();
+    file = tempFile;
+    fileOut = out;
+  }
+
+  private void freeChunks() {
+    for (byte[] chunk : chunks) pool.free(chunk);
+    chunks.clear();
+    memoryHeld = 0;
+    freedCount++;
+  }
+
+  private synchronized void closeFile() throws IOException {
+    if (fileOut != null) {
+      fileOut.close();
+      fileOut = null;
+    }
+  }
+
+  private void checkNotReleased() {
+    if (released) {
+      throw new IllegalStateException("Attachment " + getId()
+          + " has been released");
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An attachment whose data may be shared with other attachments through an
+ * {@link AttachmentStore}. Data is written to an attachment of its own, and
+ * once all of it has been written, the store decides whether to keep that or
+ * to use a copy it already has.
+ */
+public class StoredAttachment extends Attachment {
+  private final AttachmentStore store;
+
+  private Attachment storage;
+  private @Nullable String hash = null;
+  private boolean released = false;
+
+  StoredAttachment(String id, long length, Attachment storage,
+      AttachmentStore store) {
+    super(id, length);
+    this.storage = storage;
+    this.store = store;
+  }
+
+  /**
+   * Returns the attachment which holds this attachment's data. This may be
+   * shared with other attachments.
+   */
+  public synchronized Attachment getStorage() { return storage; }
+
+  /**
+   * Returns the SHA-1 hash and length of this attachment's data, as a string
+   * like {@code "a9993e...:3"}, or {@code null} if it hasn't all been written
+   * yet.
+   */
+  public synchronized @Nullable String getContentHash() { return hash; }
+
+  public WritableByteChannel openForWriting() throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not supported", e);
+    }
+    final WritableByteChannel out = getStorage().openForWriting();
+    return new WritableByteChannel() {
+      private long written = 0;
+
+      public int write(ByteBuffer src) throws IOException {
+        ByteBuffer data = src.duplicate();
+        int wrote = out.write(src);
+        if (wrote > 0) {
+          data.limit(data.position() + wrote);
+          digest.update(data);
+          written += wrote;
+        }
+        return wrote;
+      }
+
+      public boolean isOpen() {
+        return out.isOpen();
+      }
+
+      public void close() throws IOException {
+        if (!out.isOpen()) return;
+
+        out.close();
+        if (written == getLength()) {
+          BigInteger sha1 = new BigInteger(1, digest.digest());
+          stored(String.format("%040x:%d", sha1, written));
+        }
+      }
+    };
+  }
+
+  public @Nullable SelectableChannel getSelectableForWriting() {
+    return getStorage().getSelectableForWriting();
+  }
+
+  public ReadableByteChannel openForReading() throws IOException {
+    return getStorage().openForReading();
+  }
+
+  public synchronized void release() {
+    if (released) return;
+    released = true;
+
+    if (hash == null) {
+      storage.release();
+    } else {
+      store.unshare(hash, this);
+    }
+  }
+
+  private synchronized void stored(String hash) {
+    if (released) {
+      storage.release();
+      return;
+    }
+    this.hash = hash;
+    storage = store.share(hash, storage, this);
+  }
+}
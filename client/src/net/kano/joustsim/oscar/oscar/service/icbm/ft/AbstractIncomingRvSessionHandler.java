@@ -38,7 +38,6 @@ import net.kano.joscar.rv.RecvRvEvent;
 import net.kano.joscar.rvcmd.ConnectionRequestRvCmd;
 import net.kano.joscar.rvcmd.sendfile.FileSendReqRvCmd;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ConnectToProxyForIncomingController;
-import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.OutgoingConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectToProxyController;
 
 import java.util.logging.Logger;
@@ -87,7 +86,7 @@ public abstract class AbstractIncomingRvSessionHandler extends AbstractRvSession
             //noinspection ConstantConditions
             assert how == HowToConnect.NORMAL;
             worked = incomingRvConnection.changeStateController(
-                new OutgoingConnectionController(ConnectionType.LAN));
+                incomingRvConnection.createDirectConnectionController());
           }
           if (worked) {
             incomingRvConnection.getRvSessionInfo().getRequestMaker()
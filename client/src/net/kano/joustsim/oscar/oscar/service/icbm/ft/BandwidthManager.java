@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joustsim.Screenname;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the bandwidth used by rendezvous file transfers. There can be a
+ * global limit on all transfers, a limit on the transfers with each buddy,
+ * and each transfer's own limit, set with
+ * {@link RvConnectionSettings#setMaxBytesPerSecond}.
+ * <br />
+ * <br />
+ * The global and buddy limits are divided among the transfers they apply to
+ * in proportion to those transfers' {@linkplain
+ * RvConnectionSettings#setBandwidthPriority priorities}. When a transfer's
+ * share is more than its own limit or its buddy's limit allow it to use, the
+ * rest of the share is divided among the other transfers. Bandwidth that a
+ * transfer leaves unused because its connection is slow is not given to the
+ * others, though, since the manager only looks at the limits. All limits are
+ * in bytes per second, and a limit of {@link #UNLIMITED} means there is no
+ * limit. Limits can be changed at any time, and running transfers pick up the
+ * change within a fraction of a second.
+ */
+public class BandwidthManager {
+  public static final long UNLIMITED = 0;
+
+  private long globalLimit = UNLIMITED;
+  private final Map<Screenname, Long> buddyLimits
+      = new HashMap<Screenname, Long>();
+  private final Map<TransferThrottle, ThrottleInfo> throttles
+      = new IdentityHashMap<TransferThrottle, ThrottleInfo>();
+  private boolean dirty = false;
+  private long finishedBytes = 0;
+
+  public synchronized long getGlobalLimit() { return globalLimit; }
+
+  public synchronized void setGlobalLimit(long bytesPerSecond) {
+    DefensiveTools.checkRange(bytesPerSecond, "bytesPerSecond", 0);
+
+    globalLimit = bytesPerSecond;
+    dirty = true;
+  }
+
+  public synchronized long getBuddyLimit(Screenname buddy) {
+    Long limit = buddyLimits.get(buddy);
+    return limit == null ? UNLIMITED : limit;
+  }
+
+  public synchronized void setBuddyLimit(Screenname buddy,
+      long bytesPerSecond) {
+    DefensiveTools.checkNull(buddy, "buddy");
+    DefensiveTools.checkRange(bytesPerSecond, "bytesPerSecond", 0);
+
+    if (bytesPerSecond == UNLIMITED) {
+      buddyLimits.remove(buddy);
+    } else {
+      buddyLimits.put(buddy, bytesPerSecond);
+    }
+    dirty = true;
+  }
+
+  /**
+   * Returns a new throttle for the given connection, which counts against
+   * this manager's limits until it's {@linkplain TransferThrottle#close
+   * closed}.
+   */
+  public synchronized TransferThrottle register(RvConnection connection) {
+    DefensiveTools.checkNull(connection, "connection");
+
+    TransferThrottle throttle = new TransferThrottle(this, connection);
+    throttles.put(throttle, new ThrottleInfo(connection));
+    dirty = true;
+    return throttle;
+  }
+
+  synchronized void unregister(TransferThrottle throttle, long transferred) {
+    if (throttles.remove(throttle) != null) {
+      finishedBytes += transferred;
+      dirty = true;
+    }
+  }
+
+  /**
+   * Returns the combined transfer rate of all running transfers, in bytes
+   * per second, over the last second or so.
+   */
+  public long getAchievedRate() {
+    long rate = 0;
+    for (TransferThrottle throttle : getThrottles()) {
+      rate += throttle.getAchievedRate();
+    }
+    return rate;
+  }
+
+  /**
+   * Returns the number of bytes transferred by all of the transfers
+   * registered with this manager, including finished ones.
+   */
+  public long getTotalBytesTransferred() {
+    long total;
+    List<TransferThrottle> running;
+    synchronized (this) {
+      total = finishedBytes;
+      running = new ArrayList<TransferThrottle>(throttles.keySet());
+    }
+    for (TransferThrottle throttle : running) {
+      total += throttle.getBytesTransferred();
+    }
+    return total;
+  }
+
+  public synchronized List<TransferThrottle> getThrottles() {
+    return DefensiveTools.getUnmodifiableCopy(throttles.keySet());
+  }
+
+  /**
+   * Returns the rate to which the given throttle should currently be limited,
+   * or {@link #UNLIMITED}.
+   */
+  synchronized long getRateLimit(TransferThrottle throttle) {
+    ThrottleInfo info = throttles.get(throttle);
+    if (info == null) return UNLIMITED;
+
+    if (info.checkSettingsChanged()) dirty = true;
+    if (dirty) {
+      for (ThrottleInfo other : throttles.values()) {
+        other.checkSettingsChanged();
+      }
+      computeRates();
+      dirty = false;
+    }
+    return info.rate;
+  }
+
+  private void computeRates() {
+    Map<Screenname, List<ThrottleInfo>> byBuddy
+        = new HashMap<Screenname, List<ThrottleInfo>>();
+    for (ThrottleInfo info : throttles.values()) {
+      info.rate = info.ownLimit;
+      List<ThrottleInfo> infos = byBuddy.get(info.buddy);
+      if (infos == null) {
+        infos = new ArrayList<ThrottleInfo>();
+        byBuddy.put(info.buddy, infos);
+      }
+      infos.add(info);
+    }
+    for (Map.Entry<Screenname, List<ThrottleInfo>> entry
+        : byBuddy.entrySet()) {
+      Long buddyLimit = buddyLimits.get(entry.getKey());
+      if (buddyLimit != null) divide(buddyLimit, entry.getValue());
+    }
+    if (globalLimit != UNLIMITED) {
+      divide(globalLimit, throttles.values());
+    }
+  }
+
+  /**
+   * Divides the given limit among the given transfers in proportion to their
+   * priorities, without raising any transfer above its current rate. Whatever
+   * a transfer can't use because of its current rate is divided among the
+   * others in the same way.
+   */
+  private static void divide(long limit, Collection<ThrottleInfo> infos) {
+    List<ThrottleInfo> left = new ArrayList<ThrottleInfo>(infos);
+    long remaining = limit;
+    boolean capped = true;
+    while (capped && !left.isEmpty()) {
+      long totalPriority = 0;
+      for (ThrottleInfo info : left) totalPriority += info.priority;
+
+      capped = false;
+      for (Iterator<ThrottleInfo> it = left.iterator(); it.hasNext();) {
+        ThrottleInfo info = it.next();
+        long share = share(remaining, info.priority, totalPriority);
+        if (info.rate != UNLIMITED && info.rate <= share) {
+          remaining -= info.rate;
+          it.remove();
+          capped = true;
+        }
+      }
+    }
+    long totalPriority = 0;
+    for (ThrottleInfo info : left) totalPriority += info.priority;
+    for (ThrottleInfo info : left) {
+      info.rate = share(remaining, info.priority, totalPriority);
+    }
+  }
+
+  private static long share(long limit, int priority, long totalPriority) {
+    return Math.max(1, limit * priority / totalPriority);
+  }
+
+  private static class ThrottleInfo {
+    public final RvConnection connection;
+    public final Screenname buddy;
+    public long ownLimit;
+    public int priority;
+    public long rate = UNLIMITED;
+
+    public ThrottleInfo(RvConnection connection) {
+      this.connection = connection;
+      this.buddy = connection.getBuddyScreenname();
+      checkSettingsChanged();
+    }
+
+    public boolean checkSettingsChanged() {
+      RvConnectionSettings settings = connection.getSettings();
+      long newLimit = settings.getMaxBytesPerSecond();
+      int newPriority = settings.getBandwidthPriority();
+      if (newLimit == ownLimit && newPriority == priority) return false;
+
+      ownLimit = newLimit;
+      priority = newPriority;
+      return true;
+    }
+  }
+}
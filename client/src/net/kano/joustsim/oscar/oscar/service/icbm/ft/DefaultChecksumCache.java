@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import net.kano.joscar.DefensiveTools;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A checksum cache which keeps a limited number of recently used entries in
+ * memory, keyed by canonical path. If an index file is given, the entries are
+ * loaded from it when first needed, so checksums survive restarts. The index
+ * is rewritten on a background thread a few seconds after a new checksum is
+ * cached, so that a burst of new checksums is written once; {@link #flush}
+ * writes it right away. Files whose paths contain line breaks or tabs are
+ * cached in memory but left out of the index.
+ */
+public class DefaultChecksumCache implements ChecksumCache {
+  private static final Logger LOGGER = Logger
+      .getLogger(DefaultChecksumCache.class.getName());
+
+  /** The default number of entries kept. */
+  public static final int MAX_ENTRIES_DEFAULT = 1000;
+  /** How long after a change the index is written. */
+  private static final long SAVE_DELAY_MILLIS = 5000;
+
+  private static ScheduledExecutorService saveExecutor = null;
+
+  private final File indexFile;
+  private final Map<String, CacheEntry> entries
+      = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+      return size() > maxEntries;
+    }
+  };
+  private int maxEntries;
+  private boolean loaded = false;
+  /** Whether there are changes which haven't been written to the index. */
+  private boolean dirty = false;
+  private boolean saveScheduled = false;
+  /** Held while writing the index, so older snapshots can't win. */
+  private final Object saveLock = new Object();
+
+  public DefaultChecksumCache() {
+    this(MAX_ENTRIES_DEFAULT, null);
+  }
+
+  public DefaultChecksumCache(int maxEntries, @Nullable File indexFile) {
+    DefensiveTools.checkRange(maxEntries, "maxEntries", 0);
+
+    this.maxEntries = maxEntries;
+    this.indexFile = indexFile;
+  }
+
+  public @Nullable File getIndexFile() { return indexFile; }
+
+  public synchronized int getMaxEntries() { return maxEntries; }
+
+  public synchronized void setMaxEntries(int maxEntries) {
+    DefensiveTools.checkRange(maxEntries, "maxEntries", 0);
+
+    this.maxEntries = maxEntries;
+    while (entries.size() > maxEntries) {
+      entries.remove(entries.keySet().iterator().next());
+    }
+  }
+
+  public synchronized @Nullable Long getChecksum(File file, long length,
+      long lastModified) {
+    String key = getKey(file);
+    if (key == null) return null;
+
+    ensureLoaded();
+    CacheEntry entry = entries.get(key);
+    if (entry == null) return null;
+    if (entry.length != length || entry.lastModified != lastModified) {
+      // the file has changed
+      entries.remove(key);
+      return null;
+    }
+    return entry.checksum;
+  }
+
+  public synchronized void putChecksum(File file, long length,
+      long lastModified, long checksum) {
+    String key = getKey(file);
+    if (key == null) return;
+
+    ensureLoaded();
+    CacheEntry entry = new CacheEntry(length, lastModified, checksum);
+    CacheEntry old = entries.put(key, entry);
+    if (!entry.equals(old)) scheduleSave();
+  }
+
+  /**
+   * Writes the index file now, if anything has changed since it was last
+   * written.
+   */
+  public void flush() {
+    if (indexFile == null) return;
+
+    synchronized (saveLock) {
+      List<String> lines;
+      synchronized (this) {
+        if (!dirty) return;
+        dirty = false;
+        lines = getIndexLines();
+      }
+      writeIndex(lines);
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getSaveExecutor() {
+    if (saveExecutor == null) {
+      saveExecutor = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "Checksum cache writer");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return saveExecutor;
+  }
+
+  private static @Nullable String getKey(File file) {
+    DefensiveTools.checkNull(file, "file");
+
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Couldn't get canonical path of " + file, e);
+      return null;
+    }
+  }
+
+  private void ensureLoaded() {
+    assert Thread.holdsLock(this);
+
+    if (loaded) return;
+    loaded = true;
+    if (indexFile == null || !indexFile.isFile()) return;
+
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+          new FileInputStream(indexFile), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          // checksum, length, modification time, path
+          String[] parts = line.split("\t", 4);
+          if (parts.length != 4) continue;
+          try {
+            entries.put(parts[3], new CacheEntry(Long.parseLong(parts[1]),
+                Long.parseLong(parts[2]), Long.parseLong(parts[0], 16)));
+          } catch (NumberFormatException e) {
+            LOGGER.fine("Ignoring bad checksum cache entry: " + line);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't read checksum cache index "
+          + indexFile, e);
+    }
+  }
+
+  private void scheduleSave() {
+    assert Thread.holdsLock(this);
+
+    if (indexFile == null) return;
+
+    dirty = true;
+    if (saveScheduled) return;
+    saveScheduled = true;
+    getSaveExecutor().schedule(new Runnable() {
+      public void run() {
+        synchronized (DefaultChecksumCache.this) {
+          saveScheduled = false;
+        }
+        flush();
+      }
+    }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private List<String> getIndexLines() {
+    assert Thread.holdsLock(this);
+
+    List<String> lines = new ArrayList<String>(entries.size());
+    // least recently used first, so the order survives reloading
+    for (Map.Entry<String, CacheEntry> e : entries.entrySet()) {
+      String path = e.getKey();
+      // these would break the index's format
+      if (path.indexOf('\n') != -1 || path.indexOf('\r') != -1
+          || path.indexOf('\t') != -1) {
+        continue;
+      }
+      CacheEntry entry = e.getValue();
+      lines.add(Long.toHexString(entry.checksum) + "\t" + entry.length
+          + "\t" + entry.lastModified + "\t" + path + "\n");
+    }
+    return lines;
+  }
+
+  private void writeIndex(List<String> lines) {
+    assert Thread.holdsLock(saveLock);
+
+    File tmp = null;
+    try {
+      File dir = indexFile.getAbsoluteFile().getParentFile();
+      if (!dir.isDirectory()) dir.mkdirs();
+      tmp = File.createTempFile("checksums", ".tmp", dir);
+      Writer out = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(tmp), "UTF-8"));
+      try {
+        for (String line : lines) out.write(line);
+      } finally {
+        out.close();
+      }
+      // renameTo won't replace an existing file on some platforms
+      if (!tmp.renameTo(indexFile)) {
+        indexFile.delete();
+        if (!tmp.renameTo(indexFile)) {
+          LOGGER.warning("Couldn't move checksum cache index into place at "
+              + indexFile);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't write checksum cache index "
+          + indexFile, e);
+    } finally {
+      if (tmp != null && tmp.exists()) tmp.delete();
+    }
+  }
+
+  private static final class CacheEntry {
+    private final long length;
+    private final long lastModified;
+    private final long checksum;
+
+    public CacheEntry(long length, long lastModified, long checksum) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.checksum = checksum;
+    }
+
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CacheEntry)) return false;
+
+      CacheEntry entry = (CacheEntry) o;
+      return length == entry.length && lastModified == entry.lastModified
+          && checksum == entry.checksum;
+    }
+
+    public int hashCode() {
+      int result = (int) (length ^ (length >>> 32));
+      result = 29 * result + (int) (lastModified ^ (lastModified >>> 32));
+      result = 29 * result + (int) (checksum ^ (checksum >>> 32));
+      return result;
+    }
+  }
+}
@@ -34,9 +34,21 @@
 package net.kano.joustsim.oscar.oscar.service.icbm.ft;
 
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.TransferredFile;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 
 public interface FileChecksummer {
   long getChecksum(TransferredFile file) throws IOException;
+
+  /**
+   * Computes the checksum of the given file just like {@link #getChecksum},
+   * but without firing a {@code ChecksummingEvent} for it. This is meant for
+   * computing checksums in the background, before they're needed, while
+   * something else is being shown to the user. If the file has to be read,
+   * the checksummer reading it is passed to the given listener first, so the
+   * caller can announce it later if someone ends up waiting for it.
+   */
+  long getChecksumQuietly(TransferredFile file,
+      @Nullable ChecksummerListener listener) throws IOException;
 }
@@ -37,6 +37,7 @@ package net.kano.joustsim.oscar.oscar.service.icbm.ft;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ConnectToProxyForIncomingController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.OutgoingConnectionController;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RacingConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectToProxyController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.StateController;
@@ -92,7 +93,7 @@ public abstract class IncomingRvConnectionImpl
       boolean onlyUsingProxy = getSettings().isOnlyUsingProxy();
       boolean proxied = getRvSessionInfo().getConnectionInfo().isProxied();
       if (!proxied && !isAlwaysRedirectEnabled() && !onlyUsingProxy) {
-        controller = new OutgoingConnectionController(ConnectionType.LAN);
+        controller = createDirectConnectionController();
       } else if (proxied && getSettings().isProxyRequestTrusted()) {
         controller = new ConnectToProxyForIncomingController();
       } else if (!onlyUsingProxy) {
@@ -121,6 +122,7 @@ public abstract class IncomingRvConnectionImpl
   protected boolean isSomeConnectionController(StateController controller) {
     return isLanController(controller)
         || isInternetController(controller)
+        || controller instanceof RacingConnectionController
         || controller instanceof RedirectConnectionController
         || controller instanceof RedirectToProxyController
         || controller instanceof ConnectToProxyForIncomingController;
@@ -146,6 +148,9 @@ public abstract class IncomingRvConnectionImpl
         return new NextStateControllerInfo(new ConnectToProxyForIncomingController());
       }
 
+    } else if (oldController instanceof RacingConnectionController) {
+      return new NextStateControllerInfo(new ConnectToProxyForIncomingController());
+
     } else if (oldController instanceof ConnectToProxyForIncomingController) {
       return new NextStateControllerInfo(new RedirectConnectionController());
 
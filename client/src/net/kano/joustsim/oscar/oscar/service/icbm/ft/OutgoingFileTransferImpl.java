@@ -62,16 +62,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class OutgoingFileTransferImpl
     extends OutgoingRvConnectionImpl implements OutgoingFileTransfer {
   private @Nullable String displayName;
+  /**
+   * Checksums computed before the transfer started. This is filled in by the
+   * state controller thread and read by the checksum pipeline's thread.
+   */
   private Map<TransferredFile, Long> checksums
-      = new HashMap<TransferredFile, Long>();
+      = new ConcurrentHashMap<TransferredFile, Long>();
   private FileChecksummer fileChecksummer = new FileChecksummerImpl();
+  private @Nullable ChecksumCache checksumCache = null;
   private final FileTransferHelper helper = new FileTransferHelper(this);
   @SuppressWarnings({"unchecked"})
   private List<TransferredFile> tfiles = new ArrayList<TransferredFile>();
@@ -164,6 +169,18 @@ public class OutgoingFileTransferImpl
 
   public FileChecksummer getChecksummer() { return fileChecksummer; }
 
+  public synchronized @Nullable ChecksumCache getChecksumCache() {
+    return checksumCache;
+  }
+
+  /**
+   * Sets the cache in which the checksums of the files being sent are looked
+   * up before they are computed, and stored afterwards.
+   */
+  public synchronized void setChecksumCache(@Nullable ChecksumCache cache) {
+    this.checksumCache = cache;
+  }
+
   public synchronized TransferredFileFactory getTransferredFileFactory() {
     return transferredFileFactory;
   }
@@ -255,14 +272,49 @@ public class OutgoingFileTransferImpl
 
   private class FileChecksummerImpl implements FileChecksummer {
     public long getChecksum(TransferredFile mfile) throws IOException {
+      return computeChecksum(mfile, new ChecksummerListener() {
+        public void checksumStarted(TransferredFile file, Checksummer summer) {
+          getEventPost().fireEvent(new ChecksummingEvent(file, summer));
+        }
+      });
+    }
+
+    public long getChecksumQuietly(TransferredFile mfile,
+        @Nullable ChecksummerListener listener) throws IOException {
+      return computeChecksum(mfile, listener);
+    }
+
+    private long computeChecksum(TransferredFile mfile,
+        @Nullable ChecksummerListener listener) throws IOException {
       Long sum = checksums.get(mfile);
-      if (sum == null) {
-        RandomAccessFile raf = new RandomAccessFile(mfile.getRealFile(), "r");
-        Checksummer summer = new ChecksummerImpl(raf.getChannel(), raf.length());
-        fireEvent(new ChecksummingEvent(mfile, summer));
-        sum = summer.compute();
+      if (sum != null) return sum;
+
+      File file = mfile.getRealFile();
+      long length = file.length();
+      long modified = file.lastModified();
+      ChecksumCache cache = getChecksumCache();
+      if (cache != null) {
+        Long cached = cache.getChecksum(file, length, modified);
+        if (cached != null) return cached;
+      }
+
+      long computed;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        Checksummer summer = new ParallelChecksummer(raf.getChannel(),
+            raf.length());
+        if (listener != null) listener.checksumStarted(mfile, summer);
+        computed = summer.compute();
+      } finally {
+        raf.close();
+      }
+      // if the file changed while we were reading it, we don't know which
+      // version we checksummed
+      if (cache != null && file.length() == length
+          && file.lastModified() == modified) {
+        cache.putChecksum(file, length, modified, computed);
       }
-      return sum;
+      return computed;
     }
   }
 
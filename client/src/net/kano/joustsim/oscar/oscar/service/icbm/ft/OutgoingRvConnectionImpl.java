@@ -41,6 +41,7 @@ import net.kano.joscar.rvcmd.RequestRvCmd;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ConnectToProxyForOutgoingController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.OutgoingConnectionController;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RacingConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectToProxyController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.SendOverProxyController;
@@ -94,6 +95,7 @@ public abstract class OutgoingRvConnectionImpl extends RvConnectionImpl
 
     } else if (oldController instanceof SendPassivelyController
         || isInternetController(oldController)
+        || oldController instanceof RacingConnectionController
         || oldController instanceof ConnectToProxyForOutgoingController
         || oldController instanceof RedirectConnectionController) {
       return new NextStateControllerInfo(new RedirectToProxyController(), failureEvent);
@@ -153,6 +155,7 @@ public abstract class OutgoingRvConnectionImpl extends RvConnectionImpl
     return controller instanceof SendPassivelyController
         || isLanController(controller)
         || isInternetController(controller)
+        || controller instanceof RacingConnectionController
         || controller instanceof RedirectToProxyController
         || controller instanceof ConnectToProxyForOutgoingController
         || controller instanceof SendOverProxyController;
@@ -204,8 +207,7 @@ public abstract class OutgoingRvConnectionImpl extends RvConnectionImpl
         } else {
           //noinspection ConstantConditions
           assert how == HowToConnect.NORMAL;
-          worked = changeStateController(
-              new OutgoingConnectionController(ConnectionType.LAN));
+          worked = changeStateController(createDirectConnectionController());
         }
         if (worked) {
           getRvSessionInfo().getRequestMaker().sendRvAccept();
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A checksummer which splits a large file into chunks, checksums the chunks
+ * at the same time on a shared pool of threads, one per processor, and
+ * combines the results with {@link FileTransferChecksum#combine}. The result
+ * is the same as that of {@link ChecksummerImpl}. Small files are checksummed
+ * on the calling thread.
+ * <br><br>
+ * Chunks are read with positional reads, so the channel's position is never
+ * changed and the same channel can be used by several checksummers at once.
+ */
+public class ParallelChecksummer implements Checksummer {
+  /** The default number of bytes checksummed by each task. */
+  public static final int CHUNK_SIZE_DEFAULT = 4 * 1024 * 1024;
+  /** The size of the buffer each thread reads into. */
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private static ExecutorService sharedExecutor = null;
+
+  /**
+   * Read buffers which aren't being used. There are at most as many as there
+   * are threads in the shared pool, so a burst of checksummers on other
+   * threads doesn't leave its buffers behind.
+   */
+  private static final List<ByteBuffer> freeBuffers
+      = new ArrayList<ByteBuffer>();
+  private static final int MAX_FREE_BUFFERS
+      = Runtime.getRuntime().availableProcessors();
+
+  private final FileChannel channel;
+  private final long end;
+  private final int chunkSize;
+  private final ExecutorService executor;
+  private final AtomicLong position = new AtomicLong(0);
+  private boolean summed = false;
+  /**
+   * Set once the result is known or can't be computed, so chunk tasks which
+   * are still running stop early. The tasks are never interrupted, since an
+   * interrupt during a read would close the shared channel.
+   */
+  private volatile boolean cancelled = false;
+
+  public ParallelChecksummer(FileChannel channel, long length) {
+    this(channel, length, CHUNK_SIZE_DEFAULT, getSharedExecutor());
+  }
+
+  /**
+   * Creates a checksummer which checksums chunks of the given size using the
+   * given executor. If the file is no longer than one chunk, it is checksummed
+   * on the thread which calls {@link #compute}.
+   */
+  public ParallelChecksummer(FileChannel channel, long length, int chunkSize,
+      ExecutorService executor) {
+    DefensiveTools.checkNull(channel, "channel");
+    DefensiveTools.checkRange(length, "length", 0);
+    DefensiveTools.checkRange(chunkSize, "chunkSize", 1);
+    DefensiveTools.checkNull(executor, "executor");
+
+    this.channel = channel;
+    this.end = length;
+    this.chunkSize = chunkSize;
+    this.executor = executor;
+  }
+
+  private static synchronized ExecutorService getSharedExecutor() {
+    if (sharedExecutor == null) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      sharedExecutor = Executors.newFixedThreadPool(threads,
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "File checksummer");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+    return sharedExecutor;
+  }
+
+  public long compute() throws IOException, IllegalStateException {
+    synchronized (this) {
+      if (summed) {
+        throw new IllegalStateException("already summing or summed");
+      }
+      summed = true;
+    }
+    try {
+      if (end <= chunkSize) return sumRange(0, end);
+
+      List<Future<Long>> results = new ArrayList<Future<Long>>();
+      for (long start = 0; start < end; start += chunkSize) {
+        final long chunkStart = start;
+        final long chunkEnd = Math.min(end, start + chunkSize);
+        results.add(executor.submit(new Callable<Long>() {
+          public Long call() throws IOException {
+            return sumRange(chunkStart, chunkEnd);
+          }
+        }));
+      }
+      return combineResults(results);
+
+    } finally {
+      position.set(end);
+    }
+  }
+
+  private long combineResults(List<Future<Long>> results)
+      throws IOException {
+    try {
+      long sum = FileTransferChecksum.CHECKSUM_EMPTY;
+      for (Future<Long> result : results) {
+        sum = FileTransferChecksum.combine(sum, result.get());
+      }
+      return sum;
+
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("interrupted while checksumming");
+
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IllegalStateException(cause);
+
+    } finally {
+      cancelled = true;
+      for (Future<Long> result : results) result.cancel(false);
+    }
+  }
+
+  private long sumRange(long start, long end) throws IOException {
+    FileTransferChecksum summer = new FileTransferChecksum(
+        FileTransferChecksum.CHECKSUM_EMPTY, start);
+    ByteBuffer buffer = takeBuffer();
+    try {
+      long pos = start;
+      while (pos < end) {
+        if (cancelled) throw new IOException("checksum was cancelled");
+
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - pos));
+        int count = channel.read(buffer, pos);
+        if (count == -1) {
+          throw new IOException("could not get checksum for entire file; "
+              + (end - pos) + " failed of " + this.end);
+        }
+        buffer.flip();
+        summer.update(buffer);
+        pos += count;
+        position.addAndGet(count);
+      }
+      return summer.getValue();
+
+    } finally {
+      returnBuffer(buffer);
+    }
+  }
+
+  private static ByteBuffer takeBuffer() {
+    synchronized (freeBuffers) {
+      if (!freeBuffers.isEmpty()) {
+        return freeBuffers.remove(freeBuffers.size() - 1);
+      }
+    }
+    return ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  private static void returnBuffer(ByteBuffer buffer) {
+    synchronized (freeBuffers) {
+      if (freeBuffers.size() < MAX_FREE_BUFFERS) freeBuffers.add(buffer);
+    }
+  }
+
+  public long getStartPosition() { return 0; }
+
+  public long getPosition() { return position.get(); }
+
+  public long getLength() { return end; }
+}
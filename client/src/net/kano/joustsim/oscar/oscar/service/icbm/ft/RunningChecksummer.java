@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A checksummer which is fed the bytes of a file as they are received, rather
+ * than reading the file back from disk afterwards. When the last byte has been
+ * passed to {@link #update}, {@link #compute} returns immediately.
+ */
+public class RunningChecksummer implements Checksummer {
+  private final FileTransferChecksum summer;
+  private final long start;
+  private final long end;
+  private volatile long position;
+  private byte[] scratch = null;
+
+  /**
+   * Creates a running checksummer for a file of the given length, none of
+   * which has been received yet.
+   */
+  public RunningChecksummer(long length) {
+    this(FileTransferChecksum.CHECKSUM_EMPTY, 0, length);
+  }
+
+  /**
+   * Creates a running checksummer for a file of the given length, whose first
+   * {@code start} bytes are already present and have the given checksum.
+   */
+  public RunningChecksummer(long prefixChecksum, long start, long length) {
+    DefensiveTools.checkRange(start, "start", 0);
+    DefensiveTools.checkRange(length, "length", start);
+
+    this.summer = new FileTransferChecksum(prefixChecksum, start);
+    this.start = start;
+    this.end = length;
+    this.position = start;
+  }
+
+  /**
+   * Adds the remaining bytes of the given buffer to the checksum. The buffer's
+   * position is left unchanged.
+   */
+  public synchronized void update(ByteBuffer buf) {
+    int len = buf.remaining();
+    if (buf.hasArray()) {
+      summer.update(buf.array(), buf.arrayOffset() + buf.position(), len);
+    } else {
+      if (scratch == null) scratch = new byte[8192];
+      ByteBuffer dup = buf.duplicate();
+      while (dup.hasRemaining()) {
+        int n = Math.min(scratch.length, dup.remaining());
+        dup.get(scratch, 0, n);
+        summer.update(scratch, 0, n);
+      }
+    }
+    position += len;
+  }
+
+  /**
+   * Returns the checksum of every byte passed to {@link #update} so far,
+   * along with any prefix this checksummer was created with.
+   *
+   * @throws IllegalStateException if fewer bytes than the file's length have
+   *         been passed to {@code update}
+   */
+  public synchronized long compute() throws IllegalStateException {
+    if (position != end) {
+      throw new IllegalStateException("only " + position + " of " + end
+          + " bytes were checksummed");
+    }
+    return summer.getValue();
+  }
+
+  public long getStartPosition() { return start; }
+
+  public long getPosition() { return position; }
+
+  public long getLength() { return end; }
+}
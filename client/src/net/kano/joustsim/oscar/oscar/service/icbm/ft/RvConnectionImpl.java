@@ -7,6 +7,7 @@ import net.kano.joustsim.oscar.oscar.service.icbm.RendezvousSessionHandler;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ConnectedController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ControllerListener;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.OutgoingConnectionController;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RacingConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.StateController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ChecksummingEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ConnectedEvent;
@@ -420,6 +421,21 @@ public abstract class RvConnectionImpl
     return getState().isOpen();
   }
 
+  /**
+   * Returns a controller which connects directly to the buddy, either trying
+   * their LAN address first, or racing it against their internet address if
+   * the settings say to.
+   */
+  protected StateController createDirectConnectionController() {
+    RvConnectionSettings settings = getSettings();
+    if (!settings.isRacingConnections()) {
+      return new OutgoingConnectionController(ConnectionType.LAN);
+    }
+    return new RacingConnectionController(settings.getConnectionRaceStagger(),
+        new OutgoingConnectionController(ConnectionType.LAN),
+        new OutgoingConnectionController(ConnectionType.INTERNET));
+  }
+
   protected abstract NextStateControllerInfo getNextControllerFromError(
       StateController oldController, StateInfo endState);
 
@@ -35,7 +35,10 @@ package net.kano.joustsim.oscar.oscar.service.icbm.ft;
 
 import net.kano.joscar.CopyOnWriteArrayList;
 import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.rv.RvProcessor;
 import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rv.RvSessionExpiredEvent;
+import net.kano.joscar.rv.RvSessionExpiryListener;
 import net.kano.joscar.snaccmd.CapabilityBlock;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.CapabilityManager;
@@ -47,16 +50,30 @@ import net.kano.joustsim.oscar.oscar.service.icbm.IcbmService;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.RvConnectionEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.dim.IncomingDirectimConnectionImpl;
 import net.kano.joustsim.oscar.oscar.service.icbm.dim.OutgoingDirectimConnectionImpl;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class RvConnectionManager {
   private static final Logger LOGGER = Logger
       .getLogger(RvConnectionManager.class.getName());
 
+  /**
+   * How long a rendezvous session can go without any rendezvous commands
+   * before it's forgotten, unless its connection has started.
+   */
+  private static final long SESSION_IDLE_TIMEOUT = 30 * 60 * 1000;
+  private static final int MAX_SESSIONS_PER_BUDDY = 32;
+
   private final IcbmService service;
+  private final Map<RvSession, RvConnection> connections
+      = new ConcurrentHashMap<RvSession, RvConnection>();
   private CopyOnWriteArrayList<RvConnectionManagerListener> listeners
       = new CopyOnWriteArrayList<RvConnectionManagerListener>();
+  private ChecksumCache checksumCache = new DefaultChecksumCache();
+  private final BandwidthManager bandwidthManager = new BandwidthManager();
 
   public RvConnectionManager(IcbmService service) {
     assert service != null;
@@ -67,10 +84,36 @@ public class RvConnectionManager {
         new FileTransferCapabilityHandler());
     capMgr.setCapabilityHandler(CapabilityBlock.BLOCK_DIRECTIM,
         new DirectImCapabilityHandler());
+    RvProcessor processor = service.getRvProcessor();
+    if (processor != null) {
+      processor.setSessionIdleTimeout(SESSION_IDLE_TIMEOUT);
+      processor.setMaxSessionsPerScreenname(MAX_SESSIONS_PER_BUDDY);
+      processor.addExpiryListener(new SessionExpiryListener());
+    }
   }
 
   public IcbmService getIcbmService() { return service; }
 
+  public synchronized @Nullable ChecksumCache getChecksumCache() {
+    return checksumCache;
+  }
+
+  /**
+   * Sets the checksum cache used by outgoing file transfers created after
+   * this call. By default, an in-memory {@link DefaultChecksumCache} is used;
+   * a {@code DefaultChecksumCache} with an index file keeps checksums across
+   * restarts, and {@code null} turns caching off.
+   */
+  public synchronized void setChecksumCache(@Nullable ChecksumCache cache) {
+    this.checksumCache = cache;
+  }
+
+  /**
+   * Returns the bandwidth manager which limits all of the file transfers
+   * created by this connection manager.
+   */
+  public BandwidthManager getBandwidthManager() { return bandwidthManager; }
+
   public OutgoingFileTransfer createOutgoingFileTransfer(Screenname sn) {
     RvSession session = createSession(sn);
     AimConnection conn = getIcbmService()
@@ -78,7 +121,10 @@ public class RvConnectionManager {
     OutgoingFileTransferImpl outgoingFileTransfer
         = new OutgoingFileTransferImpl(conn.getProxy(), conn.getScreenname(),
         session);
+    outgoingFileTransfer.setChecksumCache(getChecksumCache());
+    outgoingFileTransfer.getSettings().setBandwidthManager(bandwidthManager);
     session.addListener(outgoingFileTransfer.getRvSessionHandler());
+    trackConnection(session, outgoingFileTransfer);
     return outgoingFileTransfer;
   }
 
@@ -89,6 +135,7 @@ public class RvConnectionManager {
         = new OutgoingDirectimConnectionImpl(conn.getProxy(), conn.getScreenname(),
         session);
     session.addListener(conno.getRvSessionHandler());
+    trackConnection(session, conno);
     return conno;
   }
 
@@ -96,6 +143,23 @@ public class RvConnectionManager {
     return service.getRvProcessor().createRvSession(sn.getFormatted());
   }
 
+  /**
+   * Returns the number of connections created by this manager which haven't
+   * closed or expired yet.
+   */
+  public int getOpenConnectionCount() { return connections.size(); }
+
+  private void trackConnection(RvSession session, RvConnection connection) {
+    connections.put(session, connection);
+    connection.addEventListener(sessionTracker);
+  }
+
+  private void untrackConnection(RvSession session) {
+    if (connections.remove(session) == null) return;
+    RvProcessor processor = service.getRvProcessor();
+    if (processor != null) processor.closeRvSession(session);
+  }
+
   public void addConnectionManagerListener(RvConnectionManagerListener listener) {
     DefensiveTools.checkNull(listener, "listener");
 
@@ -130,6 +194,40 @@ public class RvConnectionManager {
     }
   };
 
+  /**
+   * Keeps a connection's session from expiring once the connection has
+   * started, and forgets the session once the connection closes.
+   */
+  private RvConnectionEventListener sessionTracker
+      = new RvConnectionEventListener() {
+    public void handleEventWithStateChange(RvConnection transfer,
+        RvConnectionState state, RvConnectionEvent event) {
+      RvSession session = transfer.getRvSessionInfo().getRvSession();
+      if (state.isClosed()) {
+        untrackConnection(session);
+
+      } else if (state != RvConnectionState.WAITING
+          && connections.containsKey(session)) {
+        RvProcessor processor = service.getRvProcessor();
+        if (processor != null) processor.setSessionExpires(session, false);
+      }
+    }
+
+    public void handleEvent(RvConnection transfer, RvConnectionEvent event) {
+    }
+  };
+
+  private class SessionExpiryListener implements RvSessionExpiryListener {
+    public void handleSessionExpired(RvSessionExpiredEvent event) {
+      RvConnection connection = connections.remove(event.getSession());
+      if (connection == null) return;
+
+      LOGGER.fine("Closing " + connection + " because its session expired: "
+          + event.getReason());
+      connection.close();
+    }
+  }
+
   private class FileTransferCapabilityHandler
       extends DefaultEnabledCapabilityHandler
       implements RendezvousCapabilityHandler {
@@ -138,9 +236,11 @@ public class RvConnectionManager {
       AimConnection conn = getIcbmService().getAimConnection();
       IncomingFileTransferImpl transfer = new IncomingFileTransferImpl(
           conn.getProxy(), conn.getScreenname(), session);
+      transfer.getSettings().setBandwidthManager(bandwidthManager);
       LOGGER.fine("Creating IncomingFileTransferImpl for new session "
           + session);
       transfer.addEventListener(incomingListener);
+      trackConnection(session, transfer);
       return transfer.getRvSessionHandler();
     }
   }
@@ -156,6 +256,7 @@ public class RvConnectionManager {
       LOGGER.fine("Creating IncomingDirectimConnectionImpl for new session "
           + session);
       transfer.addEventListener(incomingListener);
+      trackConnection(session, transfer);
       return transfer.getRvSessionHandler();
     }
   }
@@ -36,6 +36,7 @@ package net.kano.joustsim.oscar.oscar.service.icbm.ft;
 
 import net.kano.joscar.DefensiveTools;
 import net.kano.joustsim.oscar.proxy.AimProxyInfo;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -45,8 +46,12 @@ public class RvConnectionSettings {
   public static final long DEFAULT_LAN_TIMEOUT = 2000L;
   public static final long DEFAULT_INTERNET_TIMEOUT = 3000L;
   public static final long DEFAULT_INCOMING_MODIFICATION = 2000L;
+  public static final int DEFAULT_BANDWIDTH_PRIORITY = 1;
+  public static final long DEFAULT_CONNECTION_RACE_STAGGER = 300L;
 
   private boolean onlyUsingProxy = false;
+  private boolean racingConnections = false;
+  private long connectionRaceStagger = DEFAULT_CONNECTION_RACE_STAGGER;
   private boolean proxyRequestTrusted = true;
   private long perConnectionTimeout = DEFAULT_RV_CONNECTION_TIMEOUT;
   private Map<ConnectionType, Long> timeouts
@@ -54,6 +59,12 @@ public class RvConnectionSettings {
   private Map<Initiator,Long> timeoutModifications
       = new HashMap<Initiator, Long>();
   private AimProxyInfo proxyInfo = AimProxyInfo.forNoProxy();
+  private @Nullable BandwidthManager bandwidthManager = null;
+  private long maxBytesPerSecond = BandwidthManager.UNLIMITED;
+  private int bandwidthPriority = DEFAULT_BANDWIDTH_PRIORITY;
+  private int writeBehindBuffers = 0;
+  private boolean preallocatingFiles = false;
+  private DiskSyncPolicy diskSyncPolicy = DiskSyncPolicy.NEVER;
 
   {
     timeouts.put(ConnectionType.LAN, DEFAULT_LAN_TIMEOUT);
@@ -85,6 +96,31 @@ public class RvConnectionSettings {
     this.onlyUsingProxy = onlyUsingProxy;
   }
 
+  public synchronized boolean isRacingConnections() {
+    return racingConnections;
+  }
+
+  /**
+   * Sets whether the buddy's LAN and internet addresses are tried at the same
+   * time, rather than one after the other. When racing, the internet address
+   * is tried {@linkplain #setConnectionRaceStagger shortly} after the LAN
+   * address, and whichever connects first is used. If neither connects, the
+   * proxy is tried right away, instead of after both have timed out.
+   */
+  public synchronized void setRacingConnections(boolean racing) {
+    this.racingConnections = racing;
+  }
+
+  public synchronized long getConnectionRaceStagger() {
+    return connectionRaceStagger;
+  }
+
+  public synchronized void setConnectionRaceStagger(long millis) {
+    DefensiveTools.checkRange(millis, "millis", 0);
+
+    connectionRaceStagger = millis;
+  }
+
   public synchronized void setDefaultPerConnectionTimeout(long millis) {
     perConnectionTimeout = millis;
   }
@@ -120,4 +156,86 @@ public class RvConnectionSettings {
       return timeout + getTimeoutModification(initiator);
     }
   }
+
+  public synchronized @Nullable BandwidthManager getBandwidthManager() {
+    return bandwidthManager;
+  }
+
+  /**
+   * Sets the bandwidth manager whose limits apply to this connection's file
+   * transfer. If it's {@code null}, the transfer is never throttled.
+   */
+  public synchronized void setBandwidthManager(
+      @Nullable BandwidthManager manager) {
+    this.bandwidthManager = manager;
+  }
+
+  public synchronized long getMaxBytesPerSecond() {
+    return maxBytesPerSecond;
+  }
+
+  /**
+   * Limits this connection's file transfer to the given rate, or removes the
+   * limit if it's {@link BandwidthManager#UNLIMITED}. This has no effect
+   * unless a {@linkplain #setBandwidthManager bandwidth manager} is set.
+   */
+  public synchronized void setMaxBytesPerSecond(long bytesPerSecond) {
+    DefensiveTools.checkRange(bytesPerSecond, "bytesPerSecond", 0);
+
+    maxBytesPerSecond = bytesPerSecond;
+  }
+
+  public synchronized int getBandwidthPriority() {
+    return bandwidthPriority;
+  }
+
+  /**
+   * Sets this connection's share of the bandwidth manager's global and buddy
+   * limits, relative to the other transfers they apply to. A transfer with
+   * priority 2 gets twice the bandwidth of one with priority 1.
+   */
+  public synchronized void setBandwidthPriority(int priority) {
+    DefensiveTools.checkRange(priority, "priority", 1);
+
+    bandwidthPriority = priority;
+  }
+
+  public synchronized int getWriteBehindBuffers() {
+    return writeBehindBuffers;
+  }
+
+  /**
+   * Sets how many buffers of received file data may be waiting to be written
+   * to disk, or 0 to write each buffer as soon as it's received. When this is
+   * more than 0, received files are written by a separate thread, so a slow
+   * disk doesn't stop us from reading from the connection.
+   */
+  public synchronized void setWriteBehindBuffers(int buffers) {
+    DefensiveTools.checkRange(buffers, "buffers", 0);
+
+    writeBehindBuffers = buffers;
+  }
+
+  public synchronized boolean isPreallocatingFiles() {
+    return preallocatingFiles;
+  }
+
+  /**
+   * Sets whether each received file is grown to its full size before any of
+   * it is received. If the transfer fails, the file is cut back to the part
+   * that was actually received.
+   */
+  public synchronized void setPreallocatingFiles(boolean preallocating) {
+    this.preallocatingFiles = preallocating;
+  }
+
+  public synchronized DiskSyncPolicy getDiskSyncPolicy() {
+    return diskSyncPolicy;
+  }
+
+  public synchronized void setDiskSyncPolicy(DiskSyncPolicy policy) {
+    DefensiveTools.checkNull(policy, "policy");
+
+    diskSyncPolicy = policy;
+  }
 }
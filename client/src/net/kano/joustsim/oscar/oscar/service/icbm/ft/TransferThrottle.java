@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A token bucket which limits a single transfer to the rate given to it by its
+ * {@link BandwidthManager}, and keeps track of the rate it actually achieves.
+ * Before transferring each chunk, a transfer asks {@link #acquire} or
+ * {@link #tryAcquire} how much it may transfer, and afterwards tells
+ * {@link #transferred} how much it did.
+ */
+public class TransferThrottle {
+  /**
+   * The longest we sleep at once while waiting for the bucket to fill up, so
+   * we notice when the limits change.
+   */
+  private static final long MAX_SLEEP_MILLIS = 250;
+  private static final long MIN_BUCKET_SIZE = 1024;
+  private static final long RATE_WINDOW_NANOS = 1000000000L;
+
+  private final BandwidthManager manager;
+  private final RvConnection connection;
+
+  private long rateLimit = BandwidthManager.UNLIMITED;
+  private double tokens = 0;
+  private long lastRefill = System.nanoTime();
+
+  private long bytesTransferred = 0;
+  private long windowStart = System.nanoTime();
+  private long windowBytes = 0;
+  private long achievedRate = 0;
+  private boolean closed = false;
+
+  TransferThrottle(BandwidthManager manager, RvConnection connection) {
+    this.manager = manager;
+    this.connection = connection;
+  }
+
+  public RvConnection getConnection() { return connection; }
+
+  /**
+   * Waits until some data may be transferred, and returns how many bytes,
+   * which is between 1 and {@code max}.
+   *
+   * @throws InterruptedIOException if the thread is interrupted while waiting
+   */
+  public long acquire(long max) throws InterruptedIOException {
+    while (true) {
+      long granted = tryAcquire(max);
+      if (granted > 0) return granted;
+
+      try {
+        Thread.sleep(-granted);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while waiting for "
+            + "bandwidth");
+      }
+    }
+  }
+
+  /**
+   * Returns how many bytes may be transferred now, which is between 1 and
+   * {@code max}, without waiting. If nothing may be transferred yet, this
+   * returns minus the number of milliseconds to wait before asking again.
+   */
+  public long tryAcquire(long max) {
+    DefensiveTools.checkRange(max, "max", 1);
+
+    // we mustn't hold our own lock while asking the manager
+    long rate = manager.getRateLimit(this);
+    synchronized (this) {
+      setRateLimit(rate);
+      if (rate == BandwidthManager.UNLIMITED) return max;
+
+      refill();
+      long bucketSize = getBucketSize(rate);
+      long wanted = Math.min(max, bucketSize / 2);
+      if (tokens >= wanted) {
+        long granted = Math.min(max, (long) tokens);
+        tokens -= granted;
+        return granted;
+      }
+      long sleep = (long) Math.ceil((wanted - tokens) * 1000 / rate);
+      return -Math.max(1, Math.min(MAX_SLEEP_MILLIS, sleep));
+    }
+  }
+
+  /**
+   * Records that {@code actual} bytes were transferred after {@code granted}
+   * were {@linkplain #acquire acquired}, returning any unused bytes to the
+   * bucket.
+   */
+  public synchronized void transferred(long granted, long actual) {
+    if (actual < 0) actual = 0;
+    if (rateLimit != BandwidthManager.UNLIMITED && actual < granted) {
+      tokens = Math.min(getBucketSize(rateLimit), tokens + granted - actual);
+    }
+    bytesTransferred += actual;
+    windowBytes += actual;
+    updateAchievedRate();
+  }
+
+  /**
+   * Stops counting this transfer against its manager's limits.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+    }
+    manager.unregister(this, getBytesTransferred());
+  }
+
+  /**
+   * Returns the rate this transfer was last limited to, in bytes per second,
+   * or {@link BandwidthManager#UNLIMITED}.
+   */
+  public synchronized long getRateLimit() { return rateLimit; }
+
+  /**
+   * Returns the rate this transfer has achieved, in bytes per second, over
+   * the last second or so.
+   */
+  public synchronized long getAchievedRate() {
+    updateAchievedRate();
+    return achievedRate;
+  }
+
+  public synchronized long getBytesTransferred() { return bytesTransferred; }
+
+  private void setRateLimit(long rate) {
+    if (rate == rateLimit) return;
+    if (rateLimit == BandwidthManager.UNLIMITED) {
+      // start with a full bucket, so there's no pause when we're first limited
+      tokens = getBucketSize(rate);
+      lastRefill = System.nanoTime();
+    } else if (rate != BandwidthManager.UNLIMITED) {
+      tokens = Math.min(tokens, getBucketSize(rate));
+    }
+    rateLimit = rate;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    double added = (now - lastRefill) * (double) rateLimit / 1000000000.0;
+    tokens = Math.min(getBucketSize(rateLimit), tokens + added);
+    lastRefill = now;
+  }
+
+  private void updateAchievedRate() {
+    long now = System.nanoTime();
+    long elapsed = now - windowStart;
+    if (elapsed >= RATE_WINDOW_NANOS) {
+      achievedRate = (long) (windowBytes * 1000000000.0 / elapsed);
+      windowBytes = 0;
+      windowStart = now;
+    }
+  }
+
+  /**
+   * Returns how many bytes the bucket holds when it's full, which is a quarter
+   * second's worth.
+   */
+  private static long getBucketSize(long rate) {
+    return Math.max(MIN_BUCKET_SIZE, rate / 4);
+  }
+}
@@ -35,14 +35,19 @@
 package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.ProgressStatusProvider;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.TransferThrottle;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectableChannel;
-import java.nio.channels.Selector;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,10 +56,38 @@ public abstract class AbstractTransferrer
   private static final Logger LOGGER = Logger
       .getLogger(AbstractTransferrer.class.getName());
 
+  /**
+   * The longest we wait for the channel to become ready before checking
+   * whether we've been cancelled and trying again anyway.
+   */
+  private static final long READY_TIMEOUT = 1000;
+  /**
+   * How often a paused {@linkplain #transferAsync asynchronous} transfer
+   * checks whether it's been unpaused.
+   */
+  private static final long PAUSE_CHECK_INTERVAL = 250;
+
+  /**
+   * Runs the next chunk of asynchronous transfers which are paused or
+   * throttled, once they've waited long enough.
+   */
+  private static final ScheduledExecutorService TIMER
+      = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Transfer timer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   protected final long offset;
   protected final long length;
   private volatile long position = 0;
-  private @Nullable Selector selector;
+  private long transferred = 0;
+  private boolean lastChunkMoved = false;
+  private boolean wasBlocking = false;
+  private @Nullable TransferThrottle throttle;
+  private @Nullable SharedSelector selector;
   private final @Nullable SelectableChannel selectable;
   private final ReadableByteChannel readable;
   private final WritableByteChannel writable;
@@ -76,75 +109,144 @@ public abstract class AbstractTransferrer
   }
 
   protected void waitUntilReady() throws IOException {
-    if (selector != null) selector.select(50);
+    // if the last chunk got anywhere, the channel is probably still ready, and
+    // asking the selector would only slow us down
+    if (selector != null && !lastChunkMoved) {
+      assert selectable != null;
+      selector.waitUntilReady(selectable, getSelectionKey(), READY_TIMEOUT);
+    }
   }
 
   public long transfer() throws IOException {
-    boolean wasBlocking;
+    boolean stopped = false;
+    try {
+      begin();
+      while (!isDone()) {
+        boolean waited = waitIfPaused();
+        if (waited) continue;
+
+        long allowed = length - transferred;
+        if (throttle != null) allowed = throttle.acquire(allowed);
+        waitUntilReady();
+        if (!transferNextChunk(allowed)) break;
+      }
+      stopped = true;
+
+    } finally {
+      end(stopped);
+    }
+    return transferred;
+  }
+
+  /**
+   * Transfers everything without blocking. Chunks are transferred on the
+   * given executor, and when the channel isn't ready for the next one, the
+   * {@linkplain SharedSelector shared selector} runs it once it is, so no
+   * thread is held while waiting for the other end. Pausing and throttling
+   * delay the next chunk the same way.
+   */
+  void transferAsync(Executor executor, TransferrerListener listener) {
+    AsyncStep step = new AsyncStep(executor, listener);
+    try {
+      begin();
+    } catch (Exception e) {
+      step.finish(e);
+      return;
+    }
+    executor.execute(step);
+  }
+
+  private void begin() throws IOException {
+    throttle = getThrottle();
+    transferred = 0;
+    setPosition(offset);
     if (selectable != null) {
-      selector = Selector.open();
+      selector = SharedSelector.getInstance();
       wasBlocking = selectable.isBlocking();
+      if (wasBlocking) selectable.configureBlocking(false);
     } else {
       selector = null;
-      wasBlocking = false;
     }
-    try {
-      if (selectable != null) {
-        if (wasBlocking) selectable.configureBlocking(false);
-        selectable.register(selector, getSelectionKey());
-      }
-
-      setPosition(offset);
-      long totalTransferred = 0;
-      while (true) {
-        if (totalTransferred > length) {
-          LOGGER.severe("downloaded too much: " + totalTransferred
-              + " >= length " + length);
-          break;
+    beforeTransfer();
+  }
 
-        } else if (totalTransferred == length) {
-          break;
-        }
-        boolean waited = waitIfPaused();
-        if (waited) continue;
+  private boolean isDone() {
+    if (transferred > length) {
+      LOGGER.severe("downloaded too much: " + transferred
+          + " >= length " + length);
+      return true;
+    }
+    return transferred == length;
+  }
 
-        long remaining = length - totalTransferred;
-        waitUntilReady();
-        long transferred = transferChunk(readable, writable, totalTransferred,
-            remaining);
+  /**
+   * Transfers up to {@code allowed} bytes, and returns whether to keep going.
+   */
+  private boolean transferNextChunk(long allowed) throws IOException {
+    long moved = transferChunk(readable, writable, transferred, allowed);
+    if (throttle != null) throttle.transferred(allowed, moved);
 
-        if (transferred == -1) {
-          LOGGER.severe("transfer returned -1");
-          break;
-        }
+    if (moved == -1) {
+      LOGGER.severe("transfer returned -1");
+      return false;
+    }
 
-        totalTransferred += transferred;
-        setPosition(offset + totalTransferred);
-        if (isCancelled()) {
-          LOGGER.fine("Someone said to cancel receiving");
-          break;
-        }
-      }
-      return totalTransferred;
+    lastChunkMoved = moved > 0;
+    transferred += moved;
+    setPosition(offset + transferred);
+    if (isCancelled()) {
+      LOGGER.fine("Someone said to cancel receiving");
+      return false;
+    }
+    return true;
+  }
 
-    } finally {
-      try {
-        if (selector != null) selector.close();
-      } catch (IOException e) {
-        LOGGER.log(Level.WARNING, "Couldn't close selector", e);
-      }
+  /**
+   * Releases the channel once the transfer has stopped. {@code stopped} is
+   * false if it stopped because of an exception.
+   */
+  private void end(boolean stopped) throws IOException {
+    try {
       try {
+        // otherwise the channel stays registered until it's closed
+        if (selector != null) selector.release(selectable);
         if (wasBlocking) selectable.configureBlocking(true);
       } catch (IOException e) {
         LOGGER.log(Level.WARNING, "Couldn't reset blocking mode", e);
       }
       cleanUp();
+
+    } finally {
+      afterTransfer(stopped && transferred == length);
     }
   }
 
   protected void cleanUp() throws IOException {
   }
 
+  /**
+   * Called before the first chunk is transferred.
+   */
+  protected void beforeTransfer() throws IOException {
+  }
+
+  /**
+   * Called once the transfer has stopped and the channel has been released.
+   * {@code complete} is whether everything was transferred.
+   */
+  protected void afterTransfer(boolean complete) throws IOException {
+  }
+
+  /**
+   * Returns the throttle which limits how fast this transferrer may go, or
+   * {@code null} if it's not limited. If there is a throttle, the
+   * {@code remaining} value passed to {@link #transferChunk} is only as much
+   * as the throttle allows, and may be less than what's actually left.
+   */
+  protected @Nullable TransferThrottle getThrottle() {
+    return null;
+  }
+
   protected abstract int getSelectionKey();
 
   protected abstract boolean isCancelled();
@@ -154,6 +256,15 @@ public abstract class AbstractTransferrer
    */
   protected abstract boolean waitIfPaused();
 
+  /**
+   * Returns whether the transfer is paused, without waiting. This is what
+   * {@linkplain #transferAsync asynchronous} transfers check, and they're
+   * never paused unless it's overridden.
+   */
+  protected boolean isPaused() {
+    return false;
+  }
+
   /**
    * Returns the number of bytes transferred by this call, or -1 to cancel
    * transfer
@@ -177,4 +288,72 @@ public abstract class AbstractTransferrer
   private void setPosition(long position) {
     this.position = position;
   }
+
+  /**
+   * Transfers chunks until the channel isn't ready, then arranges to be run
+   * again when it is. Only one of these runs at a time, since each one is
+   * only scheduled by the one before.
+   */
+  private class AsyncStep implements Runnable {
+    private final Executor executor;
+    private final TransferrerListener listener;
+
+    public AsyncStep(Executor executor, TransferrerListener listener) {
+      this.executor = executor;
+      this.listener = listener;
+    }
+
+    public void run() {
+      try {
+        while (!isDone()) {
+          if (isPaused()) {
+            runLater(PAUSE_CHECK_INTERVAL);
+            return;
+          }
+          long allowed = length - transferred;
+          if (throttle != null) {
+            long granted = throttle.tryAcquire(allowed);
+            if (granted < 0) {
+              runLater(-granted);
+              return;
+            }
+            allowed = granted;
+          }
+          if (!transferNextChunk(allowed)) break;
+
+          if (!lastChunkMoved && selector != null) {
+            assert selectable != null;
+            selector.whenReady(selectable, getSelectionKey(), READY_TIMEOUT,
+                executor, this);
+            return;
+          }
+        }
+      } catch (Exception e) {
+        finish(e);
+        return;
+      }
+      finish(null);
+    }
+
+    private void runLater(long millis) {
+      TIMER.schedule(new Runnable() {
+        public void run() {
+          executor.execute(AsyncStep.this);
+        }
+      }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void finish(@Nullable Exception error) {
+      try {
+        end(error == null);
+      } catch (Exception e) {
+        if (error == null) error = e;
+      }
+      if (error == null) {
+        listener.transferFinished(transferred);
+      } else {
+        listener.transferFailed(error);
+      }
+    }
+  }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.DefensiveTools;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chooses how many bytes a {@link FileSender} or {@link FileReceiver} should
+ * try to move at a time. Chunks start small and double each time a whole chunk
+ * goes through quickly, up to a maximum which depends on the connection. A
+ * chunk which takes too long halves the chunk size again, so that pausing and
+ * cancelling, which are only checked between chunks, stay responsive.
+ */
+class AdaptiveChunkSizer {
+  private static final Logger LOGGER = Logger
+      .getLogger(AdaptiveChunkSizer.class.getName());
+
+  /** The size of the first chunk. */
+  public static final int MIN_CHUNK_SIZE = 8 * 1024;
+  /**
+   * The largest chunk used over a connection to this machine or to another
+   * machine on the local network.
+   */
+  public static final int MAX_LOCAL_CHUNK_SIZE = 4 * 1024 * 1024;
+  /**
+   * The largest chunk used over other connections if the socket buffer size
+   * cannot be determined.
+   */
+  public static final int MAX_CHUNK_SIZE_DEFAULT = 64 * 1024;
+  /** The longest a single chunk should take. */
+  public static final long MAX_CHUNK_MILLIS = 100;
+
+  private final int minChunkSize;
+  private final int maxChunkSize;
+  private final long maxChunkNanos;
+  private int chunkSize;
+
+  public AdaptiveChunkSizer(int minChunkSize, int maxChunkSize) {
+    this(minChunkSize, maxChunkSize, MAX_CHUNK_MILLIS);
+  }
+
+  public AdaptiveChunkSizer(int minChunkSize, int maxChunkSize,
+      long maxChunkMillis) {
+    DefensiveTools.checkRange(minChunkSize, "minChunkSize", 1);
+    DefensiveTools.checkRange(maxChunkSize, "maxChunkSize", minChunkSize);
+    DefensiveTools.checkRange(maxChunkMillis, "maxChunkMillis", 1);
+
+    this.minChunkSize = minChunkSize;
+    this.maxChunkSize = maxChunkSize;
+    this.maxChunkNanos = maxChunkMillis * 1000000L;
+    this.chunkSize = minChunkSize;
+  }
+
+  /**
+   * Returns a chunk sizer suited to the given channel. Over loopback and local
+   * network connections, chunks may grow to {@link #MAX_LOCAL_CHUNK_SIZE};
+   * otherwise they grow up to the size of the socket's send or receive
+   * buffer.
+   */
+  public static AdaptiveChunkSizer forChannel(SelectableChannel channel,
+      boolean sending) {
+    int max = MAX_CHUNK_SIZE_DEFAULT;
+    if (channel instanceof SocketChannel) {
+      Socket socket = ((SocketChannel) channel).socket();
+      int bufferSize = -1;
+      try {
+        bufferSize = sending ? socket.getSendBufferSize()
+            : socket.getReceiveBufferSize();
+      } catch (SocketException e) {
+        LOGGER.log(Level.FINE, "Couldn't get socket buffer size", e);
+      }
+      max = getMaxChunkSize(socket.getInetAddress(), bufferSize);
+    }
+    return new AdaptiveChunkSizer(MIN_CHUNK_SIZE,
+        Math.max(MIN_CHUNK_SIZE, max));
+  }
+
+  /**
+   * Returns the largest chunk to use over a connection to the given address,
+   * whose socket has a buffer of the given size, or {@code -1} if the size
+   * isn't known.
+   */
+  static int getMaxChunkSize(@Nullable InetAddress addr, int bufferSize) {
+    if (addr != null && (addr.isLoopbackAddress()
+        || addr.isSiteLocalAddress() || addr.isLinkLocalAddress())) {
+      return MAX_LOCAL_CHUNK_SIZE;
+    }
+    return bufferSize > 0 ? bufferSize : MAX_CHUNK_SIZE_DEFAULT;
+  }
+
+  public int getMinChunkSize() { return minChunkSize; }
+
+  public int getMaxChunkSize() { return maxChunkSize; }
+
+  /** Returns the number of bytes the next chunk should hold. */
+  public int getChunkSize() { return chunkSize; }
+
+  /**
+   * Adjusts the chunk size after a chunk of {@code requested} bytes was
+   * attempted, and {@code transferred} bytes were moved in {@code nanos}
+   * nanoseconds.
+   */
+  public void chunkTransferred(long requested, long transferred, long nanos) {
+    if (nanos > maxChunkNanos) {
+      chunkSize = Math.max(minChunkSize, chunkSize / 2);
+
+    } else if (transferred >= requested && requested >= chunkSize) {
+      chunkSize = (int) Math.min(maxChunkSize, chunkSize * 2L);
+    }
+  }
+}
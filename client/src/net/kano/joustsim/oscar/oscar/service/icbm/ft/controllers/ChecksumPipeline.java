@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.Checksummer;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.ChecksummerListener;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.FileChecksummer;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Computes the checksums of a list of files on a background thread, staying a
+ * few files ahead of the file currently being sent. This lets the checksum of
+ * the next file be ready by the time the current file has been sent, instead
+ * of making the buddy wait for it between files.
+ */
+class ChecksumPipeline {
+  private static final Logger LOGGER
+      = Logger.getLogger(ChecksumPipeline.class.getName());
+
+  public static final int DEPTH_DEFAULT = 2;
+
+  private final FileChecksummer summer;
+  private final List<TransferredFile> files;
+  private final int depth;
+
+  private final long[] checksums;
+  private final boolean[] done;
+  private final Throwable[] errors;
+  private final Checksummer[] inProgress;
+  private int current = 0;
+  private boolean stopped = false;
+
+  public ChecksumPipeline(FileChecksummer summer,
+      List<TransferredFile> files) {
+    this(summer, files, DEPTH_DEFAULT);
+  }
+
+  public ChecksumPipeline(FileChecksummer summer,
+      List<TransferredFile> files, int depth) {
+    DefensiveTools.checkNull(summer, "summer");
+    DefensiveTools.checkNullElements(files, "files");
+    DefensiveTools.checkRange(depth, "depth", 1);
+
+    this.summer = summer;
+    this.files = DefensiveTools.getUnmodifiableCopy(files);
+    this.depth = depth;
+    int count = this.files.size();
+    checksums = new long[count];
+    done = new boolean[count];
+    errors = new Throwable[count];
+    inProgress = new Checksummer[count];
+  }
+
+  public void start() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        computeChecksums();
+      }
+    }, "Checksum pipeline");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops computing checksums. Anyone waiting in {@link #getChecksum} will
+   * get an {@code IOException}.
+   */
+  public synchronized void stop() {
+    stopped = true;
+    notifyAll();
+  }
+
+  /**
+   * Returns the checksum of the file at the given index, waiting for it to be
+   * computed if necessary. Calling this method also tells the pipeline that
+   * the files before the given index are no longer needed, so it can move on
+   * to the files after it.
+   */
+  public long getChecksum(int index) throws IOException {
+    return getChecksum(index, null);
+  }
+
+  /**
+   * Returns the checksum of the file at the given index just like
+   * {@link #getChecksum(int)}. If this call has to wait while the file is
+   * being read, the checksummer reading it is passed to the given listener,
+   * so the wait can be shown to the user.
+   */
+  public long getChecksum(int index, @Nullable ChecksummerListener waitListener)
+      throws IOException {
+    DefensiveTools.checkRange(index, "index", 0, files.size() - 1);
+
+    Checksummer announced = null;
+    while (true) {
+      Checksummer summer;
+      synchronized (this) {
+        if (index > current) {
+          current = index;
+          notifyAll();
+        }
+        try {
+          while (!done[index] && !stopped
+              && (waitListener == null || inProgress[index] == announced)) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while waiting for "
+              + "checksum of " + files.get(index).getTransferredName());
+        }
+        if (done[index] || stopped) break;
+        summer = inProgress[index];
+        announced = summer;
+      }
+      // the listener is called outside the lock so it can't hold up the
+      // pipeline thread
+      if (summer != null) {
+        waitListener.checksumStarted(files.get(index), summer);
+      }
+    }
+    return getResult(index);
+  }
+
+  private synchronized long getResult(int index) throws IOException {
+    if (!done[index]) throw new IOException("Checksum pipeline was stopped");
+
+    Throwable error = errors[index];
+    if (error instanceof IOException) {
+      throw (IOException) error;
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    }
+    return checksums[index];
+  }
+
+  private void computeChecksums() {
+    for (int i = 0; i < files.size(); i++) {
+      synchronized (this) {
+        try {
+          while (!stopped && i >= current + depth) wait();
+        } catch (InterruptedException e) {
+          stopped = true;
+          notifyAll();
+        }
+        if (stopped) return;
+      }
+
+      TransferredFile file = files.get(i);
+      final int index = i;
+      long checksum = 0;
+      Throwable error = null;
+      try {
+        checksum = summer.getChecksumQuietly(file, new ChecksummerListener() {
+          public void checksumStarted(TransferredFile file,
+              Checksummer summer) {
+            synchronized (ChecksumPipeline.this) {
+              inProgress[index] = summer;
+              ChecksumPipeline.this.notifyAll();
+            }
+          }
+        });
+      } catch (Throwable t) {
+        LOGGER.log(Level.FINE, "Couldn't checksum "
+            + file.getTransferredName() + " ahead of time", t);
+        error = t;
+      }
+
+      synchronized (this) {
+        checksums[i] = checksum;
+        errors[i] = error;
+        done[i] = true;
+        inProgress[i] = null;
+        notifyAll();
+        // the file being sent will fail when it gets here, so there's no
+        // point in checksumming any more files
+        if (error != null) return;
+      }
+    }
+  }
+}
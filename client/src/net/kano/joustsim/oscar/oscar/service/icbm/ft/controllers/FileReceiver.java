@@ -34,36 +34,243 @@
 
 package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.DiskSyncPolicy;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RunningChecksummer;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.TransferThrottle;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 class FileReceiver extends AbstractTransferrer {
-  private ReceiveFileController controller;
+  private static final Logger LOGGER
+      = Logger.getLogger(FileReceiver.class.getName());
+
+  private final @Nullable TransferController controller;
   private final FileChannel fileChannel;
+  private final AdaptiveChunkSizer chunkSizer;
+  private final @Nullable RunningChecksummer checksummer;
+  private final @Nullable WriteBehindWriter writer;
+  private final DiskSyncPolicy syncPolicy;
+  private final boolean preallocating;
+  /**
+   * The most we read from the socket at once when not using a write-behind
+   * writer. Larger chunks don't read any faster, since the socket's buffer
+   * rarely holds more than this, and each receiver keeps its buffer until
+   * it's done.
+   */
+  private static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+  private ByteBuffer buffer = null;
+  private boolean preallocated = false;
 
   public FileReceiver(ReceiveFileController controller,
       FileChannel fileChannel, long offset, long toDownload) {
-    super(controller.getStream(), offset, toDownload);
+    this(controller, fileChannel, offset, toDownload, null);
+  }
+
+  /**
+   * Creates a file receiver which passes every byte it receives to the given
+   * checksummer, if it's not {@code null}.
+   */
+  public FileReceiver(ReceiveFileController controller,
+      FileChannel fileChannel, long offset, long toDownload,
+      @Nullable RunningChecksummer checksummer) {
+    this(controller.getStream(), controller, fileChannel, offset, toDownload,
+        AdaptiveChunkSizer.forChannel(
+            controller.getStream().getSelectableChannel(), false),
+        checksummer, controller.getWriteBehindWriter(),
+        controller.getDiskSyncPolicy(), controller.isPreallocatingFiles());
+  }
+
+  /**
+   * Creates a file receiver which is never paused or cancelled if
+   * {@code controller} is {@code null}.
+   */
+  FileReceiver(StreamInfo stream, @Nullable TransferController controller,
+      FileChannel fileChannel, long offset, long toDownload,
+      AdaptiveChunkSizer chunkSizer, @Nullable RunningChecksummer checksummer) {
+    this(stream, controller, fileChannel, offset, toDownload, chunkSizer,
+        checksummer, null, DiskSyncPolicy.NEVER, false);
+  }
+
+  /**
+   * Creates a file receiver which hands what it receives to the given
+   * write-behind writer, if it's not {@code null}, instead of writing it
+   * itself. If {@code preallocating} is true, the file is grown to its full
+   * size before anything is received.
+   */
+  FileReceiver(StreamInfo stream, @Nullable TransferController controller,
+      FileChannel fileChannel, long offset, long toDownload,
+      AdaptiveChunkSizer chunkSizer, @Nullable RunningChecksummer checksummer,
+      @Nullable WriteBehindWriter writer, DiskSyncPolicy syncPolicy,
+      boolean preallocating) {
+    super(stream, offset, toDownload);
     this.controller = controller;
     this.fileChannel = fileChannel;
+    this.chunkSizer = chunkSizer;
+    this.checksummer = checksummer;
+    this.writer = writer;
+    this.syncPolicy = syncPolicy;
+    this.preallocating = preallocating;
+  }
+
+  protected void beforeTransfer() throws IOException {
+    preallocated = preallocating && preallocate();
+  }
+
+  protected void afterTransfer(boolean complete) throws IOException {
+    boolean written = false;
+    try {
+      if (complete) {
+        if (writer != null) writer.flush();
+        if (syncPolicy != DiskSyncPolicy.NEVER) fileChannel.force(false);
+        written = true;
+      }
+
+    } finally {
+      if (!written) {
+        // the caller closes the file once we're done, so anything still
+        // queued has to be written first
+        boolean flushed = flushWriter();
+        // otherwise a later resume would think we have the whole file
+        if (preallocated) trimTo(flushed ? getPosition() : offset);
+      }
+    }
+  }
+
+  private boolean preallocate() throws IOException {
+    long end = offset + length;
+    if (length == 0 || fileChannel.size() >= end) return false;
+
+    // there's no way to reserve disk space without writing, but writing the
+    // last byte lets the filesystem lay out the file in one go
+    ByteBuffer last = ByteBuffer.allocate(1);
+    while (last.hasRemaining()) fileChannel.write(last, end - 1);
+    return true;
+  }
+
+  /**
+   * Waits for the write-behind writer to write everything it was given,
+   * returning whether it all made it to disk.
+   */
+  private boolean flushWriter() {
+    if (writer == null) return true;
+
+    // the transfer may have been stopped by an interrupt, which would stop
+    // us from waiting for the writer
+    boolean interrupted = Thread.interrupted();
+    try {
+      writer.flush();
+      return true;
+    } catch (IOException e) {
+      // we can't tell how much made it to disk
+      LOGGER.log(Level.FINE, "Couldn't finish writing received data", e);
+      return false;
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  private void trimTo(long received) {
+    try {
+      fileChannel.truncate(received);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Couldn't trim preallocated file to "
+          + received + " bytes", e);
+    }
   }
 
   protected boolean isCancelled() {
-    return controller.shouldStop();
+    return controller != null && controller.shouldStop();
   }
 
   protected boolean waitIfPaused() {
-    return controller.waitUntilUnpause();
+    return controller != null && controller.waitUntilUnpause();
+  }
+
+  protected boolean isPaused() {
+    return controller != null && controller.isPaused();
+  }
+
+  protected @Nullable TransferThrottle getThrottle() {
+    return controller == null ? null : controller.getThrottle();
   }
 
   protected long transferChunk(ReadableByteChannel readable,
       WritableByteChannel writable, long transferred, long remaining)
       throws IOException {
-    return fileChannel.transferFrom(readable,
-        offset + transferred, Math.min(1024, remaining));
+    if (writer != null) {
+      return transferChunkBehind(readable, writer, transferred, remaining);
+    }
+
+    // FileChannel.transferFrom copies through a small temporary buffer when
+    // reading from a socket, so we read into our own direct buffer instead
+    ByteBuffer buf = getBuffer();
+    int max = (int) Math.min(Math.min(chunkSizer.getChunkSize(), remaining),
+        buf.capacity());
+    buf.limit(max);
+    long start = System.nanoTime();
+    int read = readable.read(buf);
+    if (read == -1) return -1;
+
+    buf.flip();
+    if (checksummer != null) checksummer.update(buf);
+    long pos = offset + transferred;
+    while (buf.hasRemaining()) {
+      pos += fileChannel.write(buf, pos);
+    }
+    if (syncPolicy == DiskSyncPolicy.AFTER_EACH_WRITE && read > 0) {
+      fileChannel.force(false);
+    }
+    chunkSizer.chunkTransferred(max, read, System.nanoTime() - start);
+    return read;
+  }
+
+  private long transferChunkBehind(ReadableByteChannel readable,
+      WriteBehindWriter writer, long transferred, long remaining)
+      throws IOException {
+    ByteBuffer buf = writer.takeBuffer();
+    int max = (int) Math.min(Math.min(chunkSizer.getChunkSize(), remaining),
+        buf.capacity());
+    buf.limit(max);
+    long start = System.nanoTime();
+    int read;
+    try {
+      read = readable.read(buf);
+    } catch (IOException e) {
+      writer.returnBuffer(buf);
+      throw e;
+    }
+    if (read <= 0) {
+      writer.returnBuffer(buf);
+      if (read == -1) return -1;
+
+    } else {
+      buf.flip();
+      if (checksummer != null) checksummer.update(buf);
+      writer.write(fileChannel, buf, offset + transferred);
+    }
+    chunkSizer.chunkTransferred(max, read, System.nanoTime() - start);
+    return read;
+  }
+
+  private ByteBuffer getBuffer() {
+    // this is only allocated once, since the direct memory of buffers we
+    // drop isn't freed until the garbage collector runs
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(Math.min(MAX_BUFFER_SIZE,
+          chunkSizer.getMaxChunkSize()));
+    }
+    buffer.clear();
+    return buffer;
   }
 
   protected int getSelectionKey() { return SelectionKey.OP_READ; }
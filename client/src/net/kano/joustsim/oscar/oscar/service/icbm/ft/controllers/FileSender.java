@@ -34,6 +34,10 @@
 
 package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.TransferThrottle;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -42,21 +46,43 @@ import java.nio.channels.WritableByteChannel;
 
 class FileSender extends AbstractTransferrer {
   private final FileChannel fileChannel;
-  private SendFileController controller;
+  private final @Nullable TransferController controller;
+  private final AdaptiveChunkSizer chunkSizer;
 
   public FileSender(SendFileController controller, FileChannel fileChannel,
       long offset, long toSend) {
-    super(controller.getStream(), offset, toSend);
+    this(controller.getStream(), controller, fileChannel, offset, toSend,
+        AdaptiveChunkSizer.forChannel(
+            controller.getStream().getSelectableChannel(), true));
+  }
+
+  /**
+   * Creates a file sender which is never paused or cancelled if
+   * {@code controller} is {@code null}.
+   */
+  FileSender(StreamInfo stream, @Nullable TransferController controller,
+      FileChannel fileChannel, long offset, long toSend,
+      AdaptiveChunkSizer chunkSizer) {
+    super(stream, offset, toSend);
     this.controller = controller;
     this.fileChannel = fileChannel;
+    this.chunkSizer = chunkSizer;
   }
 
   protected boolean isCancelled() {
-    return controller.shouldStop();
+    return controller != null && controller.shouldStop();
   }
 
   protected boolean waitIfPaused() {
-    return controller.waitUntilUnpause();
+    return controller != null && controller.waitUntilUnpause();
+  }
+
+  protected boolean isPaused() {
+    return controller != null && controller.isPaused();
+  }
+
+  protected @Nullable TransferThrottle getThrottle() {
+    return controller == null ? null : controller.getThrottle();
   }
 
   protected int getSelectionKey() {
@@ -66,7 +92,10 @@ class FileSender extends AbstractTransferrer {
   protected long transferChunk(ReadableByteChannel readable,
       WritableByteChannel writable, long transferred, long remaining)
       throws IOException {
-    return fileChannel.transferTo(offset + transferred,
-        Math.min(1024, remaining), writable);
+    long max = Math.min(chunkSizer.getChunkSize(), remaining);
+    long start = System.nanoTime();
+    long sent = fileChannel.transferTo(offset + transferred, max, writable);
+    chunkSizer.chunkTransferred(max, sent, System.nanoTime() - start);
+    return sent;
   }
 }
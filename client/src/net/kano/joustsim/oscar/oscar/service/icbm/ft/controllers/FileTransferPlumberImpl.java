@@ -35,7 +35,7 @@
 package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
 import net.kano.joscar.rvproto.ft.FileTransferHeader;
-import net.kano.joustsim.oscar.oscar.service.icbm.ft.ChecksummerImpl;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.ParallelChecksummer;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.FileTransfer;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
 
@@ -50,8 +50,8 @@ public abstract class FileTransferPlumberImpl implements FileTransferPlumber {
     this.transfer = transfer;
   }
 
-  public ChecksummerImpl getChecksummer(TransferredFile file, long len) {
-    return new ChecksummerImpl(file.getChannel(), len);
+  public ParallelChecksummer getChecksummer(TransferredFile file, long len) {
+    return new ParallelChecksummer(file.getChannel(), len);
   }
 
   public void sendHeader(FileTransferHeader outHeader) throws IOException {
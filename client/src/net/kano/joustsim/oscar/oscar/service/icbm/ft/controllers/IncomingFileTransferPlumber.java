@@ -36,6 +36,7 @@ package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
 import net.kano.joscar.rvcmd.SegmentedFilename;
 import net.kano.joscar.ByteBlock;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RunningChecksummer;
 
 import java.io.IOException;
 
@@ -45,4 +46,11 @@ public interface IncomingFileTransferPlumber extends FileTransferPlumber {
       ByteBlock macFileInfo) throws IOException;
 
   boolean shouldAttemptResume(TransferredFile file);
+
+  /**
+   * Creates a transferrer which passes every byte it receives to the given
+   * checksummer as well as writing it to the given file.
+   */
+  Transferrer createTransferrer(TransferredFile file, long startedAt,
+      long toDownload, RunningChecksummer checksummer);
 }
@@ -46,6 +46,7 @@ import net.kano.joscar.ByteBlock;
 import net.kano.joscar.rvproto.ft.FileTransferHeader;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.FileMapper;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.IncomingFileTransfer;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RunningChecksummer;
 
 import java.io.File;
 import java.io.IOException;
@@ -90,6 +91,12 @@ public class IncomingFileTransferPlumberImpl
         startedAt, toDownload);
   }
 
+  public Transferrer createTransferrer(TransferredFile file, long startedAt,
+      long toDownload, RunningChecksummer checksummer) {
+    return new FileReceiver(controller, file.getChannel(),
+        startedAt, toDownload, checksummer);
+  }
+
   public boolean shouldAttemptResume(TransferredFile file) {
     return file.getRealFile().exists();
   }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.MiscTools;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnection;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.FailedStateInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.LocallyCancelledInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.SuccessfulStateInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs several connection attempts at once, starting each one a short time
+ * after the one before it, or right away if all of the ones before it have
+ * failed. The first attempt to connect wins: this controller succeeds with its
+ * stream, and the others are stopped. If every attempt fails, this controller
+ * fails the way the last one did.
+ */
+public class RacingConnectionController extends AbstractStateController {
+  private static final Logger LOGGER
+      = Logger.getLogger(RacingConnectionController.class.getName());
+
+  private final List<StateController> attempts;
+  private final long stagger;
+
+  private int started = 0;
+  private int failed = 0;
+  private @Nullable StateController winner = null;
+  private boolean stopped = false;
+
+  public RacingConnectionController(long stagger,
+      StateController... attempts) {
+    this(stagger, Arrays.asList(attempts));
+  }
+
+  public RacingConnectionController(long stagger,
+      List<? extends StateController> attempts) {
+    DefensiveTools.checkRange(stagger, "stagger", 0);
+    DefensiveTools.checkNullElements(attempts, "attempts");
+    if (attempts.isEmpty()) {
+      throw new IllegalArgumentException("there must be at least one attempt");
+    }
+
+    this.stagger = stagger;
+    this.attempts = DefensiveTools.getUnmodifiableCopy(attempts);
+  }
+
+  public List<StateController> getAttempts() { return attempts; }
+
+  /**
+   * Returns the attempt which connected first, or {@code null} if none has
+   * connected yet.
+   */
+  public synchronized @Nullable StateController getWinner() { return winner; }
+
+  public void start(final RvConnection transfer, final StateController last) {
+    DefensiveTools.checkNull(transfer, "transfer");
+
+    AttemptListener listener = new AttemptListener();
+    for (StateController attempt : attempts) {
+      attempt.addControllerListener(listener);
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        startAttempts(transfer, last);
+      }
+    }, "RV connection race: " + this);
+    thread.start();
+  }
+
+  private void startAttempts(RvConnection transfer, StateController last) {
+    for (StateController attempt : attempts) {
+      synchronized (this) {
+        if (winner != null || stopped) return;
+        started++;
+      }
+      LOGGER.fine(this + " starting " + attempt);
+      try {
+        attempt.start(transfer, last);
+      } catch (IllegalStateException e) {
+        // it was stopped because another attempt won while we were starting it
+        LOGGER.log(Level.FINE, "Couldn't start " + attempt, e);
+        return;
+      }
+
+      synchronized (this) {
+        long end = System.currentTimeMillis() + stagger;
+        try {
+          // if everything we've started has failed, there's no point in
+          // waiting to start the next one
+          while (winner == null && !stopped && failed < started) {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) break;
+            wait(left);
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  public void stop() {
+    StateController winner;
+    synchronized (this) {
+      stopped = true;
+      winner = this.winner;
+      notifyAll();
+    }
+    stopAllBut(winner);
+    fireFailed(new LocallyCancelledInfo());
+  }
+
+  private void stopAllBut(@Nullable StateController winner) {
+    int started;
+    synchronized (this) {
+      started = this.started;
+    }
+    // the attempts we haven't started never will be
+    for (StateController attempt : attempts.subList(0, started)) {
+      if (attempt != winner) attempt.stop();
+    }
+  }
+
+  private static void closeStream(SuccessfulStateInfo info) {
+    if (!(info instanceof StreamInfo)) return;
+
+    try {
+      ((StreamInfo) info).getReadableChannel().close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Couldn't close losing connection", e);
+    }
+  }
+
+  public String toString() {
+    return MiscTools.getClassName(this) + ": " + attempts;
+  }
+
+  private class AttemptListener implements ControllerListener {
+    public void handleControllerSucceeded(StateController controller,
+        SuccessfulStateInfo info) {
+      boolean won;
+      synchronized (RacingConnectionController.this) {
+        won = winner == null && !stopped;
+        if (won) {
+          winner = controller;
+          RacingConnectionController.this.notifyAll();
+        }
+      }
+      if (won) {
+        LOGGER.fine(controller + " won " + RacingConnectionController.this);
+        stopAllBut(controller);
+        fireSucceeded(info);
+
+      } else {
+        // we already have a connection
+        closeStream(info);
+      }
+    }
+
+    public void handleControllerFailed(StateController controller,
+        FailedStateInfo info) {
+      boolean allFailed;
+      synchronized (RacingConnectionController.this) {
+        failed++;
+        allFailed = winner == null && !stopped && failed == attempts.size();
+        RacingConnectionController.this.notifyAll();
+      }
+      if (allFailed) fireFailed(info);
+    }
+  }
+}
@@ -34,6 +34,7 @@
 package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
 import net.kano.joscar.rvcmd.SegmentedFilename;
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
 import net.kano.joscar.rvproto.ft.FileTransferHeader;
 import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_ACK;
 import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_RESUME;
@@ -41,11 +42,14 @@ import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_RESUME_AC
 import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_RESUME_SENDHEADER;
 import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_SENDHEADER;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.Checksummer;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.DiskSyncPolicy;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.FailureEventException;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.IncomingFileTransfer;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnection;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnectionSettings;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvSessionConnectionInfo;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.Initiator;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RunningChecksummer;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ChecksummingEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.CorruptTransferEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.EventPost;
@@ -55,6 +59,7 @@ import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.TransferringFileInfo
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.TransferringFileEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.UnknownErrorEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.TransferSucceededInfo;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.channels.FileChannel;
@@ -67,162 +72,267 @@ public class ReceiveFileController extends TransferController {
   private static final Logger LOGGER = Logger
       .getLogger(ReceiveFileController.class.getName());
   private IncomingFileTransferPlumber plumber = null;
+  private volatile boolean checksummingWhileReceiving = true;
+  private volatile @Nullable WriteBehindWriter writeBehindWriter = null;
+  private volatile DiskSyncPolicy diskSyncPolicy = DiskSyncPolicy.NEVER;
+  private volatile boolean preallocatingFiles = false;
+  private IncomingFileTransfer connection;
+  private final List<TransferredFile> files = new ArrayList<TransferredFile>();
 
   public void setPlumber(IncomingFileTransferPlumber plumber) {
     this.plumber = plumber;
   }
 
-  protected void transferInThread(RvConnection rvtransfer)
+  public boolean isChecksummingWhileReceiving() {
+    return checksummingWhileReceiving;
+  }
+
+  /**
+   * Sets whether each file's checksum is computed from the data as it is
+   * received, rather than by reading the file back once it has been
+   * received. This is on by default.
+   */
+  public void setChecksummingWhileReceiving(boolean checksumming) {
+    this.checksummingWhileReceiving = checksumming;
+  }
+
+  /**
+   * Returns the writer which writes received files to disk in the
+   * background, or {@code null} if they're written as they're received.
+   */
+  @Nullable WriteBehindWriter getWriteBehindWriter() {
+    return writeBehindWriter;
+  }
+
+  DiskSyncPolicy getDiskSyncPolicy() { return diskSyncPolicy; }
+
+  boolean isPreallocatingFiles() { return preallocatingFiles; }
+
+  protected void startTransfer(RvConnection rvtransfer)
       throws IOException, FailureEventException {
-    RvSessionConnectionInfo conninfo = rvtransfer.getRvSessionInfo();
-    IncomingFileTransfer itransfer = (IncomingFileTransfer) rvtransfer;
+    RvConnectionSettings settings = rvtransfer.getSettings();
+    diskSyncPolicy = settings.getDiskSyncPolicy();
+    preallocatingFiles = settings.isPreallocatingFiles();
+    int buffers = settings.getWriteBehindBuffers();
+    if (buffers > 0) {
+      writeBehindWriter = new WriteBehindWriter(buffers, diskSyncPolicy);
+    }
+
+    connection = (IncomingFileTransfer) rvtransfer;
     if (plumber == null) {
-      plumber = new IncomingFileTransferPlumberImpl(itransfer, this);
+      plumber = new IncomingFileTransferPlumberImpl(connection, this);
     }
+    receiveFile();
+  }
 
-    List<TransferredFile> files = new ArrayList<TransferredFile>();
-    EventPost eventpost = itransfer.getEventPost();
-    long icbmId = conninfo.getRvSession().getRvSessionId();
-    boolean finished = false;
-    boolean stop = false;
-    while (!stop && !shouldStop()) {
-      LOGGER.fine("Waiting for next FT packet");
-      FileTransferHeader sendheader = plumber.readHeader();
-
-      if (sendheader == null) {
-        LOGGER.info("Couldn't read FT header");
-        break;
-      }
-      assert sendheader.getHeaderType() == HEADERTYPE_SENDHEADER;
-      long desiredChecksum = sendheader.getChecksum();
-      if (rvtransfer.getRvSessionInfo().getInitiator() == Initiator.ME) {
-        long sentid = sendheader.getIcbmMessageId();
-        if (sentid != icbmId) {
-          LOGGER.info("Other end sent " + sentid + " but we're looking for "
-              + icbmId);
-          break;
-        }
-      }
-      setConnected();
-
-      SegmentedFilename segName = sendheader.getFilename();
-      TransferredFile destFile = plumber.getNativeFile(segName,
-          sendheader.getMacFileInfo());
-
-      files.add(destFile);
-      boolean attemptResume = plumber.shouldAttemptResume(destFile);
-      FileChannel fileChannel = destFile.getChannel();
-
-      long toDownload;
-      if (attemptResume) {
-        FileTransferHeader outHeader = new FileTransferHeader(sendheader);
-        outHeader.setHeaderType(HEADERTYPE_RESUME);
-        outHeader.setIcbmMessageId(icbmId);
-        long len = destFile.getSize();
-        outHeader.setBytesReceived(len);
-        Checksummer summer = plumber.getChecksummer(destFile, len);
-        eventpost.fireEvent(new ChecksummingEvent(destFile, summer));
-        outHeader.setReceivedChecksum(summer.compute());
-        outHeader.setCompression(0);
-        outHeader.setEncryption(0);
-        plumber.sendHeader(outHeader);
-
-        FileTransferHeader resumeResponse = plumber.readHeader();
-        if (resumeResponse == null) {
-          LOGGER.info("Didn't receive resume response; connection closed");
-          break;
-        }
-        assert resumeResponse.getHeaderType() == HEADERTYPE_RESUME_SENDHEADER
-            : resumeResponse.getHeaderType();
-        long bytesReceived = resumeResponse.getBytesReceived();
-        // this is an assertion rather than exception because we check it
-        // for real immediately afterwards
-        assert bytesReceived <= len : "sender is trying to trick us: "
-            + bytesReceived + " > " + len;
-        if (bytesReceived != len) {
-          eventpost.fireEvent(new ResumeChecksumFailedEvent(destFile));
-        }
-        fileChannel.position(bytesReceived);
-        fileChannel.truncate(bytesReceived);
-        toDownload = resumeResponse.getFileSize() - bytesReceived;
-        FileTransferHeader finalResponse = new FileTransferHeader(
-            resumeResponse);
-        finalResponse.setHeaderType(HEADERTYPE_RESUME_ACK);
-        plumber.sendHeader(finalResponse);
+  protected void cleanUp() {
+    WriteBehindWriter writer = writeBehindWriter;
+    if (writer != null) writer.close();
+  }
 
-      } else {
-        // not resuming
-        FileTransferHeader outHeader = new FileTransferHeader(sendheader);
-        outHeader.setIcbmMessageId(icbmId);
-        fileChannel.truncate(0);
-        outHeader.setHeaderType(HEADERTYPE_ACK);
-        outHeader.setBytesReceived(0);
-        outHeader.setReceivedChecksum(0);
-        outHeader.setCompression(0);
-        outHeader.setEncryption(0);
-        outHeader.setFlags(0);
-        plumber.sendHeader(outHeader);
-        toDownload = sendheader.getFileSize();
-      }
+  /**
+   * Receives the next file, and then the ones after it.
+   */
+  private void receiveFile() throws IOException {
+    if (shouldStop()) {
+      finishReceiving(false);
+      return;
+    }
+    RvSessionConnectionInfo conninfo = connection.getRvSessionInfo();
+    EventPost eventpost = connection.getEventPost();
+    final long icbmId = conninfo.getRvSession().getRvSessionId();
 
-      long startedAt = fileChannel.position();
-      Transferrer receiver = plumber
-          .createTransferrer(destFile, startedAt, toDownload);
-      TransferringFileInfo info = new TransferringFileInfo(destFile,
-          startedAt, startedAt + toDownload);
-      eventpost.fireEvent(new TransferringFileEvent(info, receiver));
-      long downloaded = receiver.transfer();
-      if (downloaded != toDownload) {
-        LOGGER.fine("Didn't download correct number of bytes: downloaded "
-            + downloaded + ", wanted " + toDownload);
-        break;
+    LOGGER.fine("Waiting for next FT packet");
+    final FileTransferHeader sendheader = plumber.readHeader();
+
+    if (sendheader == null) {
+      LOGGER.info("Couldn't read FT header");
+      finishReceiving(false);
+      return;
+    }
+    assert sendheader.getHeaderType() == HEADERTYPE_SENDHEADER;
+    final long desiredChecksum = sendheader.getChecksum();
+    if (conninfo.getInitiator() == Initiator.ME) {
+      long sentid = sendheader.getIcbmMessageId();
+      if (sentid != icbmId) {
+        LOGGER.info("Other end sent " + sentid + " but we're looking for "
+            + icbmId);
+        finishReceiving(false);
+        return;
       }
+    }
+    setConnected();
+
+    SegmentedFilename segName = sendheader.getFilename();
+    final TransferredFile destFile = plumber.getNativeFile(segName,
+        sendheader.getMacFileInfo());
 
-      long sumLength = startedAt + downloaded;
-      Checksummer summer = plumber.getChecksummer(destFile, sumLength);
+    files.add(destFile);
+    boolean attemptResume = plumber.shouldAttemptResume(destFile);
+    FileChannel fileChannel = destFile.getChannel();
+
+    final long toDownload;
+    // the checksum of the part of the file we already have, if resuming
+    long prefixLength = 0;
+    long prefixSum = FileTransferChecksum.CHECKSUM_EMPTY;
+    if (attemptResume) {
+      FileTransferHeader outHeader = new FileTransferHeader(sendheader);
+      outHeader.setHeaderType(HEADERTYPE_RESUME);
+      outHeader.setIcbmMessageId(icbmId);
+      long len = destFile.getSize();
+      outHeader.setBytesReceived(len);
+      Checksummer summer = plumber.getChecksummer(destFile, len);
       eventpost.fireEvent(new ChecksummingEvent(destFile, summer));
-      long calculatedSum = summer.compute();
-
-      destFile.close();
-
-      boolean failed = calculatedSum != desiredChecksum;
-      if (!failed) eventpost.fireEvent(new FileCompleteEvent(info));
-
-      FileTransferHeader doneHeader;
-      try {
-        doneHeader = new FileTransferHeader(sendheader);
-        doneHeader.setHeaderType(FileTransferHeader.HEADERTYPE_RECEIVED);
-        doneHeader.setFlags(doneHeader.getFlags()
-            | FileTransferHeader.FLAG_DONE);
-        doneHeader.setIcbmMessageId(icbmId);
-        doneHeader.setFilesLeft(doneHeader.getFilesLeft() - 1);
-        if (doneHeader.getFilesLeft() == 0) {
-          doneHeader.setPartsLeft(doneHeader.getPartsLeft() - 1);
-        }
-        doneHeader.setBytesReceived(startedAt + downloaded);
-        doneHeader.setReceivedChecksum(calculatedSum);
-        plumber.sendHeader(doneHeader);
-      } finally {
-        if (failed) {
-          fireFailed(new CorruptTransferEvent(info));
-          stop = true;
-        }
+      long sum = summer.compute();
+      outHeader.setReceivedChecksum(sum);
+      outHeader.setCompression(0);
+      outHeader.setEncryption(0);
+      plumber.sendHeader(outHeader);
+
+      FileTransferHeader resumeResponse = plumber.readHeader();
+      if (resumeResponse == null) {
+        LOGGER.info("Didn't receive resume response; connection closed");
+        finishReceiving(false);
+        return;
       }
-      int filesLeft = doneHeader.getFilesLeft();
-      int partsLeft = doneHeader.getPartsLeft();
-      if (filesLeft == 0 && partsLeft == 0) {
-        finished = true;
-        break;
-      } else {
-        LOGGER.info(
-            "Waiting for " + filesLeft + " files and " + partsLeft + " parts");
+      assert resumeResponse.getHeaderType() == HEADERTYPE_RESUME_SENDHEADER
+          : resumeResponse.getHeaderType();
+      long bytesReceived = resumeResponse.getBytesReceived();
+      // this is an assertion rather than exception because we check it
+      // for real immediately afterwards
+      assert bytesReceived <= len : "sender is trying to trick us: "
+          + bytesReceived + " > " + len;
+      if (bytesReceived != len) {
+        eventpost.fireEvent(new ResumeChecksumFailedEvent(destFile));
+      }
+      fileChannel.position(bytesReceived);
+      fileChannel.truncate(bytesReceived);
+      if (bytesReceived == len) {
+        prefixLength = len;
+        prefixSum = sum;
+      }
+      toDownload = resumeResponse.getFileSize() - bytesReceived;
+      FileTransferHeader finalResponse = new FileTransferHeader(
+          resumeResponse);
+      finalResponse.setHeaderType(HEADERTYPE_RESUME_ACK);
+      plumber.sendHeader(finalResponse);
+
+    } else {
+      // not resuming
+      FileTransferHeader outHeader = new FileTransferHeader(sendheader);
+      outHeader.setIcbmMessageId(icbmId);
+      fileChannel.truncate(0);
+      outHeader.setHeaderType(HEADERTYPE_ACK);
+      outHeader.setBytesReceived(0);
+      outHeader.setReceivedChecksum(0);
+      outHeader.setCompression(0);
+      outHeader.setEncryption(0);
+      outHeader.setFlags(0);
+      plumber.sendHeader(outHeader);
+      toDownload = sendheader.getFileSize();
+    }
+
+    final long startedAt = fileChannel.position();
+    RunningChecksummer runningSummer = null;
+    if (isChecksummingWhileReceiving()) {
+      if (prefixLength != startedAt) {
+        // we only have a checksum for a different part of the file
+        Checksummer summer = plumber.getChecksummer(destFile, startedAt);
+        eventpost.fireEvent(new ChecksummingEvent(destFile, summer));
+        prefixSum = summer.compute();
+      }
+      runningSummer = new RunningChecksummer(prefixSum, startedAt,
+          startedAt + toDownload);
+    }
+    Transferrer receiver;
+    if (runningSummer == null) {
+      receiver = plumber.createTransferrer(destFile, startedAt, toDownload);
+    } else {
+      receiver = plumber.createTransferrer(destFile, startedAt, toDownload,
+          runningSummer);
+    }
+    final TransferringFileInfo info = new TransferringFileInfo(destFile,
+        startedAt, startedAt + toDownload);
+    eventpost.fireEvent(new TransferringFileEvent(info, receiver));
+    final RunningChecksummer usedSummer = runningSummer;
+    transferData(receiver, new DataStep() {
+      protected void runStep(long downloaded) throws IOException {
+        if (downloaded != toDownload) {
+          LOGGER.fine("Didn't download correct number of bytes: downloaded "
+              + downloaded + ", wanted " + toDownload);
+          finishReceiving(false);
+          return;
+        }
+        fileReceived(sendheader, icbmId, desiredChecksum, destFile, info,
+            usedSummer, startedAt + downloaded);
       }
+    });
+  }
+
+  /**
+   * Checks the file which was just received, tells the sender how it went,
+   * and goes on to the next file if there is one.
+   */
+  private void fileReceived(FileTransferHeader sendheader, long icbmId,
+      long desiredChecksum, TransferredFile destFile,
+      TransferringFileInfo info, @Nullable RunningChecksummer runningSummer,
+      long received) throws IOException {
+    EventPost eventpost = connection.getEventPost();
+    long calculatedSum;
+    if (runningSummer == null) {
+      Checksummer summer = plumber.getChecksummer(destFile, received);
+      eventpost.fireEvent(new ChecksummingEvent(destFile, summer));
+      calculatedSum = summer.compute();
+    } else {
+      calculatedSum = runningSummer.compute();
     }
 
-    if (finished) {
-      fireSucceeded(new TransferSucceededInfo(files));
+    destFile.close();
+
+    boolean failed = calculatedSum != desiredChecksum;
+    if (!failed) eventpost.fireEvent(new FileCompleteEvent(info));
+
+    FileTransferHeader doneHeader;
+    try {
+      doneHeader = new FileTransferHeader(sendheader);
+      doneHeader.setHeaderType(FileTransferHeader.HEADERTYPE_RECEIVED);
+      doneHeader.setFlags(doneHeader.getFlags()
+          | FileTransferHeader.FLAG_DONE);
+      doneHeader.setIcbmMessageId(icbmId);
+      doneHeader.setFilesLeft(doneHeader.getFilesLeft() - 1);
+      if (doneHeader.getFilesLeft() == 0) {
+        doneHeader.setPartsLeft(doneHeader.getPartsLeft() - 1);
+      }
+      doneHeader.setBytesReceived(received);
+      doneHeader.setReceivedChecksum(calculatedSum);
+      plumber.sendHeader(doneHeader);
+    } finally {
+      if (failed) fireFailed(new CorruptTransferEvent(info));
+    }
+    int filesLeft = doneHeader.getFilesLeft();
+    int partsLeft = doneHeader.getPartsLeft();
+    if (filesLeft == 0 && partsLeft == 0) {
+      finishReceiving(true);
+      return;
+    }
+    LOGGER.info(
+        "Waiting for " + filesLeft + " files and " + partsLeft + " parts");
+    if (failed) {
+      finishReceiving(false);
     } else {
-      fireFailed(new UnknownErrorEvent());
+      receiveFile();
+    }
+  }
+
+  private void finishReceiving(boolean finished) {
+    try {
+      if (finished) {
+        fireSucceeded(new TransferSucceededInfo(files));
+      } else {
+        fireFailed(new UnknownErrorEvent());
+      }
+    } finally {
+      finish();
     }
   }
 }
@@ -42,6 +42,7 @@ import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_RESUME;
 import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_RESUME_ACK;
 import static net.kano.joscar.rvproto.ft.FileTransferHeader.HEADERTYPE_RESUME_SENDHEADER;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.Checksummer;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.ChecksummerListener;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.FailureEventException;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.Initiator;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.OutgoingFileTransfer;
@@ -56,6 +57,7 @@ import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.TransferringFileEven
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.TransferringFileInfo;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.UnknownErrorEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.TransferSucceededInfo;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.Collection;
@@ -71,64 +73,106 @@ public class SendFileController extends TransferController {
   private EventPost eventPost;
   private RvSessionConnectionInfo rvConnectionInfo;
   private OutgoingFileTransfer transfer;
+  private volatile boolean pipeliningChecksums = true;
+  private @Nullable ChecksumPipeline checksumPipeline = null;
+  private List<TransferredFile> fileHandles = null;
+  private long totalSize;
 
   public void setPlumber(OutgoingFileTransferPlumber plumber) {
     this.plumber = plumber;
   }
 
-  protected void transferInThread(RvConnection connection)
+  public boolean isPipeliningChecksums() {
+    return pipeliningChecksums;
+  }
+
+  /**
+   * Sets whether, when sending more than one file, the checksums of the next
+   * files are computed in the background while the current file is being
+   * sent. This is on by default.
+   */
+  public void setPipeliningChecksums(boolean pipelining) {
+    this.pipeliningChecksums = pipelining;
+  }
+
+  protected void startTransfer(RvConnection connection)
       throws IOException, FailureEventException {
     transfer = (OutgoingFileTransfer) connection;
     rvConnectionInfo = connection.getRvSessionInfo();
     eventPost = transfer.getEventPost();
     initializePlumber();
-    List<TransferredFile> fileHandles = plumber.getFilesToTransfer();
-    try {
-      long totalSize = getTotalSize(fileHandles);
-
-      int fileCount = fileHandles.size();
-      int filesRemaining = fileCount;
-
-      try {
-        for (TransferredFile currentFile : fileHandles) {
-          sendFile(currentFile, filesRemaining, fileCount, totalSize);
-
-          filesRemaining--;
-        }
-        fireSucceeded(new TransferSucceededInfo(fileHandles));
+    fileHandles = plumber.getFilesToTransfer();
+    totalSize = getTotalSize(fileHandles);
 
-      } catch (TransferProblemException e) {
-        fireFailed(new UnknownErrorEvent());
-      }
-    } finally {
-      close(fileHandles);
+    if (fileHandles.size() > 1 && isPipeliningChecksums()) {
+      checksumPipeline = new ChecksumPipeline(transfer.getChecksummer(),
+          fileHandles);
+      checksumPipeline.start();
     }
+    sendFile(0);
   }
 
-  private void sendFile(TransferredFile currentFile, int filesRemaining,
-                        int fileCount, long totalSize)
-      throws IOException, TransferProblemException {
+  protected void cleanUp() {
+    if (checksumPipeline != null) checksumPipeline.stop();
+    if (fileHandles != null) close(fileHandles);
+  }
 
-    long fileChecksum = computeChecksum(currentFile);
+  /**
+   * Sends the file at the given index, and then the ones after it.
+   */
+  private void sendFile(final int index) throws IOException {
+    int fileCount = fileHandles.size();
+    if (index == fileCount) {
+      fireSucceeded(new TransferSucceededInfo(fileHandles));
+      finish();
+      return;
+    }
+    final TransferredFile currentFile = fileHandles.get(index);
+
+    final long fileChecksum = computeChecksum(index, currentFile);
 
-    long fileSize = currentFile.getSize();
+    final long fileSize = currentFile.getSize();
     FileTransferHeader initialHeader = createInitialHeaderForFile(currentFile,
-        fileChecksum, filesRemaining, fileCount, fileSize, totalSize);
+        fileChecksum, fileCount - index, fileCount, fileSize, totalSize);
 
     plumber.sendHeader(initialHeader);
 
-    long resumePosition = readInitialResponse(currentFile, initialHeader,
-        fileChecksum);
+    final long resumePosition;
+    try {
+      resumePosition = readInitialResponse(currentFile, initialHeader,
+          fileChecksum);
+    } catch (TransferProblemException e) {
+      transferProblem();
+      return;
+    }
 
-    TransferringFileInfo info = new TransferringFileInfo(currentFile,
+    final TransferringFileInfo info = new TransferringFileInfo(currentFile,
         resumePosition);
-    long transferred = transferFile(info);
-
-    currentFile.close();
-
-    checkSentCorrectData(resumePosition, fileSize, transferred);
+    Transferrer sender = plumber.createTransferrer(info.getFile(),
+        info.getResumePosition(), info.getFileSize());
+    assert sender != null : plumber;
+    eventPost.fireEvent(new TransferringFileEvent(info, sender));
+    transferData(sender, new DataStep() {
+      protected void runStep(long transferred) throws IOException {
+        currentFile.close();
+        try {
+          checkSentCorrectData(resumePosition, fileSize, transferred);
+          readReceivedResponse(info, fileChecksum);
+        } catch (TransferProblemException e) {
+          transferProblem();
+          return;
+        }
+        sendFile(index + 1);
+      }
+    });
+  }
 
-    readReceivedResponse(info, fileChecksum);
+  private void transferProblem() {
+    try {
+      fireFailed(new UnknownErrorEvent());
+    } finally {
+      finish();
+    }
   }
 
   private long readInitialResponse(TransferredFile currentFile,
@@ -200,16 +244,6 @@ public class SendFileController extends TransferController {
     throw new TransferProblemException();
   }
 
-  private long transferFile(TransferringFileInfo info) throws IOException {
-    Transferrer sender = plumber.createTransferrer(info.getFile(),
-        info.getResumePosition(), info.getFileSize());
-    assert sender != null : plumber;
-    eventPost.fireEvent(new TransferringFileEvent(info, sender));
-    //noinspection UnnecessaryLocalVariable
-    long sent = sender.transfer();
-    return sent;
-  }
-
   private long getResumePositionFromResumePacket(
       TransferredFile currentFile, FileTransferHeader initialHeader,
       FileTransferHeader ack, long fileChecksum)
@@ -288,9 +322,23 @@ public class SendFileController extends TransferController {
     return rsummer.compute();
   }
 
-  private long computeChecksum(TransferredFile mfile) throws IOException {
+  private long computeChecksum(int index, TransferredFile mfile)
+      throws IOException {
     pauseTimeout();
-    long fileChecksum = transfer.getChecksummer().getChecksum(mfile);
+    long fileChecksum;
+    if (checksumPipeline != null) {
+      // if the pipeline hasn't finished this file yet, show the user what
+      // we're waiting for
+      fileChecksum = checksumPipeline.getChecksum(index,
+          new ChecksummerListener() {
+            public void checksumStarted(TransferredFile file,
+                Checksummer summer) {
+              eventPost.fireEvent(new ChecksummingEvent(file, summer));
+            }
+          });
+    } else {
+      fileChecksum = transfer.getChecksummer().getChecksum(mfile);
+    }
     resumeTimeout();
     return fileChecksum;
   }
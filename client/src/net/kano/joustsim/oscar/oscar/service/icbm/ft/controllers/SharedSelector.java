@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Waits for channels to become ready for reading or writing, using a few
+ * selector threads which are shared by all file transfers and Direct IM
+ * connections. Before this class, each transfer opened its own
+ * {@code Selector} and polled it.
+ * <br />
+ * <br />
+ * Any number of threads may wait on the same channel at once, for the same
+ * or different operations. Channels must be in non-blocking mode while
+ * anyone is waiting on them, and must be {@linkplain #release released}
+ * before they can be put back into blocking mode.
+ */
+public class SharedSelector {
+  private static final Logger LOGGER
+      = Logger.getLogger(SharedSelector.class.getName());
+
+  /**
+   * How often the selector threads check for channels which were closed while
+   * someone was waiting on them.
+   */
+  private static final long SELECT_TIMEOUT = 250;
+
+  private static SharedSelector instance = null;
+
+  /**
+   * Returns the selector shared by all transfers, creating it if necessary.
+   */
+  public static synchronized SharedSelector getInstance() throws IOException {
+    if (instance == null) {
+      int processors = Runtime.getRuntime().availableProcessors();
+      instance = new SharedSelector(Math.max(1, Math.min(4, processors / 2)));
+    }
+    return instance;
+  }
+
+  private final SelectorThread[] threads;
+
+  public SharedSelector(int threadCount) throws IOException {
+    DefensiveTools.checkRange(threadCount, "threadCount", 1);
+
+    threads = new SelectorThread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new SelectorThread(Selector.open(),
+          "Transfer selector " + (i + 1));
+    }
+    for (SelectorThread thread : threads) thread.start();
+  }
+
+  /**
+   * Waits until the given channel is ready for one of the given operations,
+   * or until {@code timeout} milliseconds have passed. If the channel is
+   * closed, this method returns immediately, so the caller finds out about it
+   * when it next uses the channel.
+   *
+   * @return whether the channel became ready before the timeout
+   */
+  public boolean waitUntilReady(SelectableChannel channel, int ops,
+      long timeout) throws IOException {
+    DefensiveTools.checkNull(channel, "channel");
+    DefensiveTools.checkRange(timeout, "timeout", 0);
+
+    if (!channel.isOpen()) return true;
+    Waiter waiter = new Waiter(channel, ops);
+    getThread(channel).addTask(waiter);
+    return waiter.await(timeout);
+  }
+
+  /**
+   * Runs the given callback on the given executor once the given channel is
+   * ready for one of the given operations, or is closed. Unlike
+   * {@link #waitUntilReady}, no thread is tied up until then, so this suits
+   * connections which are idle most of the time.
+   */
+  public void whenReady(SelectableChannel channel, int ops, Executor executor,
+      Runnable callback) {
+    whenReady(channel, ops, 0, executor, callback);
+  }
+
+  /**
+   * Like {@link #whenReady(SelectableChannel, int, Executor, Runnable)}, but
+   * also runs the callback once {@code timeout} milliseconds have passed,
+   * unless it's zero. Timeouts are only checked every quarter second or so.
+   */
+  public void whenReady(SelectableChannel channel, int ops, long timeout,
+      Executor executor, Runnable callback) {
+    DefensiveTools.checkNull(channel, "channel");
+    DefensiveTools.checkRange(timeout, "timeout", 0);
+    DefensiveTools.checkNull(executor, "executor");
+    DefensiveTools.checkNull(callback, "callback");
+
+    long deadline = timeout == 0 ? 0 : System.currentTimeMillis() + timeout;
+    Callback waiter = new Callback(channel, ops, deadline, executor, callback);
+    if (!channel.isOpen()) {
+      waiter.finish(true, null);
+      return;
+    }
+    getThread(channel).addTask(waiter);
+  }
+
+  /**
+   * Deregisters the given channel from this selector, so it can be put back
+   * into blocking mode. Anyone waiting on the channel is woken up.
+   */
+  public void release(SelectableChannel channel) throws IOException {
+    DefensiveTools.checkNull(channel, "channel");
+
+    Release release = new Release(channel);
+    getThread(channel).addTask(release);
+    release.await(0);
+  }
+
+  private SelectorThread getThread(SelectableChannel channel) {
+    int hash = System.identityHashCode(channel) & Integer.MAX_VALUE;
+    return threads[hash % threads.length];
+  }
+
+  private static class SelectorThread extends Thread {
+    private final Selector selector;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+    private final Set<ChannelState> states = new HashSet<ChannelState>();
+    /**
+     * When we last looked for channels which were closed, and callbacks which
+     * timed out.
+     */
+    private long lastClosedCheck = System.currentTimeMillis();
+
+    public SelectorThread(Selector selector, String name) {
+      super(name);
+      this.selector = selector;
+      setDaemon(true);
+    }
+
+    public void addTask(Task task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          runTasks();
+          processSelectedKeys();
+          selector.select(SELECT_TIMEOUT);
+          processSelectedKeys();
+          // this can't wait for a select which finds nothing, since a busy
+          // selector might never have one
+          long now = System.currentTimeMillis();
+          if (now - lastClosedCheck >= SELECT_TIMEOUT) {
+            lastClosedCheck = now;
+            wakeClosedChannels();
+            expireCallbacks(now);
+          }
+
+        } catch (Throwable t) {
+          LOGGER.log(Level.WARNING, "Error in transfer selector thread", t);
+        }
+      }
+    }
+
+    private void runTasks() throws IOException {
+      List<Release> releases = null;
+      for (Task task = tasks.poll(); task != null; task = tasks.poll()) {
+        if (task instanceof Waiter) {
+          addWaiter((Waiter) task);
+
+        } else if (task instanceof Release) {
+          SelectionKey key = task.channel.keyFor(selector);
+          if (key != null) {
+            wakeAll(key);
+            key.cancel();
+          }
+          if (releases == null) releases = new ArrayList<Release>();
+          releases.add((Release) task);
+        }
+      }
+      if (releases != null) {
+        // this deregisters the cancelled keys, so their channels can go back
+        // into blocking mode
+        selector.selectNow();
+        for (Release release : releases) release.finish(true, null);
+      }
+    }
+
+    private void addWaiter(Waiter waiter) {
+      SelectableChannel channel = waiter.channel;
+      try {
+        SelectionKey key = channel.keyFor(selector);
+        ChannelState state;
+        if (key == null || !key.isValid()) {
+          state = new ChannelState();
+          key = channel.register(selector, waiter.ops, state);
+          state.key = key;
+          states.add(state);
+
+        } else {
+          state = (ChannelState) key.attachment();
+          state.pruneCancelled();
+          key.interestOps(key.interestOps() | waiter.ops);
+        }
+        state.waiters.add(waiter);
+
+      } catch (ClosedChannelException e) {
+        waiter.finish(true, null);
+
+      } catch (CancelledKeyException e) {
+        waiter.finish(true, null);
+
+      } catch (RuntimeException e) {
+        waiter.finish(false, e);
+      }
+    }
+
+    private void processSelectedKeys() {
+      Set<SelectionKey> keys = selector.selectedKeys();
+      for (SelectionKey key : keys) {
+        ChannelState state = (ChannelState) key.attachment();
+        if (!key.isValid()) {
+          wakeAll(key);
+          continue;
+        }
+        int ready = key.readyOps();
+        int interest = 0;
+        for (Iterator<Waiter> it = state.waiters.iterator(); it.hasNext();) {
+          Waiter waiter = it.next();
+          if ((waiter.ops & ready) != 0) {
+            waiter.finish(true, null);
+            it.remove();
+          } else if (!waiter.isFinished()) {
+            interest |= waiter.ops;
+          } else {
+            it.remove();
+          }
+        }
+        // nobody is waiting for the other operations, so we don't want to
+        // keep getting woken up for them
+        try {
+          key.interestOps(interest);
+        } catch (CancelledKeyException e) {
+          wakeAll(key);
+        }
+      }
+      keys.clear();
+    }
+
+    private void wakeClosedChannels() {
+      for (Iterator<ChannelState> it = states.iterator(); it.hasNext();) {
+        ChannelState state = it.next();
+        if (!state.key.isValid()) {
+          state.wakeAll();
+          it.remove();
+        }
+      }
+    }
+
+    private void expireCallbacks(long now) {
+      for (ChannelState state : states) {
+        boolean expired = false;
+        for (Iterator<Waiter> it = state.waiters.iterator(); it.hasNext();) {
+          Waiter waiter = it.next();
+          if (waiter instanceof Callback
+              && ((Callback) waiter).hasExpired(now)) {
+            waiter.finish(false, null);
+            it.remove();
+            expired = true;
+          }
+        }
+        if (expired) {
+          // otherwise we'd keep being woken up for what it was waiting for
+          try {
+            state.key.interestOps(state.getInterestOps());
+          } catch (CancelledKeyException e) {
+            // we'll find out when we next look for closed channels
+          }
+        }
+      }
+    }
+
+    private void wakeAll(SelectionKey key) {
+      ChannelState state = (ChannelState) key.attachment();
+      state.wakeAll();
+      states.remove(state);
+    }
+  }
+
+  private static class ChannelState {
+    public SelectionKey key;
+    public final List<Waiter> waiters = new ArrayList<Waiter>(2);
+
+    public void pruneCancelled() {
+      for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+        if (it.next().isFinished()) it.remove();
+      }
+    }
+
+    public int getInterestOps() {
+      int ops = 0;
+      for (Waiter waiter : waiters) {
+        if (!waiter.isFinished()) ops |= waiter.ops;
+      }
+      return ops;
+    }
+
+    public void wakeAll() {
+      for (Waiter waiter : waiters) waiter.finish(true, null);
+      waiters.clear();
+    }
+  }
+
+  private abstract static class Task {
+    public final SelectableChannel channel;
+    private boolean finished = false;
+    private boolean ready = false;
+    private RuntimeException error = null;
+
+    protected Task(SelectableChannel channel) {
+      this.channel = channel;
+    }
+
+    public synchronized boolean isFinished() {
+      return finished;
+    }
+
+    public synchronized void finish(boolean ready, RuntimeException error) {
+      if (finished) return;
+      finished = true;
+      this.ready = ready;
+      this.error = error;
+      notifyAll();
+      finished();
+    }
+
+    /** Called once, when this task first finishes. */
+    protected void finished() {
+    }
+
+    /**
+     * Waits for this task to finish, for at most {@code timeout} milliseconds
+     * unless it's zero.
+     */
+    public synchronized boolean await(long timeout) throws IOException {
+      long end = System.currentTimeMillis() + timeout;
+      try {
+        while (!finished) {
+          if (timeout == 0) {
+            wait();
+          } else {
+            long left = end - System.currentTimeMillis();
+            if (left <= 0) break;
+            wait(left);
+          }
+        }
+      } catch (InterruptedException e) {
+        finished = true;
+        throw new InterruptedIOException();
+      }
+      // a waiter which timed out must not be woken up later
+      finished = true;
+      if (error != null) throw error;
+      return ready;
+    }
+  }
+
+  private static class Waiter extends Task {
+    public final int ops;
+
+    public Waiter(SelectableChannel channel, int ops) {
+      super(channel);
+      this.ops = ops;
+    }
+  }
+
+  private static class Callback extends Waiter {
+    /** When this callback should be run anyway, or zero for never. */
+    private final long deadline;
+    private final Executor executor;
+    private final Runnable callback;
+
+    public Callback(SelectableChannel channel, int ops, long deadline,
+        Executor executor, Runnable callback) {
+      super(channel, ops);
+      this.deadline = deadline;
+      this.executor = executor;
+      this.callback = callback;
+    }
+
+    public boolean hasExpired(long now) {
+      return deadline != 0 && now >= deadline;
+    }
+
+    protected void finished() {
+      executor.execute(callback);
+    }
+  }
+
+  private static class Release extends Task {
+    public Release(SelectableChannel channel) {
+      super(channel);
+    }
+  }
+}
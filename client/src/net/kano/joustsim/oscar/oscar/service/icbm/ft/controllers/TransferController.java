@@ -33,32 +33,88 @@
 
 package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
 
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.BandwidthManager;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.ConnectionType;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.FailureEventException;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnection;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.TransferThrottle;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ConnectedEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.ConnectionTimedOutEvent;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StateInfo;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-//TOLATER: allow limiting bandwidth
+/**
+ * A controller which transfers files over a connection. The work is done in
+ * {@linkplain Step steps} on a pool of threads shared by all transfers, and
+ * while a file's data is being {@linkplain #transferData transferred}, no
+ * thread is held while waiting for the other end.
+ */
 public abstract class TransferController extends AbstractStateController
     implements PausableController, TimeoutableController, ConnectedController {
   private static final Logger LOGGER = Logger
       .getLogger(TransferController.class.getName());
 
+  private static final ExecutorService SHARED_POOL
+      = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r,
+              "File transfer worker " + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
   private volatile boolean cancelled = false;
   private boolean connected = false;
-  private Thread transferThread;
   private boolean suppressErrors = false;
+
+  private final Object stepLock = new Object();
+  /** The thread running this transfer's current step, if any. */
+  private Thread stepThread = null;
+  private boolean finished = false;
+
+  /**
+   * Runs this transfer's steps on the shared pool, keeping track of which
+   * thread is running them so they can be interrupted.
+   */
+  private final Executor stepExecutor = new Executor() {
+    public void execute(final Runnable command) {
+      SHARED_POOL.execute(new Runnable() {
+        public void run() {
+          Thread current = Thread.currentThread();
+          synchronized (stepLock) {
+            stepThread = current;
+          }
+          try {
+            command.run();
+          } finally {
+            synchronized (stepLock) {
+              if (stepThread == current) stepThread = null;
+              // don't let an interrupt meant for us hit the pool's next task
+              Thread.interrupted();
+            }
+          }
+        }
+      });
+    }
+  };
   @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"})
   private RvConnection transfer;
 
   private final PauseHelper pauseHelper = new PauseHelperImpl();
   private StreamInfo stream;
+  private @Nullable TransferThrottle throttle = null;
 
   protected synchronized void pauseTimeout() {
     LOGGER.info("File transfer timeout paused");
@@ -84,7 +140,7 @@ public abstract class TransferController extends AbstractStateController
       }
     }
     if (timedout) {
-      transferThread.interrupt();
+      interruptStep();
       fireFailed(new ConnectionTimedOutEvent(timeout));
     }
   }
@@ -98,24 +154,89 @@ public abstract class TransferController extends AbstractStateController
     StateInfo lastinfo = last.getEndStateInfo();
     assert lastinfo instanceof StreamInfo : last;
     stream = (StreamInfo) lastinfo;
-    transferThread = new Thread(new Runnable() {
+    execute(new Step() {
+      protected void runStep() throws IOException, FailureEventException {
+        synchronized (TransferController.this) {
+          transfer.getTimeoutHandler().startTimeout(TransferController.this);
+          BandwidthManager manager = transfer.getSettings()
+              .getBandwidthManager();
+          if (manager != null) throttle = manager.register(transfer);
+        }
+        startTransfer(transfer);
+      }
+    });
+  }
+
+  /**
+   * Runs the given step on the shared pool.
+   */
+  protected void execute(Step step) {
+    stepExecutor.execute(step);
+  }
+
+  /**
+   * Transfers a file's data, and then runs the given step with how much was
+   * transferred. The data is transferred on the shared pool, and transferrers
+   * which can be {@linkplain AbstractTransferrer#transferAsync run
+   * asynchronously} hold no thread while waiting for the other end.
+   */
+  protected void transferData(final Transferrer transferrer,
+      final DataStep next) {
+    if (transferrer instanceof AbstractTransferrer) {
+      ((AbstractTransferrer) transferrer).transferAsync(stepExecutor, next);
+      return;
+    }
+    // we can't wait for anything else without a thread
+    stepExecutor.execute(new Runnable() {
       public void run() {
+        long transferred;
         try {
-          synchronized (TransferController.this) {
-            transfer.getTimeoutHandler().startTimeout(TransferController.this);
-          }
-          transferInThread(transfer);
-
+          transferred = transferrer.transfer();
         } catch (Exception e) {
-          if (!shouldSuppressErrors()) {
-            fireFailed(e);
-          }
+          next.transferFailed(e);
+          return;
         }
+        next.transferFinished(transferred);
       }
+    });
+  }
 
-    }, "File transfer thread");
+  /**
+   * Ends the transfer because of the given error, which is reported unless
+   * errors are being suppressed.
+   */
+  protected void failed(Exception e) {
+    try {
+      if (!shouldSuppressErrors()) {
+        fireFailed(e);
+      }
+    } finally {
+      finish();
+    }
+  }
 
-    transferThread.start();
+  /**
+   * Cleans up once the transfer has ended, whether or not it succeeded. This
+   * must be called once the last step has run, and only the first call does
+   * anything.
+   */
+  protected void finish() {
+    synchronized (stepLock) {
+      if (finished) return;
+      finished = true;
+    }
+    try {
+      cleanUp();
+    } finally {
+      TransferThrottle used = getThrottle();
+      if (used != null) used.close();
+    }
+  }
+
+  /**
+   * Releases anything held by the transfer, once it's ended.
+   */
+  protected void cleanUp() {
   }
 
   protected long getTransferTimeoutMillis() {
@@ -126,7 +247,13 @@ public abstract class TransferController extends AbstractStateController
   public void stop() {
     LOGGER.info("Stopping transfer controller");
     cancelled = true;
-    transferThread.interrupt();
+    interruptStep();
+  }
+
+  private void interruptStep() {
+    synchronized (stepLock) {
+      if (stepThread != null) stepThread.interrupt();
+    }
   }
 
   protected boolean shouldStop() {
@@ -150,8 +277,11 @@ public abstract class TransferController extends AbstractStateController
     return isConnected();
   }
 
-  protected abstract void transferInThread(
-      RvConnection transfer)
+  /**
+   * Starts transferring files. This is the first {@linkplain Step step}, and
+   * it, or the ones it starts, must eventually call {@link #finish}.
+   */
+  protected abstract void startTransfer(RvConnection transfer)
       throws IOException, FailureEventException;
 
   public void pauseTransfer() {
@@ -171,7 +301,57 @@ public abstract class TransferController extends AbstractStateController
     return pauseHelper.waitUntilUnpause();
   }
 
+  protected boolean isPaused() {
+    return pauseHelper.isPaused();
+  }
+
   public StreamInfo getStream() {
     return stream;
   }
+
+  /**
+   * Returns the throttle which limits this transfer's bandwidth, or
+   * {@code null} if it's not limited.
+   */
+  public synchronized @Nullable TransferThrottle getThrottle() {
+    return throttle;
+  }
+
+  /**
+   * A part of a transfer, which ends the transfer if it throws an exception.
+   */
+  protected abstract class Step implements Runnable {
+    public final void run() {
+      try {
+        runStep();
+      } catch (Exception e) {
+        failed(e);
+      }
+    }
+
+    protected abstract void runStep()
+        throws IOException, FailureEventException;
+  }
+
+  /**
+   * A step which runs once a file's data has been
+   * {@linkplain #transferData transferred}, and ends the transfer if that
+   * failed.
+   */
+  protected abstract class DataStep implements TransferrerListener {
+    public final void transferFinished(long transferred) {
+      try {
+        runStep(transferred);
+      } catch (Exception e) {
+        failed(e);
+      }
+    }
+
+    public final void transferFailed(Exception e) {
+      failed(e);
+    }
+
+    protected abstract void runStep(long transferred)
+        throws IOException, FailureEventException;
+  }
 }
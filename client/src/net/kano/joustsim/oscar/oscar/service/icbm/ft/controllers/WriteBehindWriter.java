@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.DiskSyncPolicy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes received file data to disk on a background thread, so the thread
+ * reading from the connection can keep reading while the disk catches up.
+ * Data is written from a fixed number of direct buffers: {@link #takeBuffer}
+ * waits until one is free, and {@link #write} queues a filled buffer to be
+ * written and then reused. If a write fails, every later call throws the
+ * {@code IOException} it failed with.
+ */
+class WriteBehindWriter {
+  private static final Logger LOGGER
+      = Logger.getLogger(WriteBehindWriter.class.getName());
+
+  public static final int BUFFER_SIZE_DEFAULT = 256 * 1024;
+
+  private final int maxBuffers;
+  private final int bufferSize;
+  private final DiskSyncPolicy syncPolicy;
+
+  private final LinkedList<ByteBuffer> free = new LinkedList<ByteBuffer>();
+  private final LinkedList<QueuedWrite> queue = new LinkedList<QueuedWrite>();
+  private int allocated = 0;
+  private boolean writing = false;
+  private boolean closed = false;
+  private IOException error = null;
+  private Thread thread = null;
+
+  public WriteBehindWriter(int buffers, DiskSyncPolicy syncPolicy) {
+    this(buffers, BUFFER_SIZE_DEFAULT, syncPolicy);
+  }
+
+  public WriteBehindWriter(int buffers, int bufferSize,
+      DiskSyncPolicy syncPolicy) {
+    DefensiveTools.checkRange(buffers, "buffers", 1);
+    DefensiveTools.checkRange(bufferSize, "bufferSize", 1);
+    DefensiveTools.checkNull(syncPolicy, "syncPolicy");
+
+    this.maxBuffers = buffers;
+    this.bufferSize = bufferSize;
+    this.syncPolicy = syncPolicy;
+  }
+
+  public int getBufferSize() { return bufferSize; }
+
+  /**
+   * Returns an empty buffer, waiting until one has been written if they're
+   * all full. The buffer must be given back with {@link #write} or
+   * {@link #returnBuffer}.
+   */
+  public synchronized ByteBuffer takeBuffer() throws IOException {
+    ByteBuffer buffer;
+    while (true) {
+      checkForError();
+      if (!free.isEmpty()) {
+        buffer = free.removeFirst();
+        break;
+      }
+      if (allocated < maxBuffers) {
+        // buffers are allocated as they're needed, since small files never
+        // need them all
+        allocated++;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        break;
+      }
+      waitForWriter();
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Gives back a buffer from {@link #takeBuffer} without writing it.
+   */
+  public synchronized void returnBuffer(ByteBuffer buffer) {
+    free.addLast(buffer);
+    notifyAll();
+  }
+
+  /**
+   * Queues the given buffer's remaining bytes to be written to the given
+   * channel at the given position. The buffer must have come from
+   * {@link #takeBuffer}, and must not be used again after calling this
+   * method.
+   */
+  public synchronized void write(FileChannel channel, ByteBuffer buffer,
+      long position) throws IOException {
+    if (error != null || closed) {
+      free.addLast(buffer);
+      checkForError();
+      throw new IOException("Write-behind writer was closed");
+    }
+    queue.addLast(new QueuedWrite(channel, buffer, position));
+    if (thread == null) {
+      thread = new Thread(new Runnable() {
+        public void run() {
+          writeQueued();
+        }
+      }, "Write-behind writer");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Waits until everything passed to {@link #write} has been written.
+   */
+  public synchronized void flush() throws IOException {
+    while (error == null && !closed && (writing || !queue.isEmpty())) {
+      waitForWriter();
+    }
+    checkForError();
+  }
+
+  /**
+   * Stops the writer thread. Anything which hasn't been written yet is
+   * discarded.
+   */
+  public synchronized void close() {
+    closed = true;
+    discardQueue();
+    notifyAll();
+  }
+
+  private void waitForWriter() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for data "
+          + "to be written to disk");
+    }
+  }
+
+  private void checkForError() throws IOException {
+    if (error != null) {
+      IOException e = new IOException("Couldn't write to disk: "
+          + error.getMessage());
+      e.initCause(error);
+      throw e;
+    }
+  }
+
+  private void discardQueue() {
+    for (QueuedWrite write : queue) free.addLast(write.buffer);
+    queue.clear();
+  }
+
+  private void writeQueued() {
+    while (true) {
+      QueuedWrite write;
+      synchronized (this) {
+        while (!closed && queue.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            closed = true;
+          }
+        }
+        if (closed) {
+          thread = null;
+          notifyAll();
+          return;
+        }
+        write = queue.removeFirst();
+        writing = true;
+      }
+
+      IOException failure = null;
+      try {
+        write.writeOut();
+        if (syncPolicy == DiskSyncPolicy.AFTER_EACH_WRITE) {
+          write.channel.force(false);
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Couldn't write received data to disk", e);
+        failure = e;
+      }
+
+      synchronized (this) {
+        writing = false;
+        free.addLast(write.buffer);
+        if (failure != null && error == null) {
+          error = failure;
+          // the file is already broken, so there's no point in writing the
+          // rest of it
+          discardQueue();
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private static class QueuedWrite {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final long position;
+
+    public QueuedWrite(FileChannel channel, ByteBuffer buffer, long position) {
+      this.channel = channel;
+      this.buffer = buffer;
+      this.position = position;
+    }
+
+    public void writeOut() throws IOException {
+      long pos = position;
+      while (buffer.hasRemaining()) {
+        pos += channel.write(buffer, pos);
+      }
+    }
+  }
+}
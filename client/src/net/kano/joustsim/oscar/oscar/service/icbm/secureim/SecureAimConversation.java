@@ -41,6 +41,7 @@ import net.kano.joscar.snaccmd.icbm.InstantMessage;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.AimConnection;
 import net.kano.joustsim.oscar.BuddyInfo;
+import net.kano.joustsim.oscar.BuddyInfoDelta;
 import net.kano.joustsim.oscar.BuddyInfoManager;
 import net.kano.joustsim.oscar.BuddyInfoTracker;
 import net.kano.joustsim.oscar.BuddyInfoTrackerListener;
@@ -101,12 +102,25 @@ public class SecureAimConversation extends Conversation {
       if (!buddy.equals(getBuddy())) return;
 
       if (event.getPropertyName().equals(BuddyInfo.PROP_CERTIFICATE_INFO)) {
-        BuddyCertificateInfo certInfo
-            = (BuddyCertificateInfo) event.getNewValue();
-        setBuddyCerts(certInfo);
-        tryQueuedMessages(certInfo);
+        handleCertificateInfoChange(event);
       }
     }
+
+    public void buddyInfoUpdated(BuddyInfoManager manager, Screenname buddy,
+        BuddyInfo info, BuddyInfoDelta delta) {
+      if (!buddy.equals(getBuddy())) return;
+
+      PropertyChangeEvent event
+          = delta.getChange(BuddyInfo.PROP_CERTIFICATE_INFO);
+      if (event != null) handleCertificateInfoChange(event);
+    }
+
+    private void handleCertificateInfoChange(PropertyChangeEvent event) {
+      BuddyCertificateInfo certInfo
+          = (BuddyCertificateInfo) event.getNewValue();
+      setBuddyCerts(certInfo);
+      tryQueuedMessages(certInfo);
+    }
   };
 
   protected SecureAimConversation(AimConnection conn, Screenname buddy) {
@@ -230,9 +244,12 @@ public class SecureAimConversation extends Conversation {
 
     Screenname buddy = getBuddy();
     buddyInfoMgr.addGlobalBuddyInfoListener(buddyInfoListener);
+    // if we've seen this buddy's certificates before, we can start sending
+    // secure messages without waiting for them to be downloaded again
+    BuddyCertificateInfo certInfo
+        = buddyInfoMgr.useCachedCertificateInfo(buddy);
     buddyInfoTracker.addTracker(buddy, trackerListener);
-    BuddyInfo buddyInfo = buddyInfoMgr.getBuddyInfo(buddy);
-    setBuddyCerts(buddyInfo.getCertificateInfo());
+    setBuddyCerts(certInfo);
   }
 
   protected void closed() {
@@ -41,8 +41,9 @@ import net.kano.joscar.snaccmd.InfoData;
 import net.kano.joscar.snaccmd.loc.GetInfoCmd;
 
 public class AwayMessageRequestManager extends UserInfoRequestManager<String> {
-  public AwayMessageRequestManager(MutableInfoService service) {
-    super(service);
+  public AwayMessageRequestManager(MutableInfoService service,
+      InfoResponseCache<String> cache) {
+    super(service, cache);
   }
 
   protected SnacCommand generateSnacCommand(Screenname sn) {
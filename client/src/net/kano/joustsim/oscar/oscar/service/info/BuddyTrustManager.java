@@ -41,6 +41,7 @@ import net.kano.joscar.DefensiveTools;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.AimConnection;
 import net.kano.joustsim.oscar.BuddyInfo;
+import net.kano.joustsim.oscar.BuddyInfoDelta;
 import net.kano.joustsim.oscar.BuddyInfoManager;
 import net.kano.joustsim.oscar.GlobalBuddyInfoAdapter;
 import net.kano.joustsim.trust.BuddyCertificateInfo;
@@ -88,17 +89,31 @@ public class BuddyTrustManager {
         String prop = event.getPropertyName();
 
         if (prop.equals(BuddyInfo.PROP_CERTIFICATE_INFO)) {
-          BuddyCertificateInfo certInfo
-              = (BuddyCertificateInfo) event.getNewValue();
-          LOGGER.fine("cert info for " + buddy + " changed: " + certInfo);
-          if (certInfo != null) {
-            // we want to cache this certificate before we handle
-            // the buddy's new hash
-            cacheCertInfo(certInfo);
-          }
-          handleBuddyHashChange(buddyInfo, certInfo);
+          handleCertificateInfoChange(buddy, buddyInfo, event);
         }
       }
+
+      public void buddyInfoUpdated(BuddyInfoManager manager,
+          Screenname buddy, BuddyInfo buddyInfo, BuddyInfoDelta delta) {
+        PropertyChangeEvent event
+            = delta.getChange(BuddyInfo.PROP_CERTIFICATE_INFO);
+        if (event != null) {
+          handleCertificateInfoChange(buddy, buddyInfo, event);
+        }
+      }
+
+      private void handleCertificateInfoChange(Screenname buddy,
+          BuddyInfo buddyInfo, PropertyChangeEvent event) {
+        BuddyCertificateInfo certInfo
+            = (BuddyCertificateInfo) event.getNewValue();
+        LOGGER.fine("cert info for " + buddy + " changed: " + certInfo);
+        if (certInfo != null) {
+          // we want to cache this certificate before we handle
+          // the buddy's new hash
+          cacheCertInfo(certInfo);
+        }
+        handleBuddyHashChange(buddyInfo, certInfo);
+      }
     });
     certTrustMgr.addTrustListener(new CertificateInfoTrustListener() {
       public void certificateInfoTrusted(
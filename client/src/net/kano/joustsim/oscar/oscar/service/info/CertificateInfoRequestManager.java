@@ -52,8 +52,9 @@ public class CertificateInfoRequestManager
   private static final Logger LOGGER = Logger
       .getLogger(CertificateInfoRequestManager.class.getName());
 
-  public CertificateInfoRequestManager(MutableInfoService service) {
-    super(service);
+  public CertificateInfoRequestManager(MutableInfoService service,
+      InfoResponseCache<CertificateInfo> cache) {
+    super(service, cache);
   }
 
   protected SnacCommand generateSnacCommand(Screenname sn) {
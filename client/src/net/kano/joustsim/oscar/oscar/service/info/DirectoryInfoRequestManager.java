@@ -44,9 +44,10 @@ import net.kano.joscar.snaccmd.loc.DirInfoCmd;
 import net.kano.joscar.snaccmd.loc.GetDirInfoCmd;
 import net.kano.joustsim.Screenname;
 
-public class DirectoryInfoRequestManager extends InfoRequestManager {
-  public DirectoryInfoRequestManager(MutableInfoService service) {
-    super(service);
+public class DirectoryInfoRequestManager extends InfoRequestManager<DirInfo> {
+  public DirectoryInfoRequestManager(MutableInfoService service,
+      InfoResponseCache<DirInfo> cache) {
+    super(service, cache);
   }
 
   protected void sendRequest(final Screenname sn) {
@@ -64,7 +65,7 @@ public class DirectoryInfoRequestManager extends InfoRequestManager {
           }
 
           DirInfoCmd dic = (DirInfoCmd) snac;
-          fireListeners(dic.getDirInfo());
+          deliverResponse(sn, dic.getDirInfo());
         }
       }
 
@@ -73,14 +74,13 @@ public class DirectoryInfoRequestManager extends InfoRequestManager {
           if (ran) return;
           ran = true;
         }
-        fireListeners(null);
-      }
-
-      private void fireListeners(DirInfo info) {
-        for (InfoResponseListener listener : clearListeners(sn)) {
-          listener.handleDirectoryInfo(getService(), sn, info);
-        }
+        deliverNoResponse(sn);
       }
     });
   }
+
+  protected void callListener(InfoResponseListener listener, Screenname sn,
+      DirInfo value) {
+    listener.handleDirectoryInfo(getService(), sn, value);
+  }
 }
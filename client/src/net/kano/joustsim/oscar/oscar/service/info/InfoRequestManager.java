@@ -44,13 +44,27 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
-public abstract class InfoRequestManager {
+/**
+ * Sends one kind of info request, combining concurrent requests for the same
+ * buddy into one and answering repeated requests from an
+ * {@link InfoResponseCache} while the cached response is fresh.
+ *
+ * @param <V> the type of value produced by a response
+ */
+public abstract class InfoRequestManager<V> {
   private final MutableInfoService service;
+  private final InfoResponseCache<V> cache;
   private final Map<Screenname, Set<InfoResponseListener>> listenerMap
       = new HashMap<Screenname, Set<InfoResponseListener>>();
+  private final Map<Screenname, Long> requestTimes
+      = new HashMap<Screenname, Long>();
+
+  protected InfoRequestManager(MutableInfoService service,
+      InfoResponseCache<V> cache) {
+    DefensiveTools.checkNull(cache, "cache");
 
-  protected InfoRequestManager(MutableInfoService service) {
     this.service = service;
+    this.cache = cache;
   }
 
   public void request(Screenname sn) {
@@ -60,17 +74,70 @@ public abstract class InfoRequestManager {
   }
 
   public void request(Screenname sn, InfoResponseListener listener) {
+    request(sn, listener, false);
+  }
+
+  /**
+   * Requests info about the given buddy. If {@code forceFetch} is
+   * {@code true}, the cache is skipped and a request is sent unless one is
+   * already outstanding; its response replaces the cached one.
+   */
+  public void request(Screenname sn, InfoResponseListener listener,
+      boolean forceFetch) {
     DefensiveTools.checkNull(sn, "sn");
 
+    InfoResponseCache.CachedResponse<V> cached
+        = forceFetch ? null : cache.get(sn);
+    if (cached != null) {
+      callListener(service.getInfoRequestListener(), sn, cached.getValue());
+      if (listener != null) callListener(listener, sn, cached.getValue());
+      return;
+    }
+
     boolean shouldRequest;
     synchronized (this) {
       shouldRequest = storeListener(sn, listener);
+      if (shouldRequest) requestTimes.put(sn, System.currentTimeMillis());
     }
     if (shouldRequest) sendRequest(sn);
   }
 
+  public InfoResponseCache<V> getCache() { return cache; }
+
   protected abstract void sendRequest(Screenname sn);
 
+  protected abstract void callListener(InfoResponseListener listener,
+      Screenname sn, V value);
+
+  /**
+   * Caches the given response value and passes it to every listener waiting
+   * for a response about the given buddy.
+   */
+  protected final void deliverResponse(Screenname sn, V value) {
+    Long requestTime;
+    synchronized (this) {
+      requestTime = requestTimes.remove(sn);
+    }
+    // listeners may update the buddy's info, which may cause cached
+    // responses to be checked, so we cache this one first
+    if (requestTime != null) cache.put(sn, value, requestTime);
+    for (InfoResponseListener listener : clearListeners(sn)) {
+      callListener(listener, sn, value);
+    }
+  }
+
+  /**
+   * Tells every listener waiting for a response about the given buddy that
+   * no response was received. Nothing is cached.
+   */
+  protected final void deliverNoResponse(Screenname sn) {
+    synchronized (this) {
+      requestTimes.remove(sn);
+    }
+    for (InfoResponseListener listener : clearListeners(sn)) {
+      callListener(listener, sn, null);
+    }
+  }
   private synchronized boolean storeListener(Screenname sn,
       InfoResponseListener listener) {
     DefensiveTools.checkNull(sn, "sn");
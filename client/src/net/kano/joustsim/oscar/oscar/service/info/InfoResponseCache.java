@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.info;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joustsim.Screenname;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the responses to one kind of info request, such as away message
+ * requests. Each response expires after a time-to-live, and the least recently
+ * used responses are discarded once the cache holds its maximum number of
+ * entries. A time-to-live of zero disables caching.
+ * <br>
+ * <br>
+ * Invalidating a buddy's entry also prevents a response to a request sent
+ * before the invalidation from being cached, since such a response may
+ * already be out of date.
+ *
+ * @param <V> the type of response value cached
+ */
+public class InfoResponseCache<V> {
+  private final Map<Screenname, CacheEntry<V>> entries
+      = new LinkedHashMap<Screenname, CacheEntry<V>>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(
+        Map.Entry<Screenname, CacheEntry<V>> eldest) {
+      return size() > maxEntries;
+    }
+  };
+  private long ttl;
+  private int maxEntries;
+
+  public InfoResponseCache(long ttl, int maxEntries) {
+    DefensiveTools.checkRange(ttl, "ttl", 0);
+    DefensiveTools.checkRange(maxEntries, "maxEntries", 0);
+
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+  }
+
+  public synchronized long getTtl() { return ttl; }
+
+  public synchronized void setTtl(long ttl) {
+    DefensiveTools.checkRange(ttl, "ttl", 0);
+
+    this.ttl = ttl;
+    if (ttl == 0) entries.clear();
+  }
+
+  public synchronized int getMaxEntries() { return maxEntries; }
+
+  public synchronized void setMaxEntries(int maxEntries) {
+    DefensiveTools.checkRange(maxEntries, "maxEntries", 0);
+
+    this.maxEntries = maxEntries;
+    while (entries.size() > maxEntries) {
+      entries.remove(entries.keySet().iterator().next());
+    }
+  }
+
+  /**
+   * Returns the cached response for the given buddy, or {@code null} if no
+   * response is cached or the cached response has expired.
+   */
+  public synchronized @Nullable CachedResponse<V> get(Screenname sn) {
+    DefensiveTools.checkNull(sn, "sn");
+
+    CacheEntry<V> entry = entries.get(sn);
+    if (entry == null || entry.response == null) return null;
+
+    if (System.currentTimeMillis() - entry.time >= ttl) {
+      entries.remove(sn);
+      return null;
+    }
+    return entry.response;
+  }
+
+  /**
+   * Caches the given response to a request which was sent at the given time.
+   * Nothing is cached if the buddy's entry was invalidated after that time.
+   */
+  public synchronized void put(Screenname sn, @Nullable V value,
+      long requestTime) {
+    DefensiveTools.checkNull(sn, "sn");
+
+    if (ttl == 0) return;
+
+    CacheEntry<V> old = entries.get(sn);
+    if (old != null && old.response == null && old.time >= requestTime) {
+      // it was invalidated while the request was outstanding
+      return;
+    }
+    entries.put(sn, new CacheEntry<V>(new CachedResponse<V>(value),
+        System.currentTimeMillis()));
+  }
+
+  /** Discards the cached response for the given buddy. */
+  public synchronized void invalidate(Screenname sn) {
+    DefensiveTools.checkNull(sn, "sn");
+
+    if (ttl == 0) return;
+
+    entries.put(sn, new CacheEntry<V>(null, System.currentTimeMillis()));
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * A cached response value. The value itself may be {@code null}; for
+   * example, a buddy who is not away has a {@code null} away message.
+   */
+  public static final class CachedResponse<V> {
+    private final V value;
+
+    private CachedResponse(V value) {
+      this.value = value;
+    }
+
+    public @Nullable V getValue() { return value; }
+  }
+
+  /**
+   * A cache entry. An entry without a response marks the time at which the
+   * buddy's entry was invalidated.
+   */
+  private static final class CacheEntry<V> {
+    private final CachedResponse<V> response;
+    private final long time;
+
+    private CacheEntry(CachedResponse<V> response, long time) {
+      this.response = response;
+      this.time = time;
+    }
+  }
+}
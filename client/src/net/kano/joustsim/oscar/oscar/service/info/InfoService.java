@@ -3,6 +3,7 @@ package net.kano.joustsim.oscar.oscar.service.info;
 import net.kano.joustsim.oscar.oscar.service.Service;
 import net.kano.joustsim.Screenname;
 import net.kano.joscar.snaccmd.CertificateInfo;
+import net.kano.joscar.snaccmd.DirInfo;
 
 public interface InfoService extends Service {
   void addInfoListener(InfoServiceListener l);
@@ -33,6 +34,16 @@ public interface InfoService extends Service {
   void requestAwayMessage(Screenname buddy,
       InfoResponseListener listener);
 
+  /**
+   * Requests the given buddy's away message. If {@code forceFetch} is
+   * {@code true}, a cached response is not used and a request is always sent,
+   * unless one is already outstanding.
+   */
+  void requestAwayMessage(Screenname buddy, boolean forceFetch);
+
+  void requestAwayMessage(Screenname buddy,
+      InfoResponseListener listener, boolean forceFetch);
+
   void requestCertificateInfo(Screenname buddy);
 
   void requestCertificateInfo(Screenname buddy,
@@ -42,4 +53,12 @@ public interface InfoService extends Service {
 
   void requestDirectoryInfo(Screenname buddy,
       InfoResponseListener listener);
+
+  InfoResponseCache<String> getAwayMessageCache();
+
+  InfoResponseCache<String> getUserProfileCache();
+
+  InfoResponseCache<CertificateInfo> getCertificateInfoCache();
+
+  InfoResponseCache<DirInfo> getDirectoryInfoCache();
 }
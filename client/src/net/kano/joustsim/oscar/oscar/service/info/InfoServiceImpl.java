@@ -35,6 +35,7 @@
 
 package net.kano.joustsim.oscar.oscar.service.info;
 
+import net.kano.joscar.ByteBlock;
 import net.kano.joscar.CopyOnWriteArrayList;
 import net.kano.joscar.DefensiveTools;
 import net.kano.joscar.snaccmd.CapabilityBlock;
@@ -46,18 +47,30 @@ import net.kano.joscar.snaccmd.loc.LocCommand;
 import net.kano.joscar.snaccmd.loc.SetInfoCmd;
 import net.kano.joustsim.Screenname;
 import net.kano.joustsim.oscar.AimConnection;
+import net.kano.joustsim.oscar.BuddyInfo;
+import net.kano.joustsim.oscar.BuddyInfoDelta;
+import net.kano.joustsim.oscar.BuddyInfoManager;
 import net.kano.joustsim.oscar.CapabilityHandler;
 import net.kano.joustsim.oscar.CapabilityListener;
 import net.kano.joustsim.oscar.CapabilityManager;
 import net.kano.joustsim.oscar.CapabilityManagerListener;
+import net.kano.joustsim.oscar.GlobalBuddyInfoAdapter;
+import net.kano.joustsim.oscar.GlobalBuddyInfoListener;
 import net.kano.joustsim.oscar.oscar.OscarConnection;
 import net.kano.joustsim.oscar.oscar.service.AbstractService;
 import net.kano.joustsim.trust.BuddyCertificateInfo;
 
+import java.beans.PropertyChangeEvent;
 import java.util.List;
 
 public class InfoServiceImpl extends AbstractService implements
     MutableInfoService {
+  public static final long TTL_AWAYMSG_DEFAULT = 5 * 60 * 1000;
+  public static final long TTL_PROFILE_DEFAULT = 10 * 60 * 1000;
+  public static final long TTL_CERTINFO_DEFAULT = 10 * 60 * 1000;
+  public static final long TTL_DIRINFO_DEFAULT = 10 * 60 * 1000;
+  public static final int MAX_CACHED_DEFAULT = 1000;
+
   private static final CertificateInfo CERTINFO_EMPTY
       = new CertificateInfo(null);
 
@@ -123,14 +136,40 @@ public class InfoServiceImpl extends AbstractService implements
     }
   };
 
-  private InfoRequestManager profileRequestManager
-      = new UserProfileRequestManager(this);
-  private InfoRequestManager awayMsgRequestManager
-      = new AwayMessageRequestManager(this);
-  private InfoRequestManager certInfoRequestManager
-      = new CertificateInfoRequestManager(this);
-  private InfoRequestManager dirInfoRequestManager
-      = new DirectoryInfoRequestManager(this);
+  private final InfoResponseCache<String> profileCache
+      = new InfoResponseCache<String>(TTL_PROFILE_DEFAULT, MAX_CACHED_DEFAULT);
+  private final InfoResponseCache<String> awayMsgCache
+      = new InfoResponseCache<String>(TTL_AWAYMSG_DEFAULT, MAX_CACHED_DEFAULT);
+  private final InfoResponseCache<CertificateInfo> certInfoCache
+      = new InfoResponseCache<CertificateInfo>(TTL_CERTINFO_DEFAULT,
+          MAX_CACHED_DEFAULT);
+  private final InfoResponseCache<DirInfo> dirInfoCache
+      = new InfoResponseCache<DirInfo>(TTL_DIRINFO_DEFAULT,
+          MAX_CACHED_DEFAULT);
+
+  private InfoRequestManager<String> profileRequestManager
+      = new UserProfileRequestManager(this, profileCache);
+  private InfoRequestManager<String> awayMsgRequestManager
+      = new AwayMessageRequestManager(this, awayMsgCache);
+  private InfoRequestManager<CertificateInfo> certInfoRequestManager
+      = new CertificateInfoRequestManager(this, certInfoCache);
+  private InfoRequestManager<DirInfo> dirInfoRequestManager
+      = new DirectoryInfoRequestManager(this, dirInfoCache);
+
+  private final GlobalBuddyInfoListener buddyInfoListener
+      = new GlobalBuddyInfoAdapter() {
+    public void buddyInfoChanged(BuddyInfoManager manager, Screenname buddy,
+        BuddyInfo info, PropertyChangeEvent event) {
+      invalidateCachedInfo(buddy, event);
+    }
+
+    public void buddyInfoUpdated(BuddyInfoManager manager, Screenname buddy,
+        BuddyInfo info, BuddyInfoDelta delta) {
+      for (PropertyChangeEvent event : delta.getChanges()) {
+        invalidateCachedInfo(buddy, event);
+      }
+    }
+  };
 
   private String awayMessage = null;
   private String userProfile = null;
@@ -142,6 +181,8 @@ public class InfoServiceImpl extends AbstractService implements
 
     capabilityManager = getAimConnection().getCapabilityManager();
     capabilityManager.addCapabilityListener(capListener);
+    getAimConnection().getBuddyInfoManager()
+        .addGlobalBuddyInfoListener(buddyInfoListener);
   }
 
   public SnacFamilyInfo getSnacFamilyInfo() {
@@ -161,6 +202,8 @@ public class InfoServiceImpl extends AbstractService implements
 
   protected void finishUp() {
     capabilityManager.removeCapabilityListener(capListener);
+    getAimConnection().getBuddyInfoManager()
+        .removeGlobalBuddyInfoListener(buddyInfoListener);
   }
 
   public void addInfoListener(InfoServiceListener l) {
@@ -244,6 +287,15 @@ public class InfoServiceImpl extends AbstractService implements
     awayMsgRequestManager.request(buddy, listener);
   }
 
+  public void requestAwayMessage(Screenname buddy, boolean forceFetch) {
+    awayMsgRequestManager.request(buddy, null, forceFetch);
+  }
+
+  public void requestAwayMessage(Screenname buddy,
+      InfoResponseListener listener, boolean forceFetch) {
+    awayMsgRequestManager.request(buddy, listener, forceFetch);
+  }
+
   public void requestCertificateInfo(Screenname buddy) {
     certInfoRequestManager.request(buddy);
   }
@@ -270,4 +322,57 @@ public class InfoServiceImpl extends AbstractService implements
   public InfoResponseListener getInfoRequestListener() {
     return infoRequestListener;
   }
+
+  public InfoResponseCache<String> getAwayMessageCache() {
+    return awayMsgCache;
+  }
+
+  public InfoResponseCache<String> getUserProfileCache() {
+    return profileCache;
+  }
+
+  public InfoResponseCache<CertificateInfo> getCertificateInfoCache() {
+    return certInfoCache;
+  }
+
+  public InfoResponseCache<DirInfo> getDirectoryInfoCache() {
+    return dirInfoCache;
+  }
+
+  /**
+   * Discards cached responses which the given change to a buddy's status
+   * shows to be out of date. Buddy status updates say nothing about profiles
+   * or directory info, so those are only discarded when the buddy signs on or
+   * off; otherwise they are kept until their time-to-live runs out.
+   */
+  private void invalidateCachedInfo(Screenname buddy,
+      PropertyChangeEvent event) {
+    String prop = event.getPropertyName();
+    if (prop.equals(BuddyInfo.PROP_ONLINE_SINCE)
+        || (prop.equals(BuddyInfo.PROP_ONLINE)
+        && Boolean.FALSE.equals(event.getNewValue()))) {
+      // they signed off or signed on again, so anything may have changed
+      awayMsgCache.invalidate(buddy);
+      profileCache.invalidate(buddy);
+      certInfoCache.invalidate(buddy);
+      dirInfoCache.invalidate(buddy);
+
+    } else if (prop.equals(BuddyInfo.PROP_AWAY)) {
+      awayMsgCache.invalidate(buddy);
+
+    } else if (prop.equals(BuddyInfo.PROP_CERTIFICATE_INFO)) {
+      // our own certificate info responses change this property too, so we
+      // only invalidate a cached response with a different hash
+      InfoResponseCache.CachedResponse<CertificateInfo> cached
+          = certInfoCache.get(buddy);
+      if (cached == null) return;
+      BuddyCertificateInfo newInfo = (BuddyCertificateInfo) event.getNewValue();
+      CertificateInfo cachedInfo = cached.getValue();
+      if (newInfo == null || cachedInfo == null
+          || !newInfo.getCertificateInfoHash().equals(ByteBlock.wrap(
+          CertificateInfo.getCertInfoHash(cachedInfo)))) {
+        certInfoCache.invalidate(buddy);
+      }
+    }
+  }
 }
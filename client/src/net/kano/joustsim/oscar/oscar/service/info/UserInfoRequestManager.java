@@ -44,11 +44,11 @@ import net.kano.joscar.snaccmd.InfoData;
 import net.kano.joscar.snaccmd.loc.UserInfoCmd;
 import net.kano.joustsim.Screenname;
 
-import java.util.Set;
-
-public abstract class UserInfoRequestManager<V> extends InfoRequestManager {
-  public UserInfoRequestManager(MutableInfoService service) {
-    super(service);
+public abstract class UserInfoRequestManager<V>
+    extends InfoRequestManager<V> {
+  public UserInfoRequestManager(MutableInfoService service,
+      InfoResponseCache<V> cache) {
+    super(service, cache);
   }
 
   protected void sendRequest(final Screenname sn) {
@@ -66,7 +66,7 @@ public abstract class UserInfoRequestManager<V> extends InfoRequestManager {
             ran = true;
           }
 
-          runListeners(sn, getDesiredValueFromSnac(snac));
+          deliverResponse(sn, getDesiredValueFromSnac(snac));
         }
       }
 
@@ -75,7 +75,7 @@ public abstract class UserInfoRequestManager<V> extends InfoRequestManager {
           if (ran) return;
           ran = true;
         }
-        runListeners(sn, null);
+        deliverNoResponse(sn);
       }
     });
   }
@@ -84,14 +84,6 @@ public abstract class UserInfoRequestManager<V> extends InfoRequestManager {
     return snac instanceof UserInfoCmd;
   }
 
-  private void runListeners(Screenname sn, V value) {
-    Set<InfoResponseListener> listeners = clearListeners(sn);
-    for (Object listener1 : listeners) {
-      InfoResponseListener listener = (InfoResponseListener) listener1;
-      callListener(listener, sn, value);
-    }
-  }
-
   private V getDesiredValueFromSnac(SnacCommand snac) {
     V value = null;
     if (snac instanceof UserInfoCmd) {
@@ -108,8 +100,5 @@ public abstract class UserInfoRequestManager<V> extends InfoRequestManager {
 
   protected abstract SnacCommand generateSnacCommand(Screenname sn);
 
-  protected abstract void callListener(InfoResponseListener listener,
-      Screenname sn, V value);
-
   protected abstract V getDesiredValue(InfoData infodata);
 }
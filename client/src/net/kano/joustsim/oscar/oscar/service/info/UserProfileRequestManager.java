@@ -41,8 +41,9 @@ import net.kano.joscar.snaccmd.InfoData;
 import net.kano.joscar.snaccmd.loc.GetInfoCmd;
 
 public class UserProfileRequestManager extends UserInfoRequestManager<String> {
-  public UserProfileRequestManager(MutableInfoService service) {
-    super(service);
+  public UserProfileRequestManager(MutableInfoService service,
+      InfoResponseCache<String> cache) {
+    super(service, cache);
   }
 
   protected SnacCommand generateSnacCommand(Screenname sn) {
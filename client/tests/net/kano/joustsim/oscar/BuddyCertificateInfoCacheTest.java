@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import junit.framework.TestCase;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.snaccmd.CertificateInfo;
+import net.kano.joustsim.Screenname;
+import net.kano.joustsim.trust.BuddyCertificateInfo;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.Security;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+/**
+ * NOTE: This test accesses the file system by creating temp directories
+ */
+public class BuddyCertificateInfoCacheTest extends TestCase {
+  private static final String CERT_A = "-----BEGIN CERTIFICATE-----\n"
+      + "MIIBezCCASGgAwIBAgIUPMWM8dvyjoE7W6BQxYgXL/6bWSowCgYIKoZIzj0EAwIw\n"
+      + "EjEQMA4GA1UEAwwHYnVkZHktYTAgFw0yNjEwMTkwNjUyMjhaGA8yMTI2MDkyNTA2\n"
+      + "NTIyOFowEjEQMA4GA1UEAwwHYnVkZHktYTBZMBMGByqGSM49AgEGCCqGSM49AwEH\n"
+      + "A0IABF2x5ZdN/TcWW/lo9piNObNLAXKmteVAybV3wi6EYP6x41NniIIQzcbVnAko\n"
+      + "o7oRTiKC7IJI3ItZ1rfFnkqrh/SjUzBRMB0GA1UdDgQWBBQJDLoeRTzVUMCaJ9Sc\n"
+      + "YJEep5vvmTAfBgNVHSMEGDAWgBQJDLoeRTzVUMCaJ9ScYJEep5vvmTAPBgNVHRMB\n"
+      + "Af8EBTADAQH/MAoGCCqGSM49BAMCA0gAMEUCICX0t5Je/RjzKDJ39VzZd2HyHeqJ\n"
+      + "Jwr4l7+2sSfohcKFAiEAj4BFdk5bqSdjY3Xz3aNGwRBAttfAI1uE0+Mf1Pl2Oj0=\n"
+      + "-----END CERTIFICATE-----\n";
+  private static final String CERT_B = "-----BEGIN CERTIFICATE-----\n"
+      + "MIIBezCCASGgAwIBAgIUMBxmVc3qkk2AiLd72fvboNT+5+wwCgYIKoZIzj0EAwIw\n"
+      + "EjEQMA4GA1UEAwwHYnVkZHktYjAgFw0yNjEwMTkwNjUyMjhaGA8yMTI2MDkyNTA2\n"
+      + "NTIyOFowEjEQMA4GA1UEAwwHYnVkZHktYjBZMBMGByqGSM49AgEGCCqGSM49AwEH\n"
+      + "A0IABLFudcnhkM78MHb6NuVhhaDzu2HDFVcOfpJ7KgbAuvDvje9g7+iDjd+dYBK6\n"
+      + "OB4uDkJDLprRugMdLtyIl8PP6yejUzBRMB0GA1UdDgQWBBQ05exkvS98ddeI+WoI\n"
+      + "ThQ3VsrqajAfBgNVHSMEGDAWgBQ05exkvS98ddeI+WoIThQ3VsrqajAPBgNVHRMB\n"
+      + "Af8EBTADAQH/MAoGCCqGSM49BAMCA0gAMEUCIAfn/vEU0unsElkAkPf6zV9efrtf\n"
+      + "E5B65k9yiBGEvfn0AiEAvME65LJVQqHX7w2BxU1z0fcwnWPigNKIj19g4yYtKxY=\n"
+      + "-----END CERTIFICATE-----\n";
+
+  private static final Screenname BUDDY = new Screenname("buddy");
+
+  private X509Certificate certA;
+  private X509Certificate certB;
+  private File dir;
+  private File otherDir;
+
+  protected void setUp() throws Exception {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+    certA = parse(CERT_A);
+    certB = parse(CERT_B);
+    dir = createTempDir();
+    otherDir = createTempDir();
+  }
+
+  protected void tearDown() throws Exception {
+    deleteDir(dir);
+    deleteDir(otherDir);
+  }
+
+  public void testHashOfReceivedBlockMatches() throws Exception {
+    // the hash a buddy's certificate info gets when it's read off the wire
+    CertificateInfo sent = new CertificateInfo(
+        ByteBlock.wrap(certA.getEncoded()), ByteBlock.wrap(certB.getEncoded()));
+    CertificateInfo received = CertificateInfo.readCertInfoBlock(
+        ByteBlock.createByteBlock(sent));
+    ByteBlock hash = ByteBlock.wrap(CertificateInfo.getCertInfoHash(received));
+
+    assertTrue(BuddyCertificateInfoStore.matchesHash(hash, certA, certB));
+    assertFalse(BuddyCertificateInfoStore.matchesHash(hash, certB, certA));
+    assertFalse(BuddyCertificateInfoStore.matchesHash(hash, certA, certA));
+
+    CertificateInfo common = CertificateInfo.readCertInfoBlock(
+        ByteBlock.createByteBlock(
+            new CertificateInfo(ByteBlock.wrap(certA.getEncoded()))));
+    ByteBlock commonHash = ByteBlock.wrap(
+        CertificateInfo.getCertInfoHash(common));
+    assertTrue(BuddyCertificateInfoStore.matchesHash(commonHash, certA,
+        certA));
+  }
+
+  public void testMemoryIsBounded() throws Exception {
+    BuddyCertificateInfoCache cache = new BuddyCertificateInfoCache(2, null);
+    BuddyCertificateInfo a = certInfo(new Screenname("a"), certA, certB);
+    BuddyCertificateInfo b = certInfo(new Screenname("b"), certA, certB);
+    BuddyCertificateInfo c = certInfo(new Screenname("c"), certA, certB);
+    cache.putCertificateInfo(a);
+    cache.putCertificateInfo(b);
+    // touch a, so b is the least recently used
+    assertSame(a, get(cache, a));
+    cache.putCertificateInfo(c);
+
+    assertEquals(2, cache.getMemoryEntryCount());
+    assertSame(a, get(cache, a));
+    assertNull(get(cache, b));
+    assertSame(c, get(cache, c));
+  }
+
+  public void testLoadedFromStore() throws Exception {
+    BuddyCertificateInfoStore store = new BuddyCertificateInfoStore(dir);
+    BuddyCertificateInfo info = certInfo(BUDDY, certA, certB);
+    new BuddyCertificateInfoCache(10, store).putCertificateInfo(info);
+    assertTrue(store.contains(BUDDY, info.getCertificateInfoHash()));
+
+    BuddyCertificateInfo loaded = get(new BuddyCertificateInfoCache(10, store),
+        info);
+    assertNotNull(loaded);
+    assertTrue(loaded.isUpToDate());
+    assertEquals(certA, loaded.getEncryptionCertificate());
+    assertEquals(certB, loaded.getSigningCertificate());
+  }
+
+  public void testSwappedFileIsRejected() throws Exception {
+    BuddyCertificateInfoStore store = new BuddyCertificateInfoStore(dir);
+    BuddyCertificateInfo info = certInfo(BUDDY, certA, certB);
+    store.store(info);
+    new BuddyCertificateInfoStore(otherDir).store(
+        certInfo(BUDDY, certB, certA));
+
+    // put the other certificates under the first hash's name
+    copy(otherDir.listFiles()[0], dir.listFiles()[0]);
+
+    ByteBlock hash = info.getCertificateInfoHash();
+    assertNull(store.load(BUDDY, hash));
+    assertFalse(store.contains(BUDDY, hash));
+  }
+
+  public void testMismatchedHashIsNotStored() throws Exception {
+    BuddyCertificateInfoStore store = new BuddyCertificateInfoStore(dir);
+    ByteBlock wrongHash = certInfo(BUDDY, certB, certA)
+        .getCertificateInfoHash();
+    store.store(new BuddyCertificateInfo(BUDDY, wrongHash, certA, certB));
+    assertFalse(store.contains(BUDDY, wrongHash));
+  }
+
+  private static BuddyCertificateInfo get(BuddyCertificateInfoCache cache,
+      BuddyCertificateInfo info) {
+    return cache.getCertificateInfo(info.getBuddy(),
+        info.getCertificateInfoHash());
+  }
+
+  private static BuddyCertificateInfo certInfo(Screenname buddy,
+      X509Certificate encCert, X509Certificate signingCert) throws Exception {
+    CertificateInfo block = new CertificateInfo(
+        ByteBlock.wrap(encCert.getEncoded()),
+        ByteBlock.wrap(signingCert.getEncoded()));
+    return new BuddyCertificateInfo(buddy,
+        ByteBlock.wrap(CertificateInfo.getCertInfoHash(block)),
+        encCert, signingCert);
+  }
+
+  private static X509Certificate parse(String pem) throws Exception {
+    CertificateFactory factory = CertificateFactory.getInstance("X.509");
+    return (X509Certificate) factory.generateCertificate(
+        new ByteArrayInputStream(pem.getBytes("US-ASCII")));
+  }
+
+  private static File createTempDir() throws Exception {
+    File dir = File.createTempFile("BuddyCertificateInfoCacheTest", "");
+    dir.delete();
+    dir.mkdir();
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+    dir.delete();
+  }
+
+  private static void copy(File from, File to) throws Exception {
+    FileInputStream in = new FileInputStream(from);
+    FileOutputStream out = new FileOutputStream(to);
+    byte[] buf = new byte[1024];
+    for (int len; (len = in.read(buf)) != -1;) out.write(buf, 0, len);
+    in.close();
+    out.close();
+  }
+}
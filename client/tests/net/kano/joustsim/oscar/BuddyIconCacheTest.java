@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import junit.framework.TestCase;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.snaccmd.ExtraInfoData;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+
+/**
+ * NOTE: This test accesses the file system by creating a temp directory
+ */
+public class BuddyIconCacheTest extends TestCase {
+  private static final Executor SAME_THREAD = new Executor() {
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private File dir;
+
+  protected void setUp() throws Exception {
+    dir = File.createTempFile("BuddyIconCacheTest", "");
+    dir.delete();
+    dir.mkdir();
+  }
+
+  protected void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+    dir.delete();
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    BuddyIconCache cache = new BuddyIconCache(250, null);
+    ByteBlock a = icon(1, 100);
+    ByteBlock b = icon(2, 100);
+    cache.putIconData(hashOf(a), a);
+    cache.putIconData(hashOf(b), b);
+    // touch a, so b is the least recently used
+    assertNotNull(cache.getIconData(hashOf(a)));
+
+    ByteBlock c = icon(3, 100);
+    cache.putIconData(hashOf(c), c);
+    assertEquals(200, cache.getMemoryUsed());
+    assertNotNull(cache.getIconData(hashOf(a)));
+    assertNull(cache.getIconData(hashOf(b)));
+    assertNotNull(cache.getIconData(hashOf(c)));
+  }
+
+  public void testMemoryBudget() throws Exception {
+    BuddyIconCache cache = new BuddyIconCache(1000, null);
+    for (int i = 0; i < 30; i++) {
+      ByteBlock data = icon(i, 100);
+      cache.putIconData(hashOf(data), data);
+      assertTrue(cache.getMemoryUsed() <= 1000);
+    }
+    assertEquals(1000, cache.getMemoryUsed());
+
+    cache.setMaxMemory(350);
+    assertEquals(300, cache.getMemoryUsed());
+
+    // an icon bigger than the whole budget is not kept
+    ByteBlock big = icon(99, 400);
+    assertEquals(big, cache.putIconData(hashOf(big), big));
+    assertNull(cache.getMemoryCachedIconData(hashOf(big)));
+    assertTrue(cache.getMemoryUsed() <= 350);
+  }
+
+  public void testLoadedFromStore() throws Exception {
+    ByteBlock data = icon(1, 100);
+    ExtraInfoData hash = hashOf(data);
+    BuddyIconStore store = new BuddyIconStore(dir);
+    new BuddyIconCache(1000, store, SAME_THREAD).putIconData(hash, data);
+    assertTrue(store.contains(hash.getData()));
+
+    BuddyIconCache fresh = new BuddyIconCache(1000, store, SAME_THREAD);
+    assertNull(fresh.getMemoryCachedIconData(hash));
+    final ByteBlock[] loaded = new ByteBlock[1];
+    fresh.loadIconData(hash, new BuddyIconLoadListener() {
+      public void iconLoaded(ExtraInfoData hash, ByteBlock iconData) {
+        loaded[0] = iconData;
+      }
+    });
+    assertEquals(data, loaded[0]);
+    assertEquals(data, fresh.getMemoryCachedIconData(hash));
+  }
+
+  public void testCorruptFileIsRejected() throws Exception {
+    ByteBlock data = icon(1, 100);
+    ExtraInfoData hash = hashOf(data);
+    BuddyIconStore store = new BuddyIconStore(dir);
+    store.store(hash.getData(), data);
+    File[] files = dir.listFiles();
+    assertEquals(1, files.length);
+
+    // truncate the stored icon
+    FileOutputStream out = new FileOutputStream(files[0]);
+    out.write(data.subBlock(0, 50).toByteArray());
+    out.close();
+
+    assertNull(store.load(hash.getData()));
+    assertFalse(store.contains(hash.getData()));
+  }
+
+  public void testMismatchedHashIsNotStored() throws Exception {
+    ByteBlock data = icon(1, 100);
+    ExtraInfoData wrongHash = hashOf(icon(2, 100));
+    BuddyIconStore store = new BuddyIconStore(dir);
+    store.store(wrongHash.getData(), data);
+    assertFalse(store.contains(wrongHash.getData()));
+  }
+
+  private static ByteBlock icon(int seed, int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) data[i] = (byte) (seed * 31 + i);
+    return ByteBlock.wrap(data);
+  }
+
+  private static ExtraInfoData hashOf(ByteBlock data) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("MD5");
+    return new ExtraInfoData(ExtraInfoData.FLAG_HASH_PRESENT,
+        ByteBlock.wrap(digest.digest(data.toByteArray())));
+  }
+}
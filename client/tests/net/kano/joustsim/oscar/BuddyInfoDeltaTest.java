@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import junit.framework.TestCase;
+import net.kano.joustsim.Screenname;
+
+import java.beans.PropertyChangeEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BuddyInfoDeltaTest extends TestCase {
+  private BuddyInfo info;
+
+  protected void setUp() throws Exception {
+    info = new BuddyInfo(new Screenname("buddy"));
+  }
+
+  public void testPlainListenerGetsEachProperty() {
+    final List<String> props = new ArrayList<String>();
+    info.addPropertyListener(new BuddyInfoChangeListener() {
+      public void receivedBuddyStatusUpdate(BuddyInfo info) {
+      }
+
+      public void propertyChange(PropertyChangeEvent evt) {
+        props.add(evt.getPropertyName());
+      }
+    });
+    BuddyInfoDelta delta = applyUpdate();
+    assertTrue(props.isEmpty());
+    info.fireBatchUpdate(delta);
+
+    assertEquals(delta.getChangedProperties().size(), props.size());
+    assertTrue(props.contains(BuddyInfo.PROP_AWAY));
+    assertTrue(props.contains(BuddyInfo.PROP_AWAY_MESSAGE));
+  }
+
+  public void testDeltaListenerGetsOneDelta() {
+    final List<BuddyInfoDelta> deltas = new ArrayList<BuddyInfoDelta>();
+    final List<String> props = new ArrayList<String>();
+    info.addPropertyListener(new BuddyInfoDeltaListener() {
+      public void buddyInfoUpdated(BuddyInfo info, BuddyInfoDelta delta) {
+        deltas.add(delta);
+      }
+
+      public void receivedBuddyStatusUpdate(BuddyInfo info) {
+      }
+
+      public void propertyChange(PropertyChangeEvent evt) {
+        props.add(evt.getPropertyName());
+      }
+    });
+    BuddyInfoDelta delta = applyUpdate();
+    info.fireBatchUpdate(delta);
+
+    assertEquals(1, deltas.size());
+    assertTrue(props.isEmpty());
+    // the away message changed twice, but appears once with its first value
+    PropertyChangeEvent change = delta.getChange(BuddyInfo.PROP_AWAY_MESSAGE);
+    assertNull(change.getOldValue());
+    assertEquals("back soon", change.getNewValue());
+  }
+
+  public void testUnchangedUpdateFiresNothing() {
+    applyUpdate();
+    final List<String> props = new ArrayList<String>();
+    info.addPropertyListener(new BuddyInfoChangeListener() {
+      public void receivedBuddyStatusUpdate(BuddyInfo info) {
+      }
+
+      public void propertyChange(PropertyChangeEvent evt) {
+        props.add(evt.getPropertyName());
+      }
+    });
+    BuddyInfoDelta delta = applyUpdate();
+    assertTrue(delta.isEmpty());
+    info.fireBatchUpdate(delta);
+    assertTrue(props.isEmpty());
+  }
+
+  private BuddyInfoDelta applyUpdate() {
+    synchronized (info) {
+      info.beginBatchUpdate();
+      info.setAway(true);
+      info.setAwayMessage("brb");
+      info.setAwayMessage("back soon");
+      return info.endBatchUpdate();
+    }
+  }
+}
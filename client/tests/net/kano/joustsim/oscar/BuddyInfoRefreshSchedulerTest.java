@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BuddyInfoRefreshSchedulerTest extends TestCase {
+  private BuddyInfoRefreshScheduler scheduler;
+  private final List<String> runs
+      = Collections.synchronizedList(new ArrayList<String>());
+
+  protected void setUp() throws Exception {
+    scheduler = new BuddyInfoRefreshScheduler();
+  }
+
+  public void testRunsInDeadlineOrder() throws InterruptedException {
+    long now = System.currentTimeMillis();
+    scheduler.schedule(new RecordingTask("c", -1), now + 150);
+    scheduler.schedule(new RecordingTask("a", -1), now + 50);
+    scheduler.schedule(new RecordingTask("b", -1), now + 100);
+    waitForRuns(3);
+    assertEquals("[a, b, c]", runs.toString());
+    assertEquals(0, scheduler.getScheduledCount());
+  }
+
+  public void testSchedulingAgainReplacesDeadline()
+      throws InterruptedException {
+    long now = System.currentTimeMillis();
+    RecordingTask a = new RecordingTask("a", -1);
+    scheduler.schedule(a, now + 50);
+    scheduler.schedule(new RecordingTask("b", -1), now + 100);
+    scheduler.schedule(a, now + 150);
+    assertEquals(2, scheduler.getScheduledCount());
+    waitForRuns(2);
+    assertEquals("[b, a]", runs.toString());
+  }
+
+  public void testTaskReschedulesItself() throws InterruptedException {
+    RecordingTask task = new RecordingTask("a", 20);
+    scheduler.schedule(task, System.currentTimeMillis());
+    waitForRuns(3);
+    scheduler.cancel(task);
+    assertTrue(runs.size() >= 3);
+  }
+
+  public void testCancelledTaskDoesNotRun() throws InterruptedException {
+    RecordingTask a = new RecordingTask("a", -1);
+    scheduler.schedule(a, System.currentTimeMillis() + 50);
+    scheduler.schedule(new RecordingTask("b", -1),
+        System.currentTimeMillis() + 100);
+    scheduler.cancel(a);
+    assertEquals(1, scheduler.getScheduledCount());
+    waitForRuns(1);
+    Thread.sleep(100);
+    assertEquals("[b]", runs.toString());
+  }
+
+  public void testCancelWhileRunningStopsRescheduling()
+      throws InterruptedException {
+    final BuddyInfoRefreshScheduler.Task[] self
+        = new BuddyInfoRefreshScheduler.Task[1];
+    self[0] = new BuddyInfoRefreshScheduler.Task() {
+      protected long run(long now) {
+        runs.add("a");
+        scheduler.cancel(self[0]);
+        return now;
+      }
+    };
+    scheduler.schedule(self[0], System.currentTimeMillis());
+    waitForRuns(1);
+    Thread.sleep(100);
+    assertEquals(1, runs.size());
+    assertEquals(0, scheduler.getScheduledCount());
+  }
+
+  public void testBackoffDoublesUntilMaximum() {
+    long interval = 30;
+    interval = BuddyInfoTracker.getNextInterval(interval, false, 30, 200);
+    assertEquals(60, interval);
+    interval = BuddyInfoTracker.getNextInterval(interval, false, 30, 200);
+    assertEquals(120, interval);
+    interval = BuddyInfoTracker.getNextInterval(interval, false, 30, 200);
+    assertEquals(200, interval);
+    interval = BuddyInfoTracker.getNextInterval(interval, false, 30, 200);
+    assertEquals(200, interval);
+
+    // a change goes straight back to the minimum
+    assertEquals(30,
+        BuddyInfoTracker.getNextInterval(interval, true, 30, 200));
+  }
+
+  public void testAwayBuddiesWaitLonger() {
+    assertEquals(30, BuddyInfoTracker.getEffectiveInterval(30, false, 200));
+    assertEquals(120, BuddyInfoTracker.getEffectiveInterval(30, true, 200));
+    assertEquals(200, BuddyInfoTracker.getEffectiveInterval(120, true, 200));
+  }
+
+  private void waitForRuns(int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (runs.size() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertTrue("only " + runs.size() + " runs", runs.size() >= count);
+  }
+
+  private class RecordingTask extends BuddyInfoRefreshScheduler.Task {
+    private final String name;
+    private final long period;
+
+    public RecordingTask(String name, long period) {
+      this.name = name;
+      this.period = period;
+    }
+
+    protected long run(long now) {
+      runs.add(name);
+      return period == -1 ? -1 : now + period;
+    }
+  }
+}
@@ -49,6 +49,7 @@ import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ConnectToProxyF
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.OutgoingConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ProxyConnection;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.ProxyConnector;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RacingConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectConnectionController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.RedirectToProxyController;
 import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.StateController;
@@ -150,6 +151,55 @@ public class IncomingRvConnectionFunctionalTests extends RvConnectionTestCase {
     assertSentRvs(0, 1, 0);
   }
 
+  public void testRacingConnectionInternetWins() {
+    conn.getSettings().setRacingConnections(true);
+    conn.getSettings().setConnectionRaceStagger(0);
+    conn.addEventListener(new RacingConnectorSetter() {
+      protected void setConnector(OutgoingConnectionController ogc) {
+        if (ogc.getTimeoutType() == ConnectionType.LAN) {
+          ogc.setConnector(new HangConnector());
+        } else {
+          ogc.setConnector(new NopConnector());
+        }
+      }
+    });
+    generateRequestAndWaitForStream();
+    RacingConnectionController racer = TestTools.findOnlyInstance(
+        conn.getHitControllers(), RacingConnectionController.class);
+    assertNotNull(racer);
+    assertEquals(ConnectionType.INTERNET, ((OutgoingConnectionController)
+        racer.getWinner()).getTimeoutType());
+    assertDidntHit(ConnectToProxyForIncomingController.class);
+    assertSentRvs(0, 1, 0);
+  }
+
+  public void testRacingConnectionFallsBackToProxy() {
+    conn.getSettings().setRacingConnections(true);
+    conn.getSettings().setConnectionRaceStagger(0);
+    conn.addEventListener(new RacingConnectorSetter() {
+      protected void setConnector(OutgoingConnectionController ogc) {
+        ogc.setConnector(new FailConnector());
+      }
+
+      public void handleEvent(RvConnection transfer, RvConnectionEvent event) {
+        super.handleEvent(transfer, event);
+        if (event instanceof StartingControllerEvent) {
+          StateController controller = ((StartingControllerEvent) event)
+              .getController();
+          if (controller instanceof ConnectToProxyForIncomingController) {
+            ((ConnectToProxyForIncomingController) controller).setConnector(
+                getDirectedToProxyConnector());
+          }
+        }
+      }
+    });
+    generateRequestAndWaitForStream();
+    assertHitOnce(RacingConnectionController.class);
+    assertHitOnce(ConnectToProxyForIncomingController.class);
+    assertDidntHit(OutgoingConnectionController.class);
+    assertSentRvs(0, 1, 0);
+  }
+
   public void testRetryLastController() {
     final StateController[] second = new StateController[1];
     conn.addEventListener(new DefaultRvConnectionEventListener() {
@@ -502,4 +552,23 @@ public class IncomingRvConnectionFunctionalTests extends RvConnectionTestCase {
     public void prepareStream() throws IOException {
     }
   }
+
+  private abstract static class RacingConnectorSetter
+      extends DefaultRvConnectionEventListener {
+    public void handleEvent(RvConnection transfer, RvConnectionEvent event) {
+      if (event instanceof StartingControllerEvent) {
+        StateController controller = ((StartingControllerEvent) event)
+            .getController();
+        if (controller instanceof RacingConnectionController) {
+          RacingConnectionController racer
+              = (RacingConnectionController) controller;
+          for (StateController attempt : racer.getAttempts()) {
+            setConnector((OutgoingConnectionController) attempt);
+          }
+        }
+      }
+    }
+
+    protected abstract void setConnector(OutgoingConnectionController ogc);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+public class BudgetedAttachmentSaverTest extends TestCase {
+  private File tempDir;
+  private AttachmentMemoryPool pool;
+  private BudgetedAttachmentSaver saver;
+
+  protected void setUp() throws Exception {
+    tempDir = File.createTempFile("dimtest", "");
+    assertTrue(tempDir.delete());
+    pool = new AttachmentMemoryPool(1000, 100);
+    saver = new BudgetedAttachmentSaver(pool, tempDir, 500);
+  }
+
+  protected void tearDown() throws Exception {
+    File[] files = tempDir.listFiles();
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+    tempDir.delete();
+  }
+
+  public void testSmallAttachmentStaysInMemory() throws IOException {
+    SpillingAttachment attachment = save("a", makeData(250));
+    assertTrue(attachment.isInMemory());
+    assertEquals(250, pool.getUsed());
+    assertTrue(Arrays.equals(makeData(250), read(attachment)));
+
+    attachment.release();
+    assertEquals(0, pool.getUsed());
+  }
+
+  public void testLargeAttachmentGoesToDisk() throws IOException {
+    SpillingAttachment attachment = save("a", makeData(600));
+    assertFalse(attachment.isInMemory());
+    assertEquals(0, pool.getUsed());
+    assertTrue(Arrays.equals(makeData(600), read(attachment)));
+
+    File file = attachment.getFile();
+    assertTrue(file.exists());
+    attachment.release();
+    assertFalse(file.exists());
+  }
+
+  public void testSpillsWhenPoolIsFull() throws IOException {
+    SpillingAttachment first = save("a", makeData(450));
+    SpillingAttachment second = save("b", makeData(450));
+    assertTrue(first.isInMemory());
+    assertTrue(second.isInMemory());
+
+    SpillingAttachment third = save("c", makeData(450));
+    assertFalse(third.isInMemory());
+    assertEquals(900, pool.getUsed());
+    assertTrue(Arrays.equals(makeData(450), read(third)));
+
+    first.release();
+    second.release();
+    third.release();
+    assertEquals(0, pool.getUsed());
+    assertEquals(0, tempDir.listFiles().length);
+  }
+
+  public void testReaderFailsAfterRelease() throws IOException {
+    SpillingAttachment attachment = save("a", makeData(250));
+    ReadableByteChannel in = attachment.openForReading();
+    assertEquals(10, in.read(ByteBuffer.allocate(10)));
+
+    attachment.release();
+    try {
+      in.read(ByteBuffer.allocate(10));
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+  }
+
+  private SpillingAttachment save(String id, byte[] data) throws IOException {
+    SpillingAttachment attachment
+        = (SpillingAttachment) saver.createChannel(id, data.length);
+    WritableByteChannel out = attachment.openForWriting();
+    // write in odd pieces so they don't line up with the pool's chunks
+    for (int i = 0; i < data.length; i += 33) {
+      ByteBuffer buf = ByteBuffer.wrap(data, i, Math.min(33, data.length - i));
+      while (buf.hasRemaining()) out.write(buf);
+    }
+    out.close();
+    return attachment;
+  }
+
+  private static byte[] read(Attachment attachment) throws IOException {
+    ReadableByteChannel in = attachment.openForReading();
+    ByteBuffer buf = ByteBuffer.allocate((int) attachment.getLength() + 1);
+    ByteBuffer piece = ByteBuffer.allocate(37);
+    while (in.read(piece) != -1) {
+      piece.flip();
+      buf.put(piece);
+      piece.clear();
+    }
+    in.close();
+    byte[] data = new byte[buf.position()];
+    buf.flip();
+    buf.get(data);
+    return data;
+  }
+
+  private static byte[] makeData(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) data[i] = (byte) (i * 7);
+    return data;
+  }
+}
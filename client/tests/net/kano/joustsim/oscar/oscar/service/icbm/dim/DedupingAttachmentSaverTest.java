@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import junit.framework.TestCase;
+import net.kano.joscar.BinaryTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class DedupingAttachmentSaverTest extends TestCase {
+  private AttachmentMemoryPool pool;
+  private DedupingAttachmentSaver saver;
+
+  protected void setUp() throws Exception {
+    pool = new AttachmentMemoryPool(1000, 100);
+    saver = new DedupingAttachmentSaver(new BudgetedAttachmentSaver(pool,
+        new File(System.getProperty("java.io.tmpdir")), 500));
+  }
+
+  public void testIdenticalAttachmentsShareStorage() throws IOException {
+    StoredAttachment first = save("a", "smiley");
+    StoredAttachment second = save("b", "smiley");
+    assertSame(first.getStorage(), second.getStorage());
+    assertEquals(first.getContentHash(), second.getContentHash());
+    assertEquals(1, saver.getStore().getStoredCount());
+    assertEquals(6, pool.getUsed());
+
+    first.release();
+    assertEquals(6, pool.getUsed());
+    second.release();
+    assertEquals(0, pool.getUsed());
+    assertEquals(0, saver.getStore().getStoredCount());
+  }
+
+  public void testDifferentAttachmentsAreKeptApart() throws IOException {
+    StoredAttachment first = save("a", "smiley");
+    StoredAttachment second = save("a", "frowny");
+    assertNotSame(first.getStorage(), second.getStorage());
+    assertEquals(2, saver.getStore().getStoredCount());
+    assertEquals(12, pool.getUsed());
+  }
+
+  public void testUnreleasedAttachmentsDontPinTheStore() throws Exception {
+    save("a", "smiley");
+    save("b", "smiley");
+    save("c", "frowny");
+    assertEquals(2, saver.getStore().getStoredCount());
+
+    // none of them were released, but nothing refers to them any more
+    for (int i = 0; i < 50 && saver.getStore().getStoredCount() > 0; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    assertEquals(0, saver.getStore().getStoredCount());
+    assertEquals(0, pool.getUsed());
+  }
+
+  public void testReleasedAttachmentIsNotCountedTwice() throws Exception {
+    StoredAttachment first = save("a", "smiley");
+    StoredAttachment second = save("b", "smiley");
+    first.release();
+    first = null;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    assertEquals(1, saver.getStore().getStoredCount());
+    assertEquals(6, pool.getUsed());
+
+    second.release();
+    assertEquals(0, saver.getStore().getStoredCount());
+  }
+
+  private StoredAttachment save(String id, String data) throws IOException {
+    byte[] bytes = BinaryTools.getAsciiBytes(data);
+    StoredAttachment attachment
+        = (StoredAttachment) saver.createChannel(id, bytes.length);
+    WritableByteChannel out = attachment.openForWriting();
+    out.write(ByteBuffer.wrap(bytes));
+    out.close();
+    return attachment;
+  }
+}
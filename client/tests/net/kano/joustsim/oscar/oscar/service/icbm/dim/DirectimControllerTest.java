@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import junit.framework.TestCase;
+import net.kano.joscar.ImEncodingParams;
+import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rvproto.directim.DirectImHeader;
+import net.kano.joustsim.Screenname;
+import net.kano.joustsim.oscar.oscar.service.icbm.DirectMessage;
+import net.kano.joustsim.oscar.oscar.service.icbm.TypingState;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.Initiator;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvSessionConnectionInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.TimeoutHandler;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers.StateController;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.EventPost;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.RvConnectionEvent;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.AbstractStreamInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DirectimControllerTest extends TestCase {
+  private static final long SESSION_ID = 1234;
+
+  private Pipe incoming;
+  /** Released to let the queue finish sending its first item. */
+  private CountDownLatch firstItemGate;
+  private final List<Object> sent
+      = Collections.synchronizedList(new ArrayList<Object>());
+  private final List<RvConnectionEvent> events
+      = Collections.synchronizedList(new ArrayList<RvConnectionEvent>());
+  private DirectimController controller;
+
+  protected void setUp() throws Exception {
+    incoming = Pipe.open();
+    firstItemGate = new CountDownLatch(1);
+    controller = new TestController();
+  }
+
+  protected void tearDown() throws Exception {
+    firstItemGate.countDown();
+    incoming.sink().close();
+    incoming.source().close();
+  }
+
+  public void testTypingStateAtEndOfQueueIsReplaced() throws Exception {
+    start(Initiator.BUDDY);
+    controller.setTypingState(TypingState.TYPING);
+    controller.setTypingState(TypingState.PAUSED);
+    controller.setTypingState(TypingState.NO_TEXT);
+    firstItemGate.countDown();
+
+    assertSent(DirectimQueueProcessor.INIT, TypingState.NO_TEXT);
+  }
+
+  public void testTypingStateIsNotMovedPastMessage() throws Exception {
+    start(Initiator.BUDDY);
+    DirectMessage message = new DirectMessage("hi", false);
+    controller.setTypingState(TypingState.TYPING);
+    controller.sendMessage(message);
+    controller.setTypingState(TypingState.PAUSED);
+    controller.setTypingState(TypingState.NO_TEXT);
+    firstItemGate.countDown();
+
+    assertSent(DirectimQueueProcessor.INIT, TypingState.TYPING, message,
+        TypingState.NO_TEXT);
+  }
+
+  public void testQueuedMessagesAreSentInOrderOnceConfirmed()
+      throws Exception {
+    firstItemGate.countDown();
+    start(Initiator.ME);
+    DirectMessage first = new DirectMessage("one", false);
+    DirectMessage second = new DirectMessage("two", false);
+    controller.sendMessage(first);
+    controller.setTypingState(TypingState.TYPING);
+    controller.sendMessage(second);
+
+    // nothing goes out until the buddy confirms the ICBM ID
+    Thread.sleep(200);
+    assertTrue(sent.isEmpty());
+    assertFalse(controller.isConnected());
+
+    writeHeader(DirectImHeader.FLAG_CONFIRMATION, 0);
+    assertSent(DirectimQueueProcessor.INIT, first, TypingState.TYPING,
+        second);
+    assertTrue(controller.isConnected());
+  }
+
+  public void testStopBeforeConfirmationFailsQueuedMessages()
+      throws Exception {
+    start(Initiator.ME);
+    DirectMessage message = new DirectMessage("hi", false);
+    controller.sendMessage(message);
+
+    controller.stop();
+    assertTrue(sent.isEmpty());
+    assertTrue(hasEvent(SendingMessageFailedEvent.class));
+    assertNotNull(controller.getEndStateInfo());
+  }
+
+  public void testStopWhileIdle() throws Exception {
+    firstItemGate.countDown();
+    start(Initiator.BUDDY);
+    assertSent(DirectimQueueProcessor.INIT);
+
+    controller.stop();
+    assertTrue(controller.getEndStateInfo() instanceof DirectimEndedInfo);
+
+    // anything sent afterwards fails rather than going out
+    DirectMessage message = new DirectMessage("hi", false);
+    controller.sendMessage(message);
+    waitForEvent(SendingMessageFailedEvent.class);
+    assertSent(DirectimQueueProcessor.INIT);
+  }
+
+  public void testStopWhileReceivingPacket() throws Exception {
+    firstItemGate.countDown();
+    start(Initiator.BUDDY);
+
+    // only part of the packet arrives, so the receiver waits for the rest
+    writeHeader(0, 100);
+    OutputStream out = Channels.newOutputStream(incoming.sink());
+    out.write("hello".getBytes("US-ASCII"));
+    out.flush();
+    waitForEvent(ReceivingMessageEvent.class);
+
+    long start = System.currentTimeMillis();
+    controller.stop();
+    assertTrue(System.currentTimeMillis() - start < 2000);
+    assertTrue(controller.getEndStateInfo() instanceof DirectimEndedInfo);
+    assertTrue(controller.isCancelled());
+    assertFalse(hasEvent(ReceivedMessageEvent.class));
+  }
+
+  private void start(Initiator initiator) {
+    controller.start(createConnection(initiator), createLastController());
+  }
+
+  private void writeHeader(long flags, long dataLength) throws IOException {
+    DirectImHeader header = new DirectImHeader();
+    header.setDefaults();
+    header.setFlags(flags);
+    header.setMessageId(SESSION_ID);
+    header.setDataLength(dataLength);
+    header.setEncoding(new ImEncodingParams(ImEncodingParams.CHARSET_ASCII));
+    OutputStream out = Channels.newOutputStream(incoming.sink());
+    header.write(out);
+    out.flush();
+  }
+
+  private void assertSent(Object... expected) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (sent.size() < expected.length
+        && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    // give anything which shouldn't have been sent a chance to show up
+    Thread.sleep(100);
+    assertEquals(Arrays.asList(expected), new ArrayList<Object>(sent));
+  }
+
+  private boolean hasEvent(Class<?> type) {
+    synchronized (events) {
+      for (RvConnectionEvent event : events) {
+        if (type.isInstance(event)) return true;
+      }
+    }
+    return false;
+  }
+
+  private void waitForEvent(Class<?> type) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (!hasEvent(type) && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertTrue("no " + type.getName(), hasEvent(type));
+  }
+
+  private DirectimConnection createConnection(Initiator initiator) {
+    Map<String, Object> session = new HashMap<String, Object>();
+    session.put("getRvSessionId", SESSION_ID);
+    Map<String, Object> info = new HashMap<String, Object>();
+    info.put("getInitiator", initiator);
+    info.put("getRvSession", stub(RvSession.class, session));
+
+    Map<String, Object> connection = new HashMap<String, Object>();
+    connection.put("getRvSessionInfo",
+        stub(RvSessionConnectionInfo.class, info));
+    connection.put("getTimeoutHandler", stub(TimeoutHandler.class,
+        new HashMap<String, Object>()));
+    connection.put("getMyScreenname", new Screenname("me"));
+    connection.put("getAttachmentSaver", new SizeBasedAttachmentSaver());
+    connection.put("getEventPost", new EventPost() {
+      public void fireEvent(RvConnectionEvent event) {
+        events.add(event);
+      }
+    });
+    return stub(DirectimConnection.class, connection);
+  }
+
+  private StateController createLastController() {
+    final StreamInfo stream = new AbstractStreamInfo() {
+      public SelectableChannel getSelectableChannel() {
+        return incoming.source();
+      }
+
+      public WritableByteChannel getWritableChannel() {
+        return Channels.newChannel(new ByteArrayOutputStream());
+      }
+
+      public ReadableByteChannel getReadableChannel() {
+        return incoming.source();
+      }
+    };
+    Map<String, Object> last = new HashMap<String, Object>();
+    last.put("getEndStateInfo", stream);
+    return stub(StateController.class, last);
+  }
+
+  /**
+   * Returns an implementation of the given interface whose methods return
+   * the values in the given map, by name. Methods which aren't in the map
+   * must return nothing.
+   */
+  private static <E> E stub(final Class<E> type,
+      final Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+        new Class[] { type }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (values.containsKey(name)) return values.get(name);
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        if (name.equals("toString")) return "stub " + type.getName();
+        if (method.getReturnType() == Void.TYPE) return null;
+        throw new UnsupportedOperationException(name);
+      }
+    }));
+  }
+
+  /**
+   * Records what it's asked to send instead of sending it. The first item
+   * isn't finished until {@link #firstItemGate} is released, so the items
+   * after it pile up in the queue.
+   */
+  private class TestController extends DirectimController {
+    protected DirectimQueueProcessor createQueueProcessor(
+        DirectimConnection connection, StreamInfo stream) {
+      return new DirectimQueueProcessor(this, connection, stream) {
+        protected void processItem(Object item) {
+          if (item == INIT) {
+            try {
+              firstItemGate.await(5000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          sent.add(item);
+        }
+      };
+    }
+  }
+}
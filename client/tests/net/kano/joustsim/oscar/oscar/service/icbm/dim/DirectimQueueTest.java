@@ -45,6 +45,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -81,6 +82,17 @@ public class DirectimQueueTest extends DirectimTest {
         + new String(bout.toByteArray(), "US-ASCII") + "</DATA></BINARY>");
   }
 
+  public void testShortFileAttachmentIsPadded() throws IOException {
+    File file = File.createTempFile("dimtest", null);
+    file.deleteOnExit();
+    FileOutputStream fout = new FileOutputStream(file);
+    fout.write("hey".getBytes("US-ASCII"));
+    fout.close();
+    processor.processItem(new DirectMessage("hi", false,
+        new FileAttachment(file, "a", 6)));
+    assertData("hi<BINARY><DATA ID=\"a\" SIZE=\"6\">hey\0\0\0</DATA></BINARY>");
+  }
+
   public void testMessage() throws IOException {
     processor.processItem(new DirectMessage("hi", false));
     assertData("hi");
@@ -135,6 +135,33 @@ public class DirectimReceiverTest extends DirectimTest {
     }
   }
 
+  public void testTagsLongerThanBuffer() throws IOException {
+    String str = "hello <b>there</b>";
+    String attch = makeString(40);
+    String sent = str + "<BINARY><DATA ID=\"abc\" SIZE=\"" + attch.length()
+        + "\">" + attch + "</DATA><DATA ID='b' SIZE=0></DATA></BINARY>";
+    for (int bufferSize = 1; bufferSize < 12; bufferSize++) {
+      runTestWithAttachment(sent, bufferSize, str, attch, "");
+    }
+  }
+
+  public void testUtf8CharactersSplitBetweenReads() throws IOException {
+    String str = "caf\u00e9 \u65e5\u672c\u8a9e \ud834\udd1e ";
+    for (int i = 0; i < 4; i++) str += str;
+    for (int bufferSize = 10; bufferSize < 20; bufferSize++) {
+      CollectingEventPost events = runTest(str, bufferSize, "UTF-8");
+      String recvd = TestTools.findOnlyInstance(events.getEvents(),
+          ReceivedMessageEvent.class).getMessage();
+      assertEquals(str, recvd);
+      for (RvConnectionEvent event : events.getEvents()) {
+        if (event instanceof ReceivingMessageEvent) {
+          String part = ((ReceivingMessageEvent) event).getMessage();
+          assertTrue(part, str.startsWith(part));
+        }
+      }
+    }
+  }
+
   private void runTestWithPlainMessage(String sent, int bufferSize,
       String expect) throws IOException {
     CollectingEventPost events = runTest(sent, bufferSize);
@@ -171,11 +198,16 @@ public class DirectimReceiverTest extends DirectimTest {
 
   private CollectingEventPost runTest(String msg,
       int bufferSize) throws IOException {
-    byte[] bytes = msg.getBytes("US-ASCII");
+    return runTest(msg, bufferSize, "US-ASCII");
+  }
+
+  private CollectingEventPost runTest(String msg, int bufferSize,
+      String charset) throws IOException {
+    byte[] bytes = msg.getBytes(charset);
     ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
     CollectingEventPost events = new CollectingEventPost();
     DirectimReceiver receiver = new DirectimReceiver(events,
-        new MemorySaver(), "US-ASCII", bytes.length, Channels.newChannel(bin),
+        new MemorySaver(), charset, bytes.length, Channels.newChannel(bin),
         false);
     receiver.resizeBuffer(bufferSize);
     receiver.transfer();
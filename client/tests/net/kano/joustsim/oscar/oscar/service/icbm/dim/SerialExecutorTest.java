@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.dim;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SerialExecutorTest extends TestCase {
+  private SerialExecutor executor;
+
+  protected void setUp() throws Exception {
+    executor = new SerialExecutor(SerialExecutor.getSharedPool());
+  }
+
+  public void testRunsTasksInOrder() throws Exception {
+    final List<Integer> ran = Collections.synchronizedList(
+        new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      final int index = i;
+      executor.execute(new Runnable() {
+        public void run() {
+          if (index % 10 == 0) Thread.yield();
+          ran.add(index);
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 100; i++) assertEquals(i, (int) ran.get(i));
+  }
+
+  public void testRunsOneTaskAtATime() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger mostRunning = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(20);
+    for (int i = 0; i < 20; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          int now = running.incrementAndGet();
+          if (now > mostRunning.get()) mostRunning.set(now);
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+    assertEquals(1, mostRunning.get());
+  }
+
+  public void testConversationsRunConcurrently() throws Exception {
+    SerialExecutor other = new SerialExecutor(SerialExecutor.getSharedPool());
+    final CountDownLatch otherRan = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+
+    // this would never finish if the other conversation had to wait for it
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          if (otherRan.await(5000, TimeUnit.MILLISECONDS)) done.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    other.execute(new Runnable() {
+      public void run() {
+        otherRan.countDown();
+      }
+    });
+    assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+  }
+
+  public void testKeepsGoingAfterError() throws Exception {
+    final CountDownLatch done = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      public void run() {
+        throw new IllegalStateException("this is only a test");
+      }
+    });
+    executor.execute(new Runnable() {
+      public void run() {
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5000, TimeUnit.MILLISECONDS));
+  }
+}
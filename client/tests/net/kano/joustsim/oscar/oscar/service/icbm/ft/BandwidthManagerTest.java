@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import junit.framework.TestCase;
+import net.kano.joustsim.Screenname;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+public class BandwidthManagerTest extends TestCase {
+  private static final Screenname BUDDY1 = new Screenname("buddy1");
+  private static final Screenname BUDDY2 = new Screenname("buddy2");
+
+  private BandwidthManager manager;
+
+  protected void setUp() throws Exception {
+    manager = new BandwidthManager();
+  }
+
+  public void testUnlimitedByDefault() throws Exception {
+    TransferThrottle throttle = manager.register(createConnection(BUDDY1));
+    assertEquals(12345, throttle.acquire(12345));
+    assertEquals(BandwidthManager.UNLIMITED, throttle.getRateLimit());
+  }
+
+  public void testGlobalLimitIsSharedByPriority() throws Exception {
+    manager.setGlobalLimit(30000);
+    RvConnection conn1 = createConnection(BUDDY1);
+    RvConnection conn2 = createConnection(BUDDY2);
+    conn2.getSettings().setBandwidthPriority(2);
+    TransferThrottle throttle1 = manager.register(conn1);
+    TransferThrottle throttle2 = manager.register(conn2);
+
+    assertEquals(10000, manager.getRateLimit(throttle1));
+    assertEquals(20000, manager.getRateLimit(throttle2));
+
+    throttle2.close();
+    assertEquals(30000, manager.getRateLimit(throttle1));
+  }
+
+  public void testBuddyAndOwnLimits() throws Exception {
+    manager.setGlobalLimit(100000);
+    manager.setBuddyLimit(BUDDY1, 20000);
+    RvConnection conn1 = createConnection(BUDDY1);
+    RvConnection conn2 = createConnection(BUDDY1);
+    RvConnection conn3 = createConnection(BUDDY2);
+    TransferThrottle throttle1 = manager.register(conn1);
+    TransferThrottle throttle2 = manager.register(conn2);
+    TransferThrottle throttle3 = manager.register(conn3);
+
+    // buddy1 can only use 20000 of its global share, so buddy2 gets the rest
+    assertEquals(10000, manager.getRateLimit(throttle1));
+    assertEquals(10000, manager.getRateLimit(throttle2));
+    assertEquals(80000, manager.getRateLimit(throttle3));
+
+    conn3.getSettings().setMaxBytesPerSecond(5000);
+    assertEquals(5000, manager.getRateLimit(throttle3));
+
+    manager.setBuddyLimit(BUDDY1, BandwidthManager.UNLIMITED);
+    assertEquals(47500, manager.getRateLimit(throttle1));
+    assertEquals(47500, manager.getRateLimit(throttle2));
+  }
+
+  public void testThrottleLimitsRate() throws Exception {
+    RvConnection conn = createConnection(BUDDY1);
+    conn.getSettings().setMaxBytesPerSecond(200000);
+    TransferThrottle throttle = manager.register(conn);
+
+    long start = System.currentTimeMillis();
+    long total = 0;
+    while (total < 150000) {
+      long granted = throttle.acquire(150000 - total);
+      throttle.transferred(granted, granted);
+      total += granted;
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    // the first 50000 bytes come from the full bucket
+    assertTrue("took " + elapsed + " ms", elapsed >= 400);
+    assertTrue("took " + elapsed + " ms", elapsed < 3000);
+    assertEquals(150000, throttle.getBytesTransferred());
+    assertEquals(150000, manager.getTotalBytesTransferred());
+
+    throttle.close();
+    assertEquals(150000, manager.getTotalBytesTransferred());
+    assertTrue(manager.getThrottles().isEmpty());
+  }
+
+  public void testTryAcquireDoesNotWait() throws Exception {
+    RvConnection conn = createConnection(BUDDY1);
+    conn.getSettings().setMaxBytesPerSecond(200000);
+    TransferThrottle throttle = manager.register(conn);
+
+    // the bucket starts out full
+    assertEquals(50000, throttle.tryAcquire(150000));
+    long wait = throttle.tryAcquire(150000);
+    assertTrue("got " + wait, wait < 0);
+    assertTrue("got " + wait, wait >= -250);
+
+    Thread.sleep(-wait + 50);
+    assertTrue(throttle.tryAcquire(150000) > 0);
+    throttle.close();
+  }
+
+  private static RvConnection createConnection(final Screenname buddy) {
+    final RvConnectionSettings settings = new RvConnectionSettings();
+    return (RvConnection) Proxy.newProxyInstance(
+        RvConnection.class.getClassLoader(),
+        new Class[] { RvConnection.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getSettings")) return settings;
+        if (name.equals("getBuddyScreenname")) return buddy;
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+}
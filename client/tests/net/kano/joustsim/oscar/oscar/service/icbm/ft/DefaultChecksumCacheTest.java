@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+/**
+ * NOTE: This test accesses the file system by creating temp files
+ */
+public class DefaultChecksumCacheTest extends TestCase {
+  private File file;
+  private File index;
+
+  protected void setUp() throws Exception {
+    file = File.createTempFile("DefaultChecksumCacheTest", ".dat");
+    index = File.createTempFile("DefaultChecksumCacheTest", ".idx");
+    index.delete();
+  }
+
+  protected void tearDown() throws Exception {
+    file.delete();
+    index.delete();
+  }
+
+  public void testHit() {
+    DefaultChecksumCache cache = new DefaultChecksumCache();
+    assertNull(cache.getChecksum(file, 10, 1000));
+    cache.putChecksum(file, 10, 1000, 0x1234L);
+    assertEquals(new Long(0x1234L), cache.getChecksum(file, 10, 1000));
+    // the same file by another path
+    File other = new File(file.getParentFile(), "." + File.separator
+        + file.getName());
+    assertEquals(new Long(0x1234L), cache.getChecksum(other, 10, 1000));
+  }
+
+  public void testChangedFile() {
+    DefaultChecksumCache cache = new DefaultChecksumCache();
+    cache.putChecksum(file, 10, 1000, 0x1234L);
+    assertNull(cache.getChecksum(file, 11, 1000));
+    assertNull(cache.getChecksum(file, 10, 1000));
+    cache.putChecksum(file, 10, 1000, 0x1234L);
+    assertNull(cache.getChecksum(file, 10, 2000));
+  }
+
+  public void testEviction() {
+    DefaultChecksumCache cache = new DefaultChecksumCache(1, null);
+    File other = new File(file.getPath() + ".other");
+    cache.putChecksum(file, 10, 1000, 1);
+    cache.putChecksum(other, 10, 1000, 2);
+    assertNull(cache.getChecksum(file, 10, 1000));
+    assertEquals(new Long(2), cache.getChecksum(other, 10, 1000));
+  }
+
+  public void testIndex() {
+    DefaultChecksumCache cache = new DefaultChecksumCache(10, index);
+    cache.putChecksum(file, 10, 1000, 0xffff0000L);
+    // the index is written in the background, a while later
+    assertFalse(index.isFile());
+    cache.flush();
+    assertTrue(index.isFile());
+
+    DefaultChecksumCache reloaded = new DefaultChecksumCache(10, index);
+    assertEquals(new Long(0xffff0000L), reloaded.getChecksum(file, 10, 1000));
+    assertNull(reloaded.getChecksum(file, 10, 1001));
+  }
+
+  public void testBadPathsAreLeftOutOfIndex() {
+    DefaultChecksumCache cache = new DefaultChecksumCache(10, index);
+    File bad = new File(file.getParentFile(), "bad\nname\t.dat");
+    cache.putChecksum(bad, 10, 1000, 1);
+    cache.putChecksum(file, 10, 1000, 2);
+    assertEquals(new Long(1), cache.getChecksum(bad, 10, 1000));
+    cache.flush();
+
+    DefaultChecksumCache reloaded = new DefaultChecksumCache(10, index);
+    assertNull(reloaded.getChecksum(bad, 10, 1000));
+    assertEquals(new Long(2), reloaded.getChecksum(file, 10, 1000));
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * NOTE: This test accesses the file system by creating a temp file
+ */
+public class ParallelChecksummerTest extends TestCase {
+  private File file;
+  private RandomAccessFile raf;
+  private ExecutorService executor;
+
+  protected void setUp() throws Exception {
+    file = File.createTempFile("ParallelChecksummerTest", ".dat");
+    file.deleteOnExit();
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  protected void tearDown() throws Exception {
+    if (raf != null) raf.close();
+    file.delete();
+    executor.shutdownNow();
+  }
+
+  private FileChannel writeFile(int length) throws Exception {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+    raf = new RandomAccessFile(file, "r");
+    return raf.getChannel();
+  }
+
+  private void checkMatches(int length, int chunkSize) throws Exception {
+    FileChannel channel = writeFile(length);
+    long expected = new ChecksummerImpl(channel, length).compute();
+    ParallelChecksummer summer = new ParallelChecksummer(channel, length,
+        chunkSize, executor);
+    assertEquals("length " + length + ", chunks of " + chunkSize, expected,
+        summer.compute());
+    assertEquals(length, summer.getPosition());
+    raf.close();
+    raf = null;
+  }
+
+  public void testSmallFile() throws Exception {
+    checkMatches(0, 1024);
+    checkMatches(1, 1024);
+    checkMatches(1000, 1024);
+  }
+
+  public void testEvenChunks() throws Exception {
+    checkMatches(1024 * 1024, 64 * 1024);
+    checkMatches(1024 * 1024 + 1, 64 * 1024);
+  }
+
+  public void testOddChunks() throws Exception {
+    checkMatches(500001, 999);
+    checkMatches(500000, 12345);
+    checkMatches(3, 1);
+  }
+
+  public void testDefaultChunks() throws Exception {
+    int length = ParallelChecksummer.CHUNK_SIZE_DEFAULT * 2 + 77;
+    FileChannel channel = writeFile(length);
+    long expected = new ChecksummerImpl(channel, length).compute();
+    assertEquals(expected, new ParallelChecksummer(channel, length).compute());
+  }
+
+  public void testFileTooShort() throws Exception {
+    FileChannel channel = writeFile(10000);
+    try {
+      new ParallelChecksummer(channel, 20000, 1000, executor).compute();
+      fail("checksummed past the end of the file");
+    } catch (IOException expected) {
+    }
+    // the failed chunks must not have closed the channel the others share
+    assertTrue(channel.isOpen());
+    new ChecksummerImpl(channel, 10000).compute();
+  }
+
+  public void testOnlyComputesOnce() throws Exception {
+    FileChannel channel = writeFile(100);
+    ParallelChecksummer summer = new ParallelChecksummer(channel, 100);
+    summer.compute();
+    try {
+      summer.compute();
+      fail("computed twice");
+    } catch (IllegalStateException expected) {
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft;
+
+import junit.framework.TestCase;
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * NOTE: This test accesses the file system by creating a temp file
+ */
+public class RunningChecksummerTest extends TestCase {
+  private File file;
+  private RandomAccessFile raf;
+
+  protected void setUp() throws Exception {
+    file = File.createTempFile("RunningChecksummerTest", ".dat");
+    file.deleteOnExit();
+    raf = new RandomAccessFile(file, "rw");
+  }
+
+  protected void tearDown() throws Exception {
+    raf.close();
+    file.delete();
+  }
+
+  public void testOddChunksMatchFinishedFile() throws Exception {
+    checkReceive(100001, 0, false);
+  }
+
+  public void testDirectBuffersMatchFinishedFile() throws Exception {
+    checkReceive(65537, 0, true);
+  }
+
+  public void testResumeMatchesFinishedFile() throws Exception {
+    checkReceive(50000, 12345, false);
+  }
+
+  public void testEmptyFile() throws Exception {
+    checkReceive(0, 0, false);
+  }
+
+  public void testIncompleteFileIsNotComputed() {
+    RunningChecksummer summer = new RunningChecksummer(10);
+    summer.update(ByteBuffer.wrap(new byte[9]));
+    try {
+      summer.compute();
+      fail("computed a checksum for 9 of 10 bytes");
+    } catch (IllegalStateException ok) {
+    }
+  }
+
+  /**
+   * Writes random data to the file in uneven chunks, the way a receiver
+   * does, and checks that the running checksum matches a checksum of the
+   * finished file read back from disk.
+   */
+  private void checkReceive(int length, int resumeFrom, boolean direct)
+      throws Exception {
+    byte[] data = new byte[length];
+    Random random = new Random(length);
+    random.nextBytes(data);
+    FileChannel channel = raf.getChannel();
+
+    RunningChecksummer summer;
+    if (resumeFrom == 0) {
+      summer = new RunningChecksummer(length);
+    } else {
+      channel.write(ByteBuffer.wrap(data, 0, resumeFrom), 0);
+      FileTransferChecksum prefix = new FileTransferChecksum();
+      prefix.update(data, 0, resumeFrom);
+      summer = new RunningChecksummer(prefix.getValue(), resumeFrom, length);
+    }
+
+    int pos = resumeFrom;
+    while (pos < length) {
+      int len = Math.min(1 + random.nextInt(3000), length - pos);
+      ByteBuffer buf;
+      if (direct) {
+        buf = ByteBuffer.allocateDirect(len);
+        buf.put(data, pos, len);
+        buf.flip();
+      } else {
+        buf = ByteBuffer.wrap(data, pos, len).slice();
+      }
+      summer.update(buf);
+      assertEquals(len, buf.remaining());
+      pos += channel.write(buf, pos);
+    }
+
+    assertEquals(length, channel.size());
+    ByteBuffer finished = ByteBuffer.allocate(length);
+    while (finished.hasRemaining()) {
+      channel.read(finished, finished.position());
+    }
+    FileTransferChecksum expected = new FileTransferChecksum();
+    expected.update(finished.array(), 0, length);
+    assertEquals(expected.getValue(), summer.compute());
+    assertEquals(new ChecksummerImpl(channel, length).compute(),
+        summer.compute());
+  }
+}
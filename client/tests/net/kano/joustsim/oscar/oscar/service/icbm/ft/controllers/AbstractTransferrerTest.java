@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AbstractTransferrerTest extends TestCase {
+  private static final int LENGTH = 1024 * 1024;
+
+  private Pipe pipe;
+  private CountingExecutor executor;
+  private ResultListener listener;
+
+  protected void setUp() throws Exception {
+    pipe = Pipe.open();
+    executor = new CountingExecutor();
+    listener = new ResultListener();
+  }
+
+  protected void tearDown() throws Exception {
+    pipe.source().close();
+    pipe.sink().close();
+    executor.pool.shutdown();
+  }
+
+  public void testHoldsNoThreadWhileWaiting() throws Exception {
+    PipeSender sender = new PipeSender(LENGTH);
+    sender.transferAsync(executor, listener);
+
+    // the pipe fills up long before everything is sent
+    assertFalse(listener.done.await(300, TimeUnit.MILLISECONDS));
+    assertTrue(sender.getPosition() > 0);
+    assertEquals(0, executor.running.get());
+
+    assertEquals(LENGTH, drain(LENGTH));
+    assertTrue(listener.done.await(5000, TimeUnit.MILLISECONDS));
+    assertNull(listener.error);
+    assertEquals(LENGTH, listener.transferred);
+    assertTrue(pipe.sink().isBlocking());
+  }
+
+  public void testPausedTransferWaits() throws Exception {
+    PipeSender sender = new PipeSender(1000);
+    sender.paused = true;
+    sender.transferAsync(executor, listener);
+
+    assertFalse(listener.done.await(400, TimeUnit.MILLISECONDS));
+    assertEquals(0, sender.getPosition());
+
+    sender.paused = false;
+    assertTrue(listener.done.await(5000, TimeUnit.MILLISECONDS));
+    assertEquals(1000, listener.transferred);
+    assertEquals(1000, drain(1000));
+  }
+
+  public void testCancelWhileWaiting() throws Exception {
+    PipeSender sender = new PipeSender(LENGTH);
+    sender.transferAsync(executor, listener);
+    assertFalse(listener.done.await(200, TimeUnit.MILLISECONDS));
+
+    // nothing is read from the pipe, so this is only noticed once the wait
+    // for it times out
+    sender.cancelled = true;
+    assertTrue(listener.done.await(5000, TimeUnit.MILLISECONDS));
+    assertNull(listener.error);
+    assertTrue(listener.transferred < LENGTH);
+  }
+
+  public void testFailureIsReported() throws Exception {
+    PipeSender sender = new PipeSender(LENGTH);
+    sender.failure = new IOException("broken");
+    sender.transferAsync(executor, listener);
+
+    assertTrue(listener.done.await(5000, TimeUnit.MILLISECONDS));
+    assertSame(sender.failure, listener.error);
+    assertTrue(sender.cleanedUp);
+  }
+
+  private long drain(long length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(8192);
+    long total = 0;
+    while (total < length) {
+      buf.clear();
+      int read = pipe.source().read(buf);
+      if (read == -1) break;
+      total += read;
+    }
+    return total;
+  }
+
+  private class PipeSender extends AbstractTransferrer {
+    private final ByteBuffer data = ByteBuffer.allocate(8192);
+    public volatile boolean paused = false;
+    public volatile boolean cancelled = false;
+    public volatile IOException failure = null;
+    public volatile boolean cleanedUp = false;
+
+    public PipeSender(long length) {
+      super(null, pipe.sink(), pipe.sink(), 0, length);
+    }
+
+    protected int getSelectionKey() { return SelectionKey.OP_WRITE; }
+
+    protected boolean isCancelled() { return cancelled; }
+
+    protected boolean waitIfPaused() { return false; }
+
+    protected boolean isPaused() { return paused; }
+
+    protected void cleanUp() { cleanedUp = true; }
+
+    protected long transferChunk(ReadableByteChannel readable,
+        WritableByteChannel writable, long transferred, long remaining)
+        throws IOException {
+      if (failure != null) throw failure;
+      data.clear();
+      data.limit((int) Math.min(data.capacity(), remaining));
+      return writable.write(data);
+    }
+  }
+
+  private static class ResultListener implements TransferrerListener {
+    public final CountDownLatch done = new CountDownLatch(1);
+    public volatile long transferred = -1;
+    public volatile Exception error = null;
+
+    public void transferFinished(long transferred) {
+      this.transferred = transferred;
+      done.countDown();
+    }
+
+    public void transferFailed(Exception e) {
+      error = e;
+      done.countDown();
+    }
+  }
+
+  /** Keeps track of how many of its tasks are running. */
+  private static class CountingExecutor implements Executor {
+    public final ExecutorService pool = Executors.newCachedThreadPool();
+    public final AtomicInteger running = new AtomicInteger();
+
+    public void execute(final Runnable command) {
+      pool.execute(new Runnable() {
+        public void run() {
+          running.incrementAndGet();
+          try {
+            command.run();
+          } finally {
+            running.decrementAndGet();
+          }
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class AdaptiveChunkSizerTest extends TestCase {
+  private static final long FAST = 1000000;
+  private static final long SLOW = 500 * 1000000L;
+
+  public void testGrowsUpToMax() {
+    AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 5000);
+    assertEquals(1000, sizer.getChunkSize());
+    sizer.chunkTransferred(1000, 1000, FAST);
+    assertEquals(2000, sizer.getChunkSize());
+    sizer.chunkTransferred(2000, 2000, FAST);
+    assertEquals(4000, sizer.getChunkSize());
+    sizer.chunkTransferred(4000, 4000, FAST);
+    assertEquals(5000, sizer.getChunkSize());
+    sizer.chunkTransferred(5000, 5000, FAST);
+    assertEquals(5000, sizer.getChunkSize());
+  }
+
+  public void testOnlyGrowsAfterFullChunks() {
+    AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 5000);
+    // a partial chunk
+    sizer.chunkTransferred(1000, 999, FAST);
+    assertEquals(1000, sizer.getChunkSize());
+    // the end of the file, where less than a chunk was asked for
+    sizer.chunkTransferred(500, 500, FAST);
+    assertEquals(1000, sizer.getChunkSize());
+  }
+
+  public void testHalvesOnSlowChunks() {
+    AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 8000);
+    for (int i = 0; i < 3; i++) {
+      int size = sizer.getChunkSize();
+      sizer.chunkTransferred(size, size, FAST);
+    }
+    assertEquals(8000, sizer.getChunkSize());
+
+    sizer.chunkTransferred(8000, 8000, SLOW);
+    assertEquals(4000, sizer.getChunkSize());
+    sizer.chunkTransferred(4000, 10, SLOW);
+    assertEquals(2000, sizer.getChunkSize());
+    sizer.chunkTransferred(2000, 2000, SLOW);
+    sizer.chunkTransferred(1000, 1000, SLOW);
+    assertEquals(1000, sizer.getChunkSize());
+  }
+
+  public void testLocalAddressesGetLargeChunks() throws Exception {
+    String[] local = { "127.0.0.1", "10.1.2.3", "192.168.0.5", "172.16.0.1",
+        "169.254.1.1" };
+    for (String addr : local) {
+      assertEquals(addr, AdaptiveChunkSizer.MAX_LOCAL_CHUNK_SIZE,
+          AdaptiveChunkSizer.getMaxChunkSize(getAddress(addr), 65536));
+    }
+  }
+
+  public void testRemoteAddressesAreLimitedBySocketBuffer() throws Exception {
+    InetAddress remote = getAddress("64.12.24.50");
+    assertEquals(131072, AdaptiveChunkSizer.getMaxChunkSize(remote, 131072));
+    assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE_DEFAULT,
+        AdaptiveChunkSizer.getMaxChunkSize(remote, -1));
+    assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE_DEFAULT,
+        AdaptiveChunkSizer.getMaxChunkSize(null, -1));
+  }
+
+  public void testForChannel() throws Exception {
+    Pipe pipe = Pipe.open();
+    try {
+      AdaptiveChunkSizer sizer = AdaptiveChunkSizer.forChannel(pipe.source(),
+          false);
+      assertEquals(AdaptiveChunkSizer.MAX_CHUNK_SIZE_DEFAULT,
+          sizer.getMaxChunkSize());
+      assertEquals(AdaptiveChunkSizer.MIN_CHUNK_SIZE, sizer.getChunkSize());
+    } finally {
+      pipe.source().close();
+      pipe.sink().close();
+    }
+
+    ServerSocketChannel server = ServerSocketChannel.open();
+    try {
+      server.socket().bind(new InetSocketAddress(
+          InetAddress.getByName("127.0.0.1"), 0));
+      SocketChannel client = SocketChannel.open(
+          server.socket().getLocalSocketAddress());
+      try {
+        assertEquals(AdaptiveChunkSizer.MAX_LOCAL_CHUNK_SIZE,
+            AdaptiveChunkSizer.forChannel(client, true).getMaxChunkSize());
+      } finally {
+        client.close();
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  private static InetAddress getAddress(String addr) throws Exception {
+    String[] parts = addr.split("\\.");
+    byte[] bytes = new byte[4];
+    for (int i = 0; i < 4; i++) bytes[i] = (byte) Integer.parseInt(parts[i]);
+    return InetAddress.getByAddress(bytes);
+  }
+}
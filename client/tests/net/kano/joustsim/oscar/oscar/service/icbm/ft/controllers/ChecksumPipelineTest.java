@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import junit.framework.TestCase;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.Checksummer;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.ChecksummerListener;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.FileChecksummer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChecksumPipelineTest extends TestCase {
+  private List<TransferredFile> files = new ArrayList<TransferredFile>();
+
+  protected void setUp() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      files.add(new TransferredFileImpl(null, i, new File("file" + i),
+          "file" + i, 0));
+    }
+  }
+
+  public void testChecksumsInOrder() throws IOException {
+    ChecksumPipeline pipeline = new ChecksumPipeline(
+        new SizeChecksummer(), files);
+    pipeline.start();
+    for (int i = 0; i < files.size(); i++) {
+      assertEquals(i, pipeline.getChecksum(i));
+    }
+    pipeline.stop();
+  }
+
+  public void testStaysWithinDepth() throws Exception {
+    SizeChecksummer summer = new SizeChecksummer();
+    ChecksumPipeline pipeline = new ChecksumPipeline(summer, files, 2);
+    pipeline.start();
+    assertEquals(0, pipeline.getChecksum(0));
+    Thread.sleep(100);
+    assertEquals(2, summer.getCount());
+
+    assertEquals(1, pipeline.getChecksum(1));
+    Thread.sleep(100);
+    assertEquals(3, summer.getCount());
+    pipeline.stop();
+  }
+
+  public void testErrorIsThrownForFailedFile() throws IOException {
+    ChecksumPipeline pipeline = new ChecksumPipeline(new SizeChecksummer() {
+      public long getChecksumQuietly(TransferredFile file,
+          ChecksummerListener listener) throws IOException {
+        if (file == files.get(1)) throw new IOException("test");
+        return super.getChecksumQuietly(file, listener);
+      }
+    }, files);
+    pipeline.start();
+    assertEquals(0, pipeline.getChecksum(0));
+    try {
+      pipeline.getChecksum(1);
+      fail("Should have thrown IOException");
+    } catch (IOException e) {
+      assertEquals("test", e.getMessage());
+    }
+    pipeline.stop();
+  }
+
+  public void testStopWakesWaiters() throws Exception {
+    final Object lock = new Object();
+    final ChecksumPipeline pipeline = new ChecksumPipeline(
+        new SizeChecksummer() {
+          public long getChecksumQuietly(TransferredFile file,
+              ChecksummerListener listener) throws IOException {
+            synchronized (lock) {
+              try {
+                lock.wait();
+              } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+              }
+            }
+            return super.getChecksumQuietly(file, listener);
+          }
+        }, files);
+    pipeline.start();
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {
+        }
+        pipeline.stop();
+      }
+    }.start();
+    try {
+      pipeline.getChecksum(0);
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  public void testWaitingAnnouncesChecksummer() throws IOException {
+    final Checksummer slow = (Checksummer) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class[] { Checksummer.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+          }
+        });
+    ChecksumPipeline pipeline = new ChecksumPipeline(new SizeChecksummer() {
+      public long getChecksumQuietly(TransferredFile file,
+          ChecksummerListener listener) throws IOException {
+        if (file == files.get(0)) {
+          listener.checksumStarted(file, slow);
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+          }
+        }
+        return super.getChecksumQuietly(file, listener);
+      }
+    }, files);
+    final List<Checksummer> announced = new ArrayList<Checksummer>();
+    pipeline.start();
+    assertEquals(0, pipeline.getChecksum(0, new ChecksummerListener() {
+      public void checksumStarted(TransferredFile file, Checksummer summer) {
+        assertSame(files.get(0), file);
+        announced.add(summer);
+      }
+    }));
+    pipeline.stop();
+    assertEquals(1, announced.size());
+    assertSame(slow, announced.get(0));
+  }
+
+  private static class SizeChecksummer implements FileChecksummer {
+    private int count = 0;
+
+    public long getChecksum(TransferredFile file) throws IOException {
+      throw new IllegalStateException("pipeline should not fire events");
+    }
+
+    public long getChecksumQuietly(TransferredFile file,
+        ChecksummerListener listener) throws IOException {
+      synchronized (this) {
+        count++;
+      }
+      return file.getSize();
+    }
+
+    public synchronized int getCount() {
+      return count;
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.SocketStreamInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.StreamInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * Sends a file over a loopback connection with {@link FileSender} and
+ * {@link FileReceiver}, and with transferrers which move 1 KB at a time and
+ * wait on the selector before every chunk, as those classes used to, and
+ * prints the throughput of each.
+ * <br><br>
+ * Usage: {@code FileTransferBenchmark [megabytes] [runs]}
+ */
+public class FileTransferBenchmark {
+  private static final int LEGACY_CHUNK_SIZE = 1024;
+
+  public static void main(String[] args) throws Exception {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+    File source = File.createTempFile("ftbench", ".src");
+    File dest = File.createTempFile("ftbench", ".dest");
+    source.deleteOnExit();
+    dest.deleteOnExit();
+    try {
+      writeRandomFile(source, megabytes * 1024L * 1024L);
+      for (int i = 0; i < runs; i++) {
+        report("1 KB chunks", megabytes, run(source, dest, true));
+        report("adaptive", megabytes, run(source, dest, false));
+      }
+    } finally {
+      source.delete();
+      dest.delete();
+    }
+  }
+
+  private static void report(String name, int megabytes, long nanos) {
+    double secs = nanos / 1e9;
+    System.out.println(name + ": " + megabytes + " MB in "
+        + String.format("%.2f", secs) + " s, "
+        + String.format("%.1f", megabytes / secs) + " MB/s");
+  }
+
+  private static long run(File source, File dest, final boolean legacy)
+      throws Exception {
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress(InetAddress.getByName(null),
+        0));
+    final RandomAccessFile in = new RandomAccessFile(source, "r");
+    RandomAccessFile out = new RandomAccessFile(dest, "rw");
+    out.setLength(0);
+    try {
+      final long length = in.length();
+      final SocketChannel sendSocket = SocketChannel.open(
+          server.socket().getLocalSocketAddress());
+      SocketChannel receiveSocket = server.accept();
+      final Exception[] failure = new Exception[1];
+      Thread sender = new Thread(new Runnable() {
+        public void run() {
+          try {
+            StreamInfo stream = new SocketStreamInfo(sendSocket);
+            AbstractTransferrer transferrer = legacy
+                ? new LegacySender(stream, in.getChannel(), length)
+                : new FileSender(stream, null, in.getChannel(), 0, length,
+                    AdaptiveChunkSizer.forChannel(sendSocket, true));
+            transferrer.transfer();
+          } catch (Exception e) {
+            failure[0] = e;
+          }
+        }
+      }, "Benchmark sender");
+
+      long start = System.nanoTime();
+      sender.start();
+      StreamInfo stream = new SocketStreamInfo(receiveSocket);
+      AbstractTransferrer receiver = legacy
+          ? new LegacyReceiver(stream, out.getChannel(), length)
+          : new FileReceiver(stream, null, out.getChannel(), 0, length,
+              AdaptiveChunkSizer.forChannel(receiveSocket, false), null);
+      long received = receiver.transfer();
+      long elapsed = System.nanoTime() - start;
+      sender.join();
+
+      sendSocket.close();
+      receiveSocket.close();
+      if (failure[0] != null) throw failure[0];
+      if (received != length) {
+        throw new IllegalStateException("received " + received + " of "
+            + length + " bytes");
+      }
+      return elapsed;
+
+    } finally {
+      in.close();
+      out.close();
+      server.close();
+    }
+  }
+
+  private static void writeRandomFile(File file, long length)
+      throws IOException {
+    Random random = new Random(0);
+    byte[] block = new byte[64 * 1024];
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      for (long written = 0; written < length; written += block.length) {
+        random.nextBytes(block);
+        ByteBuffer buf = ByteBuffer.wrap(block, 0,
+            (int) Math.min(block.length, length - written));
+        while (buf.hasRemaining()) channel.write(buf);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static class LegacySender extends AbstractTransferrer {
+    private final FileChannel fileChannel;
+
+    public LegacySender(StreamInfo stream, FileChannel fileChannel,
+        long length) {
+      super(stream, 0, length);
+      this.fileChannel = fileChannel;
+    }
+
+    protected int getSelectionKey() { return SelectionKey.OP_WRITE; }
+
+    protected boolean isCancelled() { return false; }
+
+    protected boolean waitIfPaused() { return false; }
+
+    protected long transferChunk(ReadableByteChannel readable,
+        WritableByteChannel writable, long transferred, long remaining)
+        throws IOException {
+      return fileChannel.transferTo(offset + transferred,
+          Math.min(LEGACY_CHUNK_SIZE, remaining), writable);
+    }
+  }
+
+  private static class LegacyReceiver extends AbstractTransferrer {
+    private final FileChannel fileChannel;
+
+    public LegacyReceiver(StreamInfo stream, FileChannel fileChannel,
+        long length) {
+      super(stream, 0, length);
+      this.fileChannel = fileChannel;
+    }
+
+    protected int getSelectionKey() { return SelectionKey.OP_READ; }
+
+    protected boolean isCancelled() { return false; }
+
+    protected boolean waitIfPaused() { return false; }
+
+    protected long transferChunk(ReadableByteChannel readable,
+        WritableByteChannel writable, long transferred, long remaining)
+        throws IOException {
+      return fileChannel.transferFrom(readable, offset + transferred,
+          Math.min(LEGACY_CHUNK_SIZE, remaining));
+    }
+  }
+}
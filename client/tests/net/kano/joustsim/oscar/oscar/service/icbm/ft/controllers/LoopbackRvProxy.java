@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.rvproto.rvproxy.DefaultRvProxyCmdFactory;
+import net.kano.joscar.rvproto.rvproxy.RvProxyAckCmd;
+import net.kano.joscar.rvproto.rvproxy.RvProxyCmd;
+import net.kano.joscar.rvproto.rvproxy.RvProxyErrorCmd;
+import net.kano.joscar.rvproto.rvproxy.RvProxyInitRecvCmd;
+import net.kano.joscar.rvproto.rvproxy.RvProxyInitSendCmd;
+import net.kano.joscar.rvproto.rvproxy.RvProxyPacket;
+import net.kano.joscar.rvproto.rvproxy.RvProxyReadyCmd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A stand-in for AOL's rendezvous proxy server, listening on the loopback
+ * interface. A connection which sends an init-send command is given a port
+ * number in an ack; once another connection sends an init-receive command
+ * for that port, both are told they're ready, and from then on the proxy
+ * copies whatever either one sends to the other.
+ */
+public class LoopbackRvProxy {
+  private static final Logger LOGGER
+      = Logger.getLogger(LoopbackRvProxy.class.getName());
+
+  private static final int RELAY_BUFFER_SIZE = 64 * 1024;
+
+  private final ServerSocketChannel server;
+  private final Map<Integer, SocketChannel> waiting
+      = new HashMap<Integer, SocketChannel>();
+  private int nextPort = 4000;
+  private volatile boolean closed = false;
+
+  public LoopbackRvProxy() throws IOException {
+    server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress(InetAddress.getByName(null),
+        0));
+  }
+
+  public InetAddress getAddress() { return server.socket().getInetAddress(); }
+
+  public int getPort() { return server.socket().getLocalPort(); }
+
+  public void start() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        acceptConnections();
+      }
+    }, "Loopback RV proxy");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void close() {
+    closed = true;
+    try {
+      server.close();
+    } catch (IOException ignored) {
+    }
+    synchronized (this) {
+      for (SocketChannel channel : waiting.values()) closeQuietly(channel);
+      waiting.clear();
+    }
+  }
+
+  private void acceptConnections() {
+    while (!closed) {
+      final SocketChannel channel;
+      try {
+        channel = server.accept();
+      } catch (IOException e) {
+        if (!closed) LOGGER.log(Level.WARNING, "Couldn't accept", e);
+        return;
+      }
+      Thread handler = new Thread(new Runnable() {
+        public void run() {
+          handleConnection(channel);
+        }
+      }, "Loopback RV proxy connection");
+      handler.setDaemon(true);
+      handler.start();
+    }
+  }
+
+  private void handleConnection(SocketChannel channel) {
+    try {
+      RvProxyPacket packet = RvProxyPacket.readPacket(
+          channel.socket().getInputStream());
+      if (packet == null) {
+        closeQuietly(channel);
+        return;
+      }
+      RvProxyCmd cmd = new DefaultRvProxyCmdFactory().getRvProxyCmd(packet);
+      if (cmd instanceof RvProxyInitSendCmd) {
+        int port;
+        synchronized (this) {
+          port = nextPort++;
+          waiting.put(port, channel);
+        }
+        sendCommand(channel, new RvProxyAckCmd(getAddress(), port));
+
+      } else if (cmd instanceof RvProxyInitRecvCmd) {
+        SocketChannel sender;
+        synchronized (this) {
+          sender = waiting.remove(((RvProxyInitRecvCmd) cmd).getPort());
+        }
+        if (sender == null) {
+          sendCommand(channel, new RvProxyErrorCmd(
+              RvProxyErrorCmd.ERRORCODE_TIMEOUT));
+          closeQuietly(channel);
+          return;
+        }
+        sendCommand(sender, new RvProxyReadyCmd());
+        sendCommand(channel, new RvProxyReadyCmd());
+        startRelay(sender, channel);
+        relay(channel, sender);
+
+      } else {
+        LOGGER.warning("Unexpected proxy command: " + cmd);
+        closeQuietly(channel);
+      }
+    } catch (IOException e) {
+      if (!closed) LOGGER.log(Level.FINE, "Proxy connection failed", e);
+      closeQuietly(channel);
+    }
+  }
+
+  private void startRelay(final SocketChannel from, final SocketChannel to) {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        relay(from, to);
+      }
+    }, "Loopback RV proxy relay");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void relay(SocketChannel from, SocketChannel to) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(RELAY_BUFFER_SIZE);
+    try {
+      while (from.read(buffer) != -1) {
+        buffer.flip();
+        while (buffer.hasRemaining()) to.write(buffer);
+        buffer.clear();
+      }
+      to.socket().shutdownOutput();
+
+    } catch (IOException e) {
+      // one side hung up, so the whole connection is done
+      closeQuietly(from);
+      closeQuietly(to);
+    }
+  }
+
+  private static void sendCommand(SocketChannel channel, RvProxyCmd cmd)
+      throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    new RvProxyPacket(cmd).write(bout);
+    ByteBuffer buffer = ByteBuffer.wrap(bout.toByteArray());
+    while (buffer.hasRemaining()) channel.write(buffer);
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
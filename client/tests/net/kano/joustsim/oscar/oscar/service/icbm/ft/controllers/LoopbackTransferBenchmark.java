@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import net.kano.joscar.rv.RvProcessor;
+import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rv.RvSessionListener;
+import net.kano.joscar.rvcmd.RvConnectionInfo;
+import net.kano.joscar.snaccmd.CapabilityBlock;
+import net.kano.joscar.snaccmd.icbm.RvCommand;
+import net.kano.joustsim.Screenname;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.AbstractRvSessionConnectionInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.ConnectionType;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.DefaultFileMapper;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.IncomingFileTransferImpl;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.Initiator;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.OutgoingFileTransferImpl;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnection;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnectionEventListener;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvConnectionState;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvRequestMaker;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.RvSessionConnectionInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.TimeoutHandler;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.RvConnectionEvent;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.events.TransferringFileEvent;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.FailedStateInfo;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.state.SuccessfulStateInfo;
+import net.kano.joustsim.oscar.proxy.AimProxyInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends files from a {@link SendFileController} to a
+ * {@link ReceiveFileController} over real loopback connections, and prints
+ * one line of comma-separated results per run, so they can be saved and
+ * compared between versions. Each scenario is run both directly, with the
+ * sender listening and the receiver connecting to it, and through a
+ * {@link LoopbackRvProxy}. The results are:
+ * <ul>
+ * <li>the route, the number of files, and the size of each file</li>
+ * <li>the setup time, from when the sender starts connecting until the
+ * receiver starts receiving the first file, in milliseconds</li>
+ * <li>the total time, and the throughput in MB/s</li>
+ * <li>the CPU time used per MB sent, in milliseconds, by the whole process:
+ * both ends, and the proxy if there is one; this is left empty if the VM
+ * can't report it</li>
+ * </ul>
+ * <br><br>
+ * Usage: {@code LoopbackTransferBenchmark [runs] [COUNTxKB ...]}, where each
+ * {@code COUNTxKB} is a scenario of {@code COUNT} files of {@code KB}
+ * kilobytes each; for example, {@code 16x4096} sends sixteen 4 MB files.
+ */
+public class LoopbackTransferBenchmark {
+  private static final String[] DEFAULT_SCENARIOS = {
+    "1x65536", "16x4096", "256x64"
+  };
+  private static final long SESSION_ID = 1000;
+  private static final long RUN_TIMEOUT_MINUTES = 10;
+
+  private static final TimeoutHandler NO_TIMEOUTS = new TimeoutHandler() {
+    public void startTimeout(TimeoutableController controller) {
+    }
+
+    public void pauseTimeout(TimeoutableController controller) {
+    }
+
+    public void unpauseTimeout(TimeoutableController controller) {
+    }
+  };
+
+  private enum Route { DIRECT, PROXY }
+
+  public static void main(String[] args) throws Exception {
+    int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+    List<String> scenarios = args.length > 1
+        ? Arrays.asList(args).subList(1, args.length)
+        : Arrays.asList(DEFAULT_SCENARIOS);
+
+    File dir = createTempDir();
+    File sourceDir = new File(dir, "source");
+    File destDir = new File(dir, "dest");
+    LoopbackRvProxy proxy = new LoopbackRvProxy();
+    proxy.start();
+    try {
+      System.out.println("route,files,file_kb,run,setup_ms,seconds,mb_per_sec,"
+          + "cpu_ms_per_mb");
+      for (String scenario : scenarios) {
+        int x = scenario.indexOf('x');
+        int count = Integer.parseInt(scenario.substring(0, x));
+        int kb = Integer.parseInt(scenario.substring(x + 1));
+        deleteDir(sourceDir);
+        List<File> files = writeRandomFiles(sourceDir, count, kb * 1024L);
+        for (int run = 1; run <= runs; run++) {
+          for (Route route : Route.values()) {
+            deleteDir(destDir);
+            destDir.mkdirs();
+            Result result = run(route, files, destDir, proxy);
+            System.out.println(String.format(Locale.US,
+                "%s,%d,%d,%d,%.1f,%.3f,%.1f,%s",
+                route.name().toLowerCase(), count, kb, run,
+                result.setupNanos / 1e6, result.nanos / 1e9,
+                result.bytes / (1024.0 * 1024.0) / (result.nanos / 1e9),
+                result.cpuNanos < 0 ? "" : String.format(Locale.US, "%.2f",
+                    result.cpuNanos / 1e6
+                        / (result.bytes / (1024.0 * 1024.0)))));
+          }
+        }
+      }
+    } finally {
+      proxy.close();
+      deleteDir(dir);
+    }
+  }
+
+  private static Result run(Route route, List<File> files, File destDir,
+      final LoopbackRvProxy proxy) throws Exception {
+    final RunState state = new RunState();
+    final IncomingFileTransferImpl receiver = new IncomingFileTransferImpl(
+        AimProxyInfo.forNoProxy(), new Screenname("receiver"),
+        new LoopbackRvSession("sender"));
+    receiver.setFileMapper(new DefaultFileMapper(new Screenname("sender"),
+        destDir.getPath()));
+    receiver.setTimeoutHandler(NO_TIMEOUTS);
+    receiver.addEventListener(new RvConnectionEventListener() {
+      public void handleEventWithStateChange(RvConnection transfer,
+          RvConnectionState newState, RvConnectionEvent event) {
+        handleEvent(transfer, event);
+      }
+
+      public void handleEvent(RvConnection transfer, RvConnectionEvent event) {
+        if (event instanceof TransferringFileEvent) state.dataStarted();
+      }
+    });
+
+    final AbstractConnectionController receiverConnector;
+    final AbstractConnectionController senderConnector;
+    if (route == Route.DIRECT) {
+      senderConnector = new SendPassivelyController();
+      receiverConnector = new OutgoingConnectionController(ConnectionType.LAN);
+
+    } else {
+      SendOverProxyController sendOverProxy = new SendOverProxyController();
+      sendOverProxy.setConnector(sendOverProxy.new DefaultProxyConnector() {
+        public InetAddress getIpAddress() { return proxy.getAddress(); }
+
+        public int getConnectionPort() { return proxy.getPort(); }
+      });
+      senderConnector = sendOverProxy;
+      ConnectToProxyForIncomingController connectToProxy
+          = new ConnectToProxyForIncomingController();
+      connectToProxy.setConnector(connectToProxy.new ConnectToProxyConnector() {
+        public int getConnectionPort() { return proxy.getPort(); }
+      });
+      receiverConnector = connectToProxy;
+    }
+
+    // this stands in for the AIM server, passing the sender's request on to
+    // the receiver
+    final LoopbackRequestMaker maker = new LoopbackRequestMaker() {
+      protected void deliverRequest(RvConnectionInfo info) throws IOException {
+        if (!info.isProxied()) {
+          info = RvConnectionInfo.createForOutgoingRequest(
+              InetAddress.getByName(null), info.getPort());
+        }
+        RvSessionConnectionInfo sessionInfo = receiver.getRvSessionInfo();
+        sessionInfo.setConnectionInfo(info);
+        sessionInfo.setInitiator(Initiator.BUDDY);
+        startTransfer(receiver, receiverConnector,
+            new ReceiveFileController(), state);
+      }
+    };
+    OutgoingFileTransferImpl sender = new OutgoingFileTransferImpl(
+        AimProxyInfo.forNoProxy(), new Screenname("sender"),
+        new LoopbackSessionInfo(new LoopbackRvSession("receiver"), maker));
+    maker.setSender(sender);
+    sender.setTimeoutHandler(NO_TIMEOUTS);
+    long bytes = 0;
+    for (File file : files) {
+      sender.addFile(file);
+      bytes += file.length();
+    }
+
+    long cpuBefore = getProcessCpuTime();
+    long start = System.nanoTime();
+    state.start();
+    startTransfer(sender, senderConnector, new SendFileController(), state);
+    state.waitUntilDone();
+    long nanos = System.nanoTime() - start;
+    long cpuAfter = getProcessCpuTime();
+
+    Result result = new Result();
+    result.bytes = bytes;
+    result.nanos = nanos;
+    result.setupNanos = state.getSetupNanos();
+    result.cpuNanos = cpuBefore < 0 ? -1 : cpuAfter - cpuBefore;
+    return result;
+  }
+
+  private static void startTransfer(final RvConnection connection,
+      final StateController connector, final TransferController transfer,
+      final RunState state) {
+    connector.addControllerListener(new ControllerListener() {
+      public void handleControllerSucceeded(StateController controller,
+          SuccessfulStateInfo info) {
+        transfer.start(connection, controller);
+      }
+
+      public void handleControllerFailed(StateController controller,
+          FailedStateInfo info) {
+        state.failed(controller, info);
+      }
+    });
+    transfer.addControllerListener(new ControllerListener() {
+      public void handleControllerSucceeded(StateController controller,
+          SuccessfulStateInfo info) {
+        state.finished();
+      }
+
+      public void handleControllerFailed(StateController controller,
+          FailedStateInfo info) {
+        state.failed(controller, info);
+      }
+    });
+    connector.start(connection, null);
+  }
+
+  /**
+   * Returns the CPU time used by this process so far, in nanoseconds, or -1
+   * if the VM doesn't say.
+   */
+  private static long getProcessCpuTime() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os)
+          .getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("ftbench", null);
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Couldn't create " + dir);
+    }
+    return dir;
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) deleteDir(file);
+        else file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private static List<File> writeRandomFiles(File dir, int count, long length)
+      throws IOException {
+    dir.mkdirs();
+    Random random = new Random(0);
+    byte[] block = new byte[64 * 1024];
+    List<File> files = new ArrayList<File>();
+    for (int i = 0; i < count; i++) {
+      File file = new File(dir, "file" + i);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        for (long written = 0; written < length; written += block.length) {
+          random.nextBytes(block);
+          ByteBuffer buf = ByteBuffer.wrap(block, 0,
+              (int) Math.min(block.length, length - written));
+          while (buf.hasRemaining()) channel.write(buf);
+        }
+      } finally {
+        raf.close();
+      }
+      files.add(file);
+    }
+    return files;
+  }
+
+  private static class Result {
+    public long bytes;
+    public long nanos;
+    public long setupNanos;
+    public long cpuNanos;
+  }
+
+  private static class RunState {
+    private final CountDownLatch done = new CountDownLatch(2);
+    private volatile long startedAt;
+    private volatile long dataStartedAt = -1;
+    private volatile String failure = null;
+
+    public void start() { startedAt = System.nanoTime(); }
+
+    public synchronized void dataStarted() {
+      if (dataStartedAt == -1) dataStartedAt = System.nanoTime();
+    }
+
+    public long getSetupNanos() { return dataStartedAt - startedAt; }
+
+    public void finished() { done.countDown(); }
+
+    public void failed(StateController controller, FailedStateInfo info) {
+      failure = controller + " failed: " + info;
+      // there's no point in waiting for the other end
+      done.countDown();
+      done.countDown();
+    }
+
+    public void waitUntilDone() throws InterruptedException {
+      if (!done.await(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("Transfer didn't finish in "
+            + RUN_TIMEOUT_MINUTES + " minutes");
+      }
+      if (failure != null) throw new IllegalStateException(failure);
+    }
+  }
+
+  private abstract static class LoopbackRequestMaker implements RvRequestMaker {
+    private OutgoingFileTransferImpl sender;
+
+    public void setSender(OutgoingFileTransferImpl sender) {
+      this.sender = sender;
+    }
+
+    public void sendRvRequest() {
+      try {
+        deliverRequest(sender.getRvSessionInfo().getConnectionInfo());
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public void sendRvRequest(int newIndex) {
+      sendRvRequest();
+    }
+
+    public void sendRvAccept() {
+    }
+
+    public void sendRvReject() {
+    }
+
+    public CapabilityBlock getCapabilityBlock() {
+      return CapabilityBlock.BLOCK_FILE_SEND;
+    }
+
+    protected abstract void deliverRequest(RvConnectionInfo info)
+        throws IOException;
+  }
+
+  private static class LoopbackSessionInfo
+      extends AbstractRvSessionConnectionInfo {
+    private final RvRequestMaker maker;
+
+    public LoopbackSessionInfo(RvSession session, RvRequestMaker maker) {
+      super(session);
+      this.maker = maker;
+    }
+
+    public RvRequestMaker getRequestMaker() { return maker; }
+  }
+
+  private static class LoopbackRvSession implements RvSession {
+    private final String buddy;
+
+    public LoopbackRvSession(String buddy) {
+      this.buddy = buddy;
+    }
+
+    public void addListener(RvSessionListener l) {
+    }
+
+    public void removeListener(RvSessionListener l) {
+    }
+
+    public RvProcessor getRvProcessor() { return null; }
+
+    public long getRvSessionId() { return SESSION_ID; }
+
+    public String getScreenname() { return buddy; }
+
+    public void sendRv(RvCommand command) {
+    }
+
+    public void sendRv(RvCommand command, long icbmMessageId) {
+    }
+
+    public void sendResponse(int code) {
+    }
+  }
+}
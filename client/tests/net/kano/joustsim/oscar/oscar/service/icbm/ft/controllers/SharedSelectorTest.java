@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class SharedSelectorTest extends TestCase {
+  private SharedSelector selector;
+  private Pipe pipe;
+
+  protected void setUp() throws Exception {
+    selector = new SharedSelector(1);
+    pipe = Pipe.open();
+    pipe.source().configureBlocking(false);
+  }
+
+  protected void tearDown() throws Exception {
+    pipe.source().close();
+    pipe.sink().close();
+  }
+
+  public void testTimesOutWhenNotReady() throws IOException {
+    assertFalse(selector.waitUntilReady(pipe.source(), SelectionKey.OP_READ,
+        100));
+  }
+
+  public void testWakesUpWhenReadable() throws Exception {
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+          pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }.start();
+    long start = System.currentTimeMillis();
+    assertTrue(selector.waitUntilReady(pipe.source(), SelectionKey.OP_READ,
+        5000));
+    assertTrue(System.currentTimeMillis() - start < 4000);
+    assertEquals(1, pipe.source().read(ByteBuffer.allocate(10)));
+  }
+
+  public void testReturnsImmediatelyWhenAlreadyReadable() throws IOException {
+    pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+    for (int i = 0; i < 10; i++) {
+      assertTrue(selector.waitUntilReady(pipe.source(), SelectionKey.OP_READ,
+          5000));
+    }
+  }
+
+  public void testClosedChannelIsReady() throws IOException {
+    pipe.source().close();
+    assertTrue(selector.waitUntilReady(pipe.source(), SelectionKey.OP_READ,
+        5000));
+  }
+
+  public void testClosedChannelWakesWaiterWhileBusy() throws Exception {
+    // a channel which is always writable keeps the selector thread busy
+    final Pipe busy = Pipe.open();
+    busy.sink().configureBlocking(false);
+    final boolean[] stop = { false };
+    Thread spinner = new Thread() {
+      public void run() {
+        try {
+          while (!stop[0]) {
+            selector.waitUntilReady(busy.sink(), SelectionKey.OP_WRITE, 1000);
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    spinner.start();
+    try {
+      new Thread() {
+        public void run() {
+          try {
+            Thread.sleep(100);
+            pipe.source().close();
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      }.start();
+      long start = System.currentTimeMillis();
+      assertTrue(selector.waitUntilReady(pipe.source(), SelectionKey.OP_READ,
+          10000));
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("took " + elapsed + " ms", elapsed < 5000);
+    } finally {
+      stop[0] = true;
+      spinner.join();
+      busy.source().close();
+      busy.sink().close();
+    }
+  }
+
+  public void testCallbackRunsWhenReadable() throws Exception {
+    final CountDownLatch called = new CountDownLatch(1);
+    selector.whenReady(pipe.source(), SelectionKey.OP_READ,
+        Executors.newSingleThreadExecutor(), new Runnable() {
+          public void run() {
+            called.countDown();
+          }
+        });
+    assertFalse(called.await(100, TimeUnit.MILLISECONDS));
+    pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+    assertTrue(called.await(5000, TimeUnit.MILLISECONDS));
+  }
+
+  public void testCallbackRunsAfterTimeout() throws Exception {
+    final CountDownLatch called = new CountDownLatch(1);
+    selector.whenReady(pipe.source(), SelectionKey.OP_READ, 100,
+        Executors.newSingleThreadExecutor(), new Runnable() {
+          public void run() {
+            called.countDown();
+          }
+        });
+    // nothing was ever written to the pipe
+    assertTrue(called.await(5000, TimeUnit.MILLISECONDS));
+  }
+
+  public void testReleaseAllowsBlockingMode() throws IOException {
+    selector.waitUntilReady(pipe.source(), SelectionKey.OP_READ, 10);
+    selector.release(pipe.source());
+    pipe.source().configureBlocking(true);
+    assertTrue(pipe.source().isBlocking());
+  }
+}
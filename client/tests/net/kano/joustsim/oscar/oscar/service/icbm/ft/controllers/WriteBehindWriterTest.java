@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.icbm.ft.controllers;
+
+import junit.framework.TestCase;
+import net.kano.joustsim.oscar.oscar.service.icbm.ft.DiskSyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class WriteBehindWriterTest extends TestCase {
+  private File file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private WriteBehindWriter writer;
+
+  protected void setUp() throws Exception {
+    file = File.createTempFile("writebehind", null);
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+  }
+
+  protected void tearDown() throws Exception {
+    if (writer != null) writer.close();
+    raf.close();
+    file.delete();
+  }
+
+  public void testWritesEverythingBeforeFlushReturns() throws IOException {
+    writer = new WriteBehindWriter(2, 16, DiskSyncPolicy.AFTER_EACH_WRITE);
+    for (int i = 0; i < 10; i++) {
+      ByteBuffer buf = writer.takeBuffer();
+      for (int j = 0; j < 16; j++) buf.put((byte) (i * 16 + j));
+      buf.flip();
+      writer.write(channel, buf, i * 16);
+    }
+    writer.flush();
+
+    assertEquals(160, channel.size());
+    ByteBuffer read = ByteBuffer.allocate(160);
+    channel.read(read, 0);
+    for (int i = 0; i < 160; i++) assertEquals((byte) i, read.get(i));
+  }
+
+  public void testBuffersAreBounded() throws Exception {
+    writer = new WriteBehindWriter(1, 16, DiskSyncPolicy.NEVER);
+    final ByteBuffer first = writer.takeBuffer();
+    final ByteBuffer[] second = new ByteBuffer[1];
+    Thread taker = new Thread() {
+      public void run() {
+        try {
+          second[0] = writer.takeBuffer();
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    taker.start();
+    Thread.sleep(100);
+    assertTrue(taker.isAlive());
+
+    writer.returnBuffer(first);
+    taker.join(1000);
+    assertSame(first, second[0]);
+  }
+
+  public void testFailureIsThrownLater() throws IOException {
+    writer = new WriteBehindWriter(2, 16, DiskSyncPolicy.NEVER);
+    ByteBuffer buf = writer.takeBuffer();
+    buf.put(new byte[16]).flip();
+    raf.close();
+    writer.write(channel, buf, 0);
+    try {
+      writer.flush();
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+    try {
+      writer.takeBuffer();
+      fail("Should have thrown IOException");
+    } catch (IOException expected) {
+    }
+  }
+}
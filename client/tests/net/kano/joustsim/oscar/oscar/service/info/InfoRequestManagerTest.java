@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2006, The Joust Project
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in
+ *   the documentation and/or other materials provided with the
+ *   distribution.
+ * - Neither the name of the Joust Project nor the names of its
+ *   contributors may be used to endorse or promote products derived
+ *   from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ * FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ * COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * File created by keithkml
+ */
+
+package net.kano.joustsim.oscar.oscar.service.info;
+
+import junit.framework.TestCase;
+import net.kano.joustsim.Screenname;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InfoRequestManagerTest extends TestCase {
+  private static final Screenname BUDDY = new Screenname("buddy");
+
+  private InfoResponseCache<String> cache;
+  private TestRequestManager manager;
+  private List<String> responses;
+  private InfoResponseListener listener;
+
+  protected void setUp() throws Exception {
+    cache = new InfoResponseCache<String>(60 * 1000, 10);
+    manager = new TestRequestManager(cache);
+    responses = new ArrayList<String>();
+    listener = new InfoResponseAdapter() {
+      public void handleAwayMessage(InfoService service, Screenname buddy,
+          String awayMessage) {
+        responses.add(awayMessage);
+      }
+    };
+  }
+
+  public void testConcurrentRequestsAreCombined() {
+    manager.request(BUDDY, listener);
+    manager.request(BUDDY, listener);
+    manager.request(BUDDY, new InfoResponseAdapter());
+    assertEquals(1, manager.sent);
+
+    manager.respond(BUDDY, "brb");
+    // the same listener was only registered once
+    assertEquals(1, responses.size());
+    assertEquals("brb", responses.get(0));
+  }
+
+  public void testRepeatedRequestIsAnsweredFromCache() {
+    manager.request(BUDDY, listener);
+    manager.respond(BUDDY, "brb");
+    manager.request(BUDDY, listener);
+    assertEquals(1, manager.sent);
+    assertEquals(2, responses.size());
+    assertEquals("brb", responses.get(1));
+  }
+
+  public void testForceFetchSkipsCache() {
+    manager.request(BUDDY, listener);
+    manager.respond(BUDDY, "brb");
+    manager.request(BUDDY, listener, true);
+    assertEquals(2, manager.sent);
+    assertEquals(1, responses.size());
+
+    manager.respond(BUDDY, "back later");
+    assertEquals("back later", responses.get(1));
+    assertEquals("back later", cache.get(BUDDY).getValue());
+  }
+
+  public void testExpiredResponseIsNotUsed() throws InterruptedException {
+    cache.setTtl(20);
+    manager.request(BUDDY, listener);
+    manager.respond(BUDDY, "brb");
+    assertNotNull(cache.get(BUDDY));
+    Thread.sleep(50);
+    assertNull(cache.get(BUDDY));
+    manager.request(BUDDY, listener);
+    assertEquals(2, manager.sent);
+  }
+
+  public void testInvalidatedResponseIsNotUsed() {
+    manager.request(BUDDY, listener);
+    manager.respond(BUDDY, "brb");
+    cache.invalidate(BUDDY);
+    manager.request(BUDDY, listener);
+    assertEquals(2, manager.sent);
+  }
+
+  public void testResponseToRequestSentBeforeInvalidationIsNotCached()
+      throws InterruptedException {
+    manager.request(BUDDY, listener);
+    // make sure the invalidation is stamped after the request
+    Thread.sleep(5);
+    cache.invalidate(BUDDY);
+    manager.respond(BUDDY, "brb");
+    assertEquals(1, responses.size());
+    assertNull(cache.get(BUDDY));
+  }
+
+  public void testNoResponseIsNotCached() {
+    manager.request(BUDDY, listener);
+    manager.respondWithNothing(BUDDY);
+    assertEquals(1, responses.size());
+    assertNull(responses.get(0));
+    assertNull(cache.get(BUDDY));
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    cache.setMaxEntries(2);
+    Screenname a = new Screenname("a");
+    Screenname b = new Screenname("b");
+    Screenname c = new Screenname("c");
+    cache.put(a, "a", System.currentTimeMillis());
+    cache.put(b, "b", System.currentTimeMillis());
+    cache.get(a);
+    cache.put(c, "c", System.currentTimeMillis());
+    assertNotNull(cache.get(a));
+    assertNull(cache.get(b));
+    assertNotNull(cache.get(c));
+  }
+
+  private static class TestRequestManager extends InfoRequestManager<String> {
+    private int sent = 0;
+
+    public TestRequestManager(InfoResponseCache<String> cache) {
+      super(createService(), cache);
+    }
+
+    protected void sendRequest(Screenname sn) {
+      sent++;
+    }
+
+    protected void callListener(InfoResponseListener listener,
+        Screenname sn, String value) {
+      listener.handleAwayMessage(getService(), sn, value);
+    }
+
+    public void respond(Screenname sn, String value) {
+      deliverResponse(sn, value);
+    }
+
+    public void respondWithNothing(Screenname sn) {
+      deliverNoResponse(sn);
+    }
+  }
+
+  private static MutableInfoService createService() {
+    final InfoResponseListener serviceListener = new InfoResponseAdapter();
+    return (MutableInfoService) Proxy.newProxyInstance(
+        MutableInfoService.class.getClassLoader(),
+        new Class[] { MutableInfoService.class }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getInfoRequestListener")) return serviceListener;
+        if (name.equals("hashCode")) return System.identityHashCode(proxy);
+        if (name.equals("equals")) return proxy == args[0];
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+}
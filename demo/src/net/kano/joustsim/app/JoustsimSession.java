@@ -42,6 +42,10 @@ import net.kano.joustsim.app.config.LocalPreferencesManager;
 import net.kano.joustsim.app.config.PrefTools;
 import net.kano.joustsim.oscar.AimSession;
 import net.kano.joustsim.oscar.AppSession;
+import net.kano.joustsim.oscar.BuddyCertificateInfoCache;
+import net.kano.joustsim.oscar.BuddyCertificateInfoStore;
+import net.kano.joustsim.oscar.BuddyIconCache;
+import net.kano.joustsim.oscar.BuddyIconStore;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -64,6 +68,8 @@ public class JoustsimSession implements AppSession {
   private final File globalPrefsDir;
 
   private final GlobalPrefs globalPrefs;
+  private final BuddyIconCache buddyIconCache;
+  private final BuddyCertificateInfoCache certInfoCache;
   private boolean loadedGlobalPrefs = false;
 
   private Map<Screenname, LocalPreferencesManager> prefs
@@ -96,6 +102,18 @@ public class JoustsimSession implements AppSession {
     this.globalPrefsDir = PrefTools.getGlobalConfigDir(configDir);
 
     this.globalPrefs = new GlobalPrefs(configDir);
+    this.buddyIconCache = new BuddyIconCache(
+        BuddyIconCache.MAX_MEMORY_DEFAULT,
+        new BuddyIconStore(PrefTools.getIconCacheDir(baseDir)));
+    this.certInfoCache = new BuddyCertificateInfoCache(
+        BuddyCertificateInfoCache.MAX_ENTRIES_DEFAULT,
+        new BuddyCertificateInfoStore(PrefTools.getCertCacheDir(baseDir)));
+  }
+
+  public BuddyIconCache getBuddyIconCache() { return buddyIconCache; }
+
+  public BuddyCertificateInfoCache getBuddyCertificateInfoCache() {
+    return certInfoCache;
   }
 
   public synchronized void setSavePrefsOnExit(boolean save) {
@@ -174,6 +174,14 @@ public final class PrefTools {
         return new File(baseDir, "config");
     }
 
+    public static File getIconCacheDir(File baseDir) {
+        return new File(baseDir, "icon-cache");
+    }
+
+    public static File getCertCacheDir(File baseDir) {
+        return new File(baseDir, "cert-cache");
+    }
+
     public static File getLocalPrefsDirForScreenname(File localPrefsDir,
             Screenname sn) {
         String normal = sn.getNormal();
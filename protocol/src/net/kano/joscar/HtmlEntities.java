@@ -0,0 +1,256 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar;
+
+import java.io.IOException;
+
+/**
+ * Decodes the HTML 4 character entities, like <code>&amp;amp;</code> and
+ * <code>&amp;#8364;</code>, which appear in AOL-formatted messages. Nothing
+ * is allocated while decoding, so this is suitable for running over every
+ * incoming message.
+ */
+public final class HtmlEntities {
+    /** The names of the HTML 4 character entities, in sorted order. */
+    private static final String[] NAMES = {
+            "AElig", "Aacute", "Acirc", "Agrave", "Alpha", "Aring", "Atilde",
+            "Auml", "Beta", "Ccedil", "Chi", "Dagger", "Delta", "ETH",
+            "Eacute", "Ecirc", "Egrave", "Epsilon", "Eta", "Euml", "Gamma",
+            "Iacute", "Icirc", "Igrave", "Iota", "Iuml", "Kappa", "Lambda",
+            "Mu", "Ntilde", "Nu", "OElig", "Oacute", "Ocirc", "Ograve",
+            "Omega", "Omicron", "Oslash", "Otilde", "Ouml", "Phi", "Pi",
+            "Prime", "Psi", "Rho", "Scaron", "Sigma", "THORN", "Tau", "Theta",
+            "Uacute", "Ucirc", "Ugrave", "Upsilon", "Uuml", "Xi", "Yacute",
+            "Yuml", "Zeta", "aacute", "acirc", "acute", "aelig", "agrave",
+            "alefsym", "alpha", "amp", "and", "ang", "aring", "asymp",
+            "atilde", "auml", "bdquo", "beta", "brvbar", "bull", "cap",
+            "ccedil", "cedil", "cent", "chi", "circ", "clubs", "cong", "copy",
+            "crarr", "cup", "curren", "dArr", "dagger", "darr", "deg", "delta",
+            "diams", "divide", "eacute", "ecirc", "egrave", "empty", "emsp",
+            "ensp", "epsilon", "equiv", "eta", "eth", "euml", "euro", "exist",
+            "fnof", "forall", "frac12", "frac14", "frac34", "frasl", "gamma",
+            "ge", "gt", "hArr", "harr", "hearts", "hellip", "iacute", "icirc",
+            "iexcl", "igrave", "image", "infin", "int", "iota", "iquest",
+            "isin", "iuml", "kappa", "lArr", "lambda", "lang", "laquo", "larr",
+            "lceil", "ldquo", "le", "lfloor", "lowast", "loz", "lrm", "lsaquo",
+            "lsquo", "lt", "macr", "mdash", "micro", "middot", "minus", "mu",
+            "nabla", "nbsp", "ndash", "ne", "ni", "not", "notin", "nsub",
+            "ntilde", "nu", "oacute", "ocirc", "oelig", "ograve", "oline",
+            "omega", "omicron", "oplus", "or", "ordf", "ordm", "oslash",
+            "otilde", "otimes", "ouml", "para", "part", "permil", "perp",
+            "phi", "pi", "piv", "plusmn", "pound", "prime", "prod", "prop",
+            "psi", "quot", "rArr", "radic", "rang", "raquo", "rarr", "rceil",
+            "rdquo", "real", "reg", "rfloor", "rho", "rlm", "rsaquo", "rsquo",
+            "sbquo", "scaron", "sdot", "sect", "shy", "sigma", "sigmaf", "sim",
+            "spades", "sub", "sube", "sum", "sup", "sup1", "sup2", "sup3",
+            "supe", "szlig", "tau", "there4", "theta", "thetasym", "thinsp",
+            "thorn", "tilde", "times", "trade", "uArr", "uacute", "uarr",
+            "ucirc", "ugrave", "uml", "upsih", "upsilon", "uuml", "weierp",
+            "xi", "yacute", "yen", "yuml", "zeta", "zwj", "zwnj"
+    };
+
+    /** The code point of each entity in {@link #NAMES}. */
+    private static final int[] CODE_POINTS = {
+            198, 193, 194, 192, 913, 197, 195, 196, 914, 199, 935, 8225, 916,
+            208, 201, 202, 200, 917, 919, 203, 915, 205, 206, 204, 921, 207,
+            922, 923, 924, 209, 925, 338, 211, 212, 210, 937, 927, 216, 213,
+            214, 934, 928, 8243, 936, 929, 352, 931, 222, 932, 920, 218, 219,
+            217, 933, 220, 926, 221, 376, 918, 225, 226, 180, 230, 224, 8501,
+            945, 38, 8743, 8736, 229, 8776, 227, 228, 8222, 946, 166, 8226,
+            8745, 231, 184, 162, 967, 710, 9827, 8773, 169, 8629, 8746, 164,
+            8659, 8224, 8595, 176, 948, 9830, 247, 233, 234, 232, 8709, 8195,
+            8194, 949, 8801, 951, 240, 235, 8364, 8707, 402, 8704, 189, 188,
+            190, 8260, 947, 8805, 62, 8660, 8596, 9829, 8230, 237, 238, 161,
+            236, 8465, 8734, 8747, 953, 191, 8712, 239, 954, 8656, 955, 9001,
+            171, 8592, 8968, 8220, 8804, 8970, 8727, 9674, 8206, 8249, 8216,
+            60, 175, 8212, 181, 183, 8722, 956, 8711, 160, 8211, 8800, 8715,
+            172, 8713, 8836, 241, 957, 243, 244, 339, 242, 8254, 969, 959,
+            8853, 8744, 170, 186, 248, 245, 8855, 246, 182, 8706, 8240, 8869,
+            966, 960, 982, 177, 163, 8242, 8719, 8733, 968, 34, 8658, 8730,
+            9002, 187, 8594, 8969, 8221, 8476, 174, 8971, 961, 8207, 8250,
+            8217, 8218, 353, 8901, 167, 173, 963, 962, 8764, 9824, 8834, 8838,
+            8721, 8835, 185, 178, 179, 8839, 223, 964, 8756, 952, 977, 8201,
+            254, 732, 215, 8482, 8657, 250, 8593, 251, 249, 168, 978, 965, 252,
+            8472, 958, 253, 165, 255, 950, 8205, 8204
+    };
+
+    /**
+     * A private constructor that is never called ensures that this class cannot
+     * be instantiated.
+     */
+    private HtmlEntities() { }
+
+    /**
+     * Returns the code point of the entity with the given name, which is the
+     * part of the given text from <code>start</code> to <code>end</code>. As
+     * in browsers, a name which isn't found is looked up again in lowercase,
+     * so <code>&amp;AMP;</code> works but <code>&amp;Eacute;</code> and
+     * <code>&amp;eacute;</code> are different characters.
+     *
+     * @param text the text containing the entity name
+     * @param start the index of the first character of the name
+     * @param end the index just past the name
+     * @return the code point of the named entity, or <code>-1</code> if there
+     *         is no such entity
+     */
+    public static int getCodePoint(CharSequence text, int start, int end) {
+        DefensiveTools.checkNull(text, "text");
+
+        int index = find(text, start, end, false);
+        if (index == -1) index = find(text, start, end, true);
+        return index == -1 ? -1 : CODE_POINTS[index];
+    }
+
+    /**
+     * Decodes the entity starting at the given <code>&amp;</code>, appending
+     * its character to the given <code>Appendable</code>. Named entities like
+     * <code>&amp;lt;</code>, decimal entities like <code>&amp;#60;</code>, and
+     * hexadecimal entities like <code>&amp;#x3c;</code> are decoded, with or
+     * without the trailing semicolon. A numeric entity beyond the last Unicode
+     * code point is skipped without appending anything.
+     *
+     * @param text the text containing the entity
+     * @param start the index of the <code>&amp;</code>
+     * @param end the index past which the entity cannot extend
+     * @param out the <code>Appendable</code> to which to append the decoded
+     *        character
+     * @return the index just past the entity, or <code>-1</code> if no
+     *         entity starts at the given index
+     *
+     * @throws IOException if the given <code>Appendable</code> throws one
+     */
+    public static int decode(CharSequence text, int start, int end,
+            Appendable out) throws IOException {
+        DefensiveTools.checkNull(text, "text");
+        DefensiveTools.checkNull(out, "out");
+
+        int pos = start + 1;
+        if (pos < end && text.charAt(pos) == '#') {
+            pos++;
+            int radix = 10;
+            if (pos < end && (text.charAt(pos) == 'x'
+                    || text.charAt(pos) == 'X')) {
+                radix = 16;
+                pos++;
+            }
+            int digitsStart = pos;
+            int code = 0;
+            while (pos < end) {
+                int digit = Character.digit(text.charAt(pos), radix);
+                if (digit == -1) break;
+                // stop adding digits once it's too big, so it can't overflow
+                if (code <= Character.MAX_CODE_POINT) {
+                    code = code * radix + digit;
+                }
+                pos++;
+            }
+            if (pos == digitsStart) return -1;
+            if (pos < end && text.charAt(pos) == ';') pos++;
+
+            if (code <= Character.MAX_CODE_POINT) appendCodePoint(out, code);
+            return pos;
+        }
+
+        while (pos < end && isNameChar(text.charAt(pos))) pos++;
+        int code = getCodePoint(text, start + 1, pos);
+        if (code == -1) return -1;
+
+        if (pos < end && text.charAt(pos) == ';') pos++;
+        appendCodePoint(out, code);
+        return pos;
+    }
+
+    /**
+     * Appends the given code point to the given <code>Appendable</code>, as
+     * two characters if it's a supplementary character.
+     */
+    private static void appendCodePoint(Appendable out, int code)
+            throws IOException {
+        if (code < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            out.append((char) code);
+        } else {
+            int offset = code - Character.MIN_SUPPLEMENTARY_CODE_POINT;
+            out.append((char) ((offset >>> 10) + Character.MIN_HIGH_SURROGATE));
+            out.append((char) ((offset & 0x3ff) + Character.MIN_LOW_SURROGATE));
+        }
+    }
+
+    /**
+     * Searches {@link #NAMES} for the given name.
+     *
+     * @param text the text containing the name
+     * @param start the index of the first character of the name
+     * @param end the index just past the name
+     * @param lower whether the name should be lowercased first
+     * @return the index of the name in {@link #NAMES}, or <code>-1</code>
+     */
+    private static int find(CharSequence text, int start, int end,
+            boolean lower) {
+        if (start >= end) return -1;
+
+        int low = 0;
+        int high = NAMES.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(NAMES[mid], text, start, end, lower);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the given name to the given part of the text, in the same
+     * order as <code>String.compareTo</code>.
+     */
+    private static int compare(String name, CharSequence text, int start,
+            int end, boolean lower) {
+        int nameLen = name.length();
+        int textLen = end - start;
+        int len = Math.min(nameLen, textLen);
+        for (int i = 0; i < len; i++) {
+            char ch = text.charAt(start + i);
+            if (lower && ch >= 'A' && ch <= 'Z') ch += 'a' - 'A';
+            int diff = name.charAt(i) - ch;
+            if (diff != 0) return diff;
+        }
+        return nameLen - textLen;
+    }
+
+    private static boolean isNameChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')
+                || (ch >= '0' && ch <= '9');
+    }
+}
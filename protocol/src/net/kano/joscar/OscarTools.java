@@ -45,6 +45,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.util.Collections;
@@ -430,11 +431,212 @@ public final class OscarTools {
      *
      * @param str the string from which to strip HTML tags
      * @return the given string with HTML tags removed
+     *
+     * @see #getPlainText
      */
     public static String stripHtml(String str) {
         return htmlRE.matcher(str).replaceAll("");
     }
 
+    /**
+     * Returns the plain text of the given HTML message. See {@link
+     * #appendPlainText(CharSequence, StringBuilder)} for details.
+     *
+     * @param html an HTML-formatted message, like an incoming IM
+     * @return the text of the given message, without tags and with entities
+     *         decoded
+     */
+    public static String getPlainText(String html) {
+        DefensiveTools.checkNull(html, "html");
+
+        return appendPlainText(html, new StringBuilder(html.length()))
+                .toString();
+    }
+
+    /**
+     * Appends the plain text of the given HTML message to the given
+     * <code>StringBuilder</code>, in a single pass over the message. Tags and
+     * comments are removed, except that <code>&lt;BR&gt;</code> and
+     * <code>&lt;HR&gt;</code> become newlines, and character entities like
+     * <code>&amp;amp;</code> are decoded. A <code>&lt;</code> which doesn't
+     * start a tag, like the one in "I &lt;3 you," is kept. Whitespace is left
+     * as it is.
+     * <br>
+     * <br>
+     * Nothing is allocated beyond what the <code>StringBuilder</code> needs to
+     * grow, so a single builder can be reused for every incoming message.
+     *
+     * @param html an HTML-formatted message, like an incoming IM
+     * @param out the builder to which to append the message's text
+     * @return the given builder
+     */
+    public static StringBuilder appendPlainText(CharSequence html,
+            StringBuilder out) {
+        DefensiveTools.checkNull(html, "html");
+        DefensiveTools.checkNull(out, "out");
+
+        try {
+            extractPlainText(html, out);
+        } catch (IOException impossible) { }
+        return out;
+    }
+
+    /**
+     * Writes the plain text of the given HTML message into the given
+     * <code>CharBuffer</code>, as {@link #appendPlainText(CharSequence,
+     * StringBuilder)} does.
+     *
+     * @param html an HTML-formatted message, like an incoming IM
+     * @param out the buffer into which to write the message's text
+     * @return the given buffer
+     *
+     * @throws java.nio.BufferOverflowException if the text doesn't fit in the
+     *         given buffer, in which case only part of it was written
+     */
+    public static CharBuffer appendPlainText(CharSequence html,
+            CharBuffer out) {
+        DefensiveTools.checkNull(html, "html");
+        DefensiveTools.checkNull(out, "out");
+
+        try {
+            extractPlainText(html, out);
+        } catch (IOException impossible) { }
+        return out;
+    }
+
+    /**
+     * Appends the plain text of the given HTML message to the given
+     * <code>Appendable</code>. See {@link #appendPlainText(CharSequence,
+     * StringBuilder)} for details.
+     */
+    private static void extractPlainText(CharSequence html, Appendable out)
+            throws IOException {
+        int len = html.length();
+        // the start of the text which hasn't been appended yet
+        int textStart = 0;
+        // once a scan for the end of a tag or comment reaches the end of the
+        // message, no later tag or comment can end either, so we don't scan
+        // again; otherwise a message full of '<'s would take quadratic time
+        boolean tagEndsLeft = true;
+        boolean commentEndsLeft = true;
+        int pos = 0;
+        while (pos < len) {
+            char ch = html.charAt(pos);
+            if (ch == '<') {
+                int end = findTagEnd(html, pos, len, tagEndsLeft,
+                        commentEndsLeft);
+                if (end >= 0) {
+                    appendText(html, textStart, pos, out);
+                    if (isLineBreakTag(html, pos, end)) out.append('\n');
+                    pos = end;
+                    textStart = end;
+                    continue;
+                }
+                if (end == UNCLOSED_TAG) {
+                    // a comment can't end without a '>' either
+                    tagEndsLeft = false;
+                    commentEndsLeft = false;
+                } else if (end == UNCLOSED_COMMENT) {
+                    commentEndsLeft = false;
+                }
+
+            } else if (ch == '&') {
+                appendText(html, textStart, pos, out);
+                textStart = pos;
+                int end = HtmlEntities.decode(html, pos, len, out);
+                if (end != -1) {
+                    pos = end;
+                    textStart = end;
+                    continue;
+                }
+            }
+            pos++;
+        }
+        appendText(html, textStart, len, out);
+    }
+
+    /** Returned by {@link #findTagEnd} when there's no tag at all. */
+    private static final int NOT_A_TAG = -1;
+    /**
+     * Returned by {@link #findTagEnd} when a tag starts, but there's no
+     * <code>&gt;</code> after it.
+     */
+    private static final int UNCLOSED_TAG = -2;
+    /**
+     * Returned by {@link #findTagEnd} when a comment starts, but there's no
+     * <code>--&gt;</code> after it.
+     */
+    private static final int UNCLOSED_COMMENT = -3;
+
+    /**
+     * Returns the index just past the tag or comment starting at the given
+     * <code>&lt;</code>, or a negative number like {@link #UNCLOSED_TAG} if
+     * there's no complete tag there. If <code>tagEndsLeft</code> or
+     * <code>commentEndsLeft</code> is <code>false</code>, tags or comments are
+     * known not to end, and the rest of the message isn't scanned.
+     */
+    private static int findTagEnd(CharSequence html, int start, int len,
+            boolean tagEndsLeft, boolean commentEndsLeft) {
+        int pos = start + 1;
+        if (pos >= len) return NOT_A_TAG;
+
+        char ch = html.charAt(pos);
+        if (ch == '!' && pos + 2 < len && html.charAt(pos + 1) == '-'
+                && html.charAt(pos + 2) == '-') {
+            if (!commentEndsLeft) return UNCLOSED_COMMENT;
+            for (int i = pos + 3; i + 2 < len; i++) {
+                if (html.charAt(i) == '-' && html.charAt(i + 1) == '-'
+                        && html.charAt(i + 2) == '>') {
+                    return i + 3;
+                }
+            }
+            return UNCLOSED_COMMENT;
+        }
+        if (!isAsciiLetter(ch) && ch != '/' && ch != '!' && ch != '?') {
+            return NOT_A_TAG;
+        }
+        if (!tagEndsLeft) return UNCLOSED_TAG;
+        for (int i = pos + 1; i < len; i++) {
+            if (html.charAt(i) == '>') return i + 1;
+        }
+        return UNCLOSED_TAG;
+    }
+
+    /**
+     * Returns whether the tag between the given indices is a
+     * <code>&lt;BR&gt;</code> or <code>&lt;HR&gt;</code> tag.
+     */
+    private static boolean isLineBreakTag(CharSequence html, int start,
+            int end) {
+        if (end - start < 4) return false;
+
+        char first = Character.toLowerCase(html.charAt(start + 1));
+        char second = Character.toLowerCase(html.charAt(start + 2));
+        char after = html.charAt(start + 3);
+        return (first == 'b' || first == 'h') && second == 'r'
+                && !isAsciiLetter(after) && !Character.isDigit(after);
+    }
+
+    private static boolean isAsciiLetter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+    /** Appends the given part of the given text to the given output. */
+    private static void appendText(CharSequence text, int start, int end,
+            Appendable out) throws IOException {
+        if (start == end) return;
+
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(text, start, end);
+        } else if (out instanceof CharBuffer && text instanceof String) {
+            ((CharBuffer) out).put((String) text, start, end);
+        } else {
+            // Appendable.append(CharSequence, int, int) would allocate a
+            // subsequence for a CharBuffer
+            for (int i = start; i < end; i++) out.append(text.charAt(i));
+        }
+    }
+
     /**
      * A regular expression matching complete lines containing a single HTTP
      * header. A newline sequence (<code>\r\n|\r|\n</code>) at the end of the
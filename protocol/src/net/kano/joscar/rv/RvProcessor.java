@@ -59,11 +59,14 @@ import net.kano.joscar.snaccmd.icbm.SendRvIcbm;
 import net.kano.joustsim.Screenname;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -171,12 +174,42 @@ public class RvProcessor {
     private SeqNum sessionId = new SeqNum(Long.MIN_VALUE, Long.MAX_VALUE,
             new Random().nextLong());
 
+    /**
+     * The longest time, in milliseconds, between checks for idle sessions while
+     * rendezvous commands are arriving.
+     */
+    private static final long IDLE_CHECK_INTERVAL = 60 * 1000;
+
     /** The sessions being managed by this RV processor. */
-    private Map<RvSessionMapKey,RvSessionImpl> sessions = new HashMap<RvSessionMapKey, RvSessionImpl>();
+    private final ConcurrentMap<RvSessionMapKey,RvSessionImpl> sessions
+            = new ConcurrentHashMap<RvSessionMapKey, RvSessionImpl>();
+    /**
+     * The sessions in {@link #sessions}, by normalized screenname. This is only
+     * used and modified while holding {@link #sessionLock}.
+     */
+    private final Map<String,List<RvSessionImpl>> sessionsByScreenname
+            = new HashMap<String, List<RvSessionImpl>>();
+
+    /**
+     * How long, in milliseconds, a session can go without any activity before
+     * it expires, or <code>0</code> if sessions never expire.
+     */
+    private volatile long sessionIdleTimeout = 0;
+    /**
+     * The most sessions which can be open with one screenname, or
+     * <code>0</code> for no limit.
+     */
+    private volatile int maxSessionsPerScreenname = 0;
+    /** When the sessions were last checked for idle ones. */
+    private volatile long lastIdleCheck = 0;
 
     /** The "new session listeners" attached to this processor. */
     private CopyOnWriteArrayList<RvProcessorListener> rvListeners = new CopyOnWriteArrayList<RvProcessorListener>();
 
+    /** The session expiry listeners attached to this processor. */
+    private CopyOnWriteArrayList<RvSessionExpiryListener> expiryListeners
+            = new CopyOnWriteArrayList<RvSessionExpiryListener>();
+
     /** The <code>RvCommand</code> factories attached to this processor. */
     private Map<CapabilityBlock,RvCommandFactory> rvFactories = new HashMap<CapabilityBlock, RvCommandFactory>();
 
@@ -301,6 +334,180 @@ public class RvProcessor {
         rvListeners.remove(l);
     }
 
+    /**
+     * Adds a listener to be notified when this processor expires a session.
+     *
+     * @param l the listener to add
+     *
+     * @see #setSessionIdleTimeout
+     * @see #setMaxSessionsPerScreenname
+     */
+    public final void addExpiryListener(RvSessionExpiryListener l) {
+        DefensiveTools.checkNull(l, "l");
+
+        expiryListeners.addIfAbsent(l);
+    }
+
+    /**
+     * Removes a session expiry listener from this processor.
+     *
+     * @param l the listener to remove
+     */
+    public final void removeExpiryListener(RvSessionExpiryListener l) {
+        DefensiveTools.checkNull(l, "l");
+
+        expiryListeners.remove(l);
+    }
+
+    /**
+     * Returns how long a session can go without a rendezvous command or
+     * response being sent or received on it before it expires.
+     *
+     * @return the idle timeout in milliseconds, or <code>0</code> if sessions
+     *         never expire
+     */
+    public final long getSessionIdleTimeout() { return sessionIdleTimeout; }
+
+    /**
+     * Sets how long a session can go without a rendezvous command or response
+     * being sent or received on it before this processor forgets about it and
+     * fires a {@link RvSessionExpiredEvent}. Sessions are checked as
+     * rendezvous commands arrive, and whenever {@link #expireIdleSessions} is
+     * called. By default, sessions never expire.
+     *
+     * @param timeout the idle timeout in milliseconds, or <code>0</code> to
+     *        never expire sessions
+     *
+     * @see #setSessionExpires
+     */
+    public final void setSessionIdleTimeout(long timeout) {
+        DefensiveTools.checkRange(timeout, "timeout", 0);
+
+        sessionIdleTimeout = timeout;
+    }
+
+    /**
+     * Returns the most sessions which can be open with one screenname at once.
+     *
+     * @return the most sessions allowed with one screenname, or <code>0</code>
+     *         if there is no limit
+     */
+    public final int getMaxSessionsPerScreenname() {
+        return maxSessionsPerScreenname;
+    }
+
+    /**
+     * Sets the most sessions which can be open with one screenname at once.
+     * When a new session would go over the limit, the user's session which
+     * has been idle the longest expires. By default, there is no limit.
+     *
+     * @param max the most sessions allowed with one screenname, or
+     *        <code>0</code> for no limit
+     */
+    public final void setMaxSessionsPerScreenname(int max) {
+        DefensiveTools.checkRange(max, "max", 0);
+
+        maxSessionsPerScreenname = max;
+    }
+
+    /**
+     * Sets whether the given session can expire for being idle. This is useful
+     * for a session which is in use, like one whose file transfer has
+     * started, but which may go for a long time without any rendezvous
+     * commands. Sessions can expire by default.
+     *
+     * @param session a session created by this processor
+     * @param expires whether the given session should be allowed to expire
+     */
+    public final void setSessionExpires(RvSession session, boolean expires) {
+        getSessionImpl(session).setExpirable(expires);
+    }
+
+    /**
+     * Forgets about the given session, without firing any events. A rendezvous
+     * command received later with the same session ID will start a new session.
+     * This should be called once a session is no longer needed.
+     *
+     * @param session a session created by this processor
+     * @return whether the given session was still open
+     */
+    public final boolean closeRvSession(RvSession session) {
+        RvSessionImpl impl = getSessionImpl(session);
+
+        return removeSession(new RvSessionMapKey(impl.getRvSessionId(),
+                impl.getScreenname()), impl);
+    }
+
+    /**
+     * Returns the number of sessions this processor currently knows about.
+     *
+     * @return the number of open sessions
+     */
+    public final int getSessionCount() { return sessions.size(); }
+
+    /**
+     * Expires every session which has been idle for longer than the
+     * {@linkplain #setSessionIdleTimeout idle timeout}, firing a
+     * {@link RvSessionExpiredEvent} for each one.
+     *
+     * @return the number of sessions which expired
+     */
+    public final int expireIdleSessions() {
+        long timeout = sessionIdleTimeout;
+        if (timeout == 0) return 0;
+
+        long now = System.currentTimeMillis();
+        lastIdleCheck = now;
+        List<RvSessionImpl> expired = new ArrayList<RvSessionImpl>();
+        for (Map.Entry<RvSessionMapKey,RvSessionImpl> entry
+                : sessions.entrySet()) {
+            RvSessionImpl session = entry.getValue();
+            if (session.isExpirable()
+                    && now - session.getLastActivity() >= timeout
+                    && removeSession(entry.getKey(), session)) {
+                expired.add(session);
+            }
+        }
+        for (RvSessionImpl session : expired) {
+            fireSessionExpiredEvent(session, RvSessionExpiredEvent.REASON_IDLE);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Calls {@link #expireIdleSessions} if sessions can expire and they haven't
+     * been checked in a while.
+     */
+    private void expireIdleSessionsIfDue() {
+        long timeout = sessionIdleTimeout;
+        if (timeout == 0) return;
+
+        long sinceCheck = System.currentTimeMillis() - lastIdleCheck;
+        if (sinceCheck >= Math.min(timeout, IDLE_CHECK_INTERVAL)) {
+            expireIdleSessions();
+        }
+    }
+
+    /**
+     * Returns the given session as one of this processor's session objects.
+     *
+     * @param session a session created by this processor
+     * @return the given session
+     * @throws IllegalArgumentException if the given session was not created by
+     *         this processor
+     */
+    private RvSessionImpl getSessionImpl(RvSession session)
+            throws IllegalArgumentException {
+        DefensiveTools.checkNull(session, "session");
+
+        if (!(session instanceof RvSessionImpl)
+                || session.getRvProcessor() != this) {
+            throw new IllegalArgumentException("Session " + session
+                    + " was not created by " + this);
+        }
+        return (RvSessionImpl) session;
+    }
+
     /**
      * Registers a new <code>RvCommand</code> factory with this
      * <code>RvProcessor</code>. The given factory will be used to generate
@@ -451,7 +658,7 @@ public class RvProcessor {
      * @return the RV session object associated with the given session ID and
      *         screenname
      */
-    private synchronized RvSessionImpl getSession(long sessionId, String sn) {
+    private RvSessionImpl getSession(long sessionId, String sn) {
         DefensiveTools.checkNull(sn, "sn");
 
         RvSessionMapKey key = new RvSessionMapKey(sessionId, sn);
@@ -479,12 +686,18 @@ public class RvProcessor {
                 logger.logFine("Creating new incoming RV session for " + sn
                         + ", id=0x" + Long.toHexString(sessionId));
             }
+            List<RvSessionImpl> expired = new ArrayList<RvSessionImpl>();
             synchronized(sessionLock) {
-                session = createNewSession(sessionId, sn);
+                // another thread may have just created it
+                session = getSession(sessionId, sn);
+                if (session == null) {
+                    session = createNewSession(sessionId, sn, expired);
 
-                fireNewSessionEvent(session,
-                        NewRvSessionEvent.TYPE_INCOMING);
+                    fireNewSessionEvent(session,
+                            NewRvSessionEvent.TYPE_INCOMING);
+                }
             }
+            fireTooManySessionsEvents(expired);
         }
 
         return session;
@@ -554,22 +767,148 @@ public class RvProcessor {
     }
 
     /**
-     * Creates a new session and places it in the RV session map. This method
-     * does <i>not</i> fire a new session event.
+     * Calls the <code>handleSessionExpired</code> method of each attached
+     * expiry listener with the given session and reason.
+     *
+     * @param session the session that expired
+     * @param reason why the session expired, like {@link
+     *        RvSessionExpiredEvent#REASON_IDLE}
+     */
+    private void fireSessionExpiredEvent(RvSessionImpl session,
+            RvSessionExpiredEvent.Reason reason) {
+        if (logger.logFineEnabled()) {
+            logger.logFine("RV session expired (" + reason + "): " + session);
+        }
+
+        RvSessionExpiredEvent event
+                = new RvSessionExpiredEvent(this, session, reason);
+
+        for (RvSessionExpiryListener listener : expiryListeners) {
+            try {
+                listener.handleSessionExpired(event);
+            } catch (Throwable t) {
+                handleException(ERRTYPE_RV_LISTENER, t, listener);
+            }
+        }
+    }
+
+    /**
+     * Removes the given session from the session map and the screenname index,
+     * if it's still mapped to the given key.
+     *
+     * @param key the session's key in the session map
+     * @param session the session to remove
+     * @return whether the session was removed
+     */
+    private boolean removeSession(RvSessionMapKey key, RvSessionImpl session) {
+        synchronized(sessionLock) {
+            if (!sessions.remove(key, session)) return false;
+
+            unindexSession(session);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the given session from the screenname index. This must be
+     * called while holding {@link #sessionLock}.
+     *
+     * @param session the session to remove
+     */
+    private void unindexSession(RvSessionImpl session) {
+        String normal = session.getNormalScreenname();
+        List<RvSessionImpl> list = sessionsByScreenname.get(normal);
+        if (list == null) return;
+
+        list.remove(session);
+        if (list.isEmpty()) sessionsByScreenname.remove(normal);
+    }
+
+    /**
+     * Expires the sessions with the given screenname which have been idle the
+     * longest, until there is room for one more under the per-screenname
+     * limit. Sessions which {@linkplain #setSessionExpires cannot expire} are
+     * counted, but never expired. This must be called while holding {@link
+     * #sessionLock}; no events are fired, so the caller can fire them once it
+     * has released the lock.
+     *
+     * @param sn the screenname with whom a new session is about to be created
+     * @param expired a list to which the expired sessions are added
+     */
+    private void makeRoomForSession(String sn, List<RvSessionImpl> expired) {
+        int max = maxSessionsPerScreenname;
+        if (max == 0) return;
+
+        List<RvSessionImpl> existing
+                = sessionsByScreenname.get(Screenname.normalize(sn));
+        if (existing == null) return;
+
+        int count = existing.size();
+        List<RvSessionImpl> expirable = new ArrayList<RvSessionImpl>();
+        for (RvSessionImpl session : existing) {
+            if (session.isExpirable()) expirable.add(session);
+        }
+        while (count >= max && !expirable.isEmpty()) {
+            RvSessionImpl oldest = null;
+            for (RvSessionImpl session : expirable) {
+                if (oldest == null
+                        || session.getLastActivity() < oldest.getLastActivity()) {
+                    oldest = session;
+                }
+            }
+            expirable.remove(oldest);
+            count--;
+            if (removeSession(new RvSessionMapKey(oldest.getRvSessionId(),
+                    oldest.getScreenname()), oldest)) {
+                expired.add(oldest);
+            }
+        }
+    }
+
+    /**
+     * Fires a {@link RvSessionExpiredEvent#REASON_TOO_MANY_SESSIONS} expiry
+     * event for each of the given sessions. This should not be called while
+     * holding {@link #sessionLock}.
+     *
+     * @param expired the sessions expired to make room for new ones
+     */
+    private void fireTooManySessionsEvents(List<RvSessionImpl> expired) {
+        for (RvSessionImpl session : expired) {
+            fireSessionExpiredEvent(session,
+                    RvSessionExpiredEvent.REASON_TOO_MANY_SESSIONS);
+        }
+    }
+
+    /**
+     * Creates a new session and places it in the RV session map, first
+     * expiring old sessions with the same user if the per-screenname limit
+     * requires it. This method does <i>not</i> fire a new session event or
+     * any expiry events, and must be called while holding {@link
+     * #sessionLock}.
      *
      * @param sessionId the RV session ID of the session to be created
      * @param sn the screenname of the user with whom the session exists
+     * @param expired a list to which any sessions expired to make room are
+     *        added
      * @return a new <code>RvSessionImpl</code> corresponding to the given RV
      *         session ID and the given screenname
      */
-    private RvSessionImpl createNewSession(long sessionId, String sn) {
+    private RvSessionImpl createNewSession(long sessionId, String sn,
+            List<RvSessionImpl> expired) {
         RvSessionImpl session = new RvSessionImpl(sessionId, sn);
 
         RvSessionMapKey key = new RvSessionMapKey(sessionId, sn);
 
-        synchronized(sessionLock) {
-            sessions.put(key, session);
+        makeRoomForSession(sn, expired);
+        RvSessionImpl replaced = sessions.put(key, session);
+        if (replaced != null) unindexSession(replaced);
+        String normal = session.getNormalScreenname();
+        List<RvSessionImpl> list = sessionsByScreenname.get(normal);
+        if (list == null) {
+            list = new ArrayList<RvSessionImpl>();
+            sessionsByScreenname.put(normal, list);
         }
+        list.add(session);
 
         return session;
     }
@@ -591,6 +930,8 @@ public class RvProcessor {
                     + cmd.getSenderInfo().getScreenname());
         }
 
+        expireIdleSessionsIfDue();
+
         // find or create a session object for the received RV
         RvSessionImpl session = getOrCreateIncomingSession(cmd.getRvSessionId(),
                 cmd.getSenderInfo().getScreenname());
@@ -632,6 +973,8 @@ public class RvProcessor {
     private void processResponse(SnacPacketEvent e) {
         RvResponse cmd = (RvResponse) e.getSnacCommand();
 
+        expireIdleSessionsIfDue();
+
         // get or create an RV session for this response
         RvSessionImpl session = getOrCreateIncomingSession(cmd.getRvSessionId(),
                 cmd.getScreenname());
@@ -682,12 +1025,16 @@ public class RvProcessor {
             logger.logFiner("Creating new outgoing RV session for " + sn);
         }
 
+        expireIdleSessionsIfDue();
+
         RvSessionImpl session;
+        List<RvSessionImpl> expired = new ArrayList<RvSessionImpl>();
         synchronized(sessionLock) {
-            session = createNewSession(sessionID, sn);
+            session = createNewSession(sessionID, sn, expired);
 
             fireNewSessionEvent(session, NewRvSessionEvent.TYPE_OUTGOING);
         }
+        fireTooManySessionsEvents(expired);
 
         return session;
     }
@@ -763,6 +1110,13 @@ public class RvProcessor {
         private final long rvSessionId;
         /** The screenname with whom this session exists. */
         private final String sn;
+        /** The normalized form of {@link #sn}. */
+        private final String normalSn;
+
+        /** When a command or response was last sent or received. */
+        private volatile long lastActivity = System.currentTimeMillis();
+        /** Whether this session can expire for being idle. */
+        private volatile boolean expirable = true;
 
         /** This session's listeners. */
         private CopyOnWriteArrayList<RvSessionListener> listeners = new CopyOnWriteArrayList<RvSessionListener>();
@@ -790,6 +1144,22 @@ public class RvProcessor {
         private RvSessionImpl(long rvSessionId, String sn) {
             this.rvSessionId = rvSessionId;
             this.sn = sn;
+            this.normalSn = Screenname.normalize(sn);
+        }
+
+        /** Returns the normalized screenname with whom this session exists. */
+        private String getNormalScreenname() { return normalSn; }
+
+        /** Returns when a command or response was last sent or received. */
+        private long getLastActivity() { return lastActivity; }
+
+        /** Records that a command or response was just sent or received. */
+        private void touch() { lastActivity = System.currentTimeMillis(); }
+
+        private boolean isExpirable() { return expirable; }
+
+        private void setExpirable(boolean expirable) {
+            this.expirable = expirable;
         }
 
 
@@ -818,6 +1188,7 @@ public class RvProcessor {
          * @param event the incoming rendezvous event
          */
         private void processRv(RecvRvEvent event) {
+            touch();
             for (RvSessionListener listener : listeners) {
                 try {
                     listener.handleRv(event);
@@ -834,6 +1205,7 @@ public class RvProcessor {
          * @param event the incoming rendezvous event
          */
         private void processSnacResponse(RvSnacResponseEvent event) {
+            touch();
             for (RvSessionListener listener : listeners) {
                 try {
                     listener.handleSnacResponse(event);
@@ -857,10 +1229,12 @@ public class RvProcessor {
             SnacCommand cmd = new SendRvIcbm(sn, icbmMessageId, rvSessionId,
                     command);
 
+            touch();
             sendSnac(new SnacRequest(cmd, reqListener));
         }
 
         public void sendResponse(int code) {
+            touch();
             RvResponse cmd = new RvResponse(rvSessionId,
                     AbstractIcbm.CHANNEL_RV, sn, code);
 
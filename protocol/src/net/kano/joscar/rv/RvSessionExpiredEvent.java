@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rv;
+
+import net.kano.joscar.DefensiveTools;
+
+/**
+ * An event fired when an {@link RvProcessor} forgets about a rendezvous
+ * session on its own, either because nothing was sent or received on it for
+ * longer than the {@linkplain RvProcessor#setSessionIdleTimeout idle timeout}
+ * or because too many sessions were open with the same user. A rendezvous
+ * command received later with the same session ID will start a new session.
+ *
+ * @see RvSessionExpiryListener
+ */
+public class RvSessionExpiredEvent {
+    /**
+     * A reason indicating that the session had been idle for longer than the
+     * RV processor's idle timeout.
+     */
+    public static final Reason REASON_IDLE = new Reason("REASON_IDLE");
+    /**
+     * A reason indicating that a new session was opened with a user who
+     * already had as many sessions as the RV processor allows, and this was
+     * the one which had been idle the longest.
+     */
+    public static final Reason REASON_TOO_MANY_SESSIONS
+            = new Reason("REASON_TOO_MANY_SESSIONS");
+
+    /** The RV processor which expired the session. */
+    private final RvProcessor rvProcessor;
+    /** The session which expired. */
+    private final RvSession session;
+    /** Why the session expired. */
+    private final Reason reason;
+
+    /**
+     * Creates a new session expiry event with the given properties.
+     *
+     * @param rvProcessor the RV processor which expired the given session
+     * @param session the session which expired
+     * @param reason why the session expired, like {@link #REASON_IDLE}
+     */
+    protected RvSessionExpiredEvent(RvProcessor rvProcessor,
+            RvSession session, Reason reason) {
+        DefensiveTools.checkNull(rvProcessor, "rvProcessor");
+        DefensiveTools.checkNull(session, "session");
+        DefensiveTools.checkNull(reason, "reason");
+
+        this.rvProcessor = rvProcessor;
+        this.session = session;
+        this.reason = reason;
+    }
+
+    /**
+     * Returns the RV processor which expired the associated session.
+     *
+     * @return the RV processor which expired the session
+     */
+    public final RvProcessor getRvProcessor() { return rvProcessor; }
+
+    /**
+     * Returns the session which expired.
+     *
+     * @return the session which expired
+     */
+    public final RvSession getSession() { return session; }
+
+    /**
+     * Returns why the session expired. Will be one of {@link #REASON_IDLE}
+     * and {@link #REASON_TOO_MANY_SESSIONS}.
+     *
+     * @return why the session expired
+     */
+    public final Reason getReason() { return reason; }
+
+    public String toString() {
+        return "RvSessionExpiredEvent: "
+                + "rvProcessor=" + rvProcessor
+                + ", session=" + session
+                + ", reason=" + reason;
+    }
+
+    /**
+     * An enumeration class for the reasons a session can expire.
+     */
+    public static final class Reason {
+        /** The name of this reason. */
+        private final String name;
+
+        /**
+         * Creates a new reason object with the given name.
+         *
+         * @param name the name of this reason
+         */
+        private Reason(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
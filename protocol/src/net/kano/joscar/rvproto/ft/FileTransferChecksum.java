@@ -37,6 +37,8 @@ package net.kano.joscar.rvproto.ft;
 
 import net.kano.joscar.DefensiveTools;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.zip.Checksum;
 
 /**
@@ -47,8 +49,19 @@ public final class FileTransferChecksum implements Checksum {
     /** The checksum of an empty set of data. */
     public static final long CHECKSUM_EMPTY = 0xffff0000L;
 
+    /**
+     * How many longs can be added to a pair of 32-bit lanes before either
+     * could overflow.
+     */
+    private static final int LANE_FLUSH_INTERVAL = 16384;
+
     /** The checksum value. */
     private long checksum;
+    /**
+     * Whether an odd number of bytes has been checksummed, so the next byte
+     * is at an odd offset.
+     */
+    private boolean odd;
 
     { // init
         reset();
@@ -59,6 +72,53 @@ public final class FileTransferChecksum implements Checksum {
      */
     public FileTransferChecksum() { }
 
+    /**
+     * Creates a new file transfer checksum computer object which continues a
+     * checksum already computed over the first <code>length</code> bytes of a
+     * file. Data passed to the <code>update</code> methods is treated as
+     * following those bytes.
+     *
+     * @param checksum the checksum of the first <code>length</code> bytes,
+     *        as returned by {@link #getValue}
+     * @param length the number of bytes over which the given checksum was
+     *        computed
+     */
+    public FileTransferChecksum(long checksum, long length) {
+        DefensiveTools.checkRange(checksum, "checksum", 0, 0xffffffffL);
+        DefensiveTools.checkRange(length, "length", 0);
+
+        this.checksum = checksum;
+        this.odd = (length & 1) != 0;
+    }
+
+    /**
+     * Returns the checksum of two consecutive blocks of data, given the
+     * checksum of each block. The checksum of the second block must have been
+     * computed by an object created with
+     * {@link #FileTransferChecksum(long, long) new
+     * FileTransferChecksum(CHECKSUM_EMPTY, offset)}, where
+     * <code>offset</code> is the second block's offset from the start of the
+     * first. This allows the checksum of a large file to be computed in
+     * several pieces at once.
+     *
+     * @param first the checksum of the first block of data
+     * @param second the checksum of the block of data which follows it
+     * @return the checksum of both blocks together
+     */
+    public static long combine(long first, long second) {
+        DefensiveTools.checkRange(first, "first", 0, 0xffffffffL);
+        DefensiveTools.checkRange(second, "second", 0, 0xffffffffL);
+
+        long a = (first >> 16) & 0xffffL;
+        long b = (second >> 16) & 0xffffL;
+        // each value is 0xffff minus the sum of its block's words, modulo
+        // 0xffff; 0xffff itself only means the block's words were all zero
+        long check;
+        if (a == 0xffffL && b == 0xffffL) check = 0xffffL;
+        else check = (a + b) % 0xffffL;
+        return check << 16;
+    }
+
     public void update(int value) {
         update(new byte[] { (byte) value }, 0, 1);
     }
@@ -66,28 +126,77 @@ public final class FileTransferChecksum implements Checksum {
     public void update(final byte[] input, final int offset, final int len) {
         DefensiveTools.checkNull(input, "input");
 
-        assert checksum >= 0;
-
-        long check = (checksum >> 16) & 0xffffL;
+        // each pair of bytes is treated as a big-endian 16-bit word
+        final int end = offset + len;
+        int i = offset;
+        long sum = 0;
+        if (odd && i < end) sum += input[i++] & 0xff;
+        for (; i + 8 <= end; i += 8) {
+            sum += ((input[i] & 0xff) << 8 | (input[i + 1] & 0xff))
+                    + ((input[i + 2] & 0xff) << 8 | (input[i + 3] & 0xff))
+                    + ((input[i + 4] & 0xff) << 8 | (input[i + 5] & 0xff))
+                    + ((input[i + 6] & 0xff) << 8 | (input[i + 7] & 0xff));
+        }
+        for (; i + 2 <= end; i += 2) {
+            sum += (input[i] & 0xff) << 8 | (input[i + 1] & 0xff);
+        }
+        if (i < end) sum += (input[i] & 0xff) << 8;
 
-        for (int i = 0; i < len; i++) {
-            final long oldcheck = check;
+        subtractWordSum(sum, len);
+    }
 
-            final int byteVal = input[offset + i] & 0xff;
+    /**
+     * Updates this checksum with the remaining bytes in the given buffer. The
+     * buffer's position is advanced to its limit. This reads eight bytes at a
+     * time, so it is much faster than copying a direct buffer's contents into
+     * an array to pass to {@link #update(byte[], int, int)}.
+     *
+     * @param buffer the data to add to this checksum
+     */
+    public void update(ByteBuffer buffer) {
+        DefensiveTools.checkNull(buffer, "buffer");
+
+        ByteBuffer buf = buffer.duplicate();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        int len = buf.remaining();
+        long sum = 0;
+        if (odd && buf.hasRemaining()) sum += buf.get() & 0xff;
+
+        // four words are added at once, as two pairs of 32-bit lanes
+        long lanes = 0;
+        int count = 0;
+        while (buf.remaining() >= 8) {
+            long val = buf.getLong();
+            lanes += (val & 0x0000ffff0000ffffL)
+                    + ((val >>> 16) & 0x0000ffff0000ffffL);
+            if (++count == LANE_FLUSH_INTERVAL) {
+                sum += (lanes >>> 32) + (lanes & 0xffffffffL);
+                lanes = 0;
+                count = 0;
+            }
+        }
+        sum += (lanes >>> 32) + (lanes & 0xffffffffL);
+        while (buf.remaining() >= 2) sum += buf.getShort() & 0xffff;
+        if (buf.hasRemaining()) sum += (buf.get() & 0xff) << 8;
 
-            final int val;
-            if ((i & 1) != 0) val = byteVal;
-            else val = byteVal << 8;
+        buffer.position(buffer.limit());
+        subtractWordSum(sum, len);
+    }
 
-            check -= val;
+    /**
+     * Subtracts the given sum of 16-bit words from the checksum, folding any
+     * carries back in, and records the parity of the given number of bytes.
+     */
+    private void subtractWordSum(long sum, long len) {
+        assert checksum >= 0;
 
-            if (check > oldcheck) check--;
+        long check = ((checksum >> 16) & 0xffffL) - sum;
+        while (check < 0 || check > 0xffffL) {
+            check = (check & 0xffffL) + (check >> 16);
         }
 
-        check = ((check & 0x0000ffff) + (check >> 16));
-        check = ((check & 0x0000ffff) + (check >> 16));
-
         checksum = check << 16 & 0xffffffffL;
+        if ((len & 1) != 0) odd = !odd;
         assert checksum >= 0;
     }
 
@@ -98,6 +207,7 @@ public final class FileTransferChecksum implements Checksum {
 
     public void reset() {
         checksum = CHECKSUM_EMPTY;
+        odd = false;
         assert checksum >= 0;
     }
 
@@ -0,0 +1,118 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar;
+
+/**
+ * Compares {@link OscarTools#stripHtml}, which uses a regular expression, with
+ * {@link OscarTools#getPlainText} and {@link OscarTools#appendPlainText} on
+ * typical incoming messages. Run with an optional number of rounds, each of
+ * which strips a million messages with each method.
+ */
+public class PlainTextBenchmark {
+    private static final String[] MESSAGES = {
+        "<HTML><BODY BGCOLOR=\"#ffffff\"><FONT FACE=\"Arial\" SIZE=2 "
+                + "COLOR=\"#000000\">hey, are you coming tonight?</FONT>"
+                + "</BODY></HTML>",
+        "<HTML><BODY ic=\"0\" BGCOLOR=\"#FFFFFF\"><FONT LANG=\"0\" "
+                + "FACE=\"Times New Roman\" SIZE=3 BACK=\"#ffff00\"><B>order "
+                + "#1234</B> shipped &amp; tracking is <A HREF=\"http://"
+                + "example.com/t?id=1234&amp;x=1\">here</A></FONT></BODY>"
+                + "</HTML>",
+        "lol",
+        "<FONT COLOR=\"#0000ff\">line one<BR>line two<BR>&lt;3</FONT>",
+        "<html><body><font face=\"Verdana\" size=\"2\">a much longer "
+                + "message, like the ones people paste into a chat window "
+                + "when they want to share a paragraph of text with someone "
+                + "else, which goes on for a while&nbsp;&nbsp;and has a few "
+                + "<i>formatted</i> words in it</font></body></html>",
+    };
+
+    private static final int MESSAGES_PER_ROUND = 1000000;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        for (int i = 0; i < rounds; i++) {
+            report("stripHtml", runRegex());
+            report("getPlainText", runPlainText());
+            report("appendPlainText", runAppend());
+        }
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(name + ": "
+                + String.format("%.1f", nanos / (double) MESSAGES_PER_ROUND)
+                + " ns per message");
+    }
+
+    private static long runRegex() {
+        long start = System.nanoTime();
+        int chars = 0;
+        for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+            String msg = MESSAGES[i % MESSAGES.length];
+            chars += OscarTools.stripHtml(msg).length();
+        }
+        return finish(start, chars);
+    }
+
+    private static long runPlainText() {
+        long start = System.nanoTime();
+        int chars = 0;
+        for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+            String msg = MESSAGES[i % MESSAGES.length];
+            chars += OscarTools.getPlainText(msg).length();
+        }
+        return finish(start, chars);
+    }
+
+    private static long runAppend() {
+        StringBuilder sb = new StringBuilder(1024);
+        long start = System.nanoTime();
+        int chars = 0;
+        for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+            String msg = MESSAGES[i % MESSAGES.length];
+            sb.setLength(0);
+            OscarTools.appendPlainText(msg, sb);
+            chars += sb.length();
+        }
+        return finish(start, chars);
+    }
+
+    private static long finish(long start, int chars) {
+        long elapsed = System.nanoTime() - start;
+        // use the result, so the work can't be optimized away
+        if (chars == 0) throw new IllegalStateException();
+        return elapsed;
+    }
+}
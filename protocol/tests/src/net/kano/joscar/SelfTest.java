@@ -39,6 +39,8 @@ import junit.framework.TestCase;
 
 import java.io.*;
 import java.net.Inet4Address;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
 import java.util.*;
 
 import net.kano.joustsim.Screenname;
@@ -219,4 +221,44 @@ public class SelfTest extends TestCase {
         assertEquals("", Screenname.normalize("    "));
         assertEquals("9999999", Screenname.normalize("99 9  99 99 "));
     }
+
+    public void testPlainText() {
+        assertEquals("hi there", OscarTools.getPlainText(
+                "<HTML><BODY BGCOLOR=\"#ffffff\"><FONT FACE=\"Arial\">"
+                + "hi <B>there</B></FONT><!-- <b>x</b> --></BODY></HTML>"));
+        assertEquals("a\nb\nc\n", OscarTools.getPlainText(
+                "a<br>b<HR size=1>c<BR/>"));
+        assertEquals("<b> & \"x\" \u00a0\u00e9\u00c9 &foo; \u20ac",
+                OscarTools.getPlainText("&lt;b&gt; &amp &quot;x&quot; "
+                + "&nbsp;&eacute;&Eacute; &foo; &#x20AC;"));
+        assertEquals("\ud834\udd1e", OscarTools.getPlainText("&#119070;"));
+        assertEquals("I <3 you <b", OscarTools.getPlainText("I <3 you <b"));
+        assertEquals("", OscarTools.getPlainText("<brb>"));
+
+        StringBuilder sb = new StringBuilder("> ");
+        assertSame(sb, OscarTools.appendPlainText("<i>a&amp;b</i>", sb));
+        assertEquals("> a&b", sb.toString());
+
+        CharBuffer buf = CharBuffer.allocate(3);
+        OscarTools.appendPlainText("<u>x</u>&lt;", buf);
+        buf.flip();
+        assertEquals("x<", buf.toString());
+        try {
+            OscarTools.appendPlainText("abcd", CharBuffer.allocate(3));
+            fail("Should not fit");
+        } catch (BufferOverflowException e) { }
+    }
+
+    public void testPlainTextWithUnclosedTags() {
+        assertEquals("<!-- a c", OscarTools.getPlainText("<!-- a <b>c</b>"));
+        assertEquals("<a<b <!-- x", OscarTools.getPlainText("<a<b <!-- x"));
+
+        // this would take quadratic time if each '<' were scanned from
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 200000; i++) html.append("<a<!--");
+        long start = System.currentTimeMillis();
+        assertEquals(html.toString(), OscarTools.getPlainText(html.toString()));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + " ms", elapsed < 2000);
+    }
 }
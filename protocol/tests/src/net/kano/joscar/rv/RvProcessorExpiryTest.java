@@ -0,0 +1,130 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rv;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RvProcessorExpiryTest extends TestCase {
+    private RvProcessor processor;
+    private final List<RvSessionExpiredEvent> expired
+            = new ArrayList<RvSessionExpiredEvent>();
+
+    protected void setUp() throws Exception {
+        processor = new RvProcessor();
+        processor.addExpiryListener(new RvSessionExpiryListener() {
+            public void handleSessionExpired(RvSessionExpiredEvent event) {
+                expired.add(event);
+            }
+        });
+    }
+
+    public void testIdleSessionsExpire() throws InterruptedException {
+        RvSession idle = processor.createRvSession("joe");
+        RvSession kept = processor.createRvSession("joe");
+        processor.setSessionExpires(kept, false);
+
+        assertEquals(0, processor.expireIdleSessions());
+
+        processor.setSessionIdleTimeout(1);
+        Thread.sleep(20);
+        assertEquals(1, processor.expireIdleSessions());
+        assertEquals(1, expired.size());
+        assertSame(idle, expired.get(0).getSession());
+        assertSame(RvSessionExpiredEvent.REASON_IDLE,
+                expired.get(0).getReason());
+        assertEquals(1, processor.getSessionCount());
+
+        assertTrue(processor.closeRvSession(kept));
+        assertFalse(processor.closeRvSession(kept));
+        assertEquals(0, processor.getSessionCount());
+        assertEquals(1, expired.size());
+    }
+
+    public void testOldestSessionExpiresWhenTooMany()
+            throws InterruptedException {
+        processor.setMaxSessionsPerScreenname(2);
+        RvSession first = processor.createRvSession("Joe");
+        Thread.sleep(5);
+        processor.createRvSession("joe");
+        Thread.sleep(5);
+        processor.createRvSession("bob");
+        assertTrue(expired.isEmpty());
+
+        processor.createRvSession("J O E");
+        assertEquals(1, expired.size());
+        assertSame(first, expired.get(0).getSession());
+        assertSame(RvSessionExpiredEvent.REASON_TOO_MANY_SESSIONS,
+                expired.get(0).getReason());
+        assertEquals(3, processor.getSessionCount());
+    }
+
+    public void testClosedSessionsDontCountTowardsLimit() {
+        processor.setMaxSessionsPerScreenname(1);
+        RvSession first = processor.createRvSession("joe");
+        assertTrue(processor.closeRvSession(first));
+
+        processor.createRvSession("joe");
+        assertTrue(expired.isEmpty());
+    }
+
+    public void testTooManySessionsFiresOutsideLock()
+            throws InterruptedException {
+        processor.setMaxSessionsPerScreenname(1);
+        final List<Thread> others = new ArrayList<Thread>();
+        processor.addExpiryListener(new RvSessionExpiryListener() {
+            public void handleSessionExpired(RvSessionExpiredEvent event) {
+                // this would block if the processor still held its lock
+                Thread other = new Thread() {
+                    public void run() {
+                        processor.createRvSession("bob");
+                    }
+                };
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException ignored) {
+                }
+                others.add(other);
+            }
+        });
+        processor.createRvSession("joe");
+        processor.createRvSession("joe");
+
+        assertEquals(1, others.size());
+        assertFalse(others.get(0).isAlive());
+    }
+}
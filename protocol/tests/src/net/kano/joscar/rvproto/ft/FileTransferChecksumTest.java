@@ -0,0 +1,175 @@
+/*
+ *  Copyright (c) 2006, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.ft;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileTransferChecksumTest extends TestCase {
+    private final Random random = new Random(12345);
+
+    /**
+     * Computes a checksum the way it was computed before the word-at-a-time
+     * implementation, one byte at a time in 1024-byte blocks.
+     */
+    private static long referenceChecksum(byte[] data) {
+        long checksum = FileTransferChecksum.CHECKSUM_EMPTY;
+        for (int off = 0; off < data.length; off += 1024) {
+            int len = Math.min(1024, data.length - off);
+            long check = (checksum >> 16) & 0xffffL;
+            for (int i = 0; i < len; i++) {
+                final long oldcheck = check;
+                final int byteVal = data[off + i] & 0xff;
+                final int val;
+                if ((i & 1) != 0) val = byteVal;
+                else val = byteVal << 8;
+                check -= val;
+                if (check > oldcheck) check--;
+            }
+            check = ((check & 0x0000ffff) + (check >> 16));
+            check = ((check & 0x0000ffff) + (check >> 16));
+            checksum = check << 16 & 0xffffffffL;
+        }
+        return checksum;
+    }
+
+    private byte[] randomData(int len) {
+        byte[] data = new byte[len];
+        random.nextBytes(data);
+        return data;
+    }
+
+    public void testEmpty() {
+        assertEquals(FileTransferChecksum.CHECKSUM_EMPTY,
+                new FileTransferChecksum().getValue());
+        assertEquals(FileTransferChecksum.CHECKSUM_EMPTY,
+                referenceChecksum(new byte[0]));
+    }
+
+    public void testMatchesReference() {
+        for (int i = 0; i < 200; i++) {
+            byte[] data = randomData(random.nextInt(20000));
+            FileTransferChecksum summer = new FileTransferChecksum();
+            summer.update(data, 0, data.length);
+            assertEquals("length " + data.length, referenceChecksum(data),
+                    summer.getValue());
+        }
+    }
+
+    public void testSpecialValues() {
+        for (int len : new int[] { 1, 2, 3, 1023, 1024, 1025, 70000,
+                300000 }) {
+            byte[] data = new byte[len];
+            for (byte fill : new byte[] { 0, (byte) 0xff, 1, (byte) 0x80 }) {
+                Arrays.fill(data, fill);
+                FileTransferChecksum summer = new FileTransferChecksum();
+                summer.update(data, 0, data.length);
+                assertEquals(len + " x " + fill, referenceChecksum(data),
+                        summer.getValue());
+
+                FileTransferChecksum bufSummer = new FileTransferChecksum();
+                bufSummer.update(ByteBuffer.wrap(data));
+                assertEquals(len + " x " + fill, referenceChecksum(data),
+                        bufSummer.getValue());
+            }
+        }
+    }
+
+    public void testOddSizedUpdates() {
+        for (int i = 0; i < 100; i++) {
+            byte[] data = randomData(random.nextInt(20000));
+            FileTransferChecksum summer = new FileTransferChecksum();
+            for (int off = 0; off < data.length;) {
+                int len = Math.min(1 + random.nextInt(999), data.length - off);
+                summer.update(data, off, len);
+                off += len;
+            }
+            assertEquals(referenceChecksum(data), summer.getValue());
+        }
+    }
+
+    public void testByteBuffers() {
+        for (int i = 0; i < 100; i++) {
+            byte[] data = randomData(random.nextInt(300000));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data);
+            direct.flip();
+            FileTransferChecksum summer = new FileTransferChecksum();
+            for (int off = 0; off < data.length;) {
+                int len = Math.min(1 + random.nextInt(99999),
+                        data.length - off);
+                ByteBuffer slice = direct.duplicate();
+                slice.position(off);
+                slice.limit(off + len);
+                summer.update(slice);
+                assertFalse(slice.hasRemaining());
+                off += len;
+            }
+            assertEquals(referenceChecksum(data), summer.getValue());
+        }
+    }
+
+    public void testContinuing() {
+        for (int i = 0; i < 100; i++) {
+            byte[] data = randomData(1 + random.nextInt(20000));
+            int split = random.nextInt(data.length);
+            FileTransferChecksum first = new FileTransferChecksum();
+            first.update(data, 0, split);
+            FileTransferChecksum rest = new FileTransferChecksum(
+                    first.getValue(), split);
+            rest.update(data, split, data.length - split);
+            assertEquals(referenceChecksum(data), rest.getValue());
+        }
+    }
+
+    public void testCombine() {
+        for (int i = 0; i < 200; i++) {
+            byte[] data = randomData(random.nextInt(20000));
+            // make some of the blocks all zeroes
+            if (i % 4 == 0) Arrays.fill(data, 0, data.length / 2, (byte) 0);
+            if (i % 8 == 0) Arrays.fill(data, (byte) 0);
+            int split = data.length == 0 ? 0 : random.nextInt(data.length);
+            FileTransferChecksum first = new FileTransferChecksum();
+            first.update(data, 0, split);
+            FileTransferChecksum second = new FileTransferChecksum(
+                    FileTransferChecksum.CHECKSUM_EMPTY, split);
+            second.update(data, split, data.length - split);
+            assertEquals(referenceChecksum(data), FileTransferChecksum.combine(
+                    first.getValue(), second.getValue()));
+        }
+    }
+}